@@ -0,0 +1,311 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The archive cache stores generated repository archives on disk.
+ *
+ * Archives are addressed by the repository, the commit id, the base path, and
+ * the archive format.  Because a commit never changes, a cached archive never
+ * needs to be invalidated.  The total size of the cached archives is bounded
+ * and the least recently used archives are evicted first.
+ *
+ * Concurrent requests for the same archive wait for a single build of the
+ * archive instead of building it several times.
+ *
+ * @author James Moger
+ *
+ */
+public class ArchiveCache {
+
+	/**
+	 * Writes an archive to an output stream.
+	 */
+	public static interface ArchiveWriter {
+
+		void write(OutputStream os) throws IOException;
+	}
+
+	// the names of archives and of their temporary files, keys are SHA-1 hashes
+	private static final Pattern ARCHIVE_NAME = Pattern.compile("[0-9a-f]{40}(\\.[a-z0-9]+)+");
+
+	private final Logger logger = LoggerFactory.getLogger(ArchiveCache.class);
+
+	private final File folder;
+
+	private final long maxSize;
+
+	// archive name -> archive length, in least recently used order
+	private final Map<String, Long> archives = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	private final ConcurrentMap<String, FutureTask<File>> pending = new ConcurrentHashMap<String, FutureTask<File>>();
+
+	private long size;
+
+	public ArchiveCache(File folder, long maxSize) {
+		this.folder = folder;
+		this.maxSize = maxSize;
+		load();
+	}
+
+	/**
+	 * Returns the key of an archive.  The key is suitable as an entity tag.
+	 * Repository names are case-insensitive so the repository name is
+	 * normalized to lowercase.
+	 *
+	 * @param repository
+	 * @param commitId
+	 *            the resolved commit id
+	 * @param basePath
+	 * @param format
+	 * @return the archive key
+	 */
+	public static String getKey(String repository, String commitId, String basePath, String format) {
+		String path = basePath == null ? "" : basePath;
+		return StringUtils.getSHA1(repository.toLowerCase() + "\n" + commitId + "\n" + path + "\n" + format);
+	}
+
+	/**
+	 * Returns the cached archive, building it if it is not cached.  Concurrent
+	 * calls for the same archive wait for a single build.
+	 *
+	 * @param key
+	 *            the archive key
+	 * @param extension
+	 *            the file extension of the archive
+	 * @param writer
+	 *            writes the archive if it is not cached
+	 * @return the archive file
+	 * @throws IOException
+	 */
+	public File getArchive(final String key, final String extension, final ArchiveWriter writer)
+			throws IOException {
+		final String name = key + extension;
+		File file = lookup(name);
+		if (file != null) {
+			return file;
+		}
+		FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				File file = lookup(name);
+				if (file == null) {
+					file = build(name, writer);
+				}
+				return file;
+			}
+		});
+		FutureTask<File> build = pending.putIfAbsent(name, task);
+		if (build == null) {
+			build = task;
+			try {
+				task.run();
+			} finally {
+				pending.remove(name);
+			}
+		}
+		try {
+			return build.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for archive " + name);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			IOException x = new IOException("Failed to build archive " + name);
+			x.initCause(e.getCause());
+			throw x;
+		}
+	}
+
+	/**
+	 * Returns the total size of the cached archives.
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of cached archives.
+	 *
+	 * @return the number of archives
+	 */
+	public synchronized int getCount() {
+		return archives.size();
+	}
+
+	/**
+	 * Looks up a cached archive and marks it as recently used.
+	 *
+	 * @param name
+	 * @return the archive file or null if it is not cached
+	 */
+	private synchronized File lookup(String name) {
+		Long length = archives.get(name);
+		if (length == null) {
+			return null;
+		}
+		File file = new File(folder, name);
+		if (!file.exists()) {
+			// removed outside of the cache
+			archives.remove(name);
+			size -= length;
+			return null;
+		}
+		// track usage across restarts
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/**
+	 * Builds an archive into a temporary file and adds it to the cache.
+	 *
+	 * @param name
+	 * @param writer
+	 * @return the archive file
+	 * @throws IOException
+	 */
+	private File build(String name, ArchiveWriter writer) throws IOException {
+		folder.mkdirs();
+		File temp = File.createTempFile(name, ".tmp", folder);
+		long start = System.currentTimeMillis();
+		try {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(temp));
+			try {
+				writer.write(os);
+				os.flush();
+			} finally {
+				os.close();
+			}
+			File file = new File(folder, name);
+			if (file.exists() && !file.delete()) {
+				throw new IOException(MessageFormat.format("Failed to replace archive {0}", file));
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException(MessageFormat.format("Failed to rename {0} to {1}", temp, file));
+			}
+			logger.info(MessageFormat.format("Cached archive {0} ({1} bytes) in {2} msecs", name,
+					file.length(), System.currentTimeMillis() - start));
+			add(name, file.length());
+			return file;
+		} finally {
+			if (temp.exists()) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Adds an archive to the cache and evicts the least recently used archives
+	 * until the cache fits in its maximum size.  The added archive itself is
+	 * not evicted.
+	 *
+	 * @param name
+	 * @param length
+	 */
+	private synchronized void add(String name, long length) {
+		Long previous = archives.put(name, length);
+		if (previous != null) {
+			size -= previous;
+		}
+		size += length;
+		evict(name);
+	}
+
+	/**
+	 * Evicts the least recently used archives until the cache fits in its
+	 * maximum size.
+	 *
+	 * @param keep
+	 *            the name of an archive which must not be evicted, may be null
+	 */
+	private void evict(String keep) {
+		Iterator<Map.Entry<String, Long>> itr = archives.entrySet().iterator();
+		while (size > maxSize && itr.hasNext()) {
+			Map.Entry<String, Long> entry = itr.next();
+			if (entry.getKey().equals(keep)) {
+				continue;
+			}
+			File evicted = new File(folder, entry.getKey());
+			if (evicted.delete() || !evicted.exists()) {
+				size -= entry.getValue();
+				itr.remove();
+				logger.debug(MessageFormat.format("Evicted archive {0}", evicted.getName()));
+			}
+		}
+	}
+
+	/**
+	 * Loads the archives which were cached before a restart, in least
+	 * recently used order, and removes abandoned temporary files.  Files
+	 * which are not named like archives are ignored, they are neither counted
+	 * nor evicted.
+	 */
+	private synchronized void load() {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long diff = f1.lastModified() - f2.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			if (!file.isFile() || !ARCHIVE_NAME.matcher(file.getName()).matches()) {
+				continue;
+			}
+			if (file.getName().endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			archives.put(file.getName(), file.length());
+			size += file.length();
+		}
+		evict(null);
+		if (archives.size() > 0) {
+			logger.info(MessageFormat.format("Loaded {0} cached archives ({1} bytes)", archives.size(), size));
+		}
+	}
+}
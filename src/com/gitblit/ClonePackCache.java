@@ -0,0 +1,266 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.storage.pack.PackWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The clone pack cache stores a precomputed pack of all branches and tags of
+ * the repositories which are cloned often.
+ *
+ * A full clone of a repository always produces the same objects until a ref
+ * changes, so the pack is written once by the GC executor and is streamed to
+ * every client which asks for a full clone.  Each pack is named by the state
+ * of the refs it was written for and is only used while the refs of the
+ * repository have not changed.
+ *
+ * @author James Moger
+ *
+ */
+public class ClonePackCache {
+
+	/**
+	 * The branches and tags of a repository.
+	 */
+	public static class Tips {
+
+		public final Set<ObjectId> heads = new HashSet<ObjectId>();
+
+		public final Set<ObjectId> tips = new HashSet<ObjectId>();
+
+		public final String state;
+
+		Tips(Repository r) {
+			Map<String, Ref> refs = new TreeMap<String, Ref>(r.getAllRefs());
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, Ref> entry : refs.entrySet()) {
+				String name = entry.getKey();
+				ObjectId id = entry.getValue().getObjectId();
+				if (id == null) {
+					continue;
+				}
+				if (name.startsWith(Constants.R_HEADS)) {
+					heads.add(id);
+				} else if (!name.startsWith(Constants.R_TAGS)) {
+					continue;
+				}
+				tips.add(id);
+				sb.append(name).append(' ').append(id.getName()).append('\n');
+			}
+			state = StringUtils.getSHA1(sb.toString());
+		}
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(ClonePackCache.class);
+
+	private final File folder;
+
+	private final int threshold;
+
+	// repository -> full clones since the last maintenance
+	private final ConcurrentMap<String, AtomicInteger> clones = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * @param folder
+	 *            the folder of the clone packs
+	 * @param threshold
+	 *            the number of full clones between maintenance runs which
+	 *            qualify a repository for a clone pack
+	 */
+	public ClonePackCache(File folder, int threshold) {
+		this.folder = folder;
+		this.threshold = Math.max(1, threshold);
+	}
+
+	/**
+	 * Returns the branches and tags of a repository.
+	 *
+	 * @param r
+	 * @return the tips
+	 */
+	public static Tips getTips(Repository r) {
+		return new Tips(r);
+	}
+
+	/**
+	 * Records a full clone of a repository.
+	 *
+	 * @param repositoryName
+	 */
+	public void recordClone(String repositoryName) {
+		String key = repositoryName.toLowerCase();
+		AtomicInteger count = clones.get(key);
+		if (count == null) {
+			AtomicInteger previous = clones.putIfAbsent(key, count = new AtomicInteger());
+			if (previous != null) {
+				count = previous;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Returns the clone pack of a repository.
+	 *
+	 * @param repositoryName
+	 * @param state
+	 *            the current state of the branches and tags
+	 * @return the pack or null if there is no pack for the current state
+	 */
+	public File getPack(String repositoryName, String state) {
+		File file = new File(getFolder(repositoryName), state + ".pack");
+		return file.exists() ? file : null;
+	}
+
+	/**
+	 * Determines if the clone pack of a repository may need to be written or
+	 * removed, i.e. if the repository has been cloned since the last
+	 * maintenance or if it has a clone pack.
+	 *
+	 * @param repositoryName
+	 * @return true if the repository needs maintenance
+	 */
+	public boolean needsMaintenance(String repositoryName) {
+		return clones.containsKey(repositoryName.toLowerCase()) || hasPack(getFolder(repositoryName));
+	}
+
+	/**
+	 * Writes or removes the clone pack of a repository depending on the
+	 * number of full clones since the last maintenance.  A repository keeps
+	 * its pack as long as it is cloned, it gets a pack once it has been cloned
+	 * often enough.
+	 *
+	 * @param repositoryName
+	 * @param r
+	 * @return true if a new pack was written
+	 * @throws IOException
+	 */
+	public boolean update(String repositoryName, Repository r) throws IOException {
+		AtomicInteger count = clones.remove(repositoryName.toLowerCase());
+		int n = count == null ? 0 : count.get();
+		File dir = getFolder(repositoryName);
+		boolean hasPack = hasPack(dir);
+		if (n == 0 || (n < threshold && !hasPack)) {
+			if (hasPack) {
+				logger.info(MessageFormat.format("Removing clone pack of {0}", repositoryName));
+				delete(dir, null);
+			}
+			return false;
+		}
+		Tips tips = getTips(r);
+		if (getPack(repositoryName, tips.state) != null) {
+			// pack is current
+			return false;
+		}
+		write(repositoryName, r, tips);
+		return true;
+	}
+
+	/**
+	 * Writes the clone pack of the current branches and tags of a repository.
+	 *
+	 * @param repositoryName
+	 * @param r
+	 * @param tips
+	 * @return the pack
+	 * @throws IOException
+	 */
+	public File write(String repositoryName, Repository r, Tips tips) throws IOException {
+		long start = System.currentTimeMillis();
+		File dir = getFolder(repositoryName);
+		dir.mkdirs();
+		File tmp = File.createTempFile(tips.state, ".tmp", dir);
+		PackConfig config = new PackConfig(r);
+		config.setDeltaBaseAsOffset(true);
+		PackWriter pw = new PackWriter(config, r.newObjectReader());
+		try {
+			pw.setThin(false);
+			pw.setUseCachedPacks(true);
+			pw.preparePack(NullProgressMonitor.INSTANCE, tips.tips, new HashSet<ObjectId>());
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), 64*1024);
+			try {
+				pw.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, os);
+			} finally {
+				os.close();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			pw.release();
+		}
+		File pack = new File(dir, tips.state + ".pack");
+		if (!tmp.renameTo(pack)) {
+			tmp.delete();
+			throw new IOException("Failed to rename " + tmp + " to " + pack);
+		}
+		// remove the packs of previous states
+		delete(dir, pack);
+		logger.info(MessageFormat.format("Wrote clone pack of {0} ({1} KB) in {2} msecs",
+				repositoryName, pack.length()/1024, System.currentTimeMillis() - start));
+		return pack;
+	}
+
+	private File getFolder(String repositoryName) {
+		return new File(folder, repositoryName.toLowerCase());
+	}
+
+	private boolean hasPack(File dir) {
+		for (File file : list(dir)) {
+			if (file.getName().endsWith(".pack")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private File[] list(File dir) {
+		File[] files = dir.listFiles();
+		return files == null ? new File[0] : files;
+	}
+
+	private void delete(File dir, File keep) {
+		for (File file : list(dir)) {
+			if (file.isFile() && !file.equals(keep)) {
+				file.delete();
+			}
+		}
+	}
+}
@@ -17,15 +17,21 @@ package com.gitblit;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
@@ -51,6 +57,11 @@ import com.gitblit.utils.StringUtils;
  * Additionally, this format allows for expansion of the user model without
  * bringing in the complexity of a database.
  * 
+ * The contents of the realm file are held in an immutable snapshot which is
+ * replaced after every write and whenever a background watcher detects that
+ * the file has been modified, so reads never lock or inspect the file.
+ * Changes are applied to a fresh copy of the realm file, one at a time.
+ * 
  * @author James Moger
  * 
  */
@@ -88,22 +99,141 @@ public class ConfigUserService implements IUserService {
 
 	private static final String POSTRECEIVE = "postReceiveScript";
 
+	/**
+	 * Default period, in milliseconds, of the realm file modification checks.
+	 */
+	public static final long WATCH_PERIOD = 5000L;
+
+	private static ScheduledExecutorService watcher;
+
+	// number of scheduled realm file watchers
+	private static int watchers;
+
+	/**
+	 * The users and teams of a version of the realm file.  The models of a
+	 * snapshot are never modified after the snapshot has been published.
+	 */
+	private static class Snapshot {
+
+		final long lastModified;
+
+		final long length;
+
+		final Map<String, UserModel> users;
+
+		final Map<String, UserModel> cookies;
+
+		final Map<String, TeamModel> teams;
+
+		Snapshot(long lastModified, long length, Map<String, UserModel> users,
+				Map<String, UserModel> cookies, Map<String, TeamModel> teams) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.users = Collections.unmodifiableMap(users);
+			this.cookies = Collections.unmodifiableMap(cookies);
+			this.teams = Collections.unmodifiableMap(teams);
+		}
+	}
+
+	/**
+	 * Periodically checks the realm file of a user service for modifications.
+	 * The watcher stops when the user service is no longer referenced.
+	 */
+	private static class RealmFileWatcher implements Runnable {
+
+		final WeakReference<ConfigUserService> service;
+
+		volatile ScheduledFuture<?> future;
+
+		RealmFileWatcher(ConfigUserService service) {
+			this.service = new WeakReference<ConfigUserService>(service);
+		}
+
+		@Override
+		public void run() {
+			ConfigUserService userService = service.get();
+			if (userService == null) {
+				stop(this);
+				return;
+			}
+			try {
+				userService.read();
+			} catch (Throwable t) {
+				userService.logger.error("Failed to check " + userService.realmFile, t);
+			}
+		}
+	}
+
 	private final File realmFile;
 
 	private final Logger logger = LoggerFactory.getLogger(ConfigUserService.class);
 
-	private final Map<String, UserModel> users = new ConcurrentHashMap<String, UserModel>();
+	private volatile Snapshot snapshot;
 
-	private final Map<String, UserModel> cookies = new ConcurrentHashMap<String, UserModel>();
+	private final RealmFileWatcher watcherTask;
 
-	private final Map<String, TeamModel> teams = new ConcurrentHashMap<String, TeamModel>();
+	// working copy of the users and teams, only used while writing
+	private final Map<String, UserModel> users = new HashMap<String, UserModel>();
 
-	private volatile long lastModified;
-	
-	private volatile boolean forceReload;
+	private final Map<String, TeamModel> teams = new HashMap<String, TeamModel>();
 
 	public ConfigUserService(File realmFile) {
+		this(realmFile, WATCH_PERIOD);
+	}
+
+	/**
+	 * @param realmFile
+	 * @param watchPeriod
+	 *            the period, in milliseconds, of the realm file modification
+	 *            checks
+	 */
+	public ConfigUserService(File realmFile, long watchPeriod) {
 		this.realmFile = realmFile;
+		read();
+		watcherTask = new RealmFileWatcher(this);
+		start(watcherTask, watchPeriod);
+	}
+
+	private static synchronized void start(RealmFileWatcher task, long watchPeriod) {
+		if (watcher == null) {
+			watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "realm-file-watcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		task.future = watcher.scheduleWithFixedDelay(task, watchPeriod, watchPeriod,
+				TimeUnit.MILLISECONDS);
+		watchers++;
+	}
+
+	/**
+	 * Cancels a realm file watcher and shuts down the watcher thread when no
+	 * other watcher is scheduled.
+	 * 
+	 * @param task
+	 */
+	private static synchronized void stop(RealmFileWatcher task) {
+		if (task.future == null || task.future.isCancelled()) {
+			return;
+		}
+		task.future.cancel(false);
+		if (--watchers == 0) {
+			watcher.shutdownNow();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Stops checking the realm file for modifications.  The user service can
+	 * still be used, but changes made to the realm file by others are no
+	 * longer picked up.
+	 */
+	public void close() {
+		stop(watcherTask);
 	}
 
 	/**
@@ -180,8 +310,7 @@ public class ConfigUserService implements IUserService {
 		if (!StringUtils.isEmpty(model.cookie)) {
 			return model.cookie;
 		}
-		read();
-		UserModel storedModel = users.get(model.username.toLowerCase());
+		UserModel storedModel = snapshot.users.get(model.username.toLowerCase());
 		return storedModel.cookie;
 	}
 
@@ -197,10 +326,10 @@ public class ConfigUserService implements IUserService {
 		if (StringUtils.isEmpty(hash)) {
 			return null;
 		}
-		read();
-		UserModel model = null;
-		if (cookies.containsKey(hash)) {
-			model = cookies.get(hash);
+		UserModel model = snapshot.cookies.get(hash);
+		if (model != null) {
+			// clone the model, the snapshot must not be changed
+			model = DeepCopier.copy(model);
 		}
 		return model;
 	}
@@ -214,7 +343,6 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public UserModel authenticate(String username, char[] password) {
-		read();
 		UserModel returnedUser = null;
 		UserModel user = getUserModel(username);
 		if (user == null) {
@@ -257,8 +385,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public UserModel getUserModel(String username) {
-		read();
-		UserModel model = users.get(username.toLowerCase());
+		UserModel model = snapshot.users.get(username.toLowerCase());
 		if (model != null) {
 			// clone the model, otherwise all changes to this object are
 			// live and unpersisted
@@ -286,9 +413,9 @@ public class ConfigUserService implements IUserService {
 	 * @since 1.2.0
 	 */
 	@Override
-	public boolean updateUserModels(List<UserModel> models) {
+	public synchronized boolean updateUserModels(List<UserModel> models) {
 		try {
-			read();
+			checkout();
 			for (UserModel model : models) {
 				UserModel originalUser = users.remove(model.username.toLowerCase());
 				users.put(model.username.toLowerCase(), model);
@@ -338,10 +465,10 @@ public class ConfigUserService implements IUserService {
 	 * @return true if update is successful
 	 */
 	@Override
-	public boolean updateUserModel(String username, UserModel model) {
+	public synchronized boolean updateUserModel(String username, UserModel model) {
 		UserModel originalUser = null;
 		try {
-			read();
+			checkout();
 			originalUser = users.remove(username.toLowerCase());
 			users.put(model.username.toLowerCase(), model);
 			// null check on "final" teams because JSON-sourced UserModel
@@ -404,10 +531,10 @@ public class ConfigUserService implements IUserService {
 	 * @return true if successful
 	 */
 	@Override
-	public boolean deleteUser(String username) {
+	public synchronized boolean deleteUser(String username) {
 		try {
 			// Read realm file
-			read();
+			checkout();
 			UserModel model = users.remove(username.toLowerCase());
 			// remove user from team
 			for (TeamModel team : model.teams) {
@@ -437,8 +564,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<String> getAllTeamNames() {
-		read();
-		List<String> list = new ArrayList<String>(teams.keySet());
+		List<String> list = new ArrayList<String>(snapshot.teams.keySet());
 		Collections.sort(list);
 		return list;
 	}
@@ -451,8 +577,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<TeamModel> getAllTeams() {
-		read();
-		List<TeamModel> list = new ArrayList<TeamModel>(teams.values());
+		List<TeamModel> list = new ArrayList<TeamModel>(snapshot.teams.values());
 		list = DeepCopier.copy(list);
 		Collections.sort(list);
 		return list;
@@ -470,8 +595,7 @@ public class ConfigUserService implements IUserService {
 	public List<String> getTeamnamesForRepositoryRole(String role) {
 		List<String> list = new ArrayList<String>();
 		try {
-			read();
-			for (Map.Entry<String, TeamModel> entry : teams.entrySet()) {
+			for (Map.Entry<String, TeamModel> entry : snapshot.teams.entrySet()) {
 				TeamModel model = entry.getValue();
 				if (model.hasRepositoryPermission(role)) {
 					list.add(model.name);
@@ -494,14 +618,14 @@ public class ConfigUserService implements IUserService {
 	 * @return true if successful
 	 */
 	@Override
-	public boolean setTeamnamesForRepositoryRole(String role, List<String> teamnames) {
+	public synchronized boolean setTeamnamesForRepositoryRole(String role, List<String> teamnames) {
 		try {
 			Set<String> specifiedTeams = new HashSet<String>();
 			for (String teamname : teamnames) {
 				specifiedTeams.add(teamname.toLowerCase());
 			}
 
-			read();
+			checkout();
 
 			// identify teams which require add or remove role
 			for (TeamModel team : teams.values()) {
@@ -532,8 +656,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public TeamModel getTeamModel(String teamname) {
-		read();
-		TeamModel model = teams.get(teamname.toLowerCase());
+		TeamModel model = snapshot.teams.get(teamname.toLowerCase());
 		if (model != null) {
 			// clone the model, otherwise all changes to this object are
 			// live and unpersisted
@@ -562,9 +685,9 @@ public class ConfigUserService implements IUserService {
 	 * @since 1.2.0
 	 */
 	@Override
-	public boolean updateTeamModels(List<TeamModel> models) {
+	public synchronized boolean updateTeamModels(List<TeamModel> models) {
 		try {
-			read();
+			checkout();
 			for (TeamModel team : models) {
 				teams.put(team.name.toLowerCase(), team);
 			}
@@ -588,10 +711,10 @@ public class ConfigUserService implements IUserService {
 	 * @since 0.8.0
 	 */
 	@Override
-	public boolean updateTeamModel(String teamname, TeamModel model) {
+	public synchronized boolean updateTeamModel(String teamname, TeamModel model) {
 		TeamModel original = null;
 		try {
-			read();
+			checkout();
 			original = teams.remove(teamname.toLowerCase());
 			teams.put(model.name.toLowerCase(), model);
 			write();
@@ -629,10 +752,10 @@ public class ConfigUserService implements IUserService {
 	 * @since 0.8.0
 	 */
 	@Override
-	public boolean deleteTeam(String teamname) {
+	public synchronized boolean deleteTeam(String teamname) {
 		try {
 			// Read realm file
-			read();
+			checkout();
 			teams.remove(teamname.toLowerCase());
 			write();
 			return true;
@@ -649,8 +772,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<String> getAllUsernames() {
-		read();
-		List<String> list = new ArrayList<String>(users.keySet());
+		List<String> list = new ArrayList<String>(snapshot.users.keySet());
 		Collections.sort(list);
 		return list;
 	}
@@ -662,8 +784,7 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	public List<UserModel> getAllUsers() {
-		read();
-		List<UserModel> list = new ArrayList<UserModel>(users.values());
+		List<UserModel> list = new ArrayList<UserModel>(snapshot.users.values());
 		list = DeepCopier.copy(list);
 		Collections.sort(list);
 		return list;
@@ -681,8 +802,7 @@ public class ConfigUserService implements IUserService {
 	public List<String> getUsernamesForRepositoryRole(String role) {
 		List<String> list = new ArrayList<String>();
 		try {
-			read();
-			for (Map.Entry<String, UserModel> entry : users.entrySet()) {
+			for (Map.Entry<String, UserModel> entry : snapshot.users.entrySet()) {
 				UserModel model = entry.getValue();
 				if (model.hasRepositoryPermission(role)) {
 					list.add(model.username);
@@ -706,14 +826,14 @@ public class ConfigUserService implements IUserService {
 	 */
 	@Override
 	@Deprecated
-	public boolean setUsernamesForRepositoryRole(String role, List<String> usernames) {
+	public synchronized boolean setUsernamesForRepositoryRole(String role, List<String> usernames) {
 		try {
 			Set<String> specifiedUsers = new HashSet<String>();
 			for (String username : usernames) {
 				specifiedUsers.add(username.toLowerCase());
 			}
 
-			read();
+			checkout();
 
 			// identify users which require add or remove role
 			for (UserModel user : users.values()) {
@@ -743,9 +863,9 @@ public class ConfigUserService implements IUserService {
 	 * @return true if successful
 	 */
 	@Override
-	public boolean renameRepositoryRole(String oldRole, String newRole) {
+	public synchronized boolean renameRepositoryRole(String oldRole, String newRole) {
 		try {
-			read();
+			checkout();
 			// identify users which require role rename
 			for (UserModel model : users.values()) {
 				if (model.hasRepositoryPermission(oldRole)) {
@@ -778,9 +898,9 @@ public class ConfigUserService implements IUserService {
 	 * @return true if successful
 	 */
 	@Override
-	public boolean deleteRepositoryRole(String role) {
+	public synchronized boolean deleteRepositoryRole(String role) {
 		try {
-			read();
+			checkout();
 
 			// identify users which require role rename
 			for (UserModel user : users.values()) {
@@ -946,9 +1066,6 @@ public class ConfigUserService implements IUserService {
 		}
 
 		config.save();
-		// manually set the forceReload flag because not all JVMs support real
-		// millisecond resolution of lastModified. (issue-55)
-		forceReload = true;
 
 		// If the write is successful, delete the current file and rename
 		// the temporary copy to the original filename.
@@ -967,19 +1084,64 @@ public class ConfigUserService implements IUserService {
 			throw new IOException(MessageFormat.format("Failed to save {0}!",
 					realmFileCopy.getAbsolutePath()));
 		}
+
+		// publish the written realm file
+		snapshot = load();
+		users.clear();
+		teams.clear();
+	}
+
+	/**
+	 * Reads the realm file into the working copy of the users and teams.  The
+	 * working copy is read from the file, instead of being copied from the
+	 * current snapshot, so that modifications of the file which have not been
+	 * detected yet are not overwritten.
+	 */
+	private void checkout() {
+		Snapshot copy = load();
+		users.clear();
+		users.putAll(copy.users);
+		teams.clear();
+		teams.putAll(copy.teams);
 	}
 
 	/**
-	 * Reads the realm file and rebuilds the in-memory lookup tables.
+	 * Replaces the snapshot if the realm file has been modified since the
+	 * snapshot was read.
 	 */
-	protected synchronized void read() {
-		if (realmFile.exists() && (forceReload || (realmFile.lastModified() != lastModified))) {
-			forceReload = false;
-			lastModified = realmFile.lastModified();
-			users.clear();
-			cookies.clear();
-			teams.clear();
+	protected void read() {
+		if (isModified()) {
+			synchronized (this) {
+				if (isModified()) {
+					snapshot = load();
+				}
+			}
+		}
+	}
+
+	private boolean isModified() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			return true;
+		}
+		// compare the length too because not all JVMs support real
+		// millisecond resolution of lastModified. (issue-55)
+		return realmFile.exists()
+				&& (realmFile.lastModified() != current.lastModified || realmFile.length() != current.length);
+	}
 
+	/**
+	 * Reads the realm file and builds new in-memory lookup tables.
+	 * 
+	 * @return a snapshot of the realm file
+	 */
+	private Snapshot load() {
+		long lastModified = realmFile.lastModified();
+		long length = realmFile.length();
+		Map<String, UserModel> users = new HashMap<String, UserModel>();
+		Map<String, UserModel> cookies = new HashMap<String, UserModel>();
+		Map<String, TeamModel> teams = new HashMap<String, TeamModel>();
+		if (realmFile.exists()) {
 			try {
 				StoredConfig config = new FileBasedConfig(realmFile, FS.detect());
 				config.load();
@@ -1061,10 +1223,11 @@ public class ConfigUserService implements IUserService {
 				logger.error(MessageFormat.format("Failed to read {0}", realmFile), e);
 			}
 		}
+		return new Snapshot(lastModified, length, users, cookies, teams);
 	}
 
 	protected long lastModified() {
-		return lastModified;
+		return snapshot.lastModified;
 	}
 
 	@Override
@@ -60,6 +60,8 @@ public class Constants {
 
 	public static final String ZIP_PATH = "/zip/";
 
+	public static final String RAW_PATH = "/rawblob/";
+
 	public static final String SYNDICATION_PATH = "/feed/";
 
 	public static final String FEDERATION_PATH = "/federation/";
@@ -251,7 +253,8 @@ public class Constants {
 	 */
 	public static enum RpcRequest {
 		// Order is important here.  anything above LIST_SETTINGS requires
-		// administrator privileges and web.allowRpcManagement.
+		// administrator privileges and web.allowRpcManagement, except for
+		// SEARCH which is appended to preserve the existing ordinals.
 		CLEAR_REPOSITORY_CACHE, GET_PROTOCOL, LIST_REPOSITORIES, LIST_BRANCHES, LIST_SETTINGS,
 		CREATE_REPOSITORY, EDIT_REPOSITORY, DELETE_REPOSITORY, 
 		LIST_USERS, CREATE_USER, EDIT_USER, DELETE_USER, 
@@ -259,7 +262,7 @@ public class Constants {
 		LIST_REPOSITORY_MEMBERS, SET_REPOSITORY_MEMBERS, LIST_REPOSITORY_TEAMS, SET_REPOSITORY_TEAMS, 
 		LIST_REPOSITORY_MEMBER_PERMISSIONS, SET_REPOSITORY_MEMBER_PERMISSIONS, LIST_REPOSITORY_TEAM_PERMISSIONS, SET_REPOSITORY_TEAM_PERMISSIONS, 
 		LIST_FEDERATION_REGISTRATIONS, LIST_FEDERATION_RESULTS, LIST_FEDERATION_PROPOSALS, LIST_FEDERATION_SETS,
-		EDIT_SETTINGS, LIST_STATUS;
+		EDIT_SETTINGS, LIST_STATUS, SEARCH;
 
 		public static RpcRequest fromName(String name) {
 			for (RpcRequest type : values()) {
@@ -274,6 +277,10 @@ public class Constants {
 			return this.ordinal() > type.ordinal();
 		}
 
+		public boolean requiresAdmin() {
+			return exceeds(LIST_SETTINGS) && this != SEARCH;
+		}
+
 		@Override
 		public String toString() {
 			return name();
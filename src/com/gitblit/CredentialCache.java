@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The credential cache remembers successful credential verifications for a
+ * short time, so repeated requests of the same client, e.g. the requests of a
+ * single clone or of a build server, do not verify the password with the user
+ * service again.
+ *
+ * The cache does not store passwords.  A verification is keyed by a hash of
+ * the username and the password with a random salt which is generated when
+ * the cache is created and is never persisted.  The verifications of a user
+ * are discarded when the user is updated or deleted and all verifications are
+ * discarded when a team is changed.
+ *
+ * @author James Moger
+ *
+ */
+public class CredentialCache {
+
+	private static class Verification {
+
+		final String username;
+
+		final long expires;
+
+		Verification(String username, long expires) {
+			this.username = username;
+			this.expires = expires;
+		}
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] salt = new byte[32];
+
+	private final long ttl;
+
+	private final int maxEntries;
+
+	// key -> verification, in least recently used order
+	private final Map<String, Verification> verifications = new LinkedHashMap<String, Verification>(16, 0.75f, true);
+
+	/**
+	 * @param ttl
+	 *            the lifetime of a verification in milliseconds
+	 * @param maxEntries
+	 *            the maximum number of cached verifications
+	 */
+	public CredentialCache(long ttl, int maxEntries) {
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/**
+	 * Returns the name of the user who has been verified with the specified
+	 * credentials.
+	 *
+	 * @param username
+	 * @param password
+	 * @return the name of the verified user or null if the credentials have
+	 *         not been verified recently
+	 */
+	public String get(String username, char[] password) {
+		String key = getKey(username, password);
+		synchronized (verifications) {
+			Verification verification = verifications.get(key);
+			if (verification == null) {
+				return null;
+			}
+			if (verification.expires <= System.currentTimeMillis()) {
+				verifications.remove(key);
+				return null;
+			}
+			return verification.username;
+		}
+	}
+
+	/**
+	 * Records a successful credential verification.
+	 *
+	 * @param username
+	 *            the username of the credentials
+	 * @param password
+	 * @param user
+	 *            the verified user
+	 */
+	public void put(String username, char[] password, String user) {
+		String key = getKey(username, password);
+		synchronized (verifications) {
+			verifications.put(key, new Verification(user, System.currentTimeMillis() + ttl));
+			Iterator<Verification> itr = verifications.values().iterator();
+			while (verifications.size() > maxEntries && itr.hasNext()) {
+				itr.next();
+				itr.remove();
+			}
+		}
+	}
+
+	/**
+	 * Discards the verifications of a user.
+	 *
+	 * @param user
+	 */
+	public void invalidate(String user) {
+		synchronized (verifications) {
+			Iterator<Verification> itr = verifications.values().iterator();
+			while (itr.hasNext()) {
+				if (itr.next().username.equalsIgnoreCase(user)) {
+					itr.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discards all verifications.
+	 */
+	public void invalidateAll() {
+		synchronized (verifications) {
+			verifications.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of cached verifications.
+	 *
+	 * @return the number of verifications
+	 */
+	public int size() {
+		synchronized (verifications) {
+			return verifications.size();
+		}
+	}
+
+	private String getKey(String username, char[] password) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(salt);
+			md.update(username.toLowerCase().getBytes(UTF8));
+			md.update((byte) 0);
+			// encode the password without creating an immutable copy of it
+			ByteBuffer bytes = UTF8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE).encode(CharBuffer.wrap(password));
+			md.update(bytes.duplicate());
+			if (bytes.hasArray()) {
+				Arrays.fill(bytes.array(), (byte) 0);
+			}
+			return new BigInteger(1, md.digest()).toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (CharacterCodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
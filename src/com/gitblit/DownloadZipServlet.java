@@ -15,7 +15,12 @@
  */
 package com.gitblit;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.Date;
@@ -29,7 +34,10 @@ import org.eclipse.jgit.revwalk.RevCommit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.gitblit.Constants.AccessRestrictionType;
+import com.gitblit.models.RepositoryModel;
 import com.gitblit.utils.CompressionUtils;
+import com.gitblit.utils.HttpUtils;
 import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.MarkdownUtils;
 import com.gitblit.utils.StringUtils;
@@ -148,31 +156,50 @@ public class DownloadZipServlet extends HttpServlet {
 			}
 			Date date = JGitUtils.getCommitDate(commit);
 
+			// the archive of a commit never changes so the entity tag is
+			// derived from the commit id instead of the archive content
+			String key = ArchiveCache.getKey(repository, commit.getName(), basePath, format.name());
+			String etag = "\"" + key + "\"";
+			RepositoryModel model = GitBlit.self().getRepositoryModel(repository);
+			// shared caches may only store archives which anyone may view
+			boolean isPublic = !GitBlit.getBoolean(Keys.web.authenticateViewPages, false)
+					&& (model == null || !model.accessRestriction.atLeast(AccessRestrictionType.VIEW));
+			response.setHeader("ETag", etag);
+			response.setDateHeader("Last-Modified", date.getTime());
+			if (commit.getName().equalsIgnoreCase(objectId)) {
+				// addressed by commit id, the archive is immutable
+				response.setHeader("Cache-Control", (isPublic ? "public" : "private")
+						+ ", max-age=31536000, immutable");
+			} else {
+				// addressed by ref or by default, revalidate as the ref moves
+				response.setHeader("Cache-Control", (isPublic ? "public" : "private") + ", no-cache");
+			}
+			if (HttpUtils.isCurrent(request.getHeader("If-None-Match"), etag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				r.close();
+				return;
+			}
+
 			String contentType = "application/octet-stream";
 			response.setContentType(contentType + "; charset=" + response.getCharacterEncoding());
 			response.setHeader("Content-Disposition", "attachment; filename=\"" + name + format.extension + "\"");
-			response.setDateHeader("Last-Modified", date.getTime());
-			response.setHeader("Cache-Control", "no-cache");
-			response.setHeader("Pragma", "no-cache");
-			response.setDateHeader("Expires", 0);
 
 			try {
-				switch (format) {
-				case zip:
-					CompressionUtils.zip(r, basePath, objectId, response.getOutputStream());
-					break;
-				case tar:
-					CompressionUtils.tar(r, basePath, objectId, response.getOutputStream());
-					break;
-				case gz:
-					CompressionUtils.gz(r, basePath, objectId, response.getOutputStream());
-					break;
-				case xz:
-					CompressionUtils.xz(r, basePath, objectId, response.getOutputStream());
-					break;
-				case bzip2:
-					CompressionUtils.bzip2(r, basePath, objectId, response.getOutputStream());
-					break;
+				ArchiveCache cache = GitBlit.self().getArchiveCache();
+				if (cache == null) {
+					writeArchive(r, basePath, commit.getName(), format, response.getOutputStream());
+				} else {
+					final Repository repo = r;
+					final String path = basePath;
+					final String commitId = commit.getName();
+					final Format archiveFormat = format;
+					File archive = cache.getArchive(key, format.extension, new ArchiveCache.ArchiveWriter() {
+						@Override
+						public void write(OutputStream os) throws IOException {
+							writeArchive(repo, path, commitId, archiveFormat, os);
+						}
+					});
+					sendArchive(r, basePath, commitId, format, archive, response);
 				}
 				
 				response.flushBuffer();
@@ -187,6 +214,79 @@ public class DownloadZipServlet extends HttpServlet {
 		}
 	}
 
+	/**
+	 * Writes the archive of the tree of a commit.
+	 * 
+	 * @param r
+	 * @param basePath
+	 * @param commitId
+	 * @param format
+	 * @param os
+	 * @throws IOException
+	 *             if the archive could not be written
+	 */
+	private void writeArchive(Repository r, String basePath, String commitId, Format format,
+			OutputStream os) throws IOException {
+		boolean success = false;
+		switch (format) {
+		case zip:
+			success = CompressionUtils.zip(r, basePath, commitId, os);
+			break;
+		case tar:
+			success = CompressionUtils.tar(r, basePath, commitId, os);
+			break;
+		case gz:
+			success = CompressionUtils.gz(r, basePath, commitId, os,
+					GitBlit.self().getCompressionExecutor(), GitBlit.self().getCompressionThreads());
+			break;
+		case xz:
+			success = CompressionUtils.xz(r, basePath, commitId, os,
+					GitBlit.self().getCompressionExecutor(), GitBlit.self().getCompressionThreads());
+			break;
+		case bzip2:
+			success = CompressionUtils.bzip2(r, basePath, commitId, os);
+			break;
+		}
+		if (!success) {
+			throw new IOException(MessageFormat.format("Failed to write {0} archive of {1}",
+					format.name(), commitId));
+		}
+	}
+
+	/**
+	 * Sends a cached archive.  If the archive was evicted before it could be
+	 * opened, the archive is written directly to the client.
+	 * 
+	 * @param r
+	 * @param basePath
+	 * @param commitId
+	 * @param format
+	 * @param archive
+	 * @param response
+	 * @throws IOException
+	 */
+	private void sendArchive(Repository r, String basePath, String commitId, Format format,
+			File archive, HttpServletResponse response) throws IOException {
+		InputStream is;
+		try {
+			is = new FileInputStream(archive);
+		} catch (FileNotFoundException e) {
+			writeArchive(r, basePath, commitId, format, response.getOutputStream());
+			return;
+		}
+		try {
+			response.setHeader("Content-Length", String.valueOf(archive.length()));
+			OutputStream os = response.getOutputStream();
+			byte[] buffer = new byte[32767];
+			int len;
+			while ((len = is.read(buffer)) > -1) {
+				os.write(buffer, 0, len);
+			}
+		} finally {
+			is.close();
+		}
+	}
+
 	private void error(HttpServletResponse response, String mkd) throws ServletException,
 			IOException, ParseException {
 		String content = MarkdownUtils.transformMarkdown(mkd);
@@ -440,6 +440,10 @@ public class FederationPullExecutor implements Runnable {
 			logger.warn(MessageFormat.format(
 					"Failed to retrieve TEAMS from federated gitblit ({0} @ {1})",
 					registration.name, registration.url), e);
+		} finally {
+			if (userService instanceof ConfigUserService) {
+				((ConfigUserService) userService).close();
+			}
 		}
 
 		try {
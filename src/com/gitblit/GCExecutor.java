@@ -35,7 +35,8 @@ import com.gitblit.models.RepositoryModel;
 import com.gitblit.utils.FileUtils;
 
 /**
- * The GC executor handles periodic garbage collection in repositories.
+ * The GC executor handles periodic garbage collection in repositories and the
+ * maintenance of the precomputed packs of frequently cloned repositories.
  * 
  * @author James Moger
  * 
@@ -167,6 +168,7 @@ public class GCExecutor implements Runnable {
 				
 				GC gc = new GC(repository);
 				RepoStatistics stats = gc.getStatistics();
+				GitBlit.self().updateLooseObjectsSize(repositoryName, stats.sizeOfLooseObjects);
 				
 				// determine if this is a scheduled GC
 				Calendar cal = Calendar.getInstance();
@@ -203,6 +205,12 @@ public class GCExecutor implements Runnable {
 						// update the last GC date
 						model.lastGC = new Date();
 						GitBlit.self().updateConfiguration(repository, model);
+						
+						// refresh the cached repository model
+						GitBlit.self().markRepositoryModelStale(repositoryName);
+						
+						// re-measure now that the loose objects have been packed
+						GitBlit.self().refreshRepositorySize(repositoryName, true);
 					}
 				
 					repository.close();
@@ -217,6 +225,40 @@ public class GCExecutor implements Runnable {
 		running.set(false);
 	}
 	
+	/**
+	 * Writes the clone packs of the repositories which are cloned often and
+	 * removes the clone packs of the repositories which are no longer cloned.
+	 * A clone pack is rewritten when the branches or tags of its repository
+	 * have changed.
+	 * 
+	 * @param clonePacks
+	 */
+	public void writeClonePacks(ClonePackCache clonePacks) {
+		for (String repositoryName : GitBlit.self().getRepositoryList()) {
+			if (forceClose.get()) {
+				break;
+			}
+			if (!clonePacks.needsMaintenance(repositoryName) || isCollectingGarbage(repositoryName)) {
+				// try again at the next maintenance
+				continue;
+			}
+			Repository repository = null;
+			try {
+				repository = GitBlit.self().getRepository(repositoryName);
+				if (repository == null) {
+					continue;
+				}
+				clonePacks.update(repositoryName, repository);
+			} catch (Throwable t) {
+				logger.error("Error writing clone pack of " + repositoryName, t);
+			} finally {
+				if (repository != null) {
+					repository.close();
+				}
+			}
+		}
+	}
+
 	private boolean isRepositoryIdle(FileRepository repository) {
 		try {
 			// Read the use count.
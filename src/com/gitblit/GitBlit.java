@@ -46,9 +46,12 @@ import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -90,6 +93,7 @@ import com.gitblit.models.FederationProposal;
 import com.gitblit.models.FederationSet;
 import com.gitblit.models.ForkModel;
 import com.gitblit.models.Metric;
+import com.gitblit.models.PermissionMatrix;
 import com.gitblit.models.ProjectModel;
 import com.gitblit.models.RegistrantAccessPermission;
 import com.gitblit.models.RepositoryModel;
@@ -145,12 +149,20 @@ public class GitBlit implements ServletContextListener {
 
 	private final Map<String, FederationModel> federationPullResults = new ConcurrentHashMap<String, FederationModel>();
 
-	private final ObjectCache<Long> repositorySizeCache = new ObjectCache<Long>();
+	private final RepositorySizeTracker repositorySizes = new RepositorySizeTracker();
+
+	private final Set<String> pendingSizeRefreshes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final AtomicBoolean luceneQueueScheduled = new AtomicBoolean();
+	
+	private final AtomicInteger luceneQueueRetries = new AtomicInteger();
 
 	private final ObjectCache<List<Metric>> repositoryMetricsCache = new ObjectCache<List<Metric>>();
 	
 	private final Map<String, RepositoryModel> repositoryListCache = new ConcurrentHashMap<String, RepositoryModel>();
 	
+	private final Set<String> staleRepositoryModels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
 	private final Map<String, ProjectModel> projectCache = new ConcurrentHashMap<String, ProjectModel>();
 	
 	private final AtomicReference<String> repositoryListSettingsChecksum = new AtomicReference<String>("");
@@ -177,6 +189,24 @@ public class GitBlit implements ServletContextListener {
 	
 	private GCExecutor gcExecutor;
 	
+	private ArchiveCache archiveCache;
+	
+	private ResponseCache responseCache;
+	
+	private ClonePackCache clonePackCache;
+	
+	private UploadPackCache uploadPackCache;
+	
+	private TransportLimiter transportLimiter;
+	
+	private CredentialCache credentialCache;
+	
+	private ExecutorService compressionExecutor;
+	
+	private int compressionThreads = 1;
+	
+	private RepositoryRegistry repositoryRegistry;
+	
 	private TimeZone timezone;
 	
 	private FileBasedConfig projectConfigs;
@@ -417,6 +447,84 @@ public class GitBlit implements ServletContextListener {
 		return getFileOrFolder(Keys.federation.proposalsFolder, "proposals");
 	}
 
+	/**
+	 * Returns the cache of generated repository archives.
+	 * 
+	 * @return the archive cache or null if archives are not cached
+	 */
+	public ArchiveCache getArchiveCache() {
+		return archiveCache;
+	}
+
+	/**
+	 * Returns the cache of rendered responses which are addressed by an
+	 * object id.
+	 * 
+	 * @return the response cache or null if responses are not cached
+	 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Returns the cache of precomputed packs of the repositories which are
+	 * cloned often.
+	 * 
+	 * @return the clone pack cache or null if clone packs are disabled
+	 */
+	public ClonePackCache getClonePackCache() {
+		return clonePackCache;
+	}
+
+	/**
+	 * Returns the cache of upload-pack responses.
+	 * 
+	 * @return the upload-pack cache or null if responses are not cached
+	 */
+	public UploadPackCache getUploadPackCache() {
+		return uploadPackCache;
+	}
+
+	/**
+	 * Returns the admission control of the upload-pack and receive-pack
+	 * operations.
+	 * 
+	 * @return the transport limiter or null if the transports are not limited
+	 */
+	public TransportLimiter getTransportLimiter() {
+		return transportLimiter;
+	}
+
+	/**
+	 * Invalidates the cached responses after a change which may affect the
+	 * rendering of a response, e.g. a permission change.
+	 */
+	private void invalidateResponseCache() {
+		if (responseCache != null) {
+			responseCache.invalidate();
+		}
+	}
+
+	/**
+	 * Returns the executor for parallel compression of downloads.  The
+	 * executor is shared by all downloads.
+	 * 
+	 * @return the compression executor or null if downloads are compressed
+	 *         by a single thread
+	 */
+	public ExecutorService getCompressionExecutor() {
+		return compressionExecutor;
+	}
+
+	/**
+	 * Returns the number of threads which compress a download.
+	 * 
+	 * @return the number of compression threads
+	 */
+	public int getCompressionThreads() {
+		return compressionThreads;
+	}
+
 	/**
 	 * Returns the path of the Groovy folder. This method checks to see if
 	 * Gitblit is running on a cloud service and may return an adjusted path.
@@ -434,13 +542,30 @@ public class GitBlit implements ServletContextListener {
 	 * @return true if the update succeeded
 	 */
 	public boolean updateSettings(Map<String, String> updatedSettings) {
-		return settings.saveSettings(updatedSettings);
+		boolean success = settings.saveSettings(updatedSettings);
+		invalidateResponseCache();
+		return success;
 	}
 
 	public ServerStatus getStatus() {
 		// update heap memory status
 		serverStatus.heapAllocated = Runtime.getRuntime().totalMemory();
 		serverStatus.heapFree = Runtime.getRuntime().freeMemory();
+		
+		// update git transport status
+		if (transportLimiter != null) {
+			serverStatus.gitOperations = transportLimiter.getActive();
+			serverStatus.gitQueuedOperations = transportLimiter.getQueued();
+			serverStatus.gitRejectedOperations = transportLimiter.getRejected();
+			serverStatus.gitAverageWait = transportLimiter.getAverageWait();
+			serverStatus.gitMaximumWait = transportLimiter.getMaximumWait();
+		}
+		
+		// update Lucene indexing status
+		if (luceneExecutor != null) {
+			serverStatus.luceneIndexedDocuments = luceneExecutor.getIndexedDocuments();
+			serverStatus.luceneIndexingThroughput = luceneExecutor.getIndexingThroughput();
+		}
 		return serverStatus;
 	}
 
@@ -469,6 +594,9 @@ public class GitBlit implements ServletContextListener {
 		logger.info("Setting up user service " + userService.toString());
 		this.userService = userService;
 		this.userService.setup(settings);
+		if (credentialCache != null) {
+			credentialCache.invalidateAll();
+		}
 	}
 	
 	/**
@@ -539,7 +667,21 @@ public class GitBlit implements ServletContextListener {
 		if (userService == null) {
 			return null;
 		}
-		return userService.authenticate(username, password);
+		if (credentialCache != null) {
+			// skip the user service if the credentials were recently verified
+			String verified = credentialCache.get(username, password);
+			if (verified != null) {
+				UserModel user = userService.getUserModel(verified);
+				if (user != null) {
+					return user;
+				}
+			}
+		}
+		UserModel user = userService.authenticate(username, password);
+		if (user != null && credentialCache != null) {
+			credentialCache.put(username, password, user.username);
+		}
+		return user;
 	}
 
 	/**
@@ -763,7 +905,15 @@ public class GitBlit implements ServletContextListener {
 		if (StringUtils.isEmpty(username)) {
 			return false;
 		}
-		return userService.deleteUser(username);
+		boolean success = userService.deleteUser(username);
+		// invalidate after the update so that a concurrent request can not
+		// cache state from before the update
+		invalidateResponseCache();
+		PermissionMatrix.invalidateAll();
+		if (credentialCache != null) {
+			credentialCache.invalidate(username);
+		}
+		return success;
 	}
 
 	/**
@@ -866,6 +1016,7 @@ public class GitBlit implements ServletContextListener {
 				users.add(user);
 			}
 		}
+		PermissionMatrix.invalidateAll();
 		return userService.updateUserModels(users);
 	}
 	
@@ -932,7 +1083,17 @@ public class GitBlit implements ServletContextListener {
 				}
 			}
 		}
-		if (!userService.updateUserModel(username, user)) {
+		boolean success = userService.updateUserModel(username, user);
+		// invalidate after the update so that a concurrent request can not
+		// cache state from before the update
+		invalidateResponseCache();
+		PermissionMatrix.invalidateAll();
+		if (credentialCache != null) {
+			// the password may have changed
+			credentialCache.invalidate(username);
+			credentialCache.invalidate(user.username);
+		}
+		if (!success) {
 			throw new GitBlitException(isCreate ? "Failed to add user!" : "Failed to update user!");
 		}
 	}
@@ -1006,6 +1167,7 @@ public class GitBlit implements ServletContextListener {
 				teams.add(team);
 			}
 		}
+		PermissionMatrix.invalidateAll();
 		return userService.updateTeamModels(teams);
 	}
 	
@@ -1053,7 +1215,13 @@ public class GitBlit implements ServletContextListener {
 						team.name));
 			}
 		}
-		if (!userService.updateTeamModel(teamname, team)) {
+		boolean success = userService.updateTeamModel(teamname, team);
+		invalidateResponseCache();
+		PermissionMatrix.invalidateAll();
+		if (credentialCache != null) {
+			credentialCache.invalidateAll();
+		}
+		if (!success) {
 			throw new GitBlitException(isCreate ? "Failed to add team!" : "Failed to update team!");
 		}
 	}
@@ -1066,26 +1234,88 @@ public class GitBlit implements ServletContextListener {
 	 * @return true if successful
 	 */
 	public boolean deleteTeam(String teamname) {
-		return userService.deleteTeam(teamname);
+		boolean success = userService.deleteTeam(teamname);
+		invalidateResponseCache();
+		PermissionMatrix.invalidateAll();
+		if (credentialCache != null) {
+			credentialCache.invalidateAll();
+		}
+		return success;
 	}
 	
 	/**
 	 * Adds the repository to the list of cached repositories if Gitblit is
 	 * configured to cache the repository list.
 	 * 
+	 * Cached models are copy-on-write snapshots: once a model is published to
+	 * the cache it is never modified in place.  Changes are made to a copy
+	 * which then replaces the cached snapshot.  This allows lock-free reads of
+	 * the cache from concurrent requests.
+	 * 
 	 * @param model
 	 */
 	private void addToCachedRepositoryList(RepositoryModel model) {
 		if (settings.getBoolean(Keys.git.cacheRepositoryList, true)) {
-			repositoryListCache.put(model.name.toLowerCase(), model);
+			// cache a private snapshot, the caller may continue to modify model
+			synchronized (repositoryListCache) {
+				repositoryListCache.put(model.name.toLowerCase(), model.copy());
+			}
 			
 			// update the fork origin repository with this repository clone
-			if (!StringUtils.isEmpty(model.originRepository)) {
-				if (repositoryListCache.containsKey(model.originRepository)) {
-					RepositoryModel origin = repositoryListCache.get(model.originRepository);
-					origin.addFork(model.name);
-				}
+			addForkToCachedRepository(model.originRepository, model.name);
+		}
+	}
+	
+	/**
+	 * Replaces the cached snapshot of the origin repository with a version
+	 * that includes the specified fork.
+	 * 
+	 * @param originRepository
+	 * @param fork
+	 */
+	private void addForkToCachedRepository(String originRepository, String fork) {
+		if (StringUtils.isEmpty(originRepository)) {
+			return;
+		}
+		while (true) {
+			RepositoryModel origin = repositoryListCache.get(originRepository);
+			if (origin == null || (origin.forks != null && origin.forks.contains(fork))) {
+				return;
+			}
+			RepositoryModel updated = origin.copy();
+			updated.addFork(fork);
+			if (replaceCachedRepository(originRepository, origin, updated)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Publishes a new snapshot of a cached repository model unless the cached
+	 * snapshot has been replaced or removed since the expected snapshot was
+	 * read.  Snapshots are compared by identity because repository models are
+	 * equal by name.  All changes of the cache synchronize on the cache.
+	 * 
+	 * @param key
+	 *            the lowercase repository name
+	 * @param expected
+	 *            the snapshot which was read or null if the repository was
+	 *            not cached
+	 * @param updated
+	 *            the new snapshot or null to remove the repository
+	 * @return true if the cache was changed
+	 */
+	private boolean replaceCachedRepository(String key, RepositoryModel expected, RepositoryModel updated) {
+		synchronized (repositoryListCache) {
+			if (repositoryListCache.get(key) != expected) {
+				return false;
+			}
+			if (updated == null) {
+				repositoryListCache.remove(key);
+			} else {
+				repositoryListCache.put(key, updated);
 			}
+			return true;
 		}
 	}
 	
@@ -1099,7 +1329,9 @@ public class GitBlit implements ServletContextListener {
 		if (StringUtils.isEmpty(name)) {
 			return null;
 		}
-		return repositoryListCache.remove(name.toLowerCase());
+		synchronized (repositoryListCache) {
+			return repositoryListCache.remove(name.toLowerCase());
+		}
 	}
 
 	/**
@@ -1108,17 +1340,52 @@ public class GitBlit implements ServletContextListener {
 	 * @param repositoryName
 	 */
 	private void clearRepositoryMetadataCache(String repositoryName) {
-		repositorySizeCache.remove(repositoryName);
+		repositorySizes.remove(repositoryName);
 		repositoryMetricsCache.remove(repositoryName);
 	}
 	
+	/**
+	 * Returns true if cached repository models are only refreshed from disk
+	 * after a change notification.
+	 * 
+	 * @return true if repository changes are tracked by notification
+	 */
+	private boolean isTrackingRepositoryChanges() {
+		return settings.getBoolean(Keys.git.trackRepositoryChanges, false)
+				&& settings.getBoolean(Keys.git.cacheRepositoryList, true);
+	}
+	
+	/**
+	 * Notifies Gitblit that a repository has changed (e.g. refs updated by a
+	 * push, config changed, or garbage collected) and that the cached
+	 * repository model must be refreshed from disk on the next request.
+	 * 
+	 * @param repositoryName
+	 */
+	public void markRepositoryModelStale(String repositoryName) {
+		if (!StringUtils.isEmpty(repositoryName)) {
+			staleRepositoryModels.add(repositoryName.toLowerCase());
+		}
+	}
+	
+	/**
+	 * Flags all cached repository models to be refreshed from disk on their
+	 * next request.  This is used to detect changes made outside of Gitblit
+	 * when repository changes are tracked by notification.
+	 */
+	public void markAllRepositoryModelsStale() {
+		staleRepositoryModels.addAll(repositoryListCache.keySet());
+	}
+	
 	/**
 	 * Resets the repository list cache.
 	 * 
 	 */
 	public void resetRepositoryListCache() {
 		logger.info("Repository cache manually reset");
-		repositoryListCache.clear();
+		synchronized (repositoryListCache) {
+			repositoryListCache.clear();
+		}
 	}
 	
 	/**
@@ -1148,7 +1415,9 @@ public class GitBlit implements ServletContextListener {
 		repositoryListSettingsChecksum.set(newChecksum);
 		if (!valid && settings.getBoolean(Keys.git.cacheRepositoryList,  true)) {
 			logger.info("Repository list settings have changed. Clearing repository list cache.");
-			repositoryListCache.clear();
+			synchronized (repositoryListCache) {
+				repositoryListCache.clear();
+			}
 		}
 		return valid;
 	}
@@ -1163,11 +1432,7 @@ public class GitBlit implements ServletContextListener {
 		if (repositoryListCache.size() == 0 || !isValidRepositoryList()) {
 			// we are not caching OR we have not yet cached OR the cached list is invalid
 			long startTime = System.currentTimeMillis();
-			List<String> repositories = JGitUtils.getRepositoryList(repositoriesFolder, 
-					settings.getBoolean(Keys.git.onlyAccessBareRepositories, false),
-					settings.getBoolean(Keys.git.searchRepositoriesSubfolders, true),
-					settings.getInteger(Keys.git.searchRecursionDepth, -1),
-					settings.getStrings(Keys.git.searchExclusions));
+			List<String> repositories = findRepositories();
 
 			if (!settings.getBoolean(Keys.git.cacheRepositoryList,  true)) {
 				// we are not caching
@@ -1183,7 +1448,7 @@ public class GitBlit implements ServletContextListener {
 					for (String repository : repositories) {
 						RepositoryModel model = getRepositoryModel(repository);
 						if (!model.skipSizeCalculation) {
-							calculateSize(model);
+							updateSize(model);
 						}
 					}
 				} else {
@@ -1194,17 +1459,14 @@ public class GitBlit implements ServletContextListener {
 				}
 				
 				// rebuild fork networks
-				for (RepositoryModel model : repositoryListCache.values()) {
-					if (!StringUtils.isEmpty(model.originRepository)) {
-						if (repositoryListCache.containsKey(model.originRepository)) {
-							RepositoryModel origin = repositoryListCache.get(model.originRepository);
-							origin.addFork(model.name);
-						}
-					}
+				for (RepositoryModel model : new ArrayList<RepositoryModel>(repositoryListCache.values())) {
+					addForkToCachedRepository(model.originRepository, model.name);
 				}
 				
 				long duration = System.currentTimeMillis() - startTime;
 				logger.info(MessageFormat.format(msg, repositoryListCache.size(), duration));
+				
+				saveRepositoryRegistry();
 			}
 		}
 		
@@ -1214,6 +1476,132 @@ public class GitBlit implements ServletContextListener {
 		return list;
 	}
 
+	/**
+	 * Walks the repositories folder to identify all available repositories.
+	 * 
+	 * @return list of repository names
+	 */
+	private List<String> findRepositories() {
+		return JGitUtils.getRepositoryList(repositoriesFolder, 
+				settings.getBoolean(Keys.git.onlyAccessBareRepositories, false),
+				settings.getBoolean(Keys.git.searchRepositoriesSubfolders, true),
+				settings.getInteger(Keys.git.searchRecursionDepth, -1),
+				settings.getStrings(Keys.git.searchExclusions),
+				settings.getInteger(Keys.git.searchRepositoriesThreads, 1));
+	}
+	
+	/**
+	 * Populates the repository list cache, and the repository size cache, from
+	 * the persisted repository registry.
+	 * 
+	 * @return true if the repository list cache was loaded from the registry
+	 */
+	private boolean loadRepositoryRegistry() {
+		if (repositoryRegistry == null) {
+			return false;
+		}
+		long startTime = System.currentTimeMillis();
+		List<RepositoryRegistry.Entry> entries = repositoryRegistry.read(getRepositoryListSettingsChecksum());
+		if (ArrayUtils.isEmpty(entries)) {
+			return false;
+		}
+		for (RepositoryRegistry.Entry entry : entries) {
+			RepositoryModel model = entry.model;
+			if (model == null || StringUtils.isEmpty(model.name)) {
+				continue;
+			}
+			synchronized (repositoryListCache) {
+				repositoryListCache.put(model.name.toLowerCase(), model);
+			}
+			if (entry.size != null) {
+				repositorySizes.seed(model.name, model.lastChange, entry.size);
+			}
+		}
+		long duration = System.currentTimeMillis() - startTime;
+		logger.info(MessageFormat.format("{0} repositories loaded from {1} in {2} msecs",
+				repositoryListCache.size(), repositoryRegistry, duration));
+		return repositoryListCache.size() > 0;
+	}
+	
+	/**
+	 * Persists the cached repository list to the repository registry.
+	 */
+	private void saveRepositoryRegistry() {
+		if (repositoryRegistry == null || !settings.getBoolean(Keys.git.cacheRepositoryList, true)) {
+			return;
+		}
+		List<RepositoryRegistry.Entry> entries = new ArrayList<RepositoryRegistry.Entry>();
+		for (RepositoryModel model : repositoryListCache.values()) {
+			Long size = null;
+			if (repositorySizes.hasCurrent(model.name, model.lastChange)) {
+				size = repositorySizes.getSize(model.name);
+			}
+			entries.add(new RepositoryRegistry.Entry(model, size));
+		}
+		if (repositoryRegistry.write(getRepositoryListSettingsChecksum(), entries)) {
+			logger.debug(MessageFormat.format("{0} repositories saved to {1}", entries.size(), repositoryRegistry));
+		}
+	}
+	
+	/**
+	 * Verifies the repository list cache, which was loaded from the repository
+	 * registry, against the repositories folder.  Fresh repository models are
+	 * loaded for all discovered repositories and repositories that no longer
+	 * exist are removed from the cache.
+	 */
+	private void verifyRepositoryListCache() {
+		long startTime = System.currentTimeMillis();
+		// only repositories which were registered before the scan may be
+		// evicted, repositories created during the scan are not missing.  The
+		// snapshots are kept so that models which change during the scan are
+		// not replaced by stale scan results.
+		Map<String, RepositoryModel> registered = new HashMap<String, RepositoryModel>(repositoryListCache);
+		List<String> repositories = findRepositories();
+		
+		// load fresh models, without publishing them until the fork network
+		// has been rebuilt
+		Map<String, RepositoryModel> models = new HashMap<String, RepositoryModel>();
+		for (String repository : repositories) {
+			RepositoryModel model = loadRepositoryModel(repository);
+			if (model != null) {
+				models.put(model.name.toLowerCase(), model);
+			}
+		}
+		for (RepositoryModel model : models.values()) {
+			if (!StringUtils.isEmpty(model.originRepository) && models.containsKey(model.originRepository)) {
+				models.get(model.originRepository).addFork(model.name);
+			}
+		}
+		
+		// publish the verified models unless the cached model was added,
+		// changed or removed during the scan
+		List<RepositoryModel> published = new ArrayList<RepositoryModel>();
+		for (Map.Entry<String, RepositoryModel> entry : models.entrySet()) {
+			if (replaceCachedRepository(entry.getKey(), registered.get(entry.getKey()), entry.getValue())) {
+				published.add(entry.getValue());
+			}
+		}
+		for (String key : RepositoryRegistry.getMissing(registered.keySet(), models.keySet())) {
+			if (replaceCachedRepository(key, registered.get(key), null)) {
+				logger.info(MessageFormat.format("Registered repository \"{0}\" is missing! Removing from cache.", key));
+			}
+		}
+		
+		// optionally (re)calculate repository sizes
+		if (getBoolean(Keys.web.showRepositorySizes, true)) {
+			for (RepositoryModel model : published) {
+				if (!model.skipSizeCalculation) {
+					updateSize(model);
+				}
+			}
+		}
+		
+		long duration = System.currentTimeMillis() - startTime;
+		logger.info(MessageFormat.format("{0} registered repositories verified in {1} msecs",
+				repositoryListCache.size(), duration));
+		saveRepositoryRegistry();
+	}
+
 	/**
 	 * Returns the JGit repository for the specified name.
 	 * 
@@ -1332,15 +1720,21 @@ public class GitBlit implements ServletContextListener {
 			return model;
 		}
 		
-		// cached model
+		// cached model snapshot, never modified in place
 		RepositoryModel model = repositoryListCache.get(repositoryName.toLowerCase());
 
 		if (gcExecutor.isCollectingGarbage(model.name)) {
 			// Gitblit is busy collecting garbage, use our cached model
-			RepositoryModel rm = DeepCopier.copy(model);
+			RepositoryModel rm = model.copy();
 			rm.isCollectingGarbage = true;
 			return rm;
 		}
+		
+		if (isTrackingRepositoryChanges()
+				&& !staleRepositoryModels.remove(model.name.toLowerCase())) {
+			// no change notifications since the model was refreshed
+			return model.copy();
+		}
 
 		// check for updates
 		Repository r = getRepository(model.name);
@@ -1359,18 +1753,35 @@ public class GitBlit implements ServletContextListener {
 			removeFromCachedRepositoryList(repositoryName);
 			addToCachedRepositoryList(model);
 		} else {
-			// update a few repository parameters 
-			if (!model.hasCommits) {
-				// update hasCommits, assume a repository only gains commits :)
-				model.hasCommits = JGitUtils.hasCommits(r);
+			// update a few repository parameters
+			// assume a repository only gains commits :)
+			boolean hasCommits = model.hasCommits || JGitUtils.hasCommits(r);
+			Date lastChange = JGitUtils.getLastChange(r);
+			String key = model.name.toLowerCase();
+			while (hasCommits != model.hasCommits || !lastChange.equals(model.lastChange)) {
+				// publish a new snapshot of the cached model, a snapshot which
+				// was published concurrently, e.g. with a new fork, is updated
+				// instead
+				RepositoryModel updated = model.copy();
+				updated.hasCommits = hasCommits;
+				updated.lastChange = lastChange;
+				if (replaceCachedRepository(key, model, updated)) {
+					model = updated;
+					break;
+				}
+				RepositoryModel current = repositoryListCache.get(key);
+				if (current == null) {
+					// removed concurrently, return the update without caching it
+					model = updated;
+					break;
+				}
+				model = current;
 			}
-
-			model.lastChange = JGitUtils.getLastChange(r);
 		}
 		r.close();
 		
 		// return a copy of the cached model
-		return DeepCopier.copy(model);
+		return model.copy();
 	}
 	
 	
@@ -1882,15 +2293,148 @@ public class GitBlit implements ServletContextListener {
 	 * @return size in bytes
 	 */
 	public long calculateSize(RepositoryModel model) {
-		if (repositorySizeCache.hasCurrent(model.name, model.lastChange)) {
-			return repositorySizeCache.getObject(model.name);
+		Long size = repositorySizes.getSize(model.name);
+		if (size == null) {
+			// first measurement of this repository
+			return updateSize(model);
+		}
+		if (!repositorySizes.hasCurrent(model.name, model.lastChange)) {
+			// serve the last known size, refresh in the background
+			refreshRepositorySize(model.name, false);
 		}
-		File gitDir = FileKey.resolve(new File(repositoriesFolder, model.name), FS.DETECTED);
-		long size = com.gitblit.utils.FileUtils.folderSize(gitDir);
-		repositorySizeCache.updateObject(model.name, model.lastChange, size);
 		return size;
 	}
 
+	/**
+	 * Synchronously updates the tracked size of the repository, if it is not
+	 * current.
+	 * 
+	 * @param model
+	 * @return size in bytes
+	 */
+	private long updateSize(RepositoryModel model) {
+		if (repositorySizes.hasCurrent(model.name, model.lastChange)) {
+			return repositorySizes.getSize(model.name);
+		}
+		File gitDir = FileKey.resolve(new File(repositoriesFolder, model.name), FS.DETECTED);
+		return repositorySizes.refresh(model.name, gitDir, model.lastChange);
+	}
+
+	/**
+	 * Schedules a background refresh of the tracked size of the repository.
+	 * A refresh only lists the pack files of the repository. A measurement
+	 * also walks the loose objects and should be requested after garbage
+	 * collection when there are few loose objects.
+	 * 
+	 * @param repositoryName
+	 * @param measure
+	 *            if true all components of the repository size are measured
+	 */
+	public void refreshRepositorySize(final String repositoryName, final boolean measure) {
+		if (!pendingSizeRefreshes.add(repositoryName)) {
+			// refresh already pending
+			return;
+		}
+		try {
+			scheduledExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						RepositoryModel model = getRepositoryModel(repositoryName);
+						if (model == null) {
+							repositorySizes.remove(repositoryName);
+							return;
+						}
+						File gitDir = FileKey.resolve(new File(repositoriesFolder, model.name), FS.DETECTED);
+						if (measure) {
+							repositorySizes.measure(model.name, gitDir, model.lastChange);
+						} else {
+							repositorySizes.refresh(model.name, gitDir, model.lastChange);
+						}
+					} catch (Throwable t) {
+						logger.error(MessageFormat.format("Failed to refresh the size of {0}", repositoryName), t);
+					} finally {
+						pendingSizeRefreshes.remove(repositoryName);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pendingSizeRefreshes.remove(repositoryName);
+		}
+	}
+
+	/**
+	 * Updates the tracked loose objects size of the repository, e.g. from the
+	 * statistics gathered by the garbage collector.
+	 * 
+	 * @param repositoryName
+	 * @param looseObjectsSize
+	 */
+	public void updateLooseObjectsSize(String repositoryName, long looseObjectsSize) {
+		repositorySizes.updateLooseObjects(repositoryName, looseObjectsSize);
+	}
+
+	/**
+	 * Queues an incremental Lucene index update of the changed refs of the
+	 * repository.  Updates are batched and the queue is drained shortly after
+	 * the first queued update.
+	 * 
+	 * @param repositoryName
+	 * @param refs
+	 *            the changed refs
+	 */
+	public void queueLuceneUpdate(String repositoryName, Collection<String> refs) {
+		if (luceneExecutor == null || !luceneExecutor.isQueueEnabled()) {
+			return;
+		}
+		RepositoryModel model = getRepositoryModel(repositoryName);
+		if (model == null || ArrayUtils.isEmpty(model.indexedBranches)) {
+			return;
+		}
+		if (luceneExecutor.queue(model.name, refs)) {
+			scheduleLuceneQueueDrain(5);
+		}
+	}
+
+	/**
+	 * Schedules a drain of the Lucene index queue, unless one is already
+	 * scheduled.  If updates are left in the queue, e.g. during garbage
+	 * collection or after a failed update, the drain is rescheduled with an
+	 * increasing delay.
+	 * 
+	 * @param delay
+	 *            delay in seconds
+	 */
+	private void scheduleLuceneQueueDrain(int delay) {
+		if (!luceneQueueScheduled.compareAndSet(false, true)) {
+			// drain already scheduled
+			return;
+		}
+		try {
+			scheduledExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					luceneQueueScheduled.set(false);
+					boolean retry = true;
+					try {
+						retry = luceneExecutor.drainQueue();
+					} catch (Throwable t) {
+						logger.error("Failed to drain the Lucene index queue", t);
+					}
+					if (retry) {
+						// back off from 30 seconds to 10 minutes
+						int retries = luceneQueueRetries.getAndIncrement();
+						scheduleLuceneQueueDrain(Math.min(600, 30 << Math.min(retries, 5)));
+					} else {
+						luceneQueueRetries.set(0);
+					}
+				}
+			}, delay, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			luceneQueueScheduled.set(false);
+		}
+	}
+
 	/**
 	 * Ensure that a cached repository is completely closed and its resources
 	 * are properly released.
@@ -2102,9 +2646,16 @@ public class GitBlit implements ServletContextListener {
 				
 				// remove this repository from any origin model's fork list
 				if (!StringUtils.isEmpty(repository.originRepository)) {
-					RepositoryModel origin = repositoryListCache.get(repository.originRepository);
-					if (origin != null && !ArrayUtils.isEmpty(origin.forks)) {
-						origin.forks.remove(repositoryName);
+					while (true) {
+						RepositoryModel origin = repositoryListCache.get(repository.originRepository);
+						if (origin == null || ArrayUtils.isEmpty(origin.forks)) {
+							break;
+						}
+						RepositoryModel updated = origin.copy();
+						updated.removeFork(repositoryName);
+						if (replaceCachedRepository(repository.originRepository, origin, updated)) {
+							break;
+						}
 					}
 				}
 
@@ -2140,6 +2691,8 @@ public class GitBlit implements ServletContextListener {
 		removeFromCachedRepositoryList(repositoryName);
 		// model will actually be replaced on next load because config is stale
 		addToCachedRepositoryList(repository);
+		invalidateResponseCache();
+		PermissionMatrix.invalidateAll();
 	}
 	
 	/**
@@ -2211,6 +2764,7 @@ public class GitBlit implements ServletContextListener {
 		} catch (IOException e) {
 			logger.error("Failed to save repository config!", e);
 		}
+		markRepositoryModelStale(repository.name);
 	}
 	
 	private void updateList(StoredConfig config, String field, List<String> list) {
@@ -2265,6 +2819,11 @@ public class GitBlit implements ServletContextListener {
 			}
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Failed to delete repository {0}", repositoryName), t);
+		} finally {
+			// invalidate after the deletion so that a concurrent request can
+			// not cache state from before the deletion
+			invalidateResponseCache();
+			PermissionMatrix.invalidateAll();
 		}
 		return false;
 	}
@@ -2832,6 +3391,35 @@ public class GitBlit implements ServletContextListener {
 		return srs;
 	}
 
+	/**
+	 * Search the specified repositories using the Lucene query, continuing
+	 * after the cursor of the last result of the previous page.
+	 * 
+	 * @param query
+	 * @param page
+	 * @param pageSize
+	 * @param after
+	 *            the cursor of the last result of the previous page, may be
+	 *            null
+	 * @param repositories
+	 * @return
+	 */
+	public List<SearchResult> search(String query, int page, int pageSize, String after, List<String> repositories) {
+		List<SearchResult> srs = luceneExecutor.searchAfter(query, page, pageSize, after, repositories);
+		return srs;
+	}
+
+	/**
+	 * Counts the hits of the Lucene query in the specified repositories.
+	 * 
+	 * @param query
+	 * @param repositories
+	 * @return the number of hits
+	 */
+	public int countSearchHits(String query, List<String> repositories) {
+		return luceneExecutor.count(query, repositories);
+	}
+
 	/**
 	 * Notify the administrators by email.
 	 * 
@@ -3023,13 +3611,94 @@ public class GitBlit implements ServletContextListener {
 		luceneExecutor = new LuceneExecutor(settings, repositoriesFolder);
 		gcExecutor = new GCExecutor(settings);
 		
+		// prepare the archive cache
+		long archiveCacheSize = settings.getFilesize(Keys.web.archiveCacheSize, 500*1024*1024L);
+		if (archiveCacheSize > 0) {
+			File archiveCacheFolder = getFileOrFolder(Keys.web.archiveCacheFolder, "archives");
+			archiveCache = new ArchiveCache(archiveCacheFolder, archiveCacheSize);
+			logger.info("Archive cache folder " + archiveCacheFolder.getAbsolutePath());
+		}
+		
+		// prepare the cache of responses addressed by object id
+		long responseCacheSize = settings.getFilesize(Keys.web.responseCacheSize, 0L);
+		if (responseCacheSize > 0) {
+			responseCache = new ResponseCache(responseCacheSize);
+		}
+		
+		// prepare the precomputed packs of frequently cloned repositories
+		int clonePackThreshold = settings.getInteger(Keys.git.clonePackThreshold, 0);
+		if (clonePackThreshold > 0) {
+			File clonePackFolder = getFileOrFolder(Keys.git.clonePackFolder, "clonepacks");
+			clonePackCache = new ClonePackCache(clonePackFolder, clonePackThreshold);
+			logger.info("Clone pack folder " + clonePackFolder.getAbsolutePath());
+		}
+		
+		// prepare the cache of upload-pack responses
+		long uploadPackCacheSize = settings.getFilesize(Keys.git.uploadPackCacheSize, 0L);
+		if (uploadPackCacheSize > 0) {
+			File uploadPackCacheFolder = getFileOrFolder(Keys.git.uploadPackCacheFolder, "uploadpacks");
+			uploadPackCache = new UploadPackCache(uploadPackCacheFolder, uploadPackCacheSize);
+			logger.info("Upload-pack cache folder " + uploadPackCacheFolder.getAbsolutePath());
+		}
+		
+		// prepare the admission control of the git transports
+		int maxUploadPacks = settings.getInteger(Keys.git.maxUploadPacks, 0);
+		int maxRepositoryUploadPacks = settings.getInteger(Keys.git.maxRepositoryUploadPacks, 0);
+		int maxReceivePacks = settings.getInteger(Keys.git.maxReceivePacks, 0);
+		int maxRepositoryReceivePacks = settings.getInteger(Keys.git.maxRepositoryReceivePacks, 0);
+		if (maxUploadPacks > 0 || maxRepositoryUploadPacks > 0 || maxReceivePacks > 0
+				|| maxRepositoryReceivePacks > 0) {
+			int queueSize = settings.getInteger(Keys.git.transportQueueSize, 50);
+			int queueTimeout = settings.getInteger(Keys.git.transportQueueTimeout, 60);
+			transportLimiter = new TransportLimiter(maxUploadPacks, maxRepositoryUploadPacks,
+					maxReceivePacks, maxRepositoryReceivePacks, queueSize, queueTimeout*1000L);
+			logger.info(MessageFormat.format("Git transports are limited to {0} upload-packs ({1} per repository) and {2} receive-packs ({3} per repository)",
+					maxUploadPacks, maxRepositoryUploadPacks, maxReceivePacks, maxRepositoryReceivePacks));
+		}
+		
+		// prepare the cache of verified credentials
+		int credentialCacheTtl = settings.getInteger(Keys.realm.credentialCacheTtl, 60);
+		if (credentialCacheTtl > 0) {
+			int credentialCacheSize = settings.getInteger(Keys.realm.credentialCacheSize, 1000);
+			credentialCache = new CredentialCache(credentialCacheTtl*1000L, credentialCacheSize);
+		}
+		
+		// prepare parallel compression of downloads
+		compressionThreads = settings.getInteger(Keys.web.compressionThreads, 1);
+		if (compressionThreads <= 0) {
+			compressionThreads = Runtime.getRuntime().availableProcessors();
+		}
+		if (compressionThreads > 1) {
+			compressionExecutor = Executors.newFixedThreadPool(compressionThreads);
+			logger.info(MessageFormat.format("Downloads are compressed by {0} threads", compressionThreads));
+		}
+		
 		// calculate repository list settings checksum for future config changes
 		repositoryListSettingsChecksum.set(getRepositoryListSettingsChecksum());
 
 		// build initial repository list
 		if (settings.getBoolean(Keys.git.cacheRepositoryList,  true)) {
-			logger.info("Identifying available repositories...");
-			getRepositoryList();
+			String registryFile = settings.getString(Keys.git.repositoryListCacheFile, "");
+			if (!StringUtils.isEmpty(registryFile)) {
+				repositoryRegistry = new RepositoryRegistry(getFileOrFolder(registryFile));
+			}
+			if (loadRepositoryRegistry()) {
+				// serve the registered list, verify it in the background
+				logger.info("Verifying registered repositories in the background...");
+				scheduledExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							verifyRepositoryListCache();
+						} catch (Throwable t) {
+							logger.error("Failed to verify registered repositories", t);
+						}
+					}
+				});
+			} else {
+				logger.info("Identifying available repositories...");
+				getRepositoryList();
+			}
 		}
 		
 		logTimezone("JVM", TimeZone.getDefault());
@@ -3063,8 +3732,39 @@ public class GitBlit implements ServletContextListener {
 		}
 		
 		// schedule lucene engine
-		logger.info("Lucene executor is scheduled to process indexed branches every 2 minutes.");
-		scheduledExecutor.scheduleAtFixedRate(luceneExecutor, 1, 2, TimeUnit.MINUTES);
+		if (luceneExecutor.isQueueEnabled()) {
+			// pushes are queued for incremental indexing, a full scan only
+			// catches changes which were not pushed through Gitblit
+			int rescanPeriod = settings.getInteger(Keys.web.luceneRescanPeriod, 60);
+			if (rescanPeriod > 0) {
+				logger.info(MessageFormat.format("Lucene executor is scheduled to process indexed branches every {0} minutes.", rescanPeriod));
+				scheduledExecutor.scheduleAtFixedRate(luceneExecutor, 1, rescanPeriod, TimeUnit.MINUTES);
+			} else {
+				logger.info("Lucene executor is scheduled to process indexed branches on startup.");
+				scheduledExecutor.schedule(luceneExecutor, 1, TimeUnit.MINUTES);
+			}
+			logger.info("Pushes to indexed branches are queued for incremental Lucene indexing.");
+			scheduleLuceneQueueDrain(30);
+		} else {
+			logger.info("Lucene executor is scheduled to process indexed branches every 2 minutes.");
+			scheduledExecutor.scheduleAtFixedRate(luceneExecutor, 1, 2, TimeUnit.MINUTES);
+		}
+		
+		// schedule repository model refresh
+		if (isTrackingRepositoryChanges()) {
+			int refreshPeriod = settings.getInteger(Keys.git.repositoryRefreshPeriod, 5);
+			if (refreshPeriod > 0) {
+				logger.info(MessageFormat.format("Cached repository models will be refreshed every {0} minutes.", refreshPeriod));
+				scheduledExecutor.scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run() {
+						markAllRepositoryModelsStale();
+					}
+				}, refreshPeriod, refreshPeriod, TimeUnit.MINUTES);
+			} else {
+				logger.info("Cached repository models will only be refreshed by change notifications.");
+			}
+		}
 		
 		// schedule gc engine
 		if (gcExecutor.isReady()) {
@@ -3090,6 +3790,18 @@ public class GitBlit implements ServletContextListener {
 			scheduledExecutor.scheduleAtFixedRate(gcExecutor, delay, 60*24, TimeUnit.MINUTES);
 		}
 		
+		// schedule clone pack maintenance
+		if (clonePackCache != null) {
+			int period = Math.max(1, settings.getInteger(Keys.git.clonePackPeriod, 10));
+			logger.info(MessageFormat.format("Clone packs are maintained every {0} mins", period));
+			scheduledExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					gcExecutor.writeClonePacks(clonePackCache);
+				}
+			}, period, period, TimeUnit.MINUTES);
+		}
+		
 		if (startFederation) {
 			configureFederation();
 		}
@@ -3188,8 +3900,17 @@ public class GitBlit implements ServletContextListener {
 	public void contextDestroyed(ServletContextEvent contextEvent) {
 		logger.info("Gitblit context destroyed by servlet container.");
 		scheduledExecutor.shutdownNow();
+		if (compressionExecutor != null) {
+			compressionExecutor.shutdownNow();
+		}
+		saveRepositoryRegistry();
 		luceneExecutor.close();
 		gcExecutor.close();
+		if (userService instanceof GitblitUserService) {
+			((GitblitUserService) userService).close();
+		} else if (userService instanceof ConfigUserService) {
+			((ConfigUserService) userService).close();
+		}
 	}
 	
 	/**
@@ -15,10 +15,20 @@
  */
 package com.gitblit;
 
+import java.io.IOException;
 import java.text.MessageFormat;
 
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import com.gitblit.Constants.AccessRestrictionType;
 import com.gitblit.Constants.AuthorizationControl;
+import com.gitblit.TransportLimiter.Ticket;
+import com.gitblit.TransportLimiter.Transport;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.UserModel;
 import com.gitblit.utils.StringUtils;
@@ -28,6 +38,9 @@ import com.gitblit.utils.StringUtils;
  * requests for push, clone, or view restricted repositories are authenticated
  * and authorized.
  * 
+ * Authorized upload-pack and receive-pack operations are admitted by the
+ * transport limiter, if the concurrency of the git transports is limited.
+ * 
  * @author James Moger
  * 
  */
@@ -93,6 +106,61 @@ public class GitFilter extends AccessRestrictionFilter {
 		return null;
 	}
 	
+	/**
+	 * Admits the upload-pack and receive-pack operations through the transport
+	 * limiter after the request has been authorized.
+	 * 
+	 * @see com.gitblit.AccessRestrictionFilter#doFilter(javax.servlet.ServletRequest,
+	 *      javax.servlet.ServletResponse, javax.servlet.FilterChain)
+	 */
+	@Override
+	public void doFilter(final ServletRequest request, final ServletResponse response,
+			final FilterChain chain) throws IOException, ServletException {
+		final TransportLimiter limiter = GitBlit.self().getTransportLimiter();
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		if (limiter == null || !"POST".equals(httpRequest.getMethod())) {
+			super.doFilter(request, response, chain);
+			return;
+		}
+		String fullUrl = getFullUrl(httpRequest);
+		final Transport transport;
+		if (fullUrl.endsWith(gitUploadPack)) {
+			transport = Transport.UPLOAD_PACK;
+		} else if (fullUrl.endsWith(gitReceivePack)) {
+			transport = Transport.RECEIVE_PACK;
+		} else {
+			super.doFilter(request, response, chain);
+			return;
+		}
+		final String repository = extractRepositoryName(fullUrl);
+		super.doFilter(request, response, new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response)
+					throws IOException, ServletException {
+				Ticket ticket = null;
+				try {
+					ticket = limiter.acquire(transport, repository);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (ticket == null) {
+					// queue is full or the wait timed out. send 503.
+					logger.warn(MessageFormat.format("GF: rejecting {0} of {1}, {2} active, {3} queued",
+							transport, repository, limiter.getActive(), limiter.getQueued()));
+					HttpServletResponse httpResponse = (HttpServletResponse) response;
+					httpResponse.setHeader("Retry-After", String.valueOf(limiter.getRetryAfter()));
+					httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					return;
+				}
+				try {
+					chain.doFilter(request, response);
+				} finally {
+					ticket.release();
+				}
+			}
+		});
+	}
+
 	/**
 	 * Determine if a non-existing repository can be created using this filter.
 	 *  
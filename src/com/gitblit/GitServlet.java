@@ -16,12 +16,10 @@
 package com.gitblit;
 
 import groovy.lang.Binding;
-import groovy.util.GroovyScriptEngine;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.text.MessageFormat;
@@ -51,6 +49,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.gitblit.Constants.AccessRestrictionType;
+import com.gitblit.HookExecutor.PostReceiveEvent;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.UserModel;
 import com.gitblit.utils.ClientLogger;
@@ -74,23 +73,27 @@ public class GitServlet extends org.eclipse.jgit.http.server.GitServlet {
 
 	private static final long serialVersionUID = 1L;
 
-	private GroovyScriptEngine gse;
+	private ScriptRegistry scriptRegistry;
 
-	private File groovyDir;
+	private HookExecutor hookExecutor;
 
 	@Override
 	public void init(ServletConfig config) throws ServletException {
-		groovyDir = GitBlit.getGroovyScriptsFolder();
-		try {
-			// set Grape root
-			File grapeRoot = new File(GitBlit.getString(Keys.groovy.grapeFolder, "groovy/grape")).getAbsoluteFile();
-			grapeRoot.mkdirs();
-			System.setProperty("grape.root", grapeRoot.getAbsolutePath());
-			
-			gse = new GroovyScriptEngine(groovyDir.getAbsolutePath());			
-		} catch (IOException e) {
-			throw new ServletException("Failed to instantiate Groovy Script Engine!", e);
-		}
+		File groovyDir = GitBlit.getGroovyScriptsFolder();
+
+		// set Grape root
+		File grapeRoot = new File(GitBlit.getString(Keys.groovy.grapeFolder, "groovy/grape")).getAbsoluteFile();
+		grapeRoot.mkdirs();
+		System.setProperty("grape.root", grapeRoot.getAbsolutePath());
+
+		// hook scripts are compiled once and recompiled when they change
+		int slowThreshold = GitBlit.getInteger(Keys.groovy.slowScriptThreshold, 1000);
+		scriptRegistry = new ScriptRegistry(groovyDir, slowThreshold);
+		int threads = GitBlit.getInteger(Keys.groovy.postReceiveThreads, 0);
+		int queueSize = GitBlit.getInteger(Keys.groovy.postReceiveQueueSize, 1000);
+		int timeout = GitBlit.getInteger(Keys.groovy.postReceiveTimeout, 300);
+		int retries = GitBlit.getInteger(Keys.groovy.postReceiveRetries, 0);
+		hookExecutor = new HookExecutor(scriptRegistry, threads, queueSize, timeout*1000L, retries);
 
 		// set the Gitblit receive hook
 		setReceivePackFactory(new DefaultReceivePackFactory() {
@@ -131,9 +134,20 @@ public class GitServlet extends org.eclipse.jgit.http.server.GitServlet {
 				return rp;
 			}
 		});
+		
+		// serve the precomputed packs of full clones and cached fetches
+		addUploadPackFilter(new UploadPackFilter());
+		
 		super.init(new GitblitServletConfig(config));
 	}
 
+	@Override
+	public void destroy() {
+		hookExecutor.close();
+		scriptRegistry.logStatistics();
+		super.destroy();
+	}
+
 	/**
 	 * Transitional wrapper class to configure the JGit 1.2 GitFilter. This
 	 * GitServlet will probably be replaced by a GitFilter so that Gitblit can
@@ -264,14 +278,28 @@ public class GitServlet extends org.eclipse.jgit.http.server.GitServlet {
 				logger.info("skipping post-receive hooks, no refs created, updated, or removed");
 				return;
 			}
+			// refs have been updated, refresh the cached repository model
+			GitBlit.self().markRepositoryModelStale(repositoryName);
 			RepositoryModel repository = GitBlit.self().getRepositoryModel(repositoryName);
+			if (GitBlit.getBoolean(Keys.web.showRepositorySizes, true) && !repository.skipSizeCalculation) {
+				// the received objects were written as a pack
+				GitBlit.self().refreshRepositorySize(repositoryName, false);
+			}
 			Set<String> scripts = new LinkedHashSet<String>();
 			scripts.addAll(GitBlit.self().getPostReceiveScriptsInherited(repository));
 			scripts.addAll(repository.postReceiveScripts);
 			UserModel user = getUserModel(rp);
-			runGroovy(repository, user, commands, rp, scripts);
+			if (!scripts.isEmpty()
+					&& !hookExecutor.queue(new PostReceiveEvent(repository, user, commands, scripts, gitblitUrl))) {
+				if (hookExecutor.isAsynchronous()) {
+					logger.warn(MessageFormat.format("post-receive queue is full, running hooks of {0} in the push", repository.name));
+				}
+				runGroovy(repository, user, commands, rp, scripts);
+			}
+			Set<String> updatedRefs = new LinkedHashSet<String>();
 			for (ReceiveCommand cmd : commands) {
 				if (Result.OK.equals(cmd.getResult())) {
+					updatedRefs.add(cmd.getRefName());
 					// add some logging for important ref changes
 					switch (cmd.getType()) {
 					case DELETE:
@@ -288,6 +316,11 @@ public class GitServlet extends org.eclipse.jgit.http.server.GitServlet {
 					}
 				}
 			}
+
+			// queue the updated refs for incremental indexing
+			if (!updatedRefs.isEmpty()) {
+				GitBlit.self().queueLuceneUpdate(repositoryName, updatedRefs);
+			}
 			
 			// Experimental
 			// runNativeScript(rp, "hooks/post-receive", commands);
@@ -311,7 +344,7 @@ public class GitServlet extends org.eclipse.jgit.http.server.GitServlet {
 		}
 
 		/**
-		 * Runs the specified Groovy hook scripts.
+		 * Runs the specified Groovy hook scripts in the pushing request.
 		 * 
 		 * @param repository
 		 * @param user
@@ -334,33 +367,7 @@ public class GitServlet extends org.eclipse.jgit.http.server.GitServlet {
 			binding.setVariable("url", gitblitUrl);
 			binding.setVariable("logger", logger);
 			binding.setVariable("clientLogger", new ClientLogger(rp));
-			for (String script : scripts) {
-				if (StringUtils.isEmpty(script)) {
-					continue;
-				}
-				// allow script to be specified without .groovy extension
-				// this is easier to read in the settings
-				File file = new File(groovyDir, script);
-				if (!file.exists() && !script.toLowerCase().endsWith(".groovy")) {
-					file = new File(groovyDir, script + ".groovy");
-					if (file.exists()) {
-						script = file.getName();
-					}
-				}
-				try {
-					Object result = gse.run(script, binding);
-					if (result instanceof Boolean) {
-						if (!((Boolean) result)) {
-							logger.error(MessageFormat.format(
-									"Groovy script {0} has failed!  Hook scripts aborted.", script));
-							break;
-						}
-					}
-				} catch (Exception e) {
-					logger.error(
-							MessageFormat.format("Failed to execute Groovy script {0}", script), e);
-				}
-			}
+			hookExecutor.runGroovy(binding, scripts);
 		}
 
 		/**
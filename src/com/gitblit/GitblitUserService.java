@@ -70,6 +70,9 @@ public class GitblitUserService implements IUserService {
 		} else if (realmFile.getName().toLowerCase().endsWith(".conf")) {
 			// v0.8.0+ config-based realm file
 			service = new ConfigUserService(realmFile);
+		} else if (realmFile.getName().toLowerCase().endsWith(".journal")) {
+			// v1.3.0+ journal-based realm file
+			service = new JournalUserService(realmFile);
 		}
 
 		assert service != null;
@@ -100,6 +103,7 @@ public class GitblitUserService implements IUserService {
 					UserModel userModel = service.getUserModel(username);
 					configService.updateUserModel(userModel);
 				}
+				configService.close();
 			}
 			// issue suggestion about switching to users.conf
 			logger.warn("Please consider using \"users.conf\" instead of the deprecated \"users.properties\" file");
@@ -107,6 +111,15 @@ public class GitblitUserService implements IUserService {
 		return service;
 	}
 	
+	/**
+	 * Releases the resources of the backing user service.
+	 */
+	public void close() {
+		if (serviceImpl instanceof ConfigUserService) {
+			((ConfigUserService) serviceImpl).close();
+		}
+	}
+
 	@Override
 	public String toString() {
 		return getClass().getSimpleName();
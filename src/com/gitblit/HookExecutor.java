@@ -0,0 +1,348 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import groovy.lang.Binding;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.UserModel;
+import com.gitblit.utils.ClientLogger;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The hook executor runs the Groovy hook scripts.
+ *
+ * Pre-receive scripts run in the pushing request because they may reject the
+ * push.  Post-receive scripts may be queued as a post-receive event and run
+ * asynchronously on a bounded pool of workers, so the push returns as soon
+ * as the refs are updated.  The events of a repository are processed in push
+ * order.  Every queued script runs with a timeout and a failed script may be
+ * retried.  A retry runs the whole script again.
+ *
+ * @author James Moger
+ *
+ */
+public class HookExecutor {
+
+	/**
+	 * A push which has been applied to a repository.  The event holds copies
+	 * of the receive commands and does not reference the receive pack, so it
+	 * remains valid after the push has completed.
+	 */
+	public static class PostReceiveEvent {
+
+		public final RepositoryModel repository;
+
+		public final UserModel user;
+
+		public final List<ReceiveCommand> commands;
+
+		public final List<String> scripts;
+
+		public final String url;
+
+		public final long date;
+
+		public PostReceiveEvent(RepositoryModel repository, UserModel user,
+				Collection<ReceiveCommand> commands, Collection<String> scripts, String url) {
+			this.repository = repository;
+			this.user = user;
+			List<ReceiveCommand> list = new ArrayList<ReceiveCommand>();
+			for (ReceiveCommand cmd : commands) {
+				ReceiveCommand copy = new ReceiveCommand(cmd.getOldId(), cmd.getNewId(),
+						cmd.getRefName(), cmd.getType());
+				copy.setResult(cmd.getResult(), cmd.getMessage());
+				list.add(copy);
+			}
+			this.commands = Collections.unmodifiableList(list);
+			this.scripts = Collections.unmodifiableList(new ArrayList<String>(scripts));
+			this.url = url;
+			this.date = System.currentTimeMillis();
+		}
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(HookExecutor.class);
+
+	private final ScriptRegistry registry;
+
+	private final int maxQueued;
+
+	private final long timeout;
+
+	private final int retries;
+
+	private final ExecutorService workers;
+
+	private final ExecutorService scripts;
+
+	// repository -> events, the head of a list is being processed
+	private final Map<String, LinkedList<PostReceiveEvent>> pending = new HashMap<String, LinkedList<PostReceiveEvent>>();
+
+	private int queued;
+
+	/**
+	 * @param registry
+	 *            the registry of the compiled scripts
+	 * @param threads
+	 *            the number of post-receive workers, 0 runs post-receive
+	 *            scripts in the pushing request
+	 * @param maxQueued
+	 *            the maximum number of queued post-receive events
+	 * @param timeout
+	 *            the timeout of a queued script in milliseconds, 0 is
+	 *            unlimited
+	 * @param retries
+	 *            the number of retries of a failed queued script
+	 */
+	public HookExecutor(ScriptRegistry registry, int threads, int maxQueued, long timeout,
+			int retries) {
+		this.registry = registry;
+		this.maxQueued = maxQueued;
+		this.timeout = timeout;
+		this.retries = retries;
+		if (threads > 0) {
+			this.workers = Executors.newFixedThreadPool(threads, new HookThreadFactory("post-receive"));
+			// each worker waits for one script at a time.  A timed out script
+			// which ignores the interrupt keeps its thread, later scripts wait
+			// for a free thread within their own timeout.
+			this.scripts = Executors.newFixedThreadPool(threads, new HookThreadFactory("hook-script"));
+		} else {
+			this.workers = null;
+			this.scripts = null;
+		}
+	}
+
+	/**
+	 * Returns true if post-receive events may be queued.
+	 *
+	 * @return true if post-receive scripts run asynchronously
+	 */
+	public boolean isAsynchronous() {
+		return workers != null;
+	}
+
+	/**
+	 * Queues a post-receive event.
+	 *
+	 * @param event
+	 * @return false if the event could not be queued and the caller must run
+	 *         the scripts itself
+	 */
+	public synchronized boolean queue(PostReceiveEvent event) {
+		if (workers == null || workers.isShutdown() || queued >= maxQueued) {
+			return false;
+		}
+		final String key = event.repository.name.toLowerCase();
+		LinkedList<PostReceiveEvent> events = pending.get(key);
+		queued++;
+		if (events != null) {
+			// processed by the current worker of the repository
+			events.add(event);
+			return true;
+		}
+		events = new LinkedList<PostReceiveEvent>();
+		events.add(event);
+		pending.put(key, events);
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				PostReceiveEvent next = peek(key);
+				while (next != null) {
+					try {
+						process(next);
+					} catch (Throwable t) {
+						logger.error(MessageFormat.format("Failed to process post-receive event of {0}",
+								next.repository.name), t);
+					}
+					next = processed(key);
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Returns the number of queued post-receive events.
+	 *
+	 * @return the number of events
+	 */
+	public synchronized int getQueued() {
+		return queued;
+	}
+
+	private synchronized PostReceiveEvent peek(String key) {
+		return pending.get(key).peek();
+	}
+
+	private synchronized PostReceiveEvent processed(String key) {
+		LinkedList<PostReceiveEvent> events = pending.get(key);
+		events.removeFirst();
+		queued--;
+		if (events.isEmpty()) {
+			pending.remove(key);
+			return null;
+		}
+		return events.peek();
+	}
+
+	private void process(PostReceiveEvent event) {
+		logger.debug(MessageFormat.format("running post-receive hooks of {0} queued {1} ms ago",
+				event.repository.name, System.currentTimeMillis() - event.date));
+		Binding binding = new Binding();
+		binding.setVariable("gitblit", GitBlit.self());
+		binding.setVariable("repository", event.repository);
+		binding.setVariable("receivePack", null);
+		binding.setVariable("user", event.user);
+		binding.setVariable("commands", event.commands);
+		binding.setVariable("url", event.url);
+		binding.setVariable("logger", logger);
+		// the client has disconnected, messages are logged by the server
+		binding.setVariable("clientLogger", new ClientLogger(null));
+		runGroovy(binding, event.scripts, true);
+	}
+
+	/**
+	 * Runs the specified Groovy hook scripts in the current thread.
+	 *
+	 * @param binding
+	 * @param scripts
+	 */
+	public void runGroovy(Binding binding, Collection<String> scripts) {
+		runGroovy(binding, scripts, false);
+	}
+
+	private void runGroovy(Binding binding, Collection<String> scripts, boolean queued) {
+		if (scripts == null || scripts.size() == 0) {
+			// no Groovy scripts to execute
+			return;
+		}
+		for (String script : scripts) {
+			if (StringUtils.isEmpty(script)) {
+				continue;
+			}
+			try {
+				Object result = queued ? runQueued(script, binding) : registry.run(script, binding);
+				if (result instanceof Boolean) {
+					if (!((Boolean) result)) {
+						logger.error(MessageFormat.format(
+								"Groovy script {0} has failed!  Hook scripts aborted.", script));
+						break;
+					}
+				}
+			} catch (Exception e) {
+				logger.error(
+						MessageFormat.format("Failed to execute Groovy script {0}", script), e);
+			}
+		}
+	}
+
+	/**
+	 * Runs a script of a queued event with the timeout and the retries.
+	 */
+	private Object runQueued(final String script, final Binding binding) throws Exception {
+		for (int attempt = 0;; attempt++) {
+			Future<Object> future = scripts.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					return registry.run(script, binding);
+				}
+			});
+			try {
+				if (timeout > 0) {
+					return future.get(timeout, TimeUnit.MILLISECONDS);
+				}
+				return future.get();
+			} catch (TimeoutException e) {
+				// a hanging script is not retried, it may still complete
+				future.cancel(true);
+				throw new TimeoutException(MessageFormat.format(
+						"Groovy script {0} timed out after {1} ms", script, timeout));
+			} catch (ExecutionException e) {
+				if (attempt >= retries) {
+					Throwable cause = e.getCause();
+					throw cause instanceof Exception ? (Exception) cause : e;
+				}
+				logger.warn(MessageFormat.format("Groovy script {0} failed, retrying ({1} of {2})",
+						script, attempt + 1, retries), e.getCause());
+				Thread.sleep(1000L * (attempt + 1));
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting post-receive events and waits briefly for the queued
+	 * events.
+	 */
+	public void close() {
+		if (workers == null) {
+			return;
+		}
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+				logger.warn(MessageFormat.format("Abandoned {0} queued post-receive events", getQueued()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdownNow();
+		scripts.shutdownNow();
+	}
+
+	/**
+	 * Names the hook threads and marks them as daemon threads so a hanging
+	 * script does not prevent the shutdown of the server.
+	 */
+	private static class HookThreadFactory implements ThreadFactory {
+
+		final String name;
+
+		final AtomicInteger counter = new AtomicInteger();
+
+		HookThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
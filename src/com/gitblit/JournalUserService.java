@@ -0,0 +1,1320 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.Constants.AccessPermission;
+import com.gitblit.models.TeamModel;
+import com.gitblit.models.UserModel;
+import com.gitblit.utils.DeepCopier;
+import com.gitblit.utils.JsonUtils.ExcludeField;
+import com.gitblit.utils.StringUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+/**
+ * JournalUserService stores users and teams in an append-only journal file
+ * and is intended for installations with many thousands of accounts.
+ *
+ * Every change appends one JSON record per changed user or team to the
+ * journal, so the cost of a change does not depend on the number of accounts.
+ * The records of a change are written as a single line, a batch record, so
+ * that a change is either replayed completely or not at all.
+ * The journal is replayed into in-memory tables, indexed by username, cookie,
+ * and team, when the service is created.  The journal is compacted, i.e.
+ * rewritten with only the current records, when it contains more than twice
+ * as many records as there are users and teams.
+ *
+ * A change is written to the journal before it is applied to the tables.  An
+ * incomplete last record, e.g. from a crash during a write, is discarded when
+ * the journal is loaded.  A journal with an invalid record before its last
+ * record is not loaded, it must be repaired or restored.
+ *
+ * A compacted journal is written to a temporary file which then replaces the
+ * journal.  If the journal is missing but the temporary file exists, e.g.
+ * after a crash during compaction, the temporary file is restored.
+ *
+ * If the journal does not exist and a users.conf file exists in the same
+ * folder, the users and teams of users.conf are imported into a new journal.
+ * The users.conf file is not modified.
+ *
+ * Unlike users.conf, the journal is not meant to be edited with a text editor
+ * and is not reloaded when it is modified by another process.
+ *
+ * @author James Moger
+ *
+ */
+public class JournalUserService implements IUserService {
+
+	/**
+	 * Journals with fewer records are never compacted.
+	 */
+	private static final int COMPACT_THRESHOLD = 1000;
+
+	private static final String USER = "user";
+
+	private static final String TEAM = "team";
+
+	private static final String DELETE_USER = "deleteUser";
+
+	private static final String DELETE_TEAM = "deleteTeam";
+
+	private static final String BATCH = "batch";
+
+	/**
+	 * A journal record.
+	 */
+	private static class Record {
+
+		String type;
+
+		String name;
+
+		UserModel user;
+
+		TeamModel team;
+
+		// the records of a batch
+		List<Record> records;
+
+		Record(String type, String name, UserModel user, TeamModel team) {
+			this.type = type;
+			this.name = name;
+			this.user = user;
+			this.team = team;
+		}
+
+		Record(List<Record> records) {
+			this.type = BATCH;
+			this.records = records;
+		}
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(JournalUserService.class);
+
+	private final File journalFile;
+
+	private final Gson gson;
+
+	// lowercase username -> user without teams
+	private final Map<String, UserModel> users = new ConcurrentHashMap<String, UserModel>();
+
+	// cookie -> lowercase username
+	private final Map<String, String> cookies = new ConcurrentHashMap<String, String>();
+
+	// lowercase team name -> team
+	private final Map<String, TeamModel> teams = new ConcurrentHashMap<String, TeamModel>();
+
+	// lowercase username -> lowercase team names
+	private final Map<String, Set<String>> memberships = new ConcurrentHashMap<String, Set<String>>();
+
+	// records of the current change, applied to the tables by commit()
+	private final List<Record> pending = new ArrayList<Record>();
+
+	// lowercase username -> changed user, null if the user is deleted
+	private final Map<String, UserModel> pendingUsers = new HashMap<String, UserModel>();
+
+	// lowercase team name -> changed team, null if the team is deleted
+	private final Map<String, TeamModel> pendingTeams = new HashMap<String, TeamModel>();
+
+	private FileOutputStream journal;
+
+	private int records;
+
+	public JournalUserService(File journalFile) {
+		this.journalFile = journalFile;
+		try {
+			// team memberships are stored in the team records
+			this.gson = new GsonBuilder().setExclusionStrategies(
+					new ExcludeField("com.gitblit.models.UserModel.teams")).create();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		File journalCopy = getJournalCopy();
+		if (!journalFile.exists() && journalCopy.exists()) {
+			// the journal was replaced by a compacted copy which was not
+			// renamed, never import users.conf over it
+			if (!journalCopy.renameTo(journalFile)) {
+				throw new RuntimeException(MessageFormat.format("Failed to rename {0} to {1}!",
+						journalCopy.getAbsolutePath(), journalFile.getAbsolutePath()));
+			}
+			logger.warn(MessageFormat.format("Restored {0} from {1}",
+					journalFile.getAbsolutePath(), journalCopy.getName()));
+		} else if (journalCopy.exists()) {
+			// incomplete copy of an interrupted compaction
+			journalCopy.delete();
+		}
+		if (journalFile.exists()) {
+			try {
+				load();
+			} catch (IOException e) {
+				throw new RuntimeException(MessageFormat.format("Failed to load {0}",
+						journalFile.getAbsolutePath()), e);
+			}
+		} else {
+			File usersConfig = new File(journalFile.getAbsoluteFile().getParentFile(), "users.conf");
+			if (usersConfig.exists()) {
+				migrate(usersConfig);
+			}
+		}
+	}
+
+	/**
+	 * Setup the user service.
+	 *
+	 * @param settings
+	 * @since 0.7.0
+	 */
+	@Override
+	public void setup(IStoredSettings settings) {
+	}
+
+	/**
+	 * Does the user service support changes to credentials?
+	 *
+	 * @return true or false
+	 * @since 1.0.0
+	 */
+	@Override
+	public boolean supportsCredentialChanges() {
+		return true;
+	}
+
+	/**
+	 * Does the user service support changes to user display name?
+	 *
+	 * @return true or false
+	 * @since 1.0.0
+	 */
+	@Override
+	public boolean supportsDisplayNameChanges() {
+		return true;
+	}
+
+	/**
+	 * Does the user service support changes to user email address?
+	 *
+	 * @return true or false
+	 * @since 1.0.0
+	 */
+	@Override
+	public boolean supportsEmailAddressChanges() {
+		return true;
+	}
+
+	/**
+	 * Does the user service support changes to team memberships?
+	 *
+	 * @return true or false
+	 * @since 1.0.0
+	 */
+	@Override
+	public boolean supportsTeamMembershipChanges() {
+		return true;
+	}
+
+	/**
+	 * Does the user service support cookie authentication?
+	 *
+	 * @return true or false
+	 */
+	@Override
+	public boolean supportsCookies() {
+		return true;
+	}
+
+	/**
+	 * Returns the cookie value for the specified user.
+	 *
+	 * @param model
+	 * @return cookie value
+	 */
+	@Override
+	public String getCookie(UserModel model) {
+		if (!StringUtils.isEmpty(model.cookie)) {
+			return model.cookie;
+		}
+		UserModel storedModel = users.get(model.username.toLowerCase());
+		return storedModel.cookie;
+	}
+
+	/**
+	 * Authenticate a user based on their cookie.
+	 *
+	 * @param cookie
+	 * @return a user object or null
+	 */
+	@Override
+	public UserModel authenticate(char[] cookie) {
+		String hash = new String(cookie);
+		if (StringUtils.isEmpty(hash)) {
+			return null;
+		}
+		String username = cookies.get(hash);
+		if (username == null) {
+			return null;
+		}
+		return getUserModel(username);
+	}
+
+	/**
+	 * Authenticate a user based on a username and password.
+	 *
+	 * @param username
+	 * @param password
+	 * @return a user object or null
+	 */
+	@Override
+	public UserModel authenticate(String username, char[] password) {
+		UserModel returnedUser = null;
+		UserModel user = getUserModel(username);
+		if (user == null) {
+			return null;
+		}
+		if (user.password.startsWith(StringUtils.MD5_TYPE)) {
+			// password digest
+			String md5 = StringUtils.MD5_TYPE + StringUtils.getMD5(new String(password));
+			if (user.password.equalsIgnoreCase(md5)) {
+				returnedUser = user;
+			}
+		} else if (user.password.startsWith(StringUtils.COMBINED_MD5_TYPE)) {
+			// username+password digest
+			String md5 = StringUtils.COMBINED_MD5_TYPE
+					+ StringUtils.getMD5(username.toLowerCase() + new String(password));
+			if (user.password.equalsIgnoreCase(md5)) {
+				returnedUser = user;
+			}
+		} else if (user.password.equals(new String(password))) {
+			// plain-text password
+			returnedUser = user;
+		}
+		return returnedUser;
+	}
+
+	/**
+	 * Logout a user.
+	 *
+	 * @param user
+	 */
+	@Override
+	public void logout(UserModel user) {
+	}
+
+	/**
+	 * Retrieve the user object for the specified username.
+	 *
+	 * @param username
+	 * @return a user object or null
+	 */
+	@Override
+	public UserModel getUserModel(String username) {
+		String name = username.toLowerCase();
+		UserModel model = users.get(name);
+		if (model == null) {
+			return null;
+		}
+		// clone the model, otherwise all changes to this object are
+		// live and unpersisted
+		model = DeepCopier.copy(model);
+		Set<String> teamnames = memberships.get(name);
+		if (teamnames != null && model.teams != null) {
+			for (String teamname : teamnames) {
+				TeamModel team = teams.get(teamname);
+				if (team != null) {
+					model.teams.add(DeepCopier.copy(team));
+				}
+			}
+		}
+		return model;
+	}
+
+	/**
+	 * Updates/writes a complete user object.
+	 *
+	 * @param model
+	 * @return true if update is successful
+	 */
+	@Override
+	public boolean updateUserModel(UserModel model) {
+		return updateUserModel(model.username, model);
+	}
+
+	/**
+	 * Updates/writes all specified user objects.
+	 *
+	 * @param models a list of user models
+	 * @return true if update is successful
+	 * @since 1.2.0
+	 */
+	@Override
+	public synchronized boolean updateUserModels(List<UserModel> models) {
+		try {
+			for (UserModel model : models) {
+				storeUser(model.username, model);
+			}
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(MessageFormat.format("Failed to update user {0} models!", models.size()),
+					t);
+		}
+		return false;
+	}
+
+	/**
+	 * Updates/writes and replaces a complete user object keyed by username.
+	 * This method allows for renaming a user.
+	 *
+	 * @param username
+	 *            the old username
+	 * @param model
+	 *            the user object to use for username
+	 * @return true if update is successful
+	 */
+	@Override
+	public synchronized boolean updateUserModel(String username, UserModel model) {
+		try {
+			storeUser(username, model);
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(MessageFormat.format("Failed to update user model {0}!", model.username),
+					t);
+		}
+		return false;
+	}
+
+	/**
+	 * Deletes the user object from the user service.
+	 *
+	 * @param model
+	 * @return true if successful
+	 */
+	@Override
+	public boolean deleteUserModel(UserModel model) {
+		return deleteUser(model.username);
+	}
+
+	/**
+	 * Delete the user object with the specified username
+	 *
+	 * @param username
+	 * @return true if successful
+	 */
+	@Override
+	public synchronized boolean deleteUser(String username) {
+		try {
+			String name = username.toLowerCase();
+			// remove user from teams
+			for (String teamname : getCurrentMemberships(name)) {
+				TeamModel team = DeepCopier.copy(getCurrentTeam(teamname));
+				team.removeUser(name);
+				putTeam(team);
+			}
+			removeUser(name);
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(MessageFormat.format("Failed to delete user {0}!", username), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the list of all teams available to the login service.
+	 *
+	 * @return list of all teams
+	 * @since 0.8.0
+	 */
+	@Override
+	public List<String> getAllTeamNames() {
+		List<String> list = new ArrayList<String>(teams.keySet());
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Returns the list of all teams available to the login service.
+	 *
+	 * @return list of all teams
+	 * @since 0.8.0
+	 */
+	@Override
+	public List<TeamModel> getAllTeams() {
+		List<TeamModel> list = new ArrayList<TeamModel>(teams.values());
+		list = DeepCopier.copy(list);
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Returns the list of all teams who are allowed to bypass the access
+	 * restriction placed on the specified repository.
+	 *
+	 * @param role
+	 *            the repository name
+	 * @return list of all teamnames that can bypass the access restriction
+	 */
+	@Override
+	public List<String> getTeamnamesForRepositoryRole(String role) {
+		List<String> list = new ArrayList<String>();
+		for (TeamModel model : teams.values()) {
+			if (model.hasRepositoryPermission(role)) {
+				list.add(model.name);
+			}
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Sets the list of all teams who are allowed to bypass the access
+	 * restriction placed on the specified repository.
+	 *
+	 * @param role
+	 *            the repository name
+	 * @param teamnames
+	 * @return true if successful
+	 */
+	@Override
+	@Deprecated
+	public synchronized boolean setTeamnamesForRepositoryRole(String role, List<String> teamnames) {
+		try {
+			Set<String> specifiedTeams = new HashSet<String>();
+			for (String teamname : teamnames) {
+				specifiedTeams.add(teamname.toLowerCase());
+			}
+
+			// identify teams which require add or remove role
+			for (TeamModel team : new ArrayList<TeamModel>(teams.values())) {
+				boolean specified = specifiedTeams.contains(team.name.toLowerCase());
+				if (specified != team.hasRepositoryPermission(role)) {
+					team = DeepCopier.copy(team);
+					if (specified) {
+						team.addRepositoryPermission(role);
+					} else {
+						team.removeRepositoryPermission(role);
+					}
+					putTeam(team);
+				}
+			}
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(MessageFormat.format("Failed to set teams for role {0}!", role), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Retrieve the team object for the specified team name.
+	 *
+	 * @param teamname
+	 * @return a team object or null
+	 * @since 0.8.0
+	 */
+	@Override
+	public TeamModel getTeamModel(String teamname) {
+		TeamModel model = teams.get(teamname.toLowerCase());
+		if (model != null) {
+			// clone the model, otherwise all changes to this object are
+			// live and unpersisted
+			model = DeepCopier.copy(model);
+		}
+		return model;
+	}
+
+	/**
+	 * Updates/writes a complete team object.
+	 *
+	 * @param model
+	 * @return true if update is successful
+	 * @since 0.8.0
+	 */
+	@Override
+	public boolean updateTeamModel(TeamModel model) {
+		return updateTeamModel(model.name, model);
+	}
+
+	/**
+	 * Updates/writes all specified team objects.
+	 *
+	 * @param models a list of team models
+	 * @return true if update is successful
+	 * @since 1.2.0
+	 */
+	@Override
+	public synchronized boolean updateTeamModels(List<TeamModel> models) {
+		try {
+			for (TeamModel team : models) {
+				putTeam(DeepCopier.copy(team));
+			}
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(MessageFormat.format("Failed to update team {0} models!", models.size()), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Updates/writes and replaces a complete team object keyed by teamname.
+	 * This method allows for renaming a team.
+	 *
+	 * @param teamname
+	 *            the old teamname
+	 * @param model
+	 *            the team object to use for teamname
+	 * @return true if update is successful
+	 * @since 0.8.0
+	 */
+	@Override
+	public synchronized boolean updateTeamModel(String teamname, TeamModel model) {
+		try {
+			if (!teamname.equalsIgnoreCase(model.name)) {
+				removeTeam(teamname.toLowerCase());
+			}
+			putTeam(DeepCopier.copy(model));
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(MessageFormat.format("Failed to update team model {0}!", model.name), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Deletes the team object from the user service.
+	 *
+	 * @param model
+	 * @return true if successful
+	 * @since 0.8.0
+	 */
+	@Override
+	public boolean deleteTeamModel(TeamModel model) {
+		return deleteTeam(model.name);
+	}
+
+	/**
+	 * Delete the team object with the specified teamname
+	 *
+	 * @param teamname
+	 * @return true if successful
+	 * @since 0.8.0
+	 */
+	@Override
+	public synchronized boolean deleteTeam(String teamname) {
+		try {
+			removeTeam(teamname.toLowerCase());
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(MessageFormat.format("Failed to delete team {0}!", teamname), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the list of all users available to the login service.
+	 *
+	 * @return list of all usernames
+	 */
+	@Override
+	public List<String> getAllUsernames() {
+		List<String> list = new ArrayList<String>(users.keySet());
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Returns the list of all users available to the login service.
+	 *
+	 * @return list of all users
+	 */
+	@Override
+	public List<UserModel> getAllUsers() {
+		List<UserModel> list = new ArrayList<UserModel>();
+		for (String username : users.keySet()) {
+			UserModel model = getUserModel(username);
+			if (model != null) {
+				list.add(model);
+			}
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Returns the list of all users who are allowed to bypass the access
+	 * restriction placed on the specified repository.
+	 *
+	 * @param role
+	 *            the repository name
+	 * @return list of all usernames that can bypass the access restriction
+	 */
+	@Override
+	public List<String> getUsernamesForRepositoryRole(String role) {
+		List<String> list = new ArrayList<String>();
+		for (UserModel model : users.values()) {
+			if (model.hasRepositoryPermission(role)) {
+				list.add(model.username);
+			}
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Sets the list of all uses who are allowed to bypass the access
+	 * restriction placed on the specified repository.
+	 *
+	 * @param role
+	 *            the repository name
+	 * @param usernames
+	 * @return true if successful
+	 */
+	@Override
+	@Deprecated
+	public synchronized boolean setUsernamesForRepositoryRole(String role, List<String> usernames) {
+		try {
+			Set<String> specifiedUsers = new HashSet<String>();
+			for (String username : usernames) {
+				specifiedUsers.add(username.toLowerCase());
+			}
+
+			// identify users which require add or remove role
+			for (UserModel user : new ArrayList<UserModel>(users.values())) {
+				boolean specified = specifiedUsers.contains(user.username.toLowerCase());
+				if (specified != user.hasRepositoryPermission(role)) {
+					user = DeepCopier.copy(user);
+					if (specified) {
+						user.addRepositoryPermission(role);
+					} else {
+						user.removeRepositoryPermission(role);
+					}
+					putUser(user);
+				}
+			}
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(MessageFormat.format("Failed to set usernames for role {0}!", role), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Renames a repository role.
+	 *
+	 * @param oldRole
+	 * @param newRole
+	 * @return true if successful
+	 */
+	@Override
+	public synchronized boolean renameRepositoryRole(String oldRole, String newRole) {
+		try {
+			// identify users which require role rename
+			for (UserModel model : new ArrayList<UserModel>(users.values())) {
+				if (model.hasRepositoryPermission(oldRole)) {
+					model = DeepCopier.copy(model);
+					AccessPermission permission = model.removeRepositoryPermission(oldRole);
+					model.setRepositoryPermission(newRole, permission);
+					putUser(model);
+				}
+			}
+
+			// identify teams which require role rename
+			for (TeamModel model : new ArrayList<TeamModel>(teams.values())) {
+				if (model.hasRepositoryPermission(oldRole)) {
+					model = DeepCopier.copy(model);
+					AccessPermission permission = model.removeRepositoryPermission(oldRole);
+					model.setRepositoryPermission(newRole, permission);
+					putTeam(model);
+				}
+			}
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(
+					MessageFormat.format("Failed to rename role {0} to {1}!", oldRole, newRole), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a repository role from all users.
+	 *
+	 * @param role
+	 * @return true if successful
+	 */
+	@Override
+	public synchronized boolean deleteRepositoryRole(String role) {
+		try {
+			// identify users which require role removal
+			for (UserModel user : new ArrayList<UserModel>(users.values())) {
+				if (user.hasRepositoryPermission(role)) {
+					user = DeepCopier.copy(user);
+					user.removeRepositoryPermission(role);
+					putUser(user);
+				}
+			}
+
+			// identify teams which require role removal
+			for (TeamModel team : new ArrayList<TeamModel>(teams.values())) {
+				if (team.hasRepositoryPermission(role)) {
+					team = DeepCopier.copy(team);
+					team.removeRepositoryPermission(role);
+					putTeam(team);
+				}
+			}
+			commit();
+			return true;
+		} catch (Throwable t) {
+			rollback();
+			logger.error(MessageFormat.format("Failed to delete role {0}!", role), t);
+		}
+		return false;
+	}
+
+	/**
+	 * Stores a user and updates the team memberships of the user.
+	 *
+	 * @param username
+	 *            the old username
+	 * @param model
+	 */
+	private void storeUser(String username, UserModel model) {
+		String oldName = username.toLowerCase();
+		String newName = model.username.toLowerCase();
+		Set<String> originalTeams = getCurrentMemberships(oldName);
+		if (!oldName.equals(newName)) {
+			removeUser(oldName);
+		}
+		// null check on "final" teams because JSON-sourced UserModel
+		// can have a null teams object
+		if (model.teams != null) {
+			Set<String> teamnames = new HashSet<String>();
+			for (TeamModel team : model.teams) {
+				String teamname = team.name.toLowerCase();
+				teamnames.add(teamname);
+				TeamModel t = getCurrentTeam(teamname);
+				if (t == null) {
+					// new team
+					t = DeepCopier.copy(team);
+				} else {
+					// do not clobber existing team definition
+					// maybe because this is a federated user
+					if (t.hasUser(newName) && (oldName.equals(newName) || !t.hasUser(oldName))) {
+						continue;
+					}
+					t = DeepCopier.copy(t);
+					t.removeUser(oldName);
+				}
+				t.addUser(newName);
+				putTeam(t);
+			}
+
+			// check for implicit team removal
+			for (String teamname : originalTeams) {
+				if (!teamnames.contains(teamname) && getCurrentTeam(teamname) != null) {
+					TeamModel t = DeepCopier.copy(getCurrentTeam(teamname));
+					t.removeUser(oldName);
+					putTeam(t);
+				}
+			}
+		}
+		putUser(model);
+	}
+
+	/**
+	 * Adds a user to the current change.  The stored user is a copy without
+	 * teams.
+	 *
+	 * @param model
+	 */
+	private void putUser(UserModel model) {
+		UserModel user = DeepCopier.copy(model);
+		user.username = user.username.toLowerCase();
+		// null check on "final" teams because JSON-sourced UserModel
+		// can have a null teams object
+		if (user.teams != null) {
+			user.teams.clear();
+		}
+		if (StringUtils.isEmpty(user.cookie) && !StringUtils.isEmpty(user.password)) {
+			user.cookie = StringUtils.getSHA1(user.username + user.password);
+		}
+		if (user.canAdmin) {
+			// administrators have access to all repositories
+			user.permissions.clear();
+		}
+		pending.add(new Record(USER, user.username, user, null));
+		pendingUsers.put(user.username, user);
+	}
+
+	private void removeUser(String name) {
+		if (getCurrentUser(name) != null) {
+			pending.add(new Record(DELETE_USER, name, null, null));
+			pendingUsers.put(name, null);
+		}
+	}
+
+	/**
+	 * Adds a team to the current change.  The team must be a private copy.
+	 *
+	 * @param team
+	 */
+	private void putTeam(TeamModel team) {
+		if (team.canAdmin) {
+			// administrators have access to all repositories
+			team.permissions.clear();
+		}
+		pending.add(new Record(TEAM, team.name, null, team));
+		pendingTeams.put(team.name.toLowerCase(), team);
+	}
+
+	private void removeTeam(String name) {
+		if (getCurrentTeam(name) != null) {
+			pending.add(new Record(DELETE_TEAM, name, null, null));
+			pendingTeams.put(name, null);
+		}
+	}
+
+	/**
+	 * Returns a user including the current change.
+	 */
+	private UserModel getCurrentUser(String name) {
+		if (pendingUsers.containsKey(name)) {
+			return pendingUsers.get(name);
+		}
+		return users.get(name);
+	}
+
+	/**
+	 * Returns a team including the current change.
+	 */
+	private TeamModel getCurrentTeam(String name) {
+		if (pendingTeams.containsKey(name)) {
+			return pendingTeams.get(name);
+		}
+		return teams.get(name);
+	}
+
+	/**
+	 * Returns the team names of a user including the current change.
+	 */
+	private Set<String> getCurrentMemberships(String username) {
+		if (pendingTeams.isEmpty()) {
+			return getMemberships(username);
+		}
+		Set<String> teamnames = new HashSet<String>(getMemberships(username));
+		for (Map.Entry<String, TeamModel> entry : pendingTeams.entrySet()) {
+			TeamModel team = entry.getValue();
+			if (team != null && team.hasUser(username)) {
+				teamnames.add(entry.getKey());
+			} else {
+				teamnames.remove(entry.getKey());
+			}
+		}
+		return teamnames;
+	}
+
+	/**
+	 * Applies a record to the tables.
+	 *
+	 * @param record
+	 * @return the number of applied records
+	 */
+	private int apply(Record record) {
+		if (USER.equals(record.type)) {
+			applyUser(record.user);
+		} else if (TEAM.equals(record.type)) {
+			applyTeam(record.team);
+		} else if (DELETE_USER.equals(record.type)) {
+			applyDeleteUser(record.name);
+		} else if (DELETE_TEAM.equals(record.type)) {
+			applyDeleteTeam(record.name);
+		} else if (BATCH.equals(record.type)) {
+			int count = 0;
+			for (Record batched : record.records) {
+				count += apply(batched);
+			}
+			return count;
+		}
+		return 1;
+	}
+
+	private void applyUser(UserModel user) {
+		UserModel original = users.put(user.username, user);
+		if (original != null && !StringUtils.isEmpty(original.cookie)) {
+			cookies.remove(original.cookie);
+		}
+		if (!StringUtils.isEmpty(user.cookie)) {
+			cookies.put(user.cookie, user.username);
+		}
+	}
+
+	private void applyDeleteUser(String name) {
+		UserModel original = users.remove(name);
+		if (original != null && !StringUtils.isEmpty(original.cookie)) {
+			cookies.remove(original.cookie);
+		}
+	}
+
+	private void applyTeam(TeamModel team) {
+		String name = team.name.toLowerCase();
+		TeamModel original = teams.put(name, team);
+		if (original != null) {
+			for (String username : original.users) {
+				if (!team.users.contains(username)) {
+					setMembership(username, name, false);
+				}
+			}
+		}
+		for (String username : team.users) {
+			setMembership(username, name, true);
+		}
+	}
+
+	private void applyDeleteTeam(String name) {
+		TeamModel original = teams.remove(name);
+		if (original != null) {
+			for (String username : original.users) {
+				setMembership(username, name, false);
+			}
+		}
+	}
+
+	/**
+	 * Updates the team index of a user.  The team sets are replaced, not
+	 * modified, so that readers never see a set which is being changed.
+	 */
+	private void setMembership(String username, String teamname, boolean member) {
+		Set<String> teamnames = getMemberships(username);
+		if (teamnames.contains(teamname) == member) {
+			return;
+		}
+		Set<String> copy = new HashSet<String>(teamnames);
+		if (member) {
+			copy.add(teamname);
+		} else {
+			copy.remove(teamname);
+		}
+		if (copy.isEmpty()) {
+			memberships.remove(username);
+		} else {
+			memberships.put(username, Collections.unmodifiableSet(copy));
+		}
+	}
+
+	private Set<String> getMemberships(String username) {
+		Set<String> teamnames = memberships.get(username);
+		if (teamnames == null) {
+			return Collections.emptySet();
+		}
+		return teamnames;
+	}
+
+	/**
+	 * Writes a record to the journal.  If the write fails, the journal is
+	 * truncated to its previous length so that no partial record remains.
+	 *
+	 * @param record
+	 * @throws IOException
+	 */
+	private void append(Record record) throws IOException {
+		byte[] bytes = (gson.toJson(record) + "\n").getBytes("UTF-8");
+		if (journal == null) {
+			journal = new FileOutputStream(journalFile, true);
+		}
+		long length = journal.getChannel().position();
+		try {
+			journal.write(bytes);
+		} catch (IOException e) {
+			try {
+				journal.getChannel().truncate(length);
+			} finally {
+				closeJournal();
+			}
+			throw e;
+		}
+	}
+
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * Writes the records of the current change to the journal with a single
+	 * append, applies them to the tables, and compacts the journal if it
+	 * contains too many obsolete records.  If the write fails, the change is
+	 * discarded.
+	 *
+	 * @throws IOException
+	 */
+	private void commit() throws IOException {
+		try {
+			if (pending.size() == 1) {
+				append(pending.get(0));
+			} else if (pending.size() > 1) {
+				append(new Record(pending));
+			}
+			for (Record record : pending) {
+				records += apply(record);
+			}
+		} finally {
+			rollback();
+		}
+		if (records > COMPACT_THRESHOLD && records > 2 * (users.size() + teams.size())) {
+			compact();
+		}
+	}
+
+	/**
+	 * Discards the records of the current change.
+	 */
+	private void rollback() {
+		pending.clear();
+		pendingUsers.clear();
+		pendingTeams.clear();
+	}
+
+	private File getJournalCopy() {
+		return new File(journalFile.getAbsolutePath() + ".tmp");
+	}
+
+	/**
+	 * Rewrites the journal with the current users and teams.
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void compact() throws IOException {
+		long start = System.currentTimeMillis();
+		File journalCopy = getJournalCopy();
+		int count = write(journalCopy);
+
+		closeJournal();
+		// If the write is successful, rename the temporary copy over the
+		// current file.  Where a rename does not replace an existing file,
+		// the current file is deleted first and the constructor restores the
+		// copy if the rename does not happen.
+		if (!journalCopy.renameTo(journalFile)) {
+			if (journalFile.exists() && !journalFile.delete()) {
+				throw new IOException(MessageFormat.format("Failed to delete {0}!",
+						journalFile.getAbsolutePath()));
+			}
+			if (!journalCopy.renameTo(journalFile)) {
+				throw new IOException(MessageFormat.format("Failed to rename {0} to {1}!",
+						journalCopy.getAbsolutePath(), journalFile.getAbsolutePath()));
+			}
+		}
+		logger.info(MessageFormat.format("Compacted {0} from {1} to {2} records in {3} ms",
+				journalFile.getName(), records, count, System.currentTimeMillis() - start));
+		records = count;
+	}
+
+	/**
+	 * Writes the current users and teams to a file and syncs it to disk.
+	 *
+	 * @param file
+	 * @return the number of written records
+	 * @throws IOException
+	 */
+	private int write(File file) throws IOException {
+		FileOutputStream os = new FileOutputStream(file);
+		Writer copy = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+		int count = 0;
+		try {
+			for (TeamModel team : teams.values()) {
+				copy.write(gson.toJson(new Record(TEAM, team.name, null, team)));
+				copy.write('\n');
+				count++;
+			}
+			for (UserModel user : users.values()) {
+				copy.write(gson.toJson(new Record(USER, user.username, user, null)));
+				copy.write('\n');
+				count++;
+			}
+			copy.flush();
+			os.getFD().sync();
+		} finally {
+			copy.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Replays the journal into the in-memory tables.  An incomplete last
+	 * record, e.g. from a crash during a write, is discarded by compacting the
+	 * journal so that the next record starts on a new line.
+	 *
+	 * @throws IOException
+	 *             if the journal can not be read or contains an invalid record
+	 *             which is not the last record
+	 */
+	private synchronized void load() throws IOException {
+		long start = System.currentTimeMillis();
+		BufferedReader reader = null;
+		int invalidLine = 0;
+		JsonParseException invalidRecord = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+					"UTF-8"));
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (StringUtils.isEmpty(line.trim())) {
+					continue;
+				}
+				if (invalidRecord != null) {
+					// only the last record may be incomplete
+					throw new IOException(MessageFormat.format("Invalid record {0} of {1}",
+							invalidLine, journalFile), invalidRecord);
+				}
+				Record record;
+				try {
+					record = gson.fromJson(line, Record.class);
+					if (record == null || record.type == null) {
+						throw new JsonParseException(line);
+					}
+				} catch (JsonParseException e) {
+					invalidLine = lineNumber;
+					invalidRecord = e;
+					continue;
+				}
+				records += apply(record);
+			}
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		logger.info(MessageFormat.format("Loaded {0} users and {1} teams from {2} in {3} ms",
+				users.size(), teams.size(), journalFile, System.currentTimeMillis() - start));
+		if (invalidRecord != null) {
+			logger.warn(MessageFormat.format("Discarding incomplete record {0} of {1}",
+					invalidLine, journalFile), invalidRecord);
+			compact();
+		} else if (!endsWithNewline(journalFile)) {
+			// the last record is complete but its line is not terminated
+			compact();
+		} else if (records > COMPACT_THRESHOLD && records > 2 * (users.size() + teams.size())) {
+			try {
+				compact();
+			} catch (IOException e) {
+				logger.error(MessageFormat.format("Failed to compact {0}", journalFile), e);
+			}
+		}
+	}
+
+	private boolean endsWithNewline(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() == 0) {
+				return true;
+			}
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Imports the users and teams of a users.conf file into a new journal.
+	 *
+	 * @param usersConfig
+	 */
+	private synchronized void migrate(File usersConfig) {
+		logger.info(MessageFormat.format("Importing {0} into {1}",
+				usersConfig.getAbsolutePath(), journalFile.getAbsolutePath()));
+		ConfigUserService source = new ConfigUserService(usersConfig);
+		try {
+			for (TeamModel team : source.getAllTeams()) {
+				putTeam(team);
+			}
+			for (UserModel user : source.getAllUsers()) {
+				putUser(user);
+			}
+			// the import is written to a separate file which becomes the
+			// journal when it is complete, an interrupted import is repeated
+			for (Record record : pending) {
+				apply(record);
+			}
+			rollback();
+			File journalImport = new File(journalFile.getAbsolutePath() + ".import");
+			records = write(journalImport);
+			if (!journalImport.renameTo(journalFile)) {
+				throw new IOException(MessageFormat.format("Failed to rename {0} to {1}!",
+						journalImport.getAbsolutePath(), journalFile.getAbsolutePath()));
+			}
+			logger.info(MessageFormat.format("Imported {0} users and {1} teams", users.size(),
+					teams.size()));
+		} catch (IOException e) {
+			// do not start with users which are not in the journal
+			throw new RuntimeException(MessageFormat.format("Failed to import {0}",
+					usersConfig.getAbsolutePath()), e);
+		} finally {
+			source.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "(" + journalFile.getAbsolutePath() + ")";
+	}
+}
@@ -20,7 +20,21 @@ import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,15 +43,23 @@ import com.gitblit.models.TeamModel;
 import com.gitblit.models.UserModel;
 import com.gitblit.utils.ArrayUtils;
 import com.gitblit.utils.StringUtils;
+import com.unboundid.asn1.ASN1OctetString;
 import com.unboundid.ldap.sdk.Attribute;
 import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
 import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
 import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.PostConnectProcessor;
 import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResult;
 import com.unboundid.ldap.sdk.SearchResultEntry;
 import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.StartTLSPostConnectProcessor;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
 import com.unboundid.ldap.sdk.extensions.StartTLSExtendedRequest;
 import com.unboundid.util.ssl.SSLUtil;
 import com.unboundid.util.ssl.TrustAllTrustManager;
@@ -45,13 +67,52 @@ import com.unboundid.util.ssl.TrustAllTrustManager;
 /**
  * Implementation of an LDAP user service.
  * 
+ * LDAP operations share a bounded pool of connections which are bound as the
+ * Gitblit account.  A connection which is used to verify the password of a
+ * user is bound as the Gitblit account again before it is returned to the
+ * pool.  The LDAP teams of a user are cached for a configurable time and are
+ * refreshed in the background when half of that time has passed.  Optionally
+ * all LDAP users and their teams are periodically synchronized with the
+ * backing user service.
+ * 
  * @author John Crygier
  */
 public class LdapUserService extends GitblitUserService {
 
 	public static final Logger logger = LoggerFactory.getLogger(LdapUserService.class);
 	
+	// the attribute which is compared with ${username} in the account pattern
+	private static final Pattern USERNAME_ATTRIBUTE = Pattern.compile("\\(\\s*([^()=\\s]+)\\s*=\\s*\\$\\{username\\}\\s*\\)");
+	
+	/**
+	 * The LDAP team names of a user.
+	 */
+	private static class CachedTeams {
+		
+		final List<String> teamNames;
+		
+		final long loaded;
+		
+		CachedTeams(List<String> teamNames) {
+			this.teamNames = teamNames;
+			this.loaded = System.currentTimeMillis();
+		}
+	}
+	
 	private IStoredSettings settings;
+	
+	private int poolSize;
+	
+	private volatile LDAPConnectionPool ldapConnectionPool;
+	
+	private long teamCacheTtl;
+	
+	// lowercase username -> LDAP team names
+	private final Map<String, CachedTeams> teamCache = new ConcurrentHashMap<String, CachedTeams>();
+	
+	private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	private ScheduledExecutorService executor;
 
 	public LdapUserService() {
 		super();
@@ -65,6 +126,50 @@ public class LdapUserService extends GitblitUserService {
 
 		serviceImpl = createUserService(realmFile);
 		logger.info("LDAP User Service backed by " + serviceImpl.toString());
+		
+		poolSize = settings.getInteger(Keys.realm.ldap.poolSize, 10);
+		teamCacheTtl = settings.getInteger(Keys.realm.ldap.teamCacheTtl, 300) * 1000L;
+		int synchronizePeriod = settings.getInteger(Keys.realm.ldap.synchronizePeriod, 0);
+		if (teamCacheTtl > 0 || synchronizePeriod > 0) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ldap-sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		if (synchronizePeriod > 0) {
+			logger.info(MessageFormat.format("LDAP users will be synchronized every {0} minutes", synchronizePeriod));
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						synchronizeUsers();
+					} catch (Throwable t) {
+						logger.error("Failed to synchronize LDAP users", t);
+					}
+				}
+			}, 0, synchronizePeriod, TimeUnit.MINUTES);
+		}
+	}
+	
+	/**
+	 * Stops the background synchronization and closes the pooled LDAP
+	 * connections and the backing user service.
+	 */
+	@Override
+	public synchronized void close() {
+		super.close();
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		if (ldapConnectionPool != null) {
+			ldapConnectionPool.close();
+			ldapConnectionPool = null;
+		}
 	}
 	
 	private LDAPConnection getLdapConnection() {
@@ -109,6 +214,90 @@ public class LdapUserService extends GitblitUserService {
 		return null;
 	}
 	
+	private synchronized LDAPConnectionPool getLdapConnectionPool() {
+		if (ldapConnectionPool != null && !ldapConnectionPool.isClosed()) {
+			return ldapConnectionPool;
+		}
+		LDAPConnection conn = getLdapConnection();
+		if (conn == null) {
+			return null;
+		}
+		try {
+			// new pool connections negotiate TLS like the initial connection
+			PostConnectProcessor postConnect = null;
+			URI ldapUrl = new URI(settings.getRequiredString(Keys.realm.ldap.server));
+			if (ldapUrl.getScheme().equalsIgnoreCase("ldap+tls")) {
+				SSLUtil sslUtil = new SSLUtil(new TrustAllTrustManager());
+				postConnect = new StartTLSPostConnectProcessor(sslUtil.createSSLContext());
+			}
+			LDAPConnectionPool pool = new LDAPConnectionPool(conn, 1, poolSize, postConnect);
+			pool.setConnectionPoolName("gitblit");
+			// check idle connections and connections which failed an operation
+			pool.setHealthCheck(new GetEntryLDAPConnectionPoolHealthCheck(null, 10000L, false, false, false, true, true));
+			pool.setHealthCheckIntervalMillis(60000L);
+			pool.setRetryFailedOperationsDueToInvalidConnections(true);
+			ldapConnectionPool = pool;
+			return pool;
+		} catch (URISyntaxException e) {
+			logger.error("Bad LDAP URL, should be in the form: ldap(s|+tls)://<server>:<port>", e);
+		} catch (GeneralSecurityException e) {
+			logger.error("Unable to create SSL Connection", e);
+		} catch (LDAPException e) {
+			logger.error("Error Connecting to LDAP", e);
+		}
+		conn.close();
+		return null;
+	}
+	
+	/**
+	 * Returns a connection from the pool or a new connection if pooling is
+	 * disabled.
+	 * 
+	 * @return a connection bound as the Gitblit account or null
+	 */
+	private LDAPConnection checkoutLdapConnection() {
+		if (poolSize <= 0) {
+			return getLdapConnection();
+		}
+		LDAPConnectionPool pool = getLdapConnectionPool();
+		if (pool == null) {
+			return null;
+		}
+		try {
+			return pool.getConnection();
+		} catch (LDAPException e) {
+			logger.error("Error Connecting to LDAP", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns a connection to the pool or closes it if pooling is disabled.
+	 * 
+	 * @param ldapConnection
+	 * @param rebind
+	 *            true if the connection has been bound as a user
+	 */
+	private void releaseLdapConnection(LDAPConnection ldapConnection, boolean rebind) {
+		LDAPConnectionPool pool = ldapConnectionPool;
+		if (poolSize <= 0 || pool == null) {
+			ldapConnection.close();
+			return;
+		}
+		if (rebind) {
+			try {
+				String bindUserName = settings.getString(Keys.realm.ldap.username, "");
+				String bindPassword = settings.getString(Keys.realm.ldap.password, "");
+				ldapConnection.bind(bindUserName, bindPassword);
+			} catch (LDAPException e) {
+				logger.error("Error binding LDAP connection", e);
+				pool.releaseDefunctConnection(ldapConnection);
+				return;
+			}
+		}
+		pool.releaseConnection(ldapConnection);
+	}
+	
 	/**
 	 * Credentials are defined in the LDAP server and can not be manipulated
 	 * from Gitblit.
@@ -160,8 +349,9 @@ public class LdapUserService extends GitblitUserService {
 	public UserModel authenticate(String username, char[] password) {
 		String simpleUsername = getSimpleUsername(username);
 		
-		LDAPConnection ldapConnection = getLdapConnection();
+		LDAPConnection ldapConnection = checkoutLdapConnection();
 		if (ldapConnection != null) {
+			boolean rebind = false;
 			try {
 				// Find the logging in user's DN
 				String accountBase = settings.getString(Keys.realm.ldap.accountBase, "");
@@ -173,6 +363,7 @@ public class LdapUserService extends GitblitUserService {
 					SearchResultEntry loggingInUser = result.getSearchEntries().get(0);
 					String loggingInUserDN = loggingInUser.getDN();
 
+					rebind = true;
 					if (isAuthenticated(ldapConnection, loggingInUserDN, new String(password))) {
 						logger.debug("LDAP authenticated: " + username);
 
@@ -202,11 +393,110 @@ public class LdapUserService extends GitblitUserService {
 					}
 				}
 			} finally {
-				ldapConnection.close();
+				releaseLdapConnection(ldapConnection, rebind);
 			}
 		}
 		return null;		
 	}
+	
+	/**
+	 * Synchronizes all LDAP users which match the account pattern, and their
+	 * teams if teams are maintained in LDAP, with the backing user service.
+	 * Users are created in the backing user service before their first login
+	 * so that their permissions are available without contacting LDAP.  Users
+	 * are never deleted by a synchronization.
+	 * 
+	 * The users are searched in pages so that directories with a size limit,
+	 * like Active Directory, return all users, and the users and teams are
+	 * written to the backing user service in one batch.
+	 * 
+	 * @return the number of synchronized users
+	 */
+	public int synchronizeUsers() {
+		String accountBase = settings.getString(Keys.realm.ldap.accountBase, "");
+		String accountPattern = settings.getString(Keys.realm.ldap.accountPattern, "(&(objectClass=person)(sAMAccountName=${username}))");
+		Matcher m = USERNAME_ATTRIBUTE.matcher(accountPattern);
+		if (!m.find()) {
+			logger.warn("Unable to synchronize LDAP users, the account pattern does not compare an attribute with ${username}");
+			return 0;
+		}
+		String usernameAttribute = m.group(1);
+		String filter = StringUtils.replace(accountPattern, "${username}", "*");
+		int pageSize = settings.getInteger(Keys.realm.ldap.synchronizePageSize, 500);
+		
+		long start = System.currentTimeMillis();
+		LDAPConnection ldapConnection = checkoutLdapConnection();
+		if (ldapConnection == null) {
+			return 0;
+		}
+		List<UserModel> users = new ArrayList<UserModel>();
+		// lowercase team name -> team, shared by the synchronized users
+		Map<String, TeamModel> teams = new HashMap<String, TeamModel>();
+		// lowercase username -> lowercase names of the LDAP teams of the user
+		Map<String, Set<String>> memberships = new HashMap<String, Set<String>>();
+		try {
+			SearchRequest request = new SearchRequest(accountBase, SearchScope.SUB, filter);
+			ASN1OctetString cookie = null;
+			do {
+				request.setControls(new SimplePagedResultsControl(pageSize, cookie));
+				SearchResult result = ldapConnection.search(request);
+				for (SearchResultEntry userEntry : result.getSearchEntries()) {
+					String username = userEntry.getAttributeValue(usernameAttribute);
+					if (StringUtils.isEmpty(username)) {
+						continue;
+					}
+					UserModel user = getUserModel(username);
+					if (user == null) {
+						user = new UserModel(username);
+					}
+					if (!supportsTeamMembershipChanges()) {
+						List<String> teamNames = findTeams(ldapConnection, username, userEntry);
+						if (teamNames != null) {
+							// the teams which the user has left are synchronized too
+							for (TeamModel team : user.teams) {
+								getTeam(team.name, teams);
+							}
+							Set<String> names = new HashSet<String>();
+							for (String teamName : teamNames) {
+								names.add(teamName.toLowerCase());
+							}
+							memberships.put(username.toLowerCase(), names);
+						}
+						setTeams(user, teamNames, teams);
+					}
+					setUserAttributes(user, userEntry);
+					users.add(user);
+				}
+				// servers which do not support paging return all entries at once
+				SimplePagedResultsControl response = SimplePagedResultsControl.get(result);
+				cookie = response != null && response.moreResultsToReturn() ? response.getCookie() : null;
+			} while (cookie != null);
+		} catch (LDAPException e) {
+			logger.error("Problem Searching LDAP", e);
+			return 0;
+		} finally {
+			releaseLdapConnection(ldapConnection, false);
+		}
+		// the members of a team are loaded from the backing user service,
+		// remove the synchronized users who are no longer LDAP members
+		for (Map.Entry<String, TeamModel> team : teams.entrySet()) {
+			for (String member : new ArrayList<String>(team.getValue().users)) {
+				Set<String> names = memberships.get(member.toLowerCase());
+				if (names != null && !names.contains(team.getKey())) {
+					team.getValue().removeUser(member);
+				}
+			}
+		}
+		if (!users.isEmpty() && !super.updateUserModels(users)) {
+			logger.error(MessageFormat.format("Failed to synchronize {0} LDAP users", users.size()));
+			return 0;
+		}
+		if (!teams.isEmpty() && !updateTeamModels(new ArrayList<TeamModel>(teams.values()))) {
+			logger.error(MessageFormat.format("Failed to synchronize {0} LDAP teams", teams.size()));
+		}
+		logger.info(MessageFormat.format("Synchronized {0} LDAP users in {1} ms", users.size(), System.currentTimeMillis() - start));
+		return users.size();
+	}
 
 	/**
 	 * Set the admin attribute from team memberships retrieved from LDAP.
@@ -276,9 +566,127 @@ public class LdapUserService extends GitblitUserService {
 	}
 
 	private void getTeamsFromLdap(LDAPConnection ldapConnection, String simpleUsername, SearchResultEntry loggingInUser, UserModel user) {
+		List<String> teamNames = getCachedTeams(simpleUsername, loggingInUser);
+		if (teamNames == null) {
+			teamNames = findTeams(ldapConnection, simpleUsername, loggingInUser);
+		}
+		setTeams(user, teamNames);
+	}
+	
+	/**
+	 * Returns the cached LDAP teams of a user.  The teams are refreshed in the
+	 * background if half of their lifetime has passed.
+	 * 
+	 * @param simpleUsername
+	 * @param userEntry
+	 * @return the team names or null if the teams must be searched
+	 */
+	private List<String> getCachedTeams(String simpleUsername, SearchResultEntry userEntry) {
+		if (teamCacheTtl <= 0) {
+			return null;
+		}
+		CachedTeams cached = teamCache.get(simpleUsername.toLowerCase());
+		if (cached == null) {
+			return null;
+		}
+		long age = System.currentTimeMillis() - cached.loaded;
+		if (age >= teamCacheTtl) {
+			return null;
+		}
+		if (age >= teamCacheTtl / 2) {
+			refreshTeams(simpleUsername, userEntry);
+		}
+		return cached.teamNames;
+	}
+	
+	private void refreshTeams(final String simpleUsername, final SearchResultEntry userEntry) {
+		final String key = simpleUsername.toLowerCase();
+		if (executor == null || !refreshing.add(key)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					LDAPConnection ldapConnection = checkoutLdapConnection();
+					if (ldapConnection != null) {
+						try {
+							findTeams(ldapConnection, simpleUsername, userEntry);
+						} finally {
+							releaseLdapConnection(ldapConnection, false);
+						}
+					}
+				} finally {
+					refreshing.remove(key);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Replaces the team memberships of a user with the specified LDAP teams.
+	 * 
+	 * @param user
+	 * @param teamNames
+	 */
+	private void setTeams(UserModel user, List<String> teamNames) {
+		setTeams(user, teamNames, null);
+	}
+	
+	/**
+	 * Replaces the team memberships of a user with the specified LDAP teams.
+	 * 
+	 * @param user
+	 * @param teamNames
+	 * @param teams
+	 *            the teams which have already been loaded by lowercase name,
+	 *            loaded teams are added to it.  May be null.
+	 */
+	private void setTeams(UserModel user, List<String> teamNames, Map<String, TeamModel> teams) {
+		user.teams.clear();		// Clear the users team memberships - we're going to get them from LDAP
+		if (teamNames == null) {
+			return;
+		}
+		for (String teamName : teamNames) {
+			TeamModel teamModel = getTeam(teamName, teams);
+				
+			user.teams.add(teamModel);
+			teamModel.addUser(user.getName());
+		}
+	}
+	
+	/**
+	 * Returns a team from the loaded teams, from the backing user service, or
+	 * a new team.
+	 * 
+	 * @param teamName
+	 * @param teams
+	 *            the teams which have already been loaded by lowercase name,
+	 *            the returned team is added to it.  May be null.
+	 * @return the team
+	 */
+	private TeamModel getTeam(String teamName, Map<String, TeamModel> teams) {
+		TeamModel teamModel = teams == null ? null : teams.get(teamName.toLowerCase());
+		if (teamModel == null)
+			teamModel = getTeamModel(teamName);
+		if (teamModel == null)
+			teamModel = new TeamModel(teamName);
+		if (teams != null)
+			teams.put(teamName.toLowerCase(), teamModel);
+		return teamModel;
+	}
+	
+	/**
+	 * Searches the LDAP teams of a user and caches them.
+	 * 
+	 * @param ldap
+	 * @param simpleUsername
+	 * @param loggingInUser
+	 * @return the team names or null if the search failed
+	 */
+	private List<String> findTeams(LDAPInterface ldap, String simpleUsername, SearchResultEntry loggingInUser) {
 		String loggingInUserDN = loggingInUser.getDN();
 		
-		user.teams.clear();		// Clear the users team memberships - we're going to get them from LDAP
 		String groupBase = settings.getString(Keys.realm.ldap.groupBase, "");
 		String groupMemberPattern = settings.getString(Keys.realm.ldap.groupMemberPattern, "(&(objectClass=group)(member=${dn}))");
 		
@@ -289,32 +697,23 @@ public class LdapUserService extends GitblitUserService {
 		for (Attribute userAttribute : loggingInUser.getAttributes())
 			groupMemberPattern = StringUtils.replace(groupMemberPattern, "${" + userAttribute.getName() + "}", escapeLDAPSearchFilter(userAttribute.getValue()));
 		
-		SearchResult teamMembershipResult = doSearch(ldapConnection, groupBase, groupMemberPattern);
-		if (teamMembershipResult != null && teamMembershipResult.getEntryCount() > 0) {
-			for (int i = 0; i < teamMembershipResult.getEntryCount(); i++) {
-				SearchResultEntry teamEntry = teamMembershipResult.getSearchEntries().get(i);
-				String teamName = teamEntry.getAttribute("cn").getValue();
-				
-				TeamModel teamModel = getTeamModel(teamName);
-				if (teamModel == null)
-					teamModel = createTeamFromLdap(teamEntry);
-					
-				user.teams.add(teamModel);
-				teamModel.addUser(user.getName());
-			}
+		SearchResult teamMembershipResult = doSearch(ldap, groupBase, groupMemberPattern);
+		if (teamMembershipResult == null) {
+			return null;
 		}
-	}
-	
-	private TeamModel createTeamFromLdap(SearchResultEntry teamEntry) {
-		TeamModel answer = new TeamModel(teamEntry.getAttributeValue("cn"));
-		// potentially retrieve other attributes here in the future
-		
-		return answer;		
+		List<String> teamNames = new ArrayList<String>();
+		for (SearchResultEntry teamEntry : teamMembershipResult.getSearchEntries()) {
+			teamNames.add(teamEntry.getAttribute("cn").getValue());
+		}
+		if (teamCacheTtl > 0) {
+			teamCache.put(simpleUsername.toLowerCase(), new CachedTeams(teamNames));
+		}
+		return teamNames;
 	}
 
-	private SearchResult doSearch(LDAPConnection ldapConnection, String base, String filter) {
+	private SearchResult doSearch(LDAPInterface ldap, String base, String filter) {
 		try {
-			return ldapConnection.search(base, SearchScope.SUB, filter);
+			return ldap.search(base, SearchScope.SUB, filter);
 		} catch (LDAPSearchException e) {
 			logger.error("Problem Searching LDAP", e);
 			
@@ -17,24 +17,38 @@ package com.gitblit;
 
 import static org.eclipse.jgit.treewalk.filter.TreeFilter.ANY_DIFF;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.lang.reflect.Method;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -56,8 +70,11 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.highlight.Fragmenter;
 import org.apache.lucene.search.highlight.Highlighter;
 import org.apache.lucene.search.highlight.InvalidTokenOffsetsException;
@@ -82,6 +99,7 @@ import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.treewalk.EmptyTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.IO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -93,6 +111,7 @@ import com.gitblit.models.RefModel;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.SearchResult;
 import com.gitblit.utils.ArrayUtils;
+import com.gitblit.utils.FileUtils;
 import com.gitblit.utils.IssueUtils;
 import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.StringUtils;
@@ -131,16 +150,33 @@ public class LuceneExecutor implements Runnable {
 		
 	private static final Version LUCENE_VERSION = Version.LUCENE_35;
 	
+	private static final int CHARSET_PROBE_SIZE = 8192;
+	
+	private static final int MAX_COMBINED_READERS = 32;
+	
+	// a queued update which fails this many times in a row is dropped
+	private static final int MAX_QUEUED_ATTEMPTS = 5;
+	
 	private final Logger logger = LoggerFactory.getLogger(LuceneExecutor.class);
 	
 	private final IStoredSettings storedSettings;
 	private final File repositoriesFolder;
 	
-	private final Map<String, IndexSearcher> searchers = new ConcurrentHashMap<String, IndexSearcher>();
+	private final Map<String, SearcherManager> searchers = new ConcurrentHashMap<String, SearcherManager>();
+	private final Map<String, MultiSourceReader> combinedReaders = new CombinedReaderCache(MAX_COMBINED_READERS);
 	private final Map<String, IndexWriter> writers = new ConcurrentHashMap<String, IndexWriter>();
+	private final AtomicInteger activeIndexers = new AtomicInteger();
+	private final Object indexLock = new Object();
+	private final AtomicLong indexedDocuments = new AtomicLong();
+	private volatile long indexingThroughput;
+	private LuceneIndexQueue queue;
+	// repository -> number of consecutive failed queued updates
+	private final Map<String, Integer> queueFailures = new HashMap<String, Integer>();
 	
 	private final String luceneIgnoreExtensions = "7z arc arj bin bmp dll doc docx exe gif gz jar jpg lib lzh odg odf odt pdf ppt png so swf xcf xls xlsx zip";
 	private Set<String> excludedExtensions;
+	private volatile boolean storeContent = true;
+	private volatile long maxBlobSize;
 	
 	public LuceneExecutor(IStoredSettings settings, File repositoriesFolder) {
 		this.storedSettings = settings;
@@ -148,14 +184,29 @@ public class LuceneExecutor implements Runnable {
 		String exts = luceneIgnoreExtensions;
 		if (settings != null) {
 			exts = settings.getString(Keys.web.luceneIgnoreExtensions, exts);
+			loadContentSettings();
+			if (settings.getBoolean(Keys.web.luceneIndexOnPush, false)) {
+				String queueFile = settings.getString(Keys.web.luceneQueueFile, "lucene.queue");
+				queue = new LuceneIndexQueue(GitBlit.getFileOrFolder(queueFile));
+			}
 		}
 		excludedExtensions = new TreeSet<String>(StringUtils.getStringsFromValue(exts));
 	}
 
+	/**
+	 * Reads the blob content settings.
+	 */
+	private void loadContentSettings() {
+		storeContent = storedSettings.getBoolean(Keys.web.luceneStoreContent, true);
+		maxBlobSize = FileUtils.convertSizeToLong(storedSettings.getString(Keys.web.luceneMaxBlobSize, "0"), 0);
+	}
+
 	/**
 	 * Run is executed by the Gitblit executor service.  Because this is called 
 	 * by an executor service, calls will queue - i.e. there can never be
-	 * concurrent execution of repository index updates.
+	 * concurrent execution of repository index updates.  Within a run, several
+	 * repositories may be indexed at once but a repository is only ever
+	 * indexed by one thread.
 	 */
 	@Override
 	public void run() {
@@ -166,27 +217,285 @@ public class LuceneExecutor implements Runnable {
 		// reload the excluded extensions
 		String exts = storedSettings.getString(Keys.web.luceneIgnoreExtensions, luceneIgnoreExtensions);
 		excludedExtensions = new TreeSet<String>(StringUtils.getStringsFromValue(exts));
+		loadContentSettings();
 
 		if (GitBlit.self().isCollectingGarbage()) {
 			// busy collecting garbage, try again later
 			return;
 		}
 		
+		List<RepositoryModel> models = new ArrayList<RepositoryModel>();
 		for (String repositoryName: GitBlit.self().getRepositoryList()) {
 			RepositoryModel model = GitBlit.self().getRepositoryModel(repositoryName);
 			if (model.hasCommits && !ArrayUtils.isEmpty(model.indexedBranches)) {
-				Repository repository = GitBlit.self().getRepository(model.name);
-				if (repository == null) {
+				models.add(model);
+			}
+		}
+		if (models.isEmpty()) {
+			return;
+		}
+
+		synchronized (indexLock) {
+			index(models);
+		}
+	}
+
+	/**
+	 * Indexes the specified repositories, optionally several at once.
+	 * 
+	 * @param models
+	 */
+	private void index(List<RepositoryModel> models) {
+		int threads = storedSettings.getInteger(Keys.web.luceneIndexingThreads, 1);
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		threads = Math.min(threads, models.size());
+
+		long startTime = System.currentTimeMillis();
+		long documents = 0;
+		if (threads == 1) {
+			for (RepositoryModel model : models) {
+				documents += index(model, (Set<String>) null);
+			}
+		} else {
+			// index several repositories at once, each with its own writer
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+			for (final RepositoryModel model : models) {
+				tasks.add(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						awaitHeap(model.name);
+						return index(model, (Set<String>) null);
+					}
+				});
+			}
+			try {
+				for (Future<Long> future : pool.invokeAll(tasks)) {
+					try {
+						documents += future.get();
+					} catch (ExecutionException e) {
+						logger.error("Lucene indexing failure", e.getCause());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+
+		if (documents > 0) {
+			long duration = Math.max(1, System.currentTimeMillis() - startTime);
+			long throughput = recordThroughput(documents, duration);
+			String msg = "Indexed {0} Lucene documents from {1} repositories in {2} secs ({3} docs/min) with {4} threads";
+			logger.info(MessageFormat.format(msg, documents, models.size(), duration / 1000f,
+					throughput, threads));
+		}
+	}
+
+	/**
+	 * Records the documents indexed by a run.
+	 * 
+	 * @param documents
+	 * @param duration
+	 *            the duration of the run in milliseconds
+	 * @return the throughput of the run in documents per minute
+	 */
+	private long recordThroughput(long documents, long duration) {
+		indexedDocuments.addAndGet(documents);
+		indexingThroughput = (documents * 60 * 1000L) / duration;
+		return indexingThroughput;
+	}
+
+	/**
+	 * Returns the number of documents indexed since the server started.
+	 * 
+	 * @return the number of indexed documents
+	 */
+	public long getIndexedDocuments() {
+		return indexedDocuments.get();
+	}
+
+	/**
+	 * Returns the throughput of the most recent indexing run.
+	 * 
+	 * @return the throughput in documents per minute
+	 */
+	public long getIndexingThroughput() {
+		return indexingThroughput;
+	}
+
+	/**
+	 * Returns true if pushes are queued for incremental indexing.
+	 * 
+	 * @return true if the index queue is enabled
+	 */
+	public boolean isQueueEnabled() {
+		return queue != null;
+	}
+
+	/**
+	 * Queues an incremental index update of the changed refs of a repository.
+	 * 
+	 * @param repositoryName
+	 * @param refs
+	 *            the changed refs, if null or empty all indexed branches are
+	 *            updated
+	 * @return true if the update was queued
+	 */
+	public boolean queue(String repositoryName, Collection<String> refs) {
+		if (queue == null) {
+			return false;
+		}
+		queue.add(repositoryName, refs);
+		return true;
+	}
+
+	/**
+	 * Incrementally indexes the queued refs of all queued repositories.  The
+	 * queue is drained as a single batch; updates queued while the batch is
+	 * indexed, and updates which failed, are left for the next drain.  An
+	 * update which fails {@link #MAX_QUEUED_ATTEMPTS} times in a row is
+	 * dropped, the repository is fully indexed by the next index run.
+	 * 
+	 * @return true if updates were left in the queue and the drain should be
+	 *         retried
+	 */
+	public boolean drainQueue() {
+		if (queue == null || queue.isEmpty()) {
+			return false;
+		}
+		if (!storedSettings.getBoolean(Keys.web.allowLuceneIndexing, true)) {
+			// Lucene indexing is disabled
+			return false;
+		}
+		if (GitBlit.self().isCollectingGarbage()) {
+			// busy collecting garbage, try again later
+			return true;
+		}
+		boolean retry = false;
+		synchronized (indexLock) {
+			long startTime = System.currentTimeMillis();
+			long documents = 0;
+			Map<String, Set<String>> batch = queue.drain();
+			for (Map.Entry<String, Set<String>> entry : batch.entrySet()) {
+				RepositoryModel model = GitBlit.self().getRepositoryModel(entry.getKey());
+				if (model == null || !model.hasCommits || ArrayUtils.isEmpty(model.indexedBranches)) {
+					continue;
+				}
+				if (GitBlit.self().isCollectingGarbage(model.name)) {
+					// requeue and try again after garbage collection
+					queue.add(entry.getKey(), entry.getValue());
+					retry = true;
+					continue;
+				}
+				Set<String> refs = entry.getValue().isEmpty() ? null : entry.getValue();
+				IndexResult result = indexRepository(model, refs);
+				if (result == null) {
 					if (GitBlit.self().isCollectingGarbage(model.name)) {
-						logger.info(MessageFormat.format("Skipping Lucene index of {0}, busy garbage collecting", repositoryName));
+						queue.add(entry.getKey(), entry.getValue());
+						retry = true;
 					}
 					continue;
 				}
-				index(model, repository);				
-				repository.close();
-				System.gc();
+				documents += result.documentCount();
+				if (result.success) {
+					queueFailures.remove(entry.getKey());
+					continue;
+				}
+				Integer failures = queueFailures.get(entry.getKey());
+				failures = failures == null ? 1 : failures + 1;
+				if (failures >= MAX_QUEUED_ATTEMPTS) {
+					queueFailures.remove(entry.getKey());
+					logger.error(MessageFormat.format("Dropped Lucene index update of {0} after {1} failed attempts",
+							model.name, failures));
+				} else {
+					// requeue the failed update so that it survives the commit
+					queueFailures.put(entry.getKey(), failures);
+					logger.warn(MessageFormat.format("Requeued failed Lucene index update of {0}", model.name));
+					queue.add(entry.getKey(), entry.getValue());
+					retry = true;
+				}
+			}
+			queue.commit();
+			if (documents > 0) {
+				long duration = System.currentTimeMillis() - startTime;
+				recordThroughput(documents, Math.max(1, duration));
+				logger.info(MessageFormat.format("Indexed {0} Lucene documents from {1} queued repositories in {2} msecs",
+						documents, batch.size(), duration));
 			}
 		}
+		return retry;
+	}
+
+	/**
+	 * Opens the repository and indexes it.
+	 * 
+	 * @param model
+	 * @param refs
+	 *            the refs to update, null for all indexed branches
+	 * @return the number of indexed documents
+	 */
+	private long index(RepositoryModel model, Set<String> refs) {
+		IndexResult result = indexRepository(model, refs);
+		return result == null ? 0 : result.documentCount();
+	}
+
+	/**
+	 * Opens the repository and indexes it.
+	 * 
+	 * @param model
+	 * @param refs
+	 *            the refs to update, null for all indexed branches
+	 * @return the index result or null if the repository could not be opened
+	 */
+	private IndexResult indexRepository(RepositoryModel model, Set<String> refs) {
+		Repository repository = GitBlit.self().getRepository(model.name);
+		if (repository == null) {
+			if (GitBlit.self().isCollectingGarbage(model.name)) {
+				logger.info(MessageFormat.format("Skipping Lucene index of {0}, busy garbage collecting", model.name));
+			}
+			return null;
+		}
+		activeIndexers.incrementAndGet();
+		try {
+			return index(model, repository, refs);
+		} finally {
+			activeIndexers.decrementAndGet();
+			repository.close();
+		}
+	}
+
+	/**
+	 * Blocks while heap usage exceeds the configured limit and other
+	 * repositories are being indexed. Indexing a repository which completes
+	 * releases its documents and buffers so the next repository waits for
+	 * that rather than competing for the same heap.
+	 * 
+	 * @param repositoryName
+	 * @throws InterruptedException
+	 */
+	private void awaitHeap(String repositoryName) throws InterruptedException {
+		int maxHeapUsage = storedSettings.getInteger(Keys.web.luceneIndexingMaxHeapUsage, 75);
+		if (maxHeapUsage <= 0 || maxHeapUsage >= 100) {
+			return;
+		}
+		Runtime runtime = Runtime.getRuntime();
+		boolean waiting = false;
+		while (activeIndexers.get() > 0) {
+			long used = runtime.totalMemory() - runtime.freeMemory();
+			if (used * 100 < runtime.maxMemory() * maxHeapUsage) {
+				break;
+			}
+			if (!waiting) {
+				logger.debug(MessageFormat.format("Lucene indexing of {0} is waiting for heap usage to drop below {1}%",
+						repositoryName, maxHeapUsage));
+				waiting = true;
+			}
+			Thread.sleep(250);
+		}
 	}
 
 	/**
@@ -197,12 +506,16 @@ public class LuceneExecutor implements Runnable {
 	 *            the name of the repository
 	 * @param repository
 	 *            the repository object
+	 * @param refs
+	 *            the refs to update, null for all indexed branches
+	 * @return IndexResult
 	 */
-	private void index(RepositoryModel model, Repository repository) {
+	private IndexResult index(RepositoryModel model, Repository repository, Set<String> refs) {
+		IndexResult result = new IndexResult();
 		try {
 			if (shouldReindex(repository)) {
 				// (re)build the entire index
-				IndexResult result = reindex(model, repository);
+				result = reindex(model, repository);
 
 				if (result.success) {
 					if (result.commitCount > 0) {
@@ -216,7 +529,7 @@ public class LuceneExecutor implements Runnable {
 				}
 			} else {
 				// update the index with latest commits
-				IndexResult result = updateIndex(model, repository);
+				result = updateIndex(model, repository, refs);
 				if (result.success) {
 					if (result.commitCount > 0) {
 						String msg = "Updated {0} Lucene index with {1} commits and {2} files across {3} branches in {4} secs";
@@ -231,6 +544,7 @@ public class LuceneExecutor implements Runnable {
 		} catch (Throwable t) {
 			logger.error(MessageFormat.format("Lucene indexing failure for {0}", model.name), t);
 		}
+		return result;
 	}
 	
 	/**
@@ -239,10 +553,22 @@ public class LuceneExecutor implements Runnable {
 	 * @param repositoryName
 	 */
 	public synchronized void close(String repositoryName) {
+		// release the combined readers which include this repository
+		synchronized (combinedReaders) {
+			Iterator<MultiSourceReader> itr = combinedReaders.values().iterator();
+			while (itr.hasNext()) {
+				MultiSourceReader reader = itr.next();
+				if (reader.repositories.contains(repositoryName)) {
+					itr.remove();
+					release(reader);
+				}
+			}
+		}
+
 		try {
-			IndexSearcher searcher = searchers.remove(repositoryName);
+			SearcherManager searcher = searchers.remove(repositoryName);
 			if (searcher != null) {
-				searcher.getIndexReader().close();
+				searcher.close();
 			}
 		} catch (Exception e) {
 			logger.error("Failed to close index searcher for " + repositoryName, e);
@@ -273,10 +599,18 @@ public class LuceneExecutor implements Runnable {
 		}
 		writers.clear();
 
+		// release all combined readers
+		synchronized (combinedReaders) {
+			for (MultiSourceReader reader : combinedReaders.values()) {
+				release(reader);
+			}
+			combinedReaders.clear();
+		}
+
 		// close all searchers
 		for (String searcher : searchers.keySet()) {
 			try {
-				searchers.get(searcher).getIndexReader().close();
+				searchers.get(searcher).close();
 			} catch (Throwable t) {
 				logger.error("Failed to close Lucene searcher for " + searcher, t);
 			}
@@ -511,9 +845,6 @@ public class LuceneExecutor implements Runnable {
 					}
 				}				
 
-				ByteArrayOutputStream os = new ByteArrayOutputStream();
-				byte[] tmp = new byte[32767];
-
 				RevWalk commitWalk = new RevWalk(reader);
 				commitWalk.markStart(tip);
 				
@@ -570,17 +901,7 @@ public class LuceneExecutor implements Runnable {
 
 						// index the blob content
 						if (StringUtils.isEmpty(ext) || !excludedExtensions.contains(ext)) {							
-							ObjectLoader ldr = repository.open(blobId, Constants.OBJ_BLOB);
-							InputStream in = ldr.openStream();						
-							int n;
-							while ((n = in.read(tmp)) > 0) {
-								os.write(tmp, 0, n);
-							}
-							in.close();
-							byte[] content = os.toByteArray();
-							String str = StringUtils.decodeString(content, encodings);							
-							doc.add(new Field(FIELD_CONTENT, str, Store.YES, Index.ANALYZED));
-							os.reset();
+							doc.add(createContentField(repository, blobId, encodings));
 						}							
 						
 						// add the blob to the index
@@ -588,8 +909,6 @@ public class LuceneExecutor implements Runnable {
 					}
 				}
 
-				os.close();
-
 				// index the tip commit object
 				if (indexedCommits.add(tipId)) {
 					Document doc = createDocument(tip, tags.get(tipId));
@@ -634,7 +953,7 @@ public class LuceneExecutor implements Runnable {
 			config.setInt(CONF_INDEX, null, CONF_VERSION, INDEX_VERSION);
 			config.save();
 			writer.commit();
-			resetIndexSearcher(model.name);
+			refreshIndexSearcher(model.name);
 			result.success();
 		} catch (Exception e) {
 			logger.error("Exception while reindexing " + model.name, e);
@@ -692,10 +1011,11 @@ public class LuceneExecutor implements Runnable {
 
 					if (StringUtils.isEmpty(ext) || !excludedExtensions.contains(ext)) {
 						// read the blob content
-						String str = JGitUtils.getStringContent(repository, commit.getTree(),
-								path.path, encodings);
-						if (str != null) {
-							doc.add(new Field(FIELD_CONTENT, str, Store.YES, Index.ANALYZED));
+						TreeWalk tw = TreeWalk.forPath(repository, path.path, commit.getTree());
+						if (tw != null) {
+							ObjectId blobId = tw.getObjectId(0);
+							tw.release();
+							doc.add(createContentField(repository, blobId, encodings));
 							writer.addDocument(doc);
 						}
 					}
@@ -808,9 +1128,11 @@ public class LuceneExecutor implements Runnable {
 	 * 
 	 * @param model
 	 * @param repository
+	 * @param refs
+	 *            the refs to update, null for all indexed branches
 	 * @return IndexResult
 	 */
-	private IndexResult updateIndex(RepositoryModel model, Repository repository) {
+	private IndexResult updateIndex(RepositoryModel model, Repository repository, Set<String> refs) {
 		IndexResult result = new IndexResult();
 		try {
 			FileBasedConfig config = getConfig(repository);
@@ -837,6 +1159,10 @@ public class LuceneExecutor implements Runnable {
 				String branch = config.getString(CONF_ALIAS, null, alias);
 				deletedBranches.add(branch);
 			}
+			if (refs != null) {
+				// only the specified refs may have been deleted
+				deletedBranches.retainAll(refs);
+			}
 
 			// get the local branches
 			List<RefModel> branches = JGitUtils.getLocalBranches(repository, true, -1);
@@ -864,6 +1190,10 @@ public class LuceneExecutor implements Runnable {
 			// walk through each branches
 			for (RefModel branch : branches) {
 				String branchName = branch.getName();
+				if (refs != null && !refs.contains(branchName)) {
+					// branch has not changed
+					continue;
+				}
 
 				boolean indexBranch = false;
 				if (model.indexedBranches.contains(com.gitblit.Constants.DEFAULT_BRANCH)
@@ -1010,6 +1340,90 @@ public class LuceneExecutor implements Runnable {
 		return doc;
 	}
 
+	/**
+	 * Creates the content field for a blob document.  Blobs larger than
+	 * web.luceneMaxBlobSize are truncated.  If content is not stored, the blob
+	 * is streamed into the index through a Reader instead of being decoded
+	 * into a String.
+	 * 
+	 * @param repository
+	 * @param blobId
+	 * @param encodings
+	 * @return the content field
+	 * @throws IOException
+	 */
+	private Field createContentField(Repository repository, ObjectId blobId, String [] encodings)
+			throws IOException {
+		ObjectLoader ldr = repository.open(blobId, Constants.OBJ_BLOB);
+		long length = ldr.getSize();
+		if (maxBlobSize > 0 && length > maxBlobSize) {
+			logger.debug(MessageFormat.format("Truncating blob {0} from {1} to {2} bytes for indexing",
+					blobId.getName(), length, maxBlobSize));
+			length = maxBlobSize;
+		}
+		InputStream in = new TruncatedInputStream(ldr.openStream(), length);
+		if (storeContent) {
+			byte [] content = new byte[(int) length];
+			try {
+				IO.readFully(in, content, 0);
+			} finally {
+				in.close();
+			}
+			return new Field(FIELD_CONTENT, StringUtils.decodeString(content, encodings), Store.YES, Index.ANALYZED);
+		}
+
+		// determine the charset from the head of the blob and stream the
+		// content into the analyzer
+		BufferedInputStream bis = new BufferedInputStream(in, CHARSET_PROBE_SIZE);
+		bis.mark(CHARSET_PROBE_SIZE);
+		byte [] probe = new byte[CHARSET_PROBE_SIZE];
+		int n = 0;
+		int read;
+		while (n < probe.length && (read = bis.read(probe, n, probe.length - n)) > 0) {
+			n += read;
+		}
+		bis.reset();
+		Charset charset = StringUtils.getCharset(probe, n, encodings);
+		return new Field(FIELD_CONTENT, new InputStreamReader(bis, charset));
+	}
+
+	/**
+	 * Returns the content of a blob search result from the repository. This is
+	 * used to highlight blob results when the content is not stored in the
+	 * index.
+	 * 
+	 * @param result
+	 * @return the blob content or null
+	 */
+	private String getBlobContent(SearchResult result) {
+		Repository repository = null;
+		try {
+			repository = GitBlit.self().getRepository(result.repository);
+			if (repository == null) {
+				return null;
+			}
+			RevCommit commit = JGitUtils.getCommit(repository, result.commitId);
+			if (commit == null) {
+				return null;
+			}
+			String [] encodings = storedSettings.getStrings(Keys.web.blobEncodings).toArray(new String[0]);
+			String content = JGitUtils.getStringContent(repository, commit.getTree(), result.path, encodings);
+			if (content != null && maxBlobSize > 0 && content.length() > maxBlobSize) {
+				// only the indexed portion of the blob can match
+				content = content.substring(0, (int) maxBlobSize);
+			}
+			return content;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to read {0} from {1} for highlighting",
+					result.path, result.repository), t);
+		} finally {
+			if (repository != null) {
+				repository.close();
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Incrementally index an object for the repository.
 	 * 
@@ -1022,7 +1436,7 @@ public class LuceneExecutor implements Runnable {
 			IndexWriter writer = getIndexWriter(repositoryName);
 			writer.addDocument(doc);
 			writer.commit();
-			resetIndexSearcher(repositoryName);
+			refreshIndexSearcher(repositoryName);
 			return true;
 		} catch (Exception e) {
 			logger.error(MessageFormat.format("Exception while incrementally updating {0} Lucene index", repositoryName), e);
@@ -1053,30 +1467,88 @@ public class LuceneExecutor implements Runnable {
 		return result;
 	}
 
-	private synchronized void resetIndexSearcher(String repository) throws IOException {
-		IndexSearcher searcher = searchers.remove(repository);
+	/**
+	 * Refreshes the searcher of the repository after a commit.  Only the
+	 * changed segments of the index are reopened.  Searches which are in
+	 * progress continue to use the previous searcher until they release it.
+	 * 
+	 * @param repository
+	 * @throws IOException
+	 */
+	private void refreshIndexSearcher(String repository) throws IOException {
+		SearcherManager searcher = searchers.get(repository);
 		if (searcher != null) {
-			searcher.getIndexReader().close();
+			searcher.maybeRefresh();
 		}
 	}
 
 	/**
-	 * Gets an index searcher for the repository.
+	 * Gets the searcher manager for the repository.  Searchers must be
+	 * acquired from and released to the manager.
 	 * 
 	 * @param repository
-	 * @return
+	 * @return a searcher manager
 	 * @throws IOException
 	 */
-	private IndexSearcher getIndexSearcher(String repository) throws IOException {
-		IndexSearcher searcher = searchers.get(repository);
-		if (searcher == null) {
-			IndexWriter writer = getIndexWriter(repository);
-			searcher = new IndexSearcher(IndexReader.open(writer, true));
-			searchers.put(repository, searcher);
+	private SearcherManager getSearcherManager(String repository) throws IOException {
+		SearcherManager searcher = searchers.get(repository);
+		if (searcher != null) {
+			return searcher;
+		}
+		synchronized (searchers) {
+			searcher = searchers.get(repository);
+			if (searcher == null) {
+				IndexWriter writer = getIndexWriter(repository);
+				searcher = new SearcherManager(writer, true, new SearcherFactory());
+				searchers.put(repository, searcher);
+			}
 		}
 		return searcher;
 	}
 
+	/**
+	 * Returns a combined reader for the specified repositories.  Combined
+	 * readers are cached by repository set and are reused for as long as the
+	 * repository readers they were built from are current.  The caller must
+	 * release the returned reader.
+	 * 
+	 * @param repositories
+	 * @param readers
+	 *            the current readers of the repositories
+	 * @return a combined reader
+	 */
+	private MultiSourceReader getCombinedReader(String [] repositories, IndexReader [] readers) {
+		String key = StringUtils.flattenStrings(Arrays.asList(repositories), "\n");
+		synchronized (combinedReaders) {
+			MultiSourceReader reader = combinedReaders.get(key);
+			if (reader != null && reader.isBuiltFrom(readers)) {
+				reader.incRef();
+				return reader;
+			}
+			MultiSourceReader combined = new MultiSourceReader(repositories, readers);
+			// one reference for the cache and one for the caller
+			combined.incRef();
+			MultiSourceReader replaced = combinedReaders.put(key, combined);
+			if (replaced != null) {
+				release(replaced);
+			}
+			return combined;
+		}
+	}
+
+	/**
+	 * Releases a reference to a combined reader.
+	 * 
+	 * @param reader
+	 */
+	private void release(MultiSourceReader reader) {
+		try {
+			reader.decRef();
+		} catch (IOException e) {
+			logger.error("Failed to release combined Lucene reader", e);
+		}
+	}
+
 	/**
 	 * Gets an index writer for the repository. The index will be created if it
 	 * does not already exist or if forceCreate is specified.
@@ -1086,20 +1558,25 @@ public class LuceneExecutor implements Runnable {
 	 * @throws IOException
 	 */
 	private IndexWriter getIndexWriter(String repository) throws IOException {
-		IndexWriter indexWriter = writers.get(repository);				
-		File repositoryFolder = FileKey.resolve(new File(repositoriesFolder, repository), FS.DETECTED);
-		File indexFolder = new File(repositoryFolder, LUCENE_DIR);
-		Directory directory = FSDirectory.open(indexFolder);		
-
-		if (indexWriter == null) {
-			if (!indexFolder.exists()) {
-				indexFolder.mkdirs();
+		IndexWriter indexWriter = writers.get(repository);
+		if (indexWriter != null) {
+			return indexWriter;
+		}
+		synchronized (writers) {
+			indexWriter = writers.get(repository);
+			if (indexWriter == null) {
+				File repositoryFolder = FileKey.resolve(new File(repositoriesFolder, repository), FS.DETECTED);
+				File indexFolder = new File(repositoryFolder, LUCENE_DIR);
+				if (!indexFolder.exists()) {
+					indexFolder.mkdirs();
+				}
+				Directory directory = FSDirectory.open(indexFolder);
+				StandardAnalyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
+				IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, analyzer);
+				config.setOpenMode(OpenMode.CREATE_OR_APPEND);
+				indexWriter = new IndexWriter(directory, config);
+				writers.put(repository, indexWriter);
 			}
-			StandardAnalyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
-			IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, analyzer);
-			config.setOpenMode(OpenMode.CREATE_OR_APPEND);
-			indexWriter = new IndexWriter(directory, config);
-			writers.put(repository, indexWriter);
 		}
 		return indexWriter;
 	}
@@ -1120,10 +1597,32 @@ public class LuceneExecutor implements Runnable {
 	 * 
 	 */
 	public List<SearchResult> search(String text, int page, int pageSize, List<String> repositories) {
+		return searchAfter(text, page, pageSize, null, repositories);
+	}
+
+	/**
+	 * Searches the specified repositories for the given text or query
+	 * 
+	 * @param text
+	 *            if the text is null or empty, null is returned
+	 * @param page
+	 *            the page number to retrieve. page is 1-indexed.
+	 * @param pageSize
+	 *            the number of elements to return for this page
+	 * @param after
+	 *            the cursor of the last result of the previous page, may be
+	 *            null
+	 * @param repositories
+	 *            a list of repositories to search. if no repositories are
+	 *            specified null is returned.
+	 * @return a list of SearchResults in order from highest to the lowest score
+	 * 
+	 */
+	public List<SearchResult> searchAfter(String text, int page, int pageSize, String after, List<String> repositories) {
 		if (ArrayUtils.isEmpty(repositories)) {
 			return null;
 		}
-		return search(text, page, pageSize, repositories.toArray(new String[0]));
+		return searchAfter(text, page, pageSize, after, repositories.toArray(new String[0]));
 	}
 	
 	/**
@@ -1142,72 +1641,229 @@ public class LuceneExecutor implements Runnable {
 	 * 
 	 */
 	public List<SearchResult> search(String text, int page, int pageSize, String... repositories) {
+		return searchAfter(text, page, pageSize, null, repositories);
+	}
+
+	/**
+	 * Searches the specified repositories for the given text or query.
+	 * 
+	 * The hits of the requested page are collected by a collector sized to
+	 * page * pageSize.  If the cursor of the last result of the previous page
+	 * is specified, the search continues after that result and the collector
+	 * is sized to a single page.  A cursor records the query and the version
+	 * of each searched index; a cursor of a different query or of an index
+	 * which has since changed is ignored and the page is collected by a fresh
+	 * search.
+	 * 
+	 * @param text
+	 *            if the text is null or empty, null is returned
+	 * @param page
+	 *            the page number to retrieve. page is 1-indexed.
+	 * @param pageSize
+	 *            the number of elements to return for this page
+	 * @param after
+	 *            the cursor of the last result of the previous page, may be
+	 *            null
+	 * @param repositories
+	 *            a list of repositories to search. if no repositories are
+	 *            specified null is returned.
+	 * @return a list of SearchResults in order from highest to the lowest score
+	 * 
+	 */
+	public List<SearchResult> searchAfter(String text, int page, int pageSize, String after, String... repositories) {
 		if (StringUtils.isEmpty(text)) {
 			return null;
 		}
 		if (ArrayUtils.isEmpty(repositories)) {
 			return null;
 		}
+		page = Math.max(1, page);
+		pageSize = Math.max(1, pageSize);
+		if ((long) page * pageSize > Integer.MAX_VALUE) {
+			return new ArrayList<SearchResult>();
+		}
 		Set<SearchResult> results = new LinkedHashSet<SearchResult>();
 		StandardAnalyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
+		RepositorySearcher searcher = null;
 		try {
-			// default search checks summary and content
-			BooleanQuery query = new BooleanQuery();
-			QueryParser qp;
-			qp = new QueryParser(LUCENE_VERSION, FIELD_SUMMARY, analyzer);
-			qp.setAllowLeadingWildcard(true);
-			query.add(qp.parse(text), Occur.SHOULD);
-
-			qp = new QueryParser(LUCENE_VERSION, FIELD_CONTENT, analyzer);
-			qp.setAllowLeadingWildcard(true);
-			query.add(qp.parse(text), Occur.SHOULD);
-			
-			IndexSearcher searcher;
-			if (repositories.length == 1) {
-				// single repository search
-				searcher = getIndexSearcher(repositories[0]);
-			} else {
-				// multiple repository search
-				List<IndexReader> readers = new ArrayList<IndexReader>();
-				for (String repository : repositories) {
-					IndexSearcher repositoryIndex = getIndexSearcher(repository);
-					readers.add(repositoryIndex.getIndexReader());
-				}
-				IndexReader[] rdrs = readers.toArray(new IndexReader[readers.size()]);
-				MultiSourceReader reader = new MultiSourceReader(rdrs);
-				searcher = new IndexSearcher(reader);
-			}
-			
-			Query rewrittenQuery = searcher.rewrite(query);
+			Query query = parseQuery(text, analyzer);
+			searcher = new RepositorySearcher(repositories);
+
+			Query rewrittenQuery = searcher.searcher.rewrite(query);
 			logger.debug(rewrittenQuery.toString());
 
-			TopScoreDocCollector collector = TopScoreDocCollector.create(5000, true);
-			searcher.search(rewrittenQuery, collector);
-			int offset = Math.max(0, (page - 1) * pageSize);
-			ScoreDoc[] hits = collector.topDocs(offset, pageSize).scoreDocs;
+			int offset = (page - 1) * pageSize;
+			String state = searcher.getState(query);
+			ScoreDoc afterDoc = page > 1 ? parseCursor(after, state, searcher.searcher.maxDoc()) : null;
+			TopScoreDocCollector collector;
+			ScoreDoc[] hits;
+			if (afterDoc == null) {
+				// collect all hits up to and including the requested page
+				int numHits = Math.max(1, Math.min(offset + pageSize, searcher.searcher.maxDoc()));
+				collector = TopScoreDocCollector.create(numHits, true);
+				searcher.searcher.search(rewrittenQuery, collector);
+				hits = collector.topDocs(offset, pageSize).scoreDocs;
+			} else {
+				// collect the hits of the requested page
+				int numHits = Math.max(1, Math.min(pageSize, searcher.searcher.maxDoc()));
+				collector = TopScoreDocCollector.create(numHits, afterDoc, true);
+				searcher.searcher.search(rewrittenQuery, collector);
+				hits = collector.topDocs().scoreDocs;
+			}
 			int totalHits = collector.getTotalHits();
 			for (int i = 0; i < hits.length; i++) {
 				int docId = hits[i].doc;
-				Document doc = searcher.doc(docId);
+				Document doc = searcher.searcher.doc(docId);
 				SearchResult result = createSearchResult(doc, hits[i].score, offset + i + 1, totalHits);
-				if (repositories.length == 1) {
-					// single repository search
-					result.repository = repositories[0];
-				} else {
-					// multi-repository search
-					MultiSourceReader reader = (MultiSourceReader) searcher.getIndexReader();
-					int index = reader.getSourceIndex(docId);
-					result.repository = repositories[index];
+				result.repository = searcher.getRepository(docId);
+				result.cursor = getCursor(hits[i], state);
+				String content = doc.get(FIELD_CONTENT);
+				if (content == null && SearchObjectType.blob == result.type) {
+					// content is not stored, highlight from the repository
+					content = getBlobContent(result);
 				}
-				String content = doc.get(FIELD_CONTENT);				
 				result.fragment = getHighlightedFragment(analyzer, query, content, result);
 				results.add(result);
 			}
 		} catch (Exception e) {
 			logger.error(MessageFormat.format("Exception while searching for {0}", text), e);
+		} finally {
+			if (searcher != null) {
+				searcher.release();
+			}
 		}
 		return new ArrayList<SearchResult>(results);
 	}
+
+	/**
+	 * Counts the hits of the text or query in the specified repositories
+	 * without collecting or loading the matching documents.
+	 * 
+	 * @param text
+	 *            if the text is null or empty, 0 is returned
+	 * @param repositories
+	 *            a list of repositories to search. if no repositories are
+	 *            specified 0 is returned.
+	 * @return the number of hits
+	 */
+	public int count(String text, List<String> repositories) {
+		if (ArrayUtils.isEmpty(repositories)) {
+			return 0;
+		}
+		return count(text, repositories.toArray(new String[0]));
+	}
+
+	/**
+	 * Counts the hits of the text or query in the specified repositories
+	 * without collecting or loading the matching documents.
+	 * 
+	 * @param text
+	 *            if the text is null or empty, 0 is returned
+	 * @param repositories
+	 *            a list of repositories to search. if no repositories are
+	 *            specified 0 is returned.
+	 * @return the number of hits
+	 */
+	public int count(String text, String... repositories) {
+		if (StringUtils.isEmpty(text)) {
+			return 0;
+		}
+		if (ArrayUtils.isEmpty(repositories)) {
+			return 0;
+		}
+		StandardAnalyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
+		RepositorySearcher searcher = null;
+		try {
+			Query query = parseQuery(text, analyzer);
+			searcher = new RepositorySearcher(repositories);
+			TotalHitCountCollector collector = new TotalHitCountCollector();
+			searcher.searcher.search(searcher.searcher.rewrite(query), collector);
+			return collector.getTotalHits();
+		} catch (Exception e) {
+			logger.error(MessageFormat.format("Exception while counting hits for {0}", text), e);
+		} finally {
+			if (searcher != null) {
+				searcher.release();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Parses the text into a query of the summary and content fields.
+	 * 
+	 * @param text
+	 * @param analyzer
+	 * @return a query
+	 * @throws ParseException
+	 */
+	private Query parseQuery(String text, Analyzer analyzer)
+			throws org.apache.lucene.queryParser.ParseException {
+		// default search checks summary and content
+		BooleanQuery query = new BooleanQuery();
+		QueryParser qp;
+		qp = new QueryParser(LUCENE_VERSION, FIELD_SUMMARY, analyzer);
+		qp.setAllowLeadingWildcard(true);
+		query.add(qp.parse(text), Occur.SHOULD);
+
+		qp = new QueryParser(LUCENE_VERSION, FIELD_CONTENT, analyzer);
+		qp.setAllowLeadingWildcard(true);
+		query.add(qp.parse(text), Occur.SHOULD);
+		return query;
+	}
+
+	/**
+	 * Returns the cursor of a hit.  The cursor identifies the position of the
+	 * hit in the results so that the next page can be searched after it.
+	 * 
+	 * @param hit
+	 * @param state
+	 *            the state of the search, see RepositorySearcher.getState()
+	 * @return the cursor
+	 */
+	private String getCursor(ScoreDoc hit, String state) {
+		return Integer.toHexString(hit.doc) + "-" + Integer.toHexString(Float.floatToIntBits(hit.score))
+				+ "-" + state;
+	}
+
+	/**
+	 * Parses a cursor.
+	 * 
+	 * @param cursor
+	 * @param state
+	 *            the state of the search, see RepositorySearcher.getState()
+	 * @param maxDoc
+	 *            the maximum document id of the searched indexes
+	 * @return the hit identified by the cursor or null if the cursor is empty,
+	 *         invalid or stale
+	 */
+	private ScoreDoc parseCursor(String cursor, String state, int maxDoc) {
+		if (StringUtils.isEmpty(cursor)) {
+			return null;
+		}
+		String [] fields = cursor.split("-");
+		if (fields.length != 3) {
+			logger.warn(MessageFormat.format("Ignoring invalid search cursor {0}", cursor));
+			return null;
+		}
+		if (!fields[2].equals(state)) {
+			// the query differs or a searched index has changed, the document
+			// ids and scores of the cursor do not apply to this search
+			logger.debug(MessageFormat.format("Ignoring stale search cursor {0}", cursor));
+			return null;
+		}
+		try {
+			int doc = (int) Long.parseLong(fields[0], 16);
+			float score = Float.intBitsToFloat((int) Long.parseLong(fields[1], 16));
+			if (doc < 0 || doc >= maxDoc || Float.isNaN(score)) {
+				return null;
+			}
+			return new ScoreDoc(doc, score);
+		} catch (NumberFormatException e) {
+			logger.warn(MessageFormat.format("Ignoring invalid search cursor {0}", cursor));
+			return null;
+		}
+	}
 	
 	/**
 	 * 
@@ -1337,20 +1993,201 @@ public class LuceneExecutor implements Runnable {
 		float duration() {
 			return (endTime - startTime)/1000f;
 		}
+		
+		int documentCount() {
+			return commitCount + blobCount + issueCount;
+		}
 	}
 	
+	/**
+	 * Bounded, least-recently-used cache of combined readers.  An evicted
+	 * reader is released and closes once the last search using it completes.
+	 */
+	private class CombinedReaderCache extends LinkedHashMap<String, MultiSourceReader> {
+
+		private static final long serialVersionUID = 1L;
+
+		final int maxSize;
+
+		CombinedReaderCache(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MultiSourceReader> eldest) {
+			if (size() > maxSize) {
+				release(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Input stream which ends after a fixed number of bytes of the underlying
+	 * stream.
+	 */
+	private static class TruncatedInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		TruncatedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = super.read();
+			if (b >= 0) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
 	/**
 	 * Custom subclass of MultiReader to identify the source index for a given
 	 * doc id.  This would not be necessary of there was a public method to
 	 * obtain this information.
 	 *  
 	 */
+	/**
+	 * Acquires the current searchers of the repositories for a single search.
+	 * A multiple repository search uses a combined reader.  The searchers must
+	 * be released after the search.
+	 */
+	private class RepositorySearcher {
+
+		final String [] repositories;
+
+		final SearcherManager [] managers;
+
+		final IndexSearcher [] acquired;
+
+		MultiSourceReader reader;
+
+		IndexSearcher searcher;
+
+		RepositorySearcher(String [] repositories) throws IOException {
+			this.repositories = repositories;
+			this.managers = new SearcherManager[repositories.length];
+			this.acquired = new IndexSearcher[repositories.length];
+			try {
+				IndexReader [] readers = new IndexReader[repositories.length];
+				for (int i = 0; i < repositories.length; i++) {
+					managers[i] = getSearcherManager(repositories[i]);
+					acquired[i] = managers[i].acquire();
+					readers[i] = acquired[i].getIndexReader();
+				}
+				if (repositories.length == 1) {
+					// single repository search
+					searcher = acquired[0];
+				} else {
+					// multiple repository search
+					reader = getCombinedReader(repositories, readers);
+					searcher = new IndexSearcher(reader);
+				}
+			} catch (IOException e) {
+				release();
+				throw e;
+			}
+		}
+
+		/**
+		 * Returns the repository of a document of the searcher.
+		 * 
+		 * @param docId
+		 * @return the repository name
+		 */
+		String getRepository(int docId) {
+			if (reader == null) {
+				// single repository search
+				return repositories[0];
+			}
+			// multi-repository search
+			return repositories[reader.getSourceIndex(docId)];
+		}
+
+		/**
+		 * Returns the state of a search of the query.  The state is a hash of
+		 * the query and of the name and version of each searched index, in
+		 * search order.  Document ids and scores are only comparable between
+		 * searches of the same state.
+		 * 
+		 * @param query
+		 * @return the search state
+		 */
+		String getState(Query query) {
+			StringBuilder sb = new StringBuilder(query.toString());
+			for (int i = 0; i < repositories.length; i++) {
+				IndexReader indexReader = acquired[i].getIndexReader();
+				sb.append('\n').append(repositories[i]).append('\t').append(indexReader.getVersion());
+			}
+			return StringUtils.getSHA1(sb.toString()).substring(0, 16);
+		}
+
+		void release() {
+			if (reader != null) {
+				LuceneExecutor.this.release(reader);
+				reader = null;
+			}
+			for (int i = 0; i < managers.length; i++) {
+				if (acquired[i] != null) {
+					try {
+						managers[i].release(acquired[i]);
+					} catch (IOException e) {
+						logger.error("Failed to release Lucene searcher for " + repositories[i], e);
+					}
+					acquired[i] = null;
+				}
+			}
+		}
+	}
+
 	private class MultiSourceReader extends MultiReader {
 		
 		final Method method;
 		
-		MultiSourceReader(IndexReader[] subReaders) {
-			super(subReaders);
+		final List<String> repositories;
+		
+		MultiSourceReader(String [] repositories, IndexReader[] subReaders) {
+			// sub readers are reference counted, not closed
+			super(subReaders, false);
+			this.repositories = Arrays.asList(repositories);
 			Method m = null;
 			try {
 				m = MultiReader.class.getDeclaredMethod("readerIndex", int.class);
@@ -1361,6 +2198,22 @@ public class LuceneExecutor implements Runnable {
 			method = m;
 		}
 		
+		/**
+		 * Returns true if this reader was built from the specified readers.
+		 */
+		boolean isBuiltFrom(IndexReader [] readers) {
+			IndexReader [] subReaders = getSequentialSubReaders();
+			if (subReaders.length != readers.length) {
+				return false;
+			}
+			for (int i = 0; i < readers.length; i++) {
+				if (subReaders[i] != readers[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
 		int getSourceIndex(int docId) {
 			int index = -1;
 			try {
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The Lucene index queue is a durable queue of repositories, and their changed
+ * refs, which must be incrementally indexed.  Each queued update is appended
+ * to the queue file so that queued updates survive a restart.  The queue file
+ * is compacted after each drained batch has been indexed.
+ *
+ * Each line of the queue file is a repository name optionally followed by a
+ * tab and a ref name.  A repository without refs is queued for an update of
+ * all its indexed branches.
+ *
+ * @author James Moger
+ *
+ */
+public class LuceneIndexQueue {
+
+	private final Logger logger = LoggerFactory.getLogger(LuceneIndexQueue.class);
+
+	private final File file;
+
+	// repository -> refs, an empty set means all indexed branches
+	private final Map<String, Set<String>> queue = new LinkedHashMap<String, Set<String>>();
+
+	public LuceneIndexQueue(File file) {
+		this.file = file;
+		read();
+	}
+
+	/**
+	 * Queues an update of the specified refs of the repository.
+	 *
+	 * @param repositoryName
+	 * @param refs
+	 *            the changed refs, if null or empty all indexed branches of
+	 *            the repository are updated
+	 */
+	public synchronized void add(String repositoryName, Collection<String> refs) {
+		StringBuilder sb = new StringBuilder();
+		Set<String> queued = queue.get(repositoryName);
+		if (refs == null || refs.isEmpty()) {
+			if (queued == null || !queued.isEmpty()) {
+				queue.put(repositoryName, new TreeSet<String>());
+				sb.append(repositoryName).append('\n');
+			}
+		} else if (queued == null || !queued.isEmpty()) {
+			if (queued == null) {
+				queued = new TreeSet<String>();
+				queue.put(repositoryName, queued);
+			}
+			for (String ref : refs) {
+				if (queued.add(ref)) {
+					sb.append(repositoryName).append('\t').append(ref).append('\n');
+				}
+			}
+		}
+		if (sb.length() > 0) {
+			append(sb.toString());
+		}
+	}
+
+	/**
+	 * Removes all queued updates from the queue.  The updates remain in the
+	 * queue file until commit() is called.
+	 *
+	 * @return the queued updates, repository -> refs
+	 */
+	public synchronized Map<String, Set<String>> drain() {
+		Map<String, Set<String>> batch = new LinkedHashMap<String, Set<String>>(queue);
+		queue.clear();
+		return batch;
+	}
+
+	/**
+	 * Rewrites the queue file with the updates which were queued since the
+	 * last drain.
+	 */
+	public synchronized void commit() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Set<String>> entry : queue.entrySet()) {
+			if (entry.getValue().isEmpty()) {
+				sb.append(entry.getKey()).append('\n');
+			}
+			for (String ref : entry.getValue()) {
+				sb.append(entry.getKey()).append('\t').append(ref).append('\n');
+			}
+		}
+		File temp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			write(temp, sb.toString(), false);
+			if (file.exists() && !file.delete()) {
+				logger.error(MessageFormat.format("Failed to replace Lucene index queue {0}", file));
+				return;
+			}
+			if (!temp.renameTo(file)) {
+				logger.error(MessageFormat.format("Failed to rename {0} to {1}", temp, file));
+			}
+		} catch (IOException e) {
+			logger.error(MessageFormat.format("Failed to write Lucene index queue {0}", file), e);
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	private void read() {
+		if (!file.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (StringUtils.isEmpty(line)) {
+					continue;
+				}
+				int tab = line.indexOf('\t');
+				String repository = tab < 0 ? line : line.substring(0, tab);
+				Set<String> refs = queue.get(repository);
+				if (tab < 0) {
+					queue.put(repository, new TreeSet<String>());
+				} else if (refs == null) {
+					refs = new TreeSet<String>();
+					refs.add(line.substring(tab + 1));
+					queue.put(repository, refs);
+				} else if (!refs.isEmpty()) {
+					refs.add(line.substring(tab + 1));
+				}
+			}
+			if (queue.size() > 0) {
+				logger.info(MessageFormat.format("{0} repositories queued for Lucene indexing", queue.size()));
+			}
+		} catch (IOException e) {
+			logger.error(MessageFormat.format("Failed to read Lucene index queue {0}", file), e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void append(String content) {
+		try {
+			write(file, content, true);
+		} catch (IOException e) {
+			logger.error(MessageFormat.format("Failed to append to Lucene index queue {0}", file), e);
+		}
+	}
+
+	private void write(File target, String content, boolean append) throws IOException {
+		File folder = target.getAbsoluteFile().getParentFile();
+		if (folder != null && !folder.exists()) {
+			folder.mkdirs();
+		}
+		Writer writer = new OutputStreamWriter(new FileOutputStream(target, append), "UTF-8");
+		try {
+			writer.write(content);
+			writer.flush();
+		} finally {
+			writer.close();
+		}
+	}
+}
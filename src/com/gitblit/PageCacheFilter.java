@@ -0,0 +1,597 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.ResponseCache.CachedResponse;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.UserModel;
+import com.gitblit.utils.HttpUtils;
+import com.gitblit.utils.StringUtils;
+import com.gitblit.wicket.GitBlitWebSession;
+
+/**
+ * The PageCacheFilter caches the web pages which are addressed by a full
+ * object id.  A commit, tree, blob, or diff addressed by its object id never
+ * changes, but the page also renders the refs and the git notes of the
+ * repository, so the rendered page depends on the viewer and on the refs.
+ *
+ * The entity tag of a page is derived from the url, the access class of the
+ * viewer and the state of the refs of the repository, including the notes
+ * refs.  Pages are sent with no-cache so that clients always revalidate.
+ * Revalidation requests for a cached page are answered with 304 after an
+ * access check and a read of the refs, without rendering the page.
+ *
+ * Pages are only cached for viewers who are identified by their web session or
+ * who are anonymous.  Requests which carry credentials without a web session
+ * are always rendered so that the authentication of the page is not bypassed.
+ *
+ * @author James Moger
+ *
+ */
+public class PageCacheFilter implements Filter {
+
+	private static final Set<String> PAGES = new HashSet<String>(Arrays.asList("commit", "tree",
+			"blob", "blobdiff", "commitdiff", "patch"));
+
+	private static final Pattern SHA = Pattern.compile("^[0-9a-fA-F]{40}$");
+
+	private static final String REVALIDATE = "private, no-cache";
+
+	// the hidden field which SessionlessForm renders in each form
+	private static final String SESSIONLESS_FORM = "name=\"wicket:bookmarkablePage\" value=\":";
+
+	private transient Logger logger = LoggerFactory.getLogger(PageCacheFilter.class);
+
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		ResponseCache cache = GitBlit.self().getResponseCache();
+		String key = cache == null ? null : getKey(cache, httpRequest);
+		if (key == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		String etag = "\"" + key + "\"";
+		boolean current = HttpUtils.isCurrent(httpRequest.getHeader("If-None-Match"), etag);
+		CachedResponse cached = cache.get(key);
+		if (cached != null) {
+			// only pages which were found to be cacheable are answered
+			// from the cache or with 304
+			setCacheHeaders(httpResponse, etag);
+			if (current) {
+				httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			httpResponse.setContentType(cached.contentType);
+			httpResponse.setContentLength(cached.content.length);
+			if (!"HEAD".equals(httpRequest.getMethod())) {
+				httpResponse.getOutputStream().write(cached.content);
+			}
+			httpResponse.flushBuffer();
+			return;
+		}
+
+		CachingResponse cachingResponse = new CachingResponse(httpResponse, etag,
+				(int) cache.getMaxResponseSize(), current);
+		chain.doFilter(request, cachingResponse);
+		byte[] content = cachingResponse.finish();
+		if (content != null && "GET".equals(httpRequest.getMethod())) {
+			cache.put(key, new CachedResponse(cachingResponse.getContentType(), content));
+		}
+	}
+
+	/**
+	 * Sets the entity tag and the cache headers of a page.  The page varies
+	 * with the session cookie because the page is rendered for the viewer.
+	 *
+	 * @param response
+	 * @param etag
+	 */
+	private static void setCacheHeaders(HttpServletResponse response, String etag) {
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", REVALIDATE);
+		response.setHeader("Vary", "Cookie, Accept-Language");
+	}
+
+	/**
+	 * Returns the cache key of the request or null if the request is not for
+	 * a cacheable page.
+	 *
+	 * @param cache
+	 * @param request
+	 * @return the cache key or null
+	 */
+	private String getKey(ResponseCache cache, HttpServletRequest request) {
+		if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+			return null;
+		}
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		String[] segments = path.split("/");
+		if (segments.length < 2 || !PAGES.contains(segments[1])) {
+			return null;
+		}
+		String repository = getParameter(request, segments, 2, "r");
+		String objectId = getParameter(request, segments, 3, "h");
+		String blobPath = getParameter(request, segments, 4, "f");
+		if (StringUtils.isEmpty(repository) || objectId == null || !SHA.matcher(objectId).matches()) {
+			return null;
+		}
+		if (GitBlit.getBoolean(Keys.web.useClientTimezone, false)) {
+			// the page depends on the browser timezone
+			return null;
+		}
+
+		GitBlitWebSession session = getWebSession(request);
+		UserModel user = session == null ? null : session.getUser();
+		if (user == null) {
+			if (hasCredentials(request) || GitBlit.getBoolean(Keys.web.authenticateViewPages, false)) {
+				return null;
+			}
+			user = UserModel.ANONYMOUS;
+		}
+		RepositoryModel model = GitBlit.self().getRepositoryModel(repository);
+		if (model == null || !user.canView(model)) {
+			return null;
+		}
+		String refs = getRefState(model.name);
+		if (refs == null) {
+			return null;
+		}
+		Locale locale = session == null ? request.getLocale() : session.getLocale();
+		String accessClass = user == UserModel.ANONYMOUS ? "" : ("user:" + user.username);
+		return cache.getKey(accessClass, segments[1], repository, objectId.toLowerCase(), blobPath,
+				request.getQueryString(), String.valueOf(locale), refs);
+	}
+
+	/**
+	 * Returns a hash of all refs of the repository, including the notes refs.
+	 * The refs are read from the ref database which is cheap compared to
+	 * rendering the page.
+	 *
+	 * @param repositoryName
+	 * @return the ref state or null if the repository can not be opened
+	 */
+	private String getRefState(String repositoryName) {
+		Repository r = GitBlit.self().getRepository(repositoryName);
+		if (r == null) {
+			return null;
+		}
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (Ref ref : r.getAllRefs().values()) {
+				sb.append(ref.getName()).append(' ');
+				if (ref.isSymbolic()) {
+					sb.append(ref.getTarget().getName()).append(' ');
+				}
+				sb.append(ref.getObjectId() == null ? "" : ref.getObjectId().getName()).append('\n');
+			}
+			return StringUtils.getSHA1(sb.toString());
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Returns a page parameter from the mounted url path or from the query.
+	 */
+	private String getParameter(HttpServletRequest request, String[] segments, int index, String name) {
+		String value = request.getParameter(name);
+		if (value != null || segments.length <= index) {
+			return value;
+		}
+		try {
+			value = URLDecoder.decode(segments[index], Constants.ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			value = segments[index];
+		}
+		char altChar = GitBlit.getChar(Keys.web.forwardSlashCharacter, '/');
+		if (altChar != '/') {
+			value = value.replace(altChar, '/');
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the web session of the request, if one exists.
+	 */
+	private GitBlitWebSession getWebSession(HttpServletRequest request) {
+		HttpSession session = request.getSession(false);
+		if (session == null) {
+			return null;
+		}
+		try {
+			Enumeration<?> names = session.getAttributeNames();
+			while (names.hasMoreElements()) {
+				Object value = session.getAttribute(names.nextElement().toString());
+				if (value instanceof GitBlitWebSession) {
+					return (GitBlitWebSession) value;
+				}
+			}
+		} catch (IllegalStateException e) {
+			// session was invalidated
+			logger.debug("Session invalidated", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the request carries credentials which the page would use
+	 * to authenticate the viewer.
+	 */
+	private boolean hasCredentials(HttpServletRequest request) {
+		if (request.getUserPrincipal() != null || request.getHeader("Authorization") != null
+				|| request.getAttribute("javax.servlet.request.X509Certificate") != null) {
+			return true;
+		}
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (cookie.getName().equals(Constants.NAME)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Buffers the rendered page until it is known whether the page is
+	 * cacheable.  The entity tag and the cache headers of the filter are only
+	 * set on a cacheable page; the cache headers of any other page are passed
+	 * on as set by the page.  Redirects, errors, pages with session specific
+	 * urls or stateful links, and pages larger than the maximum response size
+	 * are not cacheable.
+	 */
+	private static class CachingResponse extends HttpServletResponseWrapper {
+
+		final HttpServletResponse response;
+
+		final String etag;
+
+		final boolean current;
+
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		final int maxSize;
+
+		// cache headers of the page, set only if the page is not cacheable
+		final Map<String, Object> pageHeaders = new LinkedHashMap<String, Object>();
+
+		int status = SC_OK;
+
+		boolean cacheable = true;
+
+		boolean committed;
+
+		ServletOutputStream os;
+
+		PrintWriter writer;
+
+		CachingResponse(HttpServletResponse response, String etag, int maxSize, boolean current) {
+			super(response);
+			this.response = response;
+			this.etag = etag;
+			this.maxSize = maxSize;
+			this.current = current;
+		}
+
+		/**
+		 * Completes the response.  A cacheable page which matches the entity
+		 * tag of the request is answered with 304.
+		 *
+		 * @return the content of a cacheable page or null
+		 * @throws IOException
+		 */
+		byte[] finish() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (committed) {
+				return null;
+			}
+			byte[] content = getContent();
+			if (content == null) {
+				cacheable = false;
+			} else if (current) {
+				committed = true;
+				setCacheHeaders(response, etag);
+				response.setStatus(SC_NOT_MODIFIED);
+				return content;
+			}
+			response.setContentLength(buffer.size());
+			commit();
+			return content;
+		}
+
+		private byte[] getContent() {
+			String contentType = getContentType();
+			if (!cacheable || status != SC_OK || contentType == null || !contentType.startsWith("text/")) {
+				return null;
+			}
+			byte[] content = buffer.toByteArray();
+			try {
+				if (isStateful(new String(content, "ISO-8859-1"))) {
+					// stateful page, links are bound to the session
+					return null;
+				}
+			} catch (UnsupportedEncodingException e) {
+				return null;
+			}
+			return content;
+		}
+
+		/**
+		 * Returns true if the page has links which are bound to the session.
+		 * The action of a SessionlessForm looks like a session bound link but
+		 * the form also names its bookmarkable page, so it works in any
+		 * session.
+		 */
+		private boolean isStateful(String html) {
+			int links = count(html, "wicket:interface");
+			return links > 0 && links > count(html, SESSIONLESS_FORM);
+		}
+
+		private int count(String html, String value) {
+			int count = 0;
+			for (int i = html.indexOf(value); i > -1; i = html.indexOf(value, i + value.length())) {
+				count++;
+			}
+			return count;
+		}
+
+		/**
+		 * Sets the cache headers and writes the buffered page.  From now on
+		 * the page is written through.
+		 */
+		private void commit() throws IOException {
+			committed = true;
+			if (cacheable && status == SC_OK) {
+				setCacheHeaders(response, etag);
+			} else {
+				cacheable = false;
+				setPageHeaders();
+			}
+			if (buffer.size() > 0) {
+				response.getOutputStream().write(buffer.toByteArray());
+				buffer.reset();
+			}
+		}
+
+		private void setPageHeaders() {
+			for (Map.Entry<String, Object> header : pageHeaders.entrySet()) {
+				if (header.getValue() instanceof Long) {
+					response.setDateHeader(header.getKey(), (Long) header.getValue());
+				} else {
+					response.setHeader(header.getKey(), header.getValue().toString());
+				}
+			}
+			pageHeaders.clear();
+		}
+
+		/**
+		 * The page can not be cached, e.g. after an error or a redirect.
+		 */
+		private void uncacheable() {
+			cacheable = false;
+			committed = true;
+			buffer.reset();
+			setPageHeaders();
+		}
+
+		private boolean isCacheHeader(String name) {
+			return "Cache-Control".equalsIgnoreCase(name) || "Pragma".equalsIgnoreCase(name)
+					|| "Expires".equalsIgnoreCase(name) || "ETag".equalsIgnoreCase(name);
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			if (committed || !isCacheHeader(name)) {
+				super.setHeader(name, value);
+			} else {
+				pageHeaders.put(name, value);
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			if (committed || !isCacheHeader(name)) {
+				super.addHeader(name, value);
+			} else if (pageHeaders.get(name) instanceof String) {
+				pageHeaders.put(name, pageHeaders.get(name) + ", " + value);
+			} else {
+				pageHeaders.put(name, value);
+			}
+		}
+
+		@Override
+		public void setDateHeader(String name, long date) {
+			if (committed || !isCacheHeader(name)) {
+				super.setDateHeader(name, date);
+			} else {
+				pageHeaders.put(name, date);
+			}
+		}
+
+		@Override
+		public void addDateHeader(String name, long date) {
+			setDateHeader(name, date);
+		}
+
+		@Override
+		public String encodeURL(String url) {
+			String encoded = super.encodeURL(url);
+			if (encoded != null && !encoded.equals(url)) {
+				// session id is encoded in the url
+				cacheable = false;
+			}
+			return encoded;
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public String encodeUrl(String url) {
+			return encodeURL(url);
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			status = sc;
+			super.setStatus(sc);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			status = sc;
+			uncacheable();
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			status = sc;
+			uncacheable();
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			status = SC_MOVED_TEMPORARILY;
+			uncacheable();
+			super.sendRedirect(location);
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			// the buffered page is either answered with 304 or written with
+			// the length of the buffer
+			if (committed) {
+				super.setContentLength(len);
+			}
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (os == null) {
+				os = new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						write(new byte[] { (byte) b }, 0, 1);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						if (!committed && buffer.size() + len > maxSize) {
+							// too large to cache
+							cacheable = false;
+							commit();
+						}
+						if (committed) {
+							response.getOutputStream().write(b, off, len);
+						} else {
+							buffer.write(b, off, len);
+						}
+					}
+
+					@Override
+					public void flush() throws IOException {
+						if (committed) {
+							response.getOutputStream().flush();
+						}
+					}
+				};
+			}
+			return os;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(getOutputStream(),
+						getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (committed) {
+				super.flushBuffer();
+			}
+		}
+
+		@Override
+		public void resetBuffer() {
+			buffer.reset();
+			super.resetBuffer();
+		}
+
+		@Override
+		public void reset() {
+			buffer.reset();
+			pageHeaders.clear();
+			status = SC_OK;
+			super.reset();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * Caches the lookups of the gh-pages servlet.
+ *
+ * The path lookups of a repository are cached for the current tip of its pages
+ * branch and are discarded when the branch moves.  Rendered markdown is cached
+ * by blob id so it never needs to be invalidated, the least recently used
+ * documents are evicted first.
+ *
+ * @author James Moger
+ *
+ */
+public class PagesCache {
+
+	private final int maxPaths;
+
+	private final int maxDocuments;
+
+	// repository -> path lookups at the tip of the pages branch
+	private final Map<String, Tree> trees = new ConcurrentHashMap<String, Tree>();
+
+	// blob id -> rendered markdown, in least recently used order
+	private final Map<String, String> documents;
+
+	/**
+	 * @param maxPaths
+	 *            the maximum number of cached path lookups per repository
+	 * @param maxDocuments
+	 *            the maximum number of cached markdown documents
+	 */
+	public PagesCache(int maxPaths, final int maxDocuments) {
+		this.maxPaths = maxPaths;
+		this.maxDocuments = maxDocuments;
+		this.documents = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > PagesCache.this.maxDocuments;
+			}
+		};
+	}
+
+	/**
+	 * Returns the blob id of a file in the tree of the tip of the pages branch.
+	 *
+	 * @param repositoryName
+	 * @param r
+	 * @param tip
+	 *            the tip of the pages branch
+	 * @param path
+	 * @return the blob id or null if the path is not a file
+	 * @throws IOException
+	 */
+	public ObjectId getBlobId(String repositoryName, Repository r, RevCommit tip, String path)
+			throws IOException {
+		Tree tree = trees.get(repositoryName);
+		if (tree == null || !tree.tip.equals(tip)) {
+			// the pages branch moved
+			tree = new Tree(tip.copy());
+			trees.put(repositoryName, tree);
+		}
+		ObjectId id = tree.paths.get(path);
+		if (id == null) {
+			id = ObjectId.zeroId();
+			TreeWalk tw = TreeWalk.forPath(r, path, tip.getTree());
+			if (tw != null) {
+				try {
+					if ((tw.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_FILE) {
+						id = tw.getObjectId(0);
+					}
+				} finally {
+					tw.release();
+				}
+			}
+			if (tree.paths.size() >= maxPaths) {
+				tree.paths.clear();
+			}
+			tree.paths.put(path, id);
+		}
+		return ObjectId.zeroId().equals(id) ? null : id;
+	}
+
+	/**
+	 * Returns the cached html of a markdown document.
+	 *
+	 * @param blobId
+	 * @return the html or null if the document is not cached
+	 */
+	public synchronized String getDocument(ObjectId blobId) {
+		return documents.get(blobId.getName());
+	}
+
+	/**
+	 * Caches the html of a markdown document.
+	 *
+	 * @param blobId
+	 * @param html
+	 */
+	public synchronized void putDocument(ObjectId blobId, String html) {
+		documents.put(blobId.getName(), html);
+	}
+
+	/**
+	 * Path lookups at a tip of the pages branch.
+	 */
+	private static class Tree {
+
+		final ObjectId tip;
+
+		final Map<String, ObjectId> paths = new ConcurrentHashMap<String, ObjectId>();
+
+		Tree(ObjectId tip) {
+			this.tip = tip;
+		}
+	}
+}
@@ -15,24 +15,31 @@
  */
 package com.gitblit;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.text.ParseException;
 
-import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.gitblit.Constants.AccessRestrictionType;
 import com.gitblit.models.RefModel;
-import com.gitblit.utils.ArrayUtils;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.utils.HttpUtils;
 import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.MarkdownUtils;
 import com.gitblit.utils.StringUtils;
@@ -40,6 +47,11 @@ import com.gitblit.utils.StringUtils;
 /**
  * Serves the content of a gh-pages branch.
  * 
+ * The repository is resolved from the repository list and the resource is
+ * looked up in the tree of the tip of the pages branch, the lookups are cached
+ * until the branch moves.  Resources are streamed from the object store with
+ * the blob id as their entity tag and rendered markdown is cached by blob id.
+ * 
  * @author James Moger
  * 
  */
@@ -47,8 +59,14 @@ public class PagesServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final String[] INDEX_FILES = { "index.html", "index.htm", "index.mkd" };
+
+	private static final int CHARSET_PROBE_SIZE = 8192;
+
 	private transient Logger logger = LoggerFactory.getLogger(PagesServlet.class);
 
+	private transient PagesCache cache = new PagesCache(1000, 250);
+
 	public PagesServlet() {
 		super();
 	}
@@ -92,31 +110,27 @@ public class PagesServlet extends HttpServlet {
 		}
 
 		// determine repository and resource from url
-		String repository = "";
+		String repository = path;
 		String resource = "";
-		Repository r = null;
 		int offset = 0;
-		while (r == null) {
+		while (true) {
 			int slash = path.indexOf('/', offset);
+			String candidate = slash == -1 ? path : path.substring(0, slash);
+			if (GitBlit.self().hasRepository(candidate)) {
+				repository = candidate;
+				resource = slash == -1 ? "" : path.substring(slash + 1);
+				break;
+			}
 			if (slash == -1) {
+				// no repository found
 				repository = path;
-			} else {
-				repository = path.substring(0, slash);
-			}
-			r = GitBlit.self().getRepository(repository, false);
-			offset = slash + 1;
-			if (offset > 0) {
-				resource = path.substring(offset);
-			}
-			if (repository.equals(path)) {
-				// either only repository in url or no repository found
 				break;
 			}
+			offset = slash + 1;
 		}
 
-		ServletContext context = request.getSession().getServletContext();
-
 		try {
+			Repository r = GitBlit.self().getRepository(repository, false);
 			if (r == null) {
 				// repository not found!
 				String mkd = MessageFormat.format(
@@ -126,106 +140,163 @@ public class PagesServlet extends HttpServlet {
 				return;
 			}
 
-			// retrieve the content from the repository
-			RefModel pages = JGitUtils.getPagesBranch(r);
-			RevCommit commit = JGitUtils.getCommit(r, pages.getObjectId().getName());
-
-			if (commit == null) {
-				// branch not found!
-				String mkd = MessageFormat.format(
-						"# Error\nSorry, the repository {0} does not have a **gh-pages** branch!",
-						repository);
-				error(response, mkd);
-				r.close();
-				return;
-			}
-			response.setDateHeader("Last-Modified", JGitUtils.getCommitDate(commit).getTime());
-
-			String [] encodings = GitBlit.getEncodings();
+			try {
+				RevCommit commit = getPagesCommit(r);
+				if (commit == null) {
+					// branch not found!
+					String mkd = MessageFormat.format(
+							"# Error\nSorry, the repository {0} does not have a **gh-pages** branch!",
+							repository);
+					error(response, mkd);
+					return;
+				}
+				response.setDateHeader("Last-Modified", JGitUtils.getCommitDate(commit).getTime());
 
-			RevTree tree = commit.getTree();
-			byte[] content = null;
-			if (StringUtils.isEmpty(resource)) {
 				// find resource
-				String[] files = { "index.html", "index.htm", "index.mkd" };
-				for (String file : files) {
-					content = JGitUtils.getStringContent(r, tree, file, encodings)
-							.getBytes(Constants.ENCODING);
-					if (content != null) {
-						resource = file;
-						// assume text/html unless the servlet container
-						// overrides
-						response.setContentType("text/html; charset=" + Constants.ENCODING);
-						break;
+				ObjectId blobId = null;
+				if (StringUtils.isEmpty(resource) || resource.endsWith("/")) {
+					String folder = resource;
+					for (String file : INDEX_FILES) {
+						blobId = cache.getBlobId(repository, r, commit, folder + file);
+						if (blobId != null) {
+							resource = folder + file;
+							break;
+						}
 					}
+				} else {
+					blobId = cache.getBlobId(repository, r, commit, resource);
 				}
-			} else {
-				// specific resource
-				try {
-					String contentType = context.getMimeType(resource);
-					if (contentType == null) {
-						contentType = "text/plain";
-					}
-					if (contentType.startsWith("text")) {
-						content = JGitUtils.getStringContent(r, tree, resource, encodings).getBytes(
-								Constants.ENCODING);
+
+				if (blobId == null) {
+					// no content, try custom 404 page
+					logger.warn("Pages 404: " + resource);
+					response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+					ObjectId custom404 = cache.getBlobId(repository, r, commit, "404.html");
+					if (custom404 != null) {
+						send(response, r, custom404, "404.html", false);
 					} else {
-						content = JGitUtils.getByteContent(r, tree, resource);
+						String mkd = MessageFormat.format(
+								"# Error\nSorry, the requested resource **{0}** was not found.",
+								resource);
+						error(response, mkd);
 					}
-					response.setContentType(contentType);
-				} catch (Exception e) {
+					return;
 				}
-			}
 
-			// no content, try custom 404 page
-			if (ArrayUtils.isEmpty(content)) {
-				String custom404 = JGitUtils.getStringContent(r, tree, "404.html", encodings);
-				if (!StringUtils.isEmpty(custom404)) {
-					content = custom404.getBytes(Constants.ENCODING);
+				// a blob never changes, the client revalidates as the
+				// pages branch moves
+				String etag = "\"" + blobId.getName() + "\"";
+				RepositoryModel model = GitBlit.self().getRepositoryModel(repository);
+				boolean isPublic = model == null || !model.accessRestriction.atLeast(AccessRestrictionType.VIEW);
+				response.setHeader("ETag", etag);
+				response.setHeader("Cache-Control", (isPublic ? "public" : "private") + ", no-cache");
+				if (HttpUtils.isCurrent(request.getHeader("If-None-Match"), etag)) {
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return;
 				}
+				send(response, r, blobId, resource, "HEAD".equals(request.getMethod()));
+			} finally {
+				// close the repository
+				r.close();
+			}
+		} catch (Throwable t) {
+			logger.error("Failed to write page to client", t);
+		}
+	}
 
-				// still no content
-				if (ArrayUtils.isEmpty(content)) {
-					String str = MessageFormat.format(
-							"# Error\nSorry, the requested resource **{0}** was not found.",
-							resource);
-					content = MarkdownUtils.transformMarkdown(str).getBytes(Constants.ENCODING);
-				}
+	/**
+	 * Returns the tip of the pages branch of the repository.
+	 * 
+	 * @param r
+	 * @return the tip commit or null if the repository does not have a pages
+	 *         branch
+	 * @throws IOException
+	 */
+	private RevCommit getPagesCommit(Repository r) throws IOException {
+		Ref ref = r.getRef(org.eclipse.jgit.lib.Constants.R_HEADS + "gh-pages");
+		if (ref != null) {
+			return JGitUtils.getCommit(r, ref.getObjectId().getName());
+		}
+		// search all local and remote branches
+		RefModel pages = JGitUtils.getPagesBranch(r);
+		if (pages == null) {
+			return null;
+		}
+		return JGitUtils.getCommit(r, pages.getObjectId().getName());
+	}
 
-				try {
-					// output the content
-					logger.warn("Pages 404: " + resource);
-					response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+	/**
+	 * Sends a resource.  Markdown is rendered to html, other resources are
+	 * streamed from the object store.
+	 * 
+	 * @param response
+	 * @param r
+	 * @param blobId
+	 * @param resource
+	 * @param headOnly
+	 *            true if only the headers should be sent
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	private void send(HttpServletResponse response, Repository r, ObjectId blobId,
+			String resource, boolean headOnly) throws IOException, ParseException {
+		String contentType = getServletContext().getMimeType(resource);
+		if (contentType == null) {
+			contentType = "text/plain";
+		}
+
+		// check to see if we should transform markdown files
+		for (String ext : GitBlit.getStrings(Keys.web.markdownExtensions)) {
+			if (resource.endsWith(ext)) {
+				String html = cache.getDocument(blobId);
+				if (html == null) {
+					String mkd = JGitUtils.getStringContent(r, blobId.getName(), GitBlit.getEncodings());
+					html = MarkdownUtils.transformMarkdown(mkd);
+					cache.putDocument(blobId, html);
+				}
+				byte[] content = html.getBytes(Constants.ENCODING);
+				response.setContentType("text/html; charset=" + Constants.ENCODING);
+				response.setContentLength(content.length);
+				if (!headOnly) {
 					response.getOutputStream().write(content);
-					response.flushBuffer();
-				} catch (Throwable t) {
-					logger.error("Failed to write page to client", t);
 				}
+				response.flushBuffer();
 				return;
 			}
+		}
 
-			// check to see if we should transform markdown files
-			for (String ext : GitBlit.getStrings(Keys.web.markdownExtensions)) {
-				if (resource.endsWith(ext)) {
-					String mkd = new String(content, Constants.ENCODING);
-					content = MarkdownUtils.transformMarkdown(mkd).getBytes(Constants.ENCODING);
-					break;
+		ObjectLoader loader = r.open(blobId, org.eclipse.jgit.lib.Constants.OBJ_BLOB);
+		InputStream is = loader.openStream();
+		try {
+			if (contentType.startsWith("text") && contentType.indexOf("charset") == -1) {
+				// text is sent untranscoded in its own charset.  Probe the start
+				// of the blob and rewind to send it.
+				is = new BufferedInputStream(is, CHARSET_PROBE_SIZE);
+				is.mark(CHARSET_PROBE_SIZE);
+				byte[] probe = new byte[CHARSET_PROBE_SIZE];
+				int length = 0;
+				int n;
+				while (length < probe.length && (n = is.read(probe, length, probe.length - length)) > -1) {
+					length += n;
 				}
+				is.reset();
+				Charset charset = StringUtils.getCharset(probe, length, GitBlit.getEncodings());
+				contentType += "; charset=" + charset.name();
 			}
-
-			try {
-				// output the content
-				response.getOutputStream().write(content);
-				response.flushBuffer();
-			} catch (Throwable t) {
-				logger.error("Failed to write page to client", t);
+			response.setContentType(contentType);
+			response.setHeader("Content-Length", String.valueOf(loader.getSize()));
+			if (!headOnly) {
+				OutputStream os = response.getOutputStream();
+				byte[] buffer = new byte[CHARSET_PROBE_SIZE];
+				int n;
+				while ((n = is.read(buffer)) > -1) {
+					os.write(buffer, 0, n);
+				}
 			}
-
-			// close the repository
-			r.close();
-		} catch (Throwable t) {
-			logger.error("Failed to write page to client", t);
+		} finally {
+			is.close();
 		}
+		response.flushBuffer();
 	}
 
 	private void error(HttpServletResponse response, String mkd) throws ServletException,
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * The RawFilter is an AccessRestrictionFilter which ensures that raw blob
+ * requests for view-restricted repositories have proper authentication
+ * credentials and are authorized.
+ * 
+ * @author James Moger
+ * 
+ */
+public class RawFilter extends DownloadZipFilter {
+
+	/**
+	 * Extract the repository name from the url.  Raw blob links encode the
+	 * repository parameter.
+	 * 
+	 * @param url
+	 * @return repository name
+	 */
+	@Override
+	protected String extractRepositoryName(String url) {
+		String repository = super.extractRepositoryName(url);
+		try {
+			return URLDecoder.decode(repository, Constants.ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			return repository;
+		}
+	}
+
+	/**
+	 * Analyze the url and returns the action of the request.
+	 * 
+	 * @param url
+	 * @return action of the request
+	 */
+	@Override
+	protected String getUrlRequestAction(String url) {
+		return "RAW";
+	}
+}
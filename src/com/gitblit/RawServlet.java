@@ -0,0 +1,414 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.Constants.AccessRestrictionType;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.utils.HttpUtils;
+import com.gitblit.utils.JGitUtils;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Streams out the raw content of a blob.  The blob is either addressed by a
+ * path at a revision or directly by its object id.
+ *
+ * The blob is copied from the object stream so that large blobs are never
+ * loaded into memory.  The entity tag of the response is the blob id which
+ * allows clients and proxies to revalidate without transferring the content
+ * and single byte ranges are supported for resumable downloads.
+ *
+ * @author James Moger
+ *
+ */
+public class RawServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int CHARSET_PROBE_SIZE = 8192;
+
+	private transient Logger logger = LoggerFactory.getLogger(RawServlet.class);
+
+	public RawServlet() {
+		super();
+	}
+
+	/**
+	 * Returns an url to this servlet for the specified parameters.
+	 *
+	 * @param baseURL
+	 * @param repository
+	 * @param objectId
+	 *            a revision if a path is specified, otherwise a blob id
+	 * @param path
+	 * @return an url
+	 */
+	public static String asLink(String baseURL, String repository, String objectId, String path) {
+		if (baseURL.length() > 0 && baseURL.charAt(baseURL.length() - 1) == '/') {
+			baseURL = baseURL.substring(0, baseURL.length() - 1);
+		}
+		return baseURL + Constants.RAW_PATH + "?r=" + encode(repository)
+				+ (objectId == null ? "" : ("&h=" + encode(objectId)))
+				+ (StringUtils.isEmpty(path) ? "" : ("&f=" + encode(path)));
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, Constants.ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			return value;
+		}
+	}
+
+	/**
+	 * Parses the Range header of a request for a single byte range.
+	 *
+	 * @param range
+	 *            the Range header value
+	 * @param length
+	 *            the length of the content
+	 * @return null if the whole content should be sent, an empty array if the
+	 *         range is unsatisfiable, or the first and last byte positions of
+	 *         the requested range
+	 */
+	public static long[] getRange(String range, long length) {
+		if (StringUtils.isEmpty(range) || !range.startsWith("bytes=")) {
+			return null;
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		if (spec.indexOf(',') > -1) {
+			// multiple ranges are not supported, send the whole content
+			return null;
+		}
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		long first;
+		long last;
+		try {
+			String start = spec.substring(0, dash).trim();
+			String end = spec.substring(dash + 1).trim();
+			if (start.length() == 0) {
+				// suffix range, the last n bytes
+				long suffix = Long.parseLong(end);
+				if (suffix <= 0) {
+					return new long[0];
+				}
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(start);
+				last = length - 1;
+				if (end.length() > 0) {
+					long value = Long.parseLong(end);
+					if (value < first) {
+						// invalid range, ignore the header
+						return null;
+					}
+					last = Math.min(value, last);
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (first < 0 || first >= length) {
+			return new long[0];
+		}
+		return new long[] { first, last };
+	}
+
+	/**
+	 * Streams the raw blob.
+	 *
+	 * @param request
+	 * @param response
+	 * @throws java.io.IOException
+	 */
+	private void processRequest(HttpServletRequest request, HttpServletResponse response)
+			throws java.io.IOException {
+		String repository = request.getParameter("r");
+		String objectId = request.getParameter("h");
+		String path = request.getParameter("f");
+		if (StringUtils.isEmpty(repository)) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Repository not specified");
+			return;
+		}
+
+		Repository r = GitBlit.self().getRepository(repository);
+		if (r == null) {
+			if (GitBlit.self().isCollectingGarbage(repository)) {
+				response.setHeader("Retry-After", "60");
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, MessageFormat.format(
+						"Gitblit is busy collecting garbage in {0}", repository));
+			} else {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, MessageFormat.format(
+						"Failed to find repository {0}", repository));
+			}
+			return;
+		}
+		try {
+			ObjectId blobId;
+			boolean immutable;
+			if (StringUtils.isEmpty(path)) {
+				// object id referenced blob
+				blobId = StringUtils.isEmpty(objectId) ? null : r.resolve(objectId);
+				immutable = blobId != null && blobId.getName().equalsIgnoreCase(objectId);
+			} else {
+				RevCommit commit = JGitUtils.getCommit(r, objectId);
+				if (commit == null) {
+					response.sendError(HttpServletResponse.SC_NOT_FOUND, MessageFormat.format(
+							"Failed to find commit {0}", objectId));
+					return;
+				}
+				blobId = getBlobId(r, commit, path);
+				immutable = commit.getName().equalsIgnoreCase(objectId);
+			}
+			if (blobId == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, MessageFormat.format(
+						"Failed to find blob {0} {1}", objectId, path == null ? "" : path));
+				return;
+			}
+			ObjectLoader loader;
+			try {
+				loader = r.open(blobId, org.eclipse.jgit.lib.Constants.OBJ_BLOB);
+			} catch (IncorrectObjectTypeException e) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, MessageFormat.format(
+						"{0} is not a blob", objectId));
+				return;
+			}
+
+			// a blob never changes so the entity tag is the blob id
+			String etag = "\"" + blobId.getName() + "\"";
+			RepositoryModel model = GitBlit.self().getRepositoryModel(repository);
+			// shared caches may only store blobs which anyone may view
+			boolean isPublic = !GitBlit.getBoolean(Keys.web.authenticateViewPages, false)
+					&& (model == null || !model.accessRestriction.atLeast(AccessRestrictionType.VIEW));
+			response.setHeader("ETag", etag);
+			response.setHeader("Accept-Ranges", "bytes");
+			if (immutable) {
+				// addressed by commit or blob id, the content is immutable
+				response.setHeader("Cache-Control", (isPublic ? "public" : "private")
+						+ ", max-age=31536000, immutable");
+			} else {
+				// addressed by ref, revalidate as the ref moves
+				response.setHeader("Cache-Control", (isPublic ? "public" : "private") + ", no-cache");
+			}
+			if (HttpUtils.isCurrent(request.getHeader("If-None-Match"), etag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+
+			long length = loader.getSize();
+			long[] range = null;
+			String ifRange = request.getHeader("If-Range");
+			if (StringUtils.isEmpty(ifRange) || ifRange.trim().equals(etag)) {
+				range = getRange(request.getHeader("Range"), length);
+			}
+			if (range != null && range.length == 0) {
+				response.setHeader("Content-Range", "bytes */" + length);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			long first = 0;
+			long count = length;
+			if (range != null) {
+				first = range[0];
+				count = range[1] - range[0] + 1;
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", MessageFormat.format("bytes {0}-{1}/{2}",
+						String.valueOf(range[0]), String.valueOf(range[1]), String.valueOf(length)));
+			}
+			response.setHeader("Content-Length", String.valueOf(count));
+			InputStream is = loader.openStream();
+			try {
+				is = setContentType(response, is, path);
+				if ("HEAD".equals(request.getMethod())) {
+					return;
+				}
+				copy(is, blobId, first, count, response.getOutputStream());
+			} finally {
+				is.close();
+			}
+			response.flushBuffer();
+		} catch (IOException e) {
+			// usually the client aborted the transfer
+			logger.debug(MessageFormat.format("Failed to write raw blob {0} {1} {2}", repository,
+					objectId, path), e);
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to write raw blob {0} {1} {2}", repository,
+					objectId, path), t);
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Returns the id of the blob at the path of the commit.
+	 *
+	 * @param r
+	 * @param commit
+	 * @param path
+	 * @return the blob id or null if the path is not a file
+	 * @throws IOException
+	 */
+	private ObjectId getBlobId(Repository r, RevCommit commit, String path) throws IOException {
+		TreeWalk tw = TreeWalk.forPath(r, path, commit.getTree());
+		if (tw == null) {
+			return null;
+		}
+		try {
+			if ((tw.getRawMode(0) & FileMode.TYPE_MASK) != FileMode.TYPE_FILE) {
+				return null;
+			}
+			return tw.getObjectId(0);
+		} finally {
+			tw.release();
+		}
+	}
+
+	/**
+	 * Sets the content type from the extension of the path.  The charset of
+	 * text blobs is determined from the start of the blob because the content
+	 * is sent untranscoded, which keeps byte ranges consistent.
+	 *
+	 * @param response
+	 * @param is
+	 *            the blob stream
+	 * @param path
+	 * @return the blob stream, positioned at the start of the blob
+	 * @throws IOException
+	 */
+	private InputStream setContentType(HttpServletResponse response, InputStream is, String path)
+			throws IOException {
+		if (StringUtils.isEmpty(path)) {
+			response.setContentType("application/octet-stream");
+			return is;
+		}
+		String filename = path;
+		if (path.indexOf('/') > -1) {
+			filename = path.substring(path.lastIndexOf('/') + 1);
+		}
+		String extension = StringUtils.getFileExtension(path).toLowerCase();
+		if (extension.length() > 0) {
+			for (String ext : GitBlit.getStrings(Keys.web.imageExtensions)) {
+				if (ext.equalsIgnoreCase(extension)) {
+					response.setContentType("image/" + extension);
+					return is;
+				}
+			}
+			for (String ext : GitBlit.getStrings(Keys.web.binaryExtensions)) {
+				if (ext.equalsIgnoreCase(extension)) {
+					response.setContentType("application/octet-stream");
+					response.setHeader("Content-Disposition", "attachment; filename=\"" + filename + "\"");
+					return is;
+				}
+			}
+		}
+		// probe the start of the blob and rewind to send it
+		InputStream buffered = new BufferedInputStream(is, CHARSET_PROBE_SIZE);
+		buffered.mark(CHARSET_PROBE_SIZE);
+		byte[] probe = new byte[CHARSET_PROBE_SIZE];
+		int length = 0;
+		int n;
+		while (length < probe.length && (n = buffered.read(probe, length, probe.length - length)) > -1) {
+			length += n;
+		}
+		buffered.reset();
+		Charset charset = StringUtils.getCharset(probe, length, GitBlit.getEncodings());
+		response.setContentType("text/plain; charset=" + charset.name());
+		return buffered;
+	}
+
+	/**
+	 * Copies a range of the blob to the output stream.  The Content-Length of
+	 * the response has been set so a blob which ends early aborts the
+	 * response rather than sending a truncated body.
+	 *
+	 * @param is
+	 *            the blob stream
+	 * @param blobId
+	 * @param first
+	 * @param count
+	 * @param os
+	 * @throws IOException
+	 */
+	private void copy(InputStream is, ObjectId blobId, long first, long count, OutputStream os)
+			throws IOException {
+		long skipped = 0;
+		while (skipped < first) {
+			long n = is.skip(first - skipped);
+			if (n <= 0) {
+				if (is.read() < 0) {
+					throw truncated(blobId, first - skipped + count);
+				}
+				n = 1;
+			}
+			skipped += n;
+		}
+		byte[] buffer = new byte[32767];
+		long remaining = count;
+		while (remaining > 0) {
+			int len = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (len < 0) {
+				throw truncated(blobId, remaining);
+			}
+			os.write(buffer, 0, len);
+			remaining -= len;
+		}
+	}
+
+	private IOException truncated(ObjectId blobId, long missing) {
+		String msg = MessageFormat.format("Blob {0} ended {1} bytes short of the Content-Length",
+				blobId.getName(), missing);
+		logger.error(msg);
+		return new IOException(msg);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws javax.servlet.ServletException, java.io.IOException {
+		processRequest(request, response);
+	}
+
+	@Override
+	protected void doHead(HttpServletRequest request, HttpServletResponse response)
+			throws javax.servlet.ServletException, java.io.IOException {
+		processRequest(request, response);
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.utils.JsonUtils;
+import com.gitblit.utils.StringUtils;
+import com.google.gson.Gson;
+
+/**
+ * The repository registry persists the cached repository list, including the
+ * repository models and their calculated sizes, to a gzipped json file. This
+ * allows Gitblit to serve the repository list immediately after a restart
+ * instead of first walking the repositories folder and loading every model.
+ *
+ * The registry is stamped with the checksum of the repository list settings
+ * and is ignored if those settings have changed.
+ *
+ * @author James Moger
+ *
+ */
+public class RepositoryRegistry {
+
+	private final Logger logger = LoggerFactory.getLogger(RepositoryRegistry.class);
+
+	private final File file;
+
+	public RepositoryRegistry(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads the registry entries from disk.
+	 *
+	 * @param settingsChecksum
+	 *            the current checksum of the repository list settings
+	 * @return the registry entries or null if the registry does not exist, is
+	 *         unreadable, or was written with different settings
+	 */
+	public synchronized List<Entry> read(String settingsChecksum) {
+		if (!file.exists()) {
+			return null;
+		}
+		Reader reader = null;
+		try {
+			reader = new InputStreamReader(new GZIPInputStream(new BufferedInputStream(
+					new FileInputStream(file))), "UTF-8");
+			Registry registry = JsonUtils.gson().fromJson(reader, Registry.class);
+			if (registry == null || registry.entries == null) {
+				return null;
+			}
+			if (!StringUtils.isEmpty(settingsChecksum)
+					&& !settingsChecksum.equals(registry.settingsChecksum)) {
+				logger.info(MessageFormat.format(
+						"Ignoring repository registry {0}, the repository list settings have changed",
+						file.getAbsolutePath()));
+				return null;
+			}
+			return registry.entries;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to read repository registry {0}",
+					file.getAbsolutePath()), t);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the registry entries to disk. The registry is written to a
+	 * temporary file which then replaces the current registry.
+	 *
+	 * @param settingsChecksum
+	 *            the current checksum of the repository list settings
+	 * @param entries
+	 * @return true if the registry was written
+	 */
+	public synchronized boolean write(String settingsChecksum, List<Entry> entries) {
+		Registry registry = new Registry();
+		registry.settingsChecksum = settingsChecksum;
+		registry.entries = entries;
+
+		File folder = file.getAbsoluteFile().getParentFile();
+		if (folder != null && !folder.exists()) {
+			folder.mkdirs();
+		}
+		File temp = new File(file.getAbsolutePath() + ".tmp");
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new GZIPOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp))), "UTF-8");
+			Gson gson = JsonUtils.gson();
+			gson.toJson(registry, writer);
+			writer.close();
+			writer = null;
+
+			if (file.exists() && !file.delete()) {
+				logger.error(MessageFormat.format("Failed to replace repository registry {0}",
+						file.getAbsolutePath()));
+				return false;
+			}
+			if (!temp.renameTo(file)) {
+				logger.error(MessageFormat.format("Failed to rename {0} to {1}",
+						temp.getAbsolutePath(), file.getAbsolutePath()));
+				return false;
+			}
+			return true;
+		} catch (Throwable t) {
+			logger.error(MessageFormat.format("Failed to write repository registry {0}",
+					file.getAbsolutePath()), t);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (Exception e) {
+				}
+			}
+			temp.delete();
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the registered repositories which were not found by a scan of
+	 * the repositories folder.  The registered repositories must be collected
+	 * before the scan starts so that a repository which is created during the
+	 * scan is not reported as missing.
+	 *
+	 * @param registered
+	 *            the repositories which were registered before the scan
+	 * @param found
+	 *            the repositories which were found by the scan
+	 * @return the missing repositories
+	 */
+	public static List<String> getMissing(Collection<String> registered, Collection<String> found) {
+		List<String> missing = new ArrayList<String>();
+		for (String repository : registered) {
+			if (!found.contains(repository)) {
+				missing.add(repository);
+			}
+		}
+		return missing;
+	}
+
+	@Override
+	public String toString() {
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * A registered repository: the repository model and, optionally, the
+	 * calculated size of the repository at model.lastChange.
+	 */
+	public static class Entry {
+
+		public RepositoryModel model;
+
+		public Long size;
+
+		public Entry() {
+		}
+
+		public Entry(RepositoryModel model, Long size) {
+			this.model = model;
+			this.size = size;
+		}
+	}
+
+	private static class Registry {
+
+		String settingsChecksum;
+
+		List<Entry> entries = new ArrayList<Entry>();
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.gitblit.utils.FileUtils;
+
+/**
+ * Tracks the on-disk size of repositories as three components: the pack files,
+ * the loose objects, and everything else (refs, config, hooks, etc).
+ *
+ * Only the initial measurement of a repository walks the loose objects. After
+ * that, a push only requires listing the pack files of the repository and the
+ * loose object component is updated from the statistics gathered by the
+ * garbage collector.
+ *
+ * @author James Moger
+ *
+ */
+public class RepositorySizeTracker {
+
+	private final Map<String, RepositorySize> sizes = new ConcurrentHashMap<String, RepositorySize>();
+
+	/**
+	 * Returns true if the tracked size of the repository is current for the
+	 * specified last change date.
+	 *
+	 * @param repositoryName
+	 * @param lastChange
+	 * @return true if the tracked size is current
+	 */
+	public boolean hasCurrent(String repositoryName, Date lastChange) {
+		RepositorySize size = sizes.get(repositoryName);
+		return size != null && lastChange != null && size.lastChange != null
+				&& size.lastChange.compareTo(lastChange) == 0;
+	}
+
+	/**
+	 * Returns the last tracked size of the repository, which may be stale.
+	 *
+	 * @param repositoryName
+	 * @return the size in bytes or null if the repository is not tracked
+	 */
+	public Long getSize(String repositoryName) {
+		RepositorySize size = sizes.get(repositoryName);
+		return size == null ? null : size.total();
+	}
+
+	/**
+	 * Seeds the tracker with a previously calculated total size. The
+	 * repository is measured on its next refresh.
+	 *
+	 * @param repositoryName
+	 * @param lastChange
+	 * @param total
+	 */
+	public void seed(String repositoryName, Date lastChange, long total) {
+		sizes.put(repositoryName, new RepositorySize(-1, -1, total, lastChange));
+	}
+
+	/**
+	 * Measures all components of the repository size. This walks the loose
+	 * objects of the repository.
+	 *
+	 * @param repositoryName
+	 * @param gitDir
+	 * @param lastChange
+	 * @return the size in bytes
+	 */
+	public long measure(String repositoryName, File gitDir, Date lastChange) {
+		if (gitDir == null || !gitDir.exists()) {
+			sizes.remove(repositoryName);
+			return -1;
+		}
+		File objects = new File(gitDir, "objects");
+		long packs = packsSize(gitDir);
+		long total = FileUtils.folderSize(gitDir);
+		long loose = 0;
+		File[] folders = objects.listFiles();
+		if (folders != null) {
+			for (File folder : folders) {
+				if (isLooseObjectFolder(folder)) {
+					loose += FileUtils.folderSize(folder);
+				}
+			}
+		}
+		RepositorySize size = new RepositorySize(packs, loose, total - packs - loose, lastChange);
+		sizes.put(repositoryName, size);
+		return size.total();
+	}
+
+	/**
+	 * Refreshes the pack component of the repository size. This only lists the
+	 * pack files of the repository. If the repository has not been measured,
+	 * it is measured.
+	 *
+	 * @param repositoryName
+	 * @param gitDir
+	 * @param lastChange
+	 * @return the size in bytes
+	 */
+	public long refresh(String repositoryName, File gitDir, Date lastChange) {
+		RepositorySize size = sizes.get(repositoryName);
+		if (size == null || size.packs < 0) {
+			return measure(repositoryName, gitDir, lastChange);
+		}
+		if (gitDir == null || !gitDir.exists()) {
+			sizes.remove(repositoryName);
+			return -1;
+		}
+		size = new RepositorySize(packsSize(gitDir), size.loose, size.other, lastChange);
+		sizes.put(repositoryName, size);
+		return size.total();
+	}
+
+	/**
+	 * Updates the loose object component of the repository size, e.g. from
+	 * the statistics gathered by the garbage collector.
+	 *
+	 * @param repositoryName
+	 * @param looseObjectsSize
+	 */
+	public void updateLooseObjects(String repositoryName, long looseObjectsSize) {
+		RepositorySize size = sizes.get(repositoryName);
+		if (size == null || size.packs < 0) {
+			return;
+		}
+		sizes.put(repositoryName, new RepositorySize(size.packs, looseObjectsSize, size.other, size.lastChange));
+	}
+
+	/**
+	 * Stops tracking the size of the repository.
+	 *
+	 * @param repositoryName
+	 */
+	public void remove(String repositoryName) {
+		sizes.remove(repositoryName);
+	}
+
+	private long packsSize(File gitDir) {
+		long packs = 0;
+		File[] files = new File(gitDir, "objects/pack").listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile()) {
+					packs += file.length();
+				}
+			}
+		}
+		return packs;
+	}
+
+	private boolean isLooseObjectFolder(File folder) {
+		String name = folder.getName();
+		return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+				&& Character.digit(name.charAt(1), 16) >= 0 && folder.isDirectory();
+	}
+
+	/**
+	 * Immutable size snapshot. Negative pack and loose components indicate a
+	 * seeded total which has not been measured.
+	 */
+	private static class RepositorySize {
+
+		final long packs;
+
+		final long loose;
+
+		final long other;
+
+		final Date lastChange;
+
+		RepositorySize(long packs, long loose, long other, Date lastChange) {
+			this.packs = packs;
+			this.loose = loose;
+			this.other = other;
+			this.lastChange = lastChange;
+		}
+
+		long total() {
+			return Math.max(0, packs) + Math.max(0, loose) + other;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The response cache stores rendered responses in memory.
+ *
+ * Responses are addressed by a key which is derived from the resolved object
+ * id of the response and the access class of the viewer.  The total size of
+ * the cached responses is bounded and the least recently used responses are
+ * evicted first.
+ *
+ * The cache has a generation which is part of every key.  Invalidating the
+ * cache, e.g. after a permission change, clears the cache and advances the
+ * generation so that entity tags which were derived from the keys of the
+ * previous generation no longer match.
+ *
+ * @author James Moger
+ *
+ */
+public class ResponseCache {
+
+	/**
+	 * A cached response.
+	 */
+	public static class CachedResponse {
+
+		public final String contentType;
+
+		public final byte[] content;
+
+		public CachedResponse(String contentType, byte[] content) {
+			this.contentType = contentType;
+			this.content = content;
+		}
+	}
+
+	private final long maxSize;
+
+	private final AtomicLong generation = new AtomicLong(System.currentTimeMillis());
+
+	// key -> response, in least recently used order
+	private final Map<String, CachedResponse> responses = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+	private long size;
+
+	public ResponseCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the key of a response.  The key is suitable as an entity tag.
+	 *
+	 * @param accessClass
+	 *            the access class of the viewer
+	 * @param values
+	 *            the values which address the response, e.g. the url path
+	 *            and the resolved object id
+	 * @return the response key
+	 */
+	public String getKey(String accessClass, String... values) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(Constants.VERSION).append('\n');
+		sb.append(generation.get()).append('\n');
+		sb.append(accessClass);
+		for (String value : values) {
+			sb.append('\n').append(value == null ? "" : value);
+		}
+		return StringUtils.getSHA1(sb.toString());
+	}
+
+	/**
+	 * Returns the largest response which may be cached.
+	 *
+	 * @return the maximum response size in bytes
+	 */
+	public long getMaxResponseSize() {
+		return maxSize / 16;
+	}
+
+	/**
+	 * Returns the cached response and marks it as recently used.
+	 *
+	 * @param key
+	 * @return the cached response or null if it is not cached
+	 */
+	public synchronized CachedResponse get(String key) {
+		return responses.get(key);
+	}
+
+	/**
+	 * Caches a response and evicts the least recently used responses until
+	 * the cache fits in its maximum size.
+	 *
+	 * @param key
+	 * @param response
+	 */
+	public synchronized void put(String key, CachedResponse response) {
+		if (response.content.length > getMaxResponseSize()) {
+			return;
+		}
+		CachedResponse previous = responses.put(key, response);
+		if (previous != null) {
+			size -= previous.content.length;
+		}
+		size += response.content.length;
+		Iterator<CachedResponse> itr = responses.values().iterator();
+		while (size > maxSize && itr.hasNext()) {
+			size -= itr.next().content.length;
+			itr.remove();
+		}
+	}
+
+	/**
+	 * Removes all cached responses and invalidates all previous keys.
+	 */
+	public synchronized void invalidate() {
+		generation.incrementAndGet();
+		responses.clear();
+		size = 0;
+	}
+
+	/**
+	 * Returns the total size of the cached responses.
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of cached responses.
+	 *
+	 * @return the number of responses
+	 */
+	public synchronized int getCount() {
+		return responses.size();
+	}
+}
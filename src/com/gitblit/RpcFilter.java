@@ -64,7 +64,7 @@ public class RpcFilter extends AuthenticationFilter {
 			return;
 		}
 
-		boolean adminRequest = requestType.exceeds(RpcRequest.LIST_SETTINGS);
+		boolean adminRequest = requestType.requiresAdmin();
 
 		// conditionally reject all rpc requests
 		if (!GitBlit.getBoolean(Keys.web.enableRpcServlet, true)) {
@@ -139,6 +139,9 @@ public class RpcFilter extends AuthenticationFilter {
 			return true;
 		case LIST_REPOSITORIES:
 			return true;
+		case SEARCH:
+			// results are limited to the repositories the user may view
+			return true;
 		default:
 			return user.canAdmin();
 		}
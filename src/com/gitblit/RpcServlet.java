@@ -20,8 +20,10 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -36,9 +38,11 @@ import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.ServerSettings;
 import com.gitblit.models.TeamModel;
 import com.gitblit.models.UserModel;
+import com.gitblit.utils.ArrayUtils;
 import com.gitblit.utils.HttpUtils;
 import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.RpcUtils;
+import com.gitblit.utils.StringUtils;
 
 /**
  * Handles remote procedure calls.
@@ -50,7 +54,7 @@ public class RpcServlet extends JsonServlet {
 
 	private static final long serialVersionUID = 1L;
 
-	public static final int PROTOCOL_VERSION = 5;
+	public static final int PROTOCOL_VERSION = 6;
 
 	public RpcServlet() {
 		super();
@@ -132,6 +136,46 @@ public class RpcServlet extends JsonServlet {
 				repository.close();
 			}
 			result = localBranches;
+		} else if (RpcRequest.SEARCH.equals(reqType)) {
+			// search the indexed repositories accessible to user
+			List<String> repositories = new ArrayList<String>();
+			Set<String> selected = new HashSet<String>();
+			if (!StringUtils.isEmpty(request.getParameter("r"))) {
+				for (String name : StringUtils.getStringsFromValue(request.getParameter("r"), " ")) {
+					// repository names are case-insensitive
+					selected.add(name.toLowerCase());
+				}
+			}
+			for (RepositoryModel model : GitBlit.self().getRepositoryModels(user)) {
+				if (!model.hasCommits || ArrayUtils.isEmpty(model.indexedBranches)) {
+					// skip empty or unindexed repository
+					continue;
+				}
+				if (selected.isEmpty() || selected.contains(model.name.toLowerCase())) {
+					repositories.add(model.name);
+				}
+			}
+			if (Boolean.parseBoolean(request.getParameter("count"))) {
+				// count-only mode
+				result = GitBlit.self().countSearchHits(objectName, repositories);
+			} else {
+				int page = 1;
+				int pageSize = GitBlit.getInteger(Keys.web.itemsPerPage, 50);
+				if (!StringUtils.isEmpty(request.getParameter("pg"))) {
+					try {
+						page = Integer.parseInt(request.getParameter("pg"));
+					} catch (NumberFormatException x) {
+					}
+				}
+				if (!StringUtils.isEmpty(request.getParameter("l"))) {
+					try {
+						pageSize = Integer.parseInt(request.getParameter("l"));
+					} catch (NumberFormatException x) {
+					}
+				}
+				result = GitBlit.self().search(objectName, page, pageSize, request.getParameter("after"),
+						repositories);
+			}
 		} else if (RpcRequest.LIST_USERS.equals(reqType)) {
 			// list users
 			List<String> names = GitBlit.self().getAllUsernames();
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The script registry compiles the Groovy hook scripts and caches the compiled
+ * script classes.  A script is recompiled when the modification time or the
+ * length of its file changes, so edited scripts are picked up by the next push
+ * without compiling every script on every push.  A script which fails to
+ * compile is not compiled again until its file changes.  Scripts and classes
+ * from the scripts folder which are used by a script are compiled with it, so
+ * the script is also recompiled when one of these files changes.
+ *
+ * The registry records the number of runs and the run time of every script.
+ * Runs which exceed the slow script threshold are logged as warnings and the
+ * statistics of all scripts are logged on shutdown.
+ *
+ * @author James Moger
+ *
+ */
+public class ScriptRegistry {
+
+	/**
+	 * The run statistics of a script.
+	 */
+	public static class ScriptStatistics {
+
+		public final String name;
+
+		public long runs;
+
+		public long failures;
+
+		public long totalTime;
+
+		public long maximumTime;
+
+		public long lastTime;
+
+		ScriptStatistics(String name) {
+			this.name = name;
+		}
+
+		public long getAverageTime() {
+			return runs == 0 ? 0 : totalTime / runs;
+		}
+
+		ScriptStatistics copy() {
+			ScriptStatistics copy = new ScriptStatistics(name);
+			copy.runs = runs;
+			copy.failures = failures;
+			copy.totalTime = totalTime;
+			copy.maximumTime = maximumTime;
+			copy.lastTime = lastTime;
+			return copy;
+		}
+	}
+
+	/**
+	 * A compiled script, or the failure to compile it, for a specific version
+	 * of the script file.
+	 */
+	private static class CompiledScript {
+
+		final File file;
+
+		final long lastModified;
+
+		final long length;
+
+		final Class<?> type;
+
+		final Exception error;
+
+		final Map<File, Long> dependencies;
+
+		CompiledScript(File file, long lastModified, long length, Class<?> type, Exception error,
+				Map<File, Long> dependencies) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.type = type;
+			this.error = error;
+			this.dependencies = dependencies;
+		}
+
+		boolean isCurrent(File file) {
+			if (!this.file.equals(file) || file.lastModified() != lastModified
+					|| file.length() != length) {
+				return false;
+			}
+			for (Map.Entry<File, Long> dependency : dependencies.entrySet()) {
+				if (dependency.getKey().lastModified() != dependency.getValue()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(ScriptRegistry.class);
+
+	private final File folder;
+
+	private final long slowThreshold;
+
+	private final Map<String, CompiledScript> scripts = new ConcurrentHashMap<String, CompiledScript>();
+
+	private final Map<String, ScriptStatistics> statistics = new TreeMap<String, ScriptStatistics>();
+
+	/**
+	 * @param folder
+	 *            the folder of the scripts
+	 * @param slowThreshold
+	 *            runs longer than this number of milliseconds are logged, 0
+	 *            disables the logging
+	 */
+	public ScriptRegistry(File folder, long slowThreshold) {
+		this.folder = folder;
+		this.slowThreshold = slowThreshold;
+	}
+
+	/**
+	 * Returns the file of a script.  Scripts may be specified without the
+	 * .groovy extension.
+	 *
+	 * @param script
+	 * @return the script file
+	 */
+	public File getFile(String script) {
+		File file = new File(folder, script);
+		if (!file.exists() && !script.toLowerCase().endsWith(".groovy")) {
+			File groovy = new File(folder, script + ".groovy");
+			if (groovy.exists()) {
+				return groovy;
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Runs a script with the specified binding.
+	 *
+	 * @param script
+	 *            the name of the script
+	 * @param binding
+	 * @return the result of the script
+	 * @throws Exception
+	 *             if the script fails to compile or to run
+	 */
+	public Object run(String script, Binding binding) throws Exception {
+		File file = getFile(script);
+		Script instance = InvokerHelper.createScript(getType(file), binding);
+		long start = System.currentTimeMillis();
+		boolean success = false;
+		try {
+			Object result = instance.run();
+			success = true;
+			return result;
+		} finally {
+			long time = System.currentTimeMillis() - start;
+			String name = getName(file);
+			record(name, time, success);
+			if (slowThreshold > 0 && time >= slowThreshold) {
+				logger.warn(MessageFormat.format("Groovy script {0} ran for {1} ms", name, time));
+			}
+		}
+	}
+
+	/**
+	 * Returns the compiled class of a script file, compiling it if the file
+	 * has changed since it was compiled.
+	 *
+	 * @param file
+	 * @return the script class
+	 * @throws Exception
+	 *             if the script does not exist or fails to compile
+	 */
+	Class<?> getType(File file) throws Exception {
+		String key = file.getAbsolutePath();
+		CompiledScript compiled = scripts.get(key);
+		if (compiled == null || !compiled.isCurrent(file)) {
+			synchronized (this) {
+				compiled = scripts.get(key);
+				if (compiled == null || !compiled.isCurrent(file)) {
+					compiled = compile(file);
+					scripts.put(key, compiled);
+				}
+			}
+		}
+		if (compiled.error != null) {
+			throw compiled.error;
+		}
+		return compiled.type;
+	}
+
+	private CompiledScript compile(File file) {
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if (!file.exists()) {
+			return new CompiledScript(file, lastModified, length, null, new FileNotFoundException(
+					file.getAbsolutePath()), Collections.<File, Long> emptyMap());
+		}
+		long start = System.currentTimeMillis();
+		// each version of a script is compiled by its own class loader so that
+		// replaced versions can be unloaded
+		GroovyClassLoader loader = new GroovyClassLoader(ScriptRegistry.class.getClassLoader());
+		loader.addClasspath(folder.getAbsolutePath());
+		try {
+			Class<?> type = loader.parseClass(file);
+			logger.info(MessageFormat.format("Compiled Groovy script {0} in {1} ms", getName(file),
+					System.currentTimeMillis() - start));
+			return new CompiledScript(file, lastModified, length, type, null, getDependencies(loader, file));
+		} catch (Exception e) {
+			// a script may fail to compile because of a broken dependency
+			return new CompiledScript(file, lastModified, length, null, e, getGroovyFiles(file));
+		}
+	}
+
+	/**
+	 * Returns the modification times of the source files of the classes which
+	 * were loaded from the scripts folder while compiling a script.
+	 */
+	private Map<File, Long> getDependencies(GroovyClassLoader loader, File script) {
+		Map<File, Long> dependencies = new HashMap<File, Long>();
+		for (Class<?> type : loader.getLoadedClasses()) {
+			String path = type.getName().replace('.', File.separatorChar);
+			for (String extension : new String[] { ".groovy", ".java" }) {
+				File source = new File(folder, path + extension);
+				if (source.exists() && !source.equals(script)) {
+					dependencies.put(source, source.lastModified());
+				}
+			}
+		}
+		return dependencies;
+	}
+
+	/**
+	 * Returns the modification times of the other scripts in the folder of a
+	 * script.
+	 */
+	private Map<File, Long> getGroovyFiles(File script) {
+		Map<File, Long> files = new HashMap<File, Long>();
+		File[] list = script.getParentFile() == null ? null : script.getParentFile().listFiles();
+		if (list != null) {
+			for (File file : list) {
+				if (file.isFile() && file.getName().endsWith(".groovy") && !file.equals(script)) {
+					files.put(file, file.lastModified());
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Returns the name of a script relative to the scripts folder.
+	 */
+	private String getName(File file) {
+		String base = folder.getAbsolutePath() + File.separator;
+		String path = file.getAbsolutePath();
+		if (path.startsWith(base)) {
+			return path.substring(base.length()).replace(File.separatorChar, '/');
+		}
+		return file.getName();
+	}
+
+	private void record(String script, long time, boolean success) {
+		synchronized (statistics) {
+			ScriptStatistics stats = statistics.get(script);
+			if (stats == null) {
+				stats = new ScriptStatistics(script);
+				statistics.put(script, stats);
+			}
+			stats.runs++;
+			if (!success) {
+				stats.failures++;
+			}
+			stats.totalTime += time;
+			stats.lastTime = time;
+			stats.maximumTime = Math.max(stats.maximumTime, time);
+		}
+	}
+
+	/**
+	 * Returns the run statistics of the scripts which have run.
+	 *
+	 * @return the statistics of the scripts by script name
+	 */
+	public Map<String, ScriptStatistics> getStatistics() {
+		Map<String, ScriptStatistics> copy = new TreeMap<String, ScriptStatistics>();
+		synchronized (statistics) {
+			for (ScriptStatistics stats : statistics.values()) {
+				copy.put(stats.name, stats.copy());
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Logs the run statistics of the scripts which have run.
+	 */
+	public void logStatistics() {
+		for (ScriptStatistics stats : getStatistics().values()) {
+			logger.info(MessageFormat.format(
+					"Groovy script {0}: {1} runs, {2} failures, {3} ms average, {4} ms maximum",
+					stats.name, stats.runs, stats.failures, stats.getAverageTime(), stats.maximumTime));
+		}
+	}
+}
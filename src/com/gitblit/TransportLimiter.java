@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * The transport limiter is the admission control of the git transports.  It
+ * limits the number of upload-pack and receive-pack operations which run at
+ * once, both server-wide and per repository.
+ *
+ * Operations which can not run immediately wait in a single queue.  When an
+ * operation finishes, the queue is scanned in arrival order and every waiting
+ * operation whose limits allow it is admitted, so operations of a repository
+ * are admitted in arrival order while operations of other repositories are not
+ * held up by a busy repository.  An operation is rejected if the queue is full
+ * or if it waits longer than the queue timeout.
+ *
+ * @author James Moger
+ *
+ */
+public class TransportLimiter {
+
+	public static enum Transport {
+		UPLOAD_PACK, RECEIVE_PACK;
+	}
+
+	/**
+	 * An admitted operation.  Every ticket must be released when the
+	 * operation is finished.
+	 */
+	public class Ticket {
+
+		final Transport transport;
+
+		final String repository;
+
+		final long arrival;
+
+		long admitted;
+
+		Ticket(Transport transport, String repository) {
+			this.transport = transport;
+			this.repository = repository;
+			this.arrival = System.currentTimeMillis();
+		}
+
+		/**
+		 * Releases the operation and admits waiting operations.
+		 */
+		public void release() {
+			TransportLimiter.this.release(this);
+		}
+	}
+
+	// weight of the latest sample in the moving averages
+	private static final double ALPHA = 0.1d;
+
+	private final int[] maxOperations;
+
+	private final int[] maxRepositoryOperations;
+
+	private final int maxQueued;
+
+	private final long timeout;
+
+	private final int[] active = new int[Transport.values().length];
+
+	// repository -> active operations by transport
+	private final Map<String, int[]> repositories = new HashMap<String, int[]>();
+
+	private final LinkedList<Ticket> queue = new LinkedList<Ticket>();
+
+	private long rejected;
+
+	private double averageWait;
+
+	private long maximumWait;
+
+	private double averageDuration;
+
+	/**
+	 * @param maxUploadPacks
+	 *            the server-wide upload-pack limit, 0 is unlimited
+	 * @param maxRepositoryUploadPacks
+	 *            the upload-pack limit of a repository, 0 is unlimited
+	 * @param maxReceivePacks
+	 *            the server-wide receive-pack limit, 0 is unlimited
+	 * @param maxRepositoryReceivePacks
+	 *            the receive-pack limit of a repository, 0 is unlimited
+	 * @param maxQueued
+	 *            the maximum number of waiting operations
+	 * @param timeout
+	 *            the maximum wait in milliseconds
+	 */
+	public TransportLimiter(int maxUploadPacks, int maxRepositoryUploadPacks, int maxReceivePacks,
+			int maxRepositoryReceivePacks, int maxQueued, long timeout) {
+		this.maxOperations = new int[] { maxUploadPacks, maxReceivePacks };
+		this.maxRepositoryOperations = new int[] { maxRepositoryUploadPacks, maxRepositoryReceivePacks };
+		this.maxQueued = maxQueued;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Admits an operation, waiting in the queue if its limits are reached.
+	 *
+	 * @param transport
+	 * @param repositoryName
+	 * @return the ticket of the operation or null if the operation is rejected
+	 * @throws InterruptedException
+	 */
+	public synchronized Ticket acquire(Transport transport, String repositoryName)
+			throws InterruptedException {
+		Ticket ticket = new Ticket(transport, repositoryName.toLowerCase());
+		if (canAdmit(ticket)) {
+			admit(ticket);
+			return ticket;
+		}
+		if (queue.size() >= maxQueued) {
+			rejected++;
+			return null;
+		}
+		queue.add(ticket);
+		long deadline = ticket.arrival + timeout;
+		try {
+			while (ticket.admitted == 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					queue.remove(ticket);
+					rejected++;
+					return null;
+				}
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			if (ticket.admitted == 0) {
+				queue.remove(ticket);
+			} else {
+				release(ticket);
+			}
+			throw e;
+		}
+		return ticket;
+	}
+
+	private boolean canAdmit(Ticket ticket) {
+		int t = ticket.transport.ordinal();
+		if (maxOperations[t] > 0 && active[t] >= maxOperations[t]) {
+			return false;
+		}
+		int[] counts = repositories.get(ticket.repository);
+		return maxRepositoryOperations[t] <= 0 || counts == null
+				|| counts[t] < maxRepositoryOperations[t];
+	}
+
+	private void admit(Ticket ticket) {
+		int t = ticket.transport.ordinal();
+		int[] counts = repositories.get(ticket.repository);
+		if (counts == null) {
+			counts = new int[active.length];
+			repositories.put(ticket.repository, counts);
+		}
+		counts[t]++;
+		active[t]++;
+		ticket.admitted = System.currentTimeMillis();
+		long wait = ticket.admitted - ticket.arrival;
+		averageWait += ALPHA * (wait - averageWait);
+		maximumWait = Math.max(maximumWait, wait);
+	}
+
+	private synchronized void release(Ticket ticket) {
+		int t = ticket.transport.ordinal();
+		active[t]--;
+		int[] counts = repositories.get(ticket.repository);
+		counts[t]--;
+		boolean idle = true;
+		for (int count : counts) {
+			idle &= count == 0;
+		}
+		if (idle) {
+			repositories.remove(ticket.repository);
+		}
+		averageDuration += ALPHA * ((System.currentTimeMillis() - ticket.admitted) - averageDuration);
+
+		// admit the waiting operations in arrival order
+		boolean admitted = false;
+		Iterator<Ticket> itr = queue.iterator();
+		while (itr.hasNext()) {
+			Ticket waiting = itr.next();
+			if (canAdmit(waiting)) {
+				itr.remove();
+				admit(waiting);
+				admitted = true;
+			}
+		}
+		if (admitted) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the suggested number of seconds a rejected client should wait
+	 * before it retries, based on the average duration of an operation.
+	 *
+	 * @return the retry delay in seconds
+	 */
+	public synchronized int getRetryAfter() {
+		return (int) Math.max(1, Math.round(averageDuration / 1000d));
+	}
+
+	/**
+	 * Returns the number of running operations.
+	 *
+	 * @return the number of operations
+	 */
+	public synchronized int getActive() {
+		int count = 0;
+		for (int n : active) {
+			count += n;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of waiting operations.
+	 *
+	 * @return the queue depth
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of rejected operations.
+	 *
+	 * @return the number of rejected operations
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Returns the moving average of the wait before an operation runs.
+	 *
+	 * @return the average wait in milliseconds
+	 */
+	public synchronized long getAverageWait() {
+		return Math.round(averageWait);
+	}
+
+	/**
+	 * Returns the longest wait before an operation ran.
+	 *
+	 * @return the maximum wait in milliseconds
+	 */
+	public synchronized long getMaximumWait() {
+		return maximumWait;
+	}
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The upload-pack cache stores the responses of upload-pack requests on disk.
+ *
+ * A response is addressed by the repository, the state of all refs of the
+ * repository, and the normalized request.  The objects of a repository never
+ * change, so identical requests against identical refs produce identical
+ * responses.  The total size of the cached responses is bounded and the least
+ * recently used responses are evicted first.
+ *
+ * Concurrent identical requests share a single response.  The first request
+ * writes the response while the other requests follow the file as it grows,
+ * so every waiter is streamed the response while it is being generated.
+ *
+ * @author James Moger
+ *
+ */
+public class UploadPackCache {
+
+	/**
+	 * A caller's handle of a cached or pending response.  Every entry which
+	 * is returned by {@link UploadPackCache#open(String)} must be released.
+	 */
+	public class Entry {
+
+		final Response response;
+
+		final boolean leader;
+
+		Entry(Response response, boolean leader) {
+			this.response = response;
+			this.leader = leader;
+		}
+
+		/**
+		 * Returns true if the caller must generate the response and write it
+		 * to this entry.
+		 *
+		 * @return true for the first request of the response
+		 */
+		public boolean isLeader() {
+			return leader;
+		}
+
+		/**
+		 * Starts the response and returns the stream of its content.  Only the
+		 * leader may write the response.
+		 *
+		 * @param contentType
+		 * @param contentEncoding
+		 * @return the stream of the response content
+		 * @throws IOException
+		 */
+		public OutputStream start(String contentType, String contentEncoding) throws IOException {
+			return response.start(contentType, contentEncoding);
+		}
+
+		/**
+		 * Marks the response as complete.
+		 *
+		 * @param keep
+		 *            true if the response may be served to later requests,
+		 *            false if it is only served to the current followers
+		 */
+		public void complete(boolean keep) {
+			response.complete();
+			if (keep) {
+				completed(response);
+			} else {
+				remove(response);
+			}
+		}
+
+		/**
+		 * Marks the response as failed.  Followers which are waiting for the
+		 * response to start may generate the response themselves.
+		 */
+		public void fail() {
+			response.fail();
+			remove(response);
+		}
+
+		/**
+		 * Waits until the response has started.
+		 *
+		 * @return false if the response failed before it started
+		 * @throws IOException
+		 */
+		public boolean awaitStart() throws IOException {
+			return response.awaitStart();
+		}
+
+		public String getContentType() {
+			return response.contentType;
+		}
+
+		public String getContentEncoding() {
+			return response.contentEncoding;
+		}
+
+		/**
+		 * Copies the response to a stream, waiting for the content which is
+		 * still being generated.
+		 *
+		 * @param os
+		 * @throws IOException
+		 *             if the response failed after it started
+		 */
+		public void copyTo(OutputStream os) throws IOException {
+			response.copyTo(os);
+		}
+
+		/**
+		 * Releases this entry.
+		 */
+		public void release() {
+			UploadPackCache.this.release(response);
+		}
+	}
+
+	/**
+	 * A cached or pending response which is shared by all of its readers.
+	 */
+	static class Response {
+
+		final String key;
+
+		final File file;
+
+		volatile String contentType;
+
+		volatile String contentEncoding;
+
+		volatile long length;
+
+		volatile boolean complete;
+
+		private boolean started;
+
+		private boolean failed;
+
+		// guarded by the cache
+		int readers;
+
+		// guarded by the cache
+		boolean removed;
+
+		// guarded by the cache, true if the length is part of the cache size
+		boolean cached;
+
+		Response(String key, File file) {
+			this.key = key;
+			this.file = file;
+		}
+
+		OutputStream start(String contentType, String contentEncoding) throws IOException {
+			final OutputStream os = new FileOutputStream(file);
+			synchronized (this) {
+				this.contentType = contentType;
+				this.contentEncoding = contentEncoding;
+				this.started = true;
+				notifyAll();
+			}
+			return new OutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+					os.write(b);
+					written(1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					os.write(b, off, len);
+					written(len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					os.close();
+				}
+			};
+		}
+
+		private synchronized void written(long count) {
+			length += count;
+			notifyAll();
+		}
+
+		synchronized void complete() {
+			complete = true;
+			notifyAll();
+		}
+
+		synchronized void fail() {
+			failed = true;
+			notifyAll();
+		}
+
+		synchronized boolean awaitStart() throws IOException {
+			while (!started && !failed) {
+				await();
+			}
+			return started;
+		}
+
+		void copyTo(OutputStream os) throws IOException {
+			if (!awaitStart()) {
+				throw new IOException("Response failed");
+			}
+			InputStream is = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[64*1024];
+				long position = 0;
+				while (true) {
+					long available = awaitContent(position);
+					if (available == 0) {
+						break;
+					}
+					int n = is.read(buffer, 0, (int) Math.min(buffer.length, available));
+					if (n == -1) {
+						throw new IOException("Unexpected end of " + file);
+					}
+					os.write(buffer, 0, n);
+					position += n;
+					if (available == n) {
+						// caught up with the leader
+						os.flush();
+					}
+				}
+			} finally {
+				is.close();
+			}
+		}
+
+		/**
+		 * Waits for content after the specified position.
+		 *
+		 * @param position
+		 * @return the number of bytes available after the position, 0 at the
+		 *         end of a complete response
+		 * @throws IOException
+		 */
+		private synchronized long awaitContent(long position) throws IOException {
+			while (length == position && !complete && !failed) {
+				await();
+			}
+			if (failed) {
+				throw new IOException("Response failed");
+			}
+			return length - position;
+		}
+
+		private void await() throws IOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the response");
+			}
+		}
+	}
+
+	private final File folder;
+
+	private final long maxSize;
+
+	private final AtomicLong counter = new AtomicLong();
+
+	// key -> response, in least recently used order
+	private final Map<String, Response> responses = new LinkedHashMap<String, Response>(16, 0.75f, true);
+
+	private long size;
+
+	public UploadPackCache(File folder, long maxSize) {
+		this.folder = folder;
+		this.maxSize = maxSize;
+		// responses are not kept across restarts
+		folder.mkdirs();
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && file.getName().matches("[0-9a-f]{40}-\\d+")) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the state of all refs of a repository.
+	 *
+	 * @param r
+	 * @return the state of the refs
+	 */
+	public static String getState(Repository r) {
+		Map<String, Ref> refs = new TreeMap<String, Ref>(r.getAllRefs());
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Ref> entry : refs.entrySet()) {
+			ObjectId id = entry.getValue().getObjectId();
+			sb.append(entry.getKey()).append(' ');
+			sb.append(id == null ? "" : id.getName()).append('\n');
+		}
+		return StringUtils.getSHA1(sb.toString());
+	}
+
+	/**
+	 * Returns the key of a response.
+	 *
+	 * @param repositoryName
+	 * @param state
+	 *            the state of the refs of the repository
+	 * @param request
+	 *            the normalized request
+	 * @param gzip
+	 *            true if the client accepts a compressed response
+	 * @return the response key
+	 */
+	public static String getKey(String repositoryName, String state, String request, boolean gzip) {
+		return StringUtils.getSHA1(repositoryName.toLowerCase() + "\n" + state + "\n" + gzip + "\n" + request);
+	}
+
+	/**
+	 * Returns the largest response which is kept after it is complete.
+	 *
+	 * @return the maximum response size in bytes
+	 */
+	public long getMaxResponseSize() {
+		return maxSize / 4;
+	}
+
+	/**
+	 * Opens the response of a key.  If the response is neither cached nor
+	 * pending the returned entry is the leader and the caller must generate
+	 * the response.
+	 *
+	 * @param key
+	 * @return the entry of the response
+	 */
+	public synchronized Entry open(String key) {
+		Response response = responses.get(key);
+		boolean leader = response == null;
+		if (leader) {
+			File file = new File(folder, key + "-" + counter.incrementAndGet());
+			response = new Response(key, file);
+			responses.put(key, response);
+		}
+		response.readers++;
+		return new Entry(response, leader);
+	}
+
+	/**
+	 * Returns the total size of the cached responses.
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of cached and pending responses.
+	 *
+	 * @return the number of responses
+	 */
+	public synchronized int getCount() {
+		return responses.size();
+	}
+
+	private synchronized void completed(Response response) {
+		if (response.removed) {
+			return;
+		}
+		if (response.length > getMaxResponseSize()) {
+			remove(response);
+			return;
+		}
+		response.cached = true;
+		size += response.length;
+		Iterator<Response> itr = responses.values().iterator();
+		while (size > maxSize && itr.hasNext()) {
+			Response eldest = itr.next();
+			if (!eldest.cached) {
+				// pending
+				continue;
+			}
+			itr.remove();
+			size -= eldest.length;
+			discard(eldest);
+		}
+	}
+
+	private synchronized void remove(Response response) {
+		if (response.removed) {
+			return;
+		}
+		if (responses.get(response.key) == response) {
+			responses.remove(response.key);
+			if (response.cached) {
+				size -= response.length;
+			}
+		}
+		discard(response);
+	}
+
+	private synchronized void release(Response response) {
+		response.readers--;
+		if (response.removed && response.readers == 0) {
+			response.file.delete();
+		}
+	}
+
+	private void discard(Response response) {
+		response.removed = true;
+		if (response.readers == 0) {
+			response.file.delete();
+		}
+	}
+}
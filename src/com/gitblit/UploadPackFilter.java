@@ -0,0 +1,495 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.text.MessageFormat;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jgit.http.server.ServletUtils;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackWriter.Statistics;
+import org.eclipse.jgit.transport.UploadPack;
+import org.eclipse.jgit.transport.UploadPackLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.ClonePackCache.Tips;
+
+/**
+ * The UploadPackFilter is registered with the JGit upload-pack service.  It
+ * reads the request of a fetch before JGit does and answers the final request
+ * of a full clone with the precomputed clone pack of the repository, if the
+ * pack matches the current branches and tags.  All other requests, and full
+ * clones of repositories without a current pack, are replayed to JGit.
+ *
+ * If the upload-pack cache is enabled, the responses of JGit are cached by the
+ * state of the refs of the repository and the normalized request.  Identical
+ * requests which arrive while a response is being generated are streamed the
+ * response of the first request instead of generating it again.
+ *
+ * @author James Moger
+ *
+ */
+public class UploadPackFilter implements Filter {
+
+	public static final String RESULT_TYPE = "application/x-git-upload-pack-result";
+
+	// requests larger than this are not inspected
+	private static final int MAX_REQUEST_SIZE = 1024*1024;
+
+	private static final byte[] NAK = { '0', '0', '0', '8', 'N', 'A', 'K', '\n' };
+
+	private static final byte[] FLUSH = { '0', '0', '0', '0' };
+
+	private transient Logger logger = LoggerFactory.getLogger(UploadPackFilter.class);
+
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		ClonePackCache clonePacks = GitBlit.self().getClonePackCache();
+		UploadPackCache uploadPacks = GitBlit.self().getUploadPackCache();
+		if ((clonePacks == null && uploadPacks == null) || !"POST".equals(httpRequest.getMethod())) {
+			// the ref advertisement also passes through the upload-pack filters
+			chain.doFilter(request, response);
+			return;
+		}
+
+		// buffer the request so that it can be replayed to JGit
+		InputStream is = httpRequest.getInputStream();
+		byte[] buffer = new byte[4096];
+		int length = 0;
+		int n;
+		while ((n = is.read(buffer, length, buffer.length - length)) > -1) {
+			length += n;
+			if (length == buffer.length) {
+				if (length >= MAX_REQUEST_SIZE) {
+					break;
+				}
+				byte[] larger = new byte[buffer.length*2];
+				System.arraycopy(buffer, 0, larger, 0, length);
+				buffer = larger;
+			}
+		}
+		ReplayRequest replay = new ReplayRequest(httpRequest, new SequenceInputStream(
+				new ByteArrayInputStream(buffer, 0, length), is));
+		UploadPackRequest uploadRequest = null;
+		if (n == -1) {
+			uploadRequest = parse(httpRequest, buffer, length);
+		}
+		if (uploadRequest == null) {
+			chain.doFilter(replay, response);
+			return;
+		}
+		String repositoryName = GitFilter.getRepositoryName(httpRequest.getPathInfo().substring(1));
+		Repository r = ServletUtils.getRepository(httpRequest);
+		if (clonePacks != null) {
+			Tips tips = ClonePackCache.getTips(r);
+			if (uploadRequest.isFullClone(tips.heads, tips.tips)) {
+				clonePacks.recordClone(repositoryName);
+				File pack = clonePacks.getPack(repositoryName, tips.state);
+				if (pack != null && sendPack(httpResponse, uploadRequest, pack)) {
+					logger.debug(MessageFormat.format("Sent clone pack of {0}", repositoryName));
+					return;
+				}
+			}
+		}
+		if (uploadPacks != null) {
+			String accept = httpRequest.getHeader("Accept-Encoding");
+			boolean gzip = accept != null && accept.contains("gzip");
+			String key = UploadPackCache.getKey(repositoryName, UploadPackCache.getState(r),
+					uploadRequest.getKey(), gzip);
+			sendCached(uploadPacks.open(key), replay, httpResponse, chain);
+			return;
+		}
+		chain.doFilter(replay, response);
+	}
+
+	/**
+	 * Sends a cached or pending upload-pack response.  The leader of a
+	 * response generates it with JGit and writes it to the cache while it is
+	 * sent to its client, the followers copy it from the cache.
+	 *
+	 * @param entry
+	 * @param request
+	 * @param response
+	 * @param chain
+	 * @throws IOException
+	 * @throws ServletException
+	 */
+	private void sendCached(UploadPackCache.Entry entry, HttpServletRequest request,
+			HttpServletResponse response, FilterChain chain) throws IOException, ServletException {
+		try {
+			if (entry.isLeader()) {
+				final CachingResponse cachingResponse = new CachingResponse(response, entry);
+				UploadPack up = (UploadPack) request.getAttribute(ServletUtils.ATTRIBUTE_HANDLER);
+				if (up != null) {
+					// only responses which sent a pack are kept
+					final UploadPackLogger uploadPackLogger = up.getLogger();
+					up.setLogger(new UploadPackLogger() {
+						@Override
+						public void onPackStatistics(Statistics stats) {
+							cachingResponse.packSent = true;
+							uploadPackLogger.onPackStatistics(stats);
+						}
+					});
+				}
+				boolean complete = false;
+				try {
+					chain.doFilter(request, cachingResponse);
+					complete = cachingResponse.finish();
+				} finally {
+					if (complete) {
+						entry.complete(cachingResponse.packSent);
+					} else {
+						entry.fail();
+					}
+				}
+			} else if (entry.awaitStart()) {
+				response.setContentType(entry.getContentType());
+				if (entry.getContentEncoding() != null) {
+					response.setHeader("Content-Encoding", entry.getContentEncoding());
+				}
+				response.setHeader("Cache-Control", "no-cache, max-age=0, must-revalidate");
+				response.setHeader("Pragma", "no-cache");
+				response.setDateHeader("Expires", 0);
+				entry.copyTo(response.getOutputStream());
+				response.flushBuffer();
+			} else {
+				// the leader failed, generate the response
+				chain.doFilter(request, response);
+			}
+		} finally {
+			entry.release();
+		}
+	}
+
+	/**
+	 * Parses the buffered body of an upload-pack request.
+	 *
+	 * @param request
+	 * @param buffer
+	 * @param length
+	 * @return the parsed request or null
+	 */
+	private UploadPackRequest parse(HttpServletRequest request, byte[] buffer, int length) {
+		String encoding = request.getHeader("Content-Encoding");
+		if (encoding == null) {
+			return UploadPackRequest.parse(buffer, length);
+		} else if (!"gzip".equals(encoding) && !"x-gzip".equals(encoding)) {
+			return null;
+		}
+		try {
+			InputStream is = new GZIPInputStream(new ByteArrayInputStream(buffer, 0, length));
+			byte[] body = new byte[Math.max(4096, length*4)];
+			int len = 0;
+			int n;
+			while ((n = is.read(body, len, body.length - len)) > -1) {
+				len += n;
+				if (len == body.length) {
+					if (len >= MAX_REQUEST_SIZE) {
+						return null;
+					}
+					byte[] larger = new byte[body.length*2];
+					System.arraycopy(body, 0, larger, 0, len);
+					body = larger;
+				}
+			}
+			return UploadPackRequest.parse(body, len);
+		} catch (IOException e) {
+			// let JGit report the corrupt request
+			return null;
+		}
+	}
+
+	/**
+	 * Sends a precomputed pack as the result of the final request of a fetch.
+	 *
+	 * @param response
+	 * @param request
+	 * @param pack
+	 * @return false if the pack was removed before it could be opened
+	 * @throws IOException
+	 */
+	private boolean sendPack(HttpServletResponse response, UploadPackRequest request, File pack)
+			throws IOException {
+		InputStream is;
+		try {
+			is = new FileInputStream(pack);
+		} catch (FileNotFoundException e) {
+			// replaced by a newer pack
+			return false;
+		}
+		try {
+			response.setContentType(RESULT_TYPE);
+			response.setHeader("Cache-Control", "no-cache, max-age=0, must-revalidate");
+			response.setHeader("Pragma", "no-cache");
+			response.setDateHeader("Expires", 0);
+			OutputStream os = response.getOutputStream();
+			os.write(NAK);
+			int packetLength = request.getSideBandLength();
+			if (packetLength > 0) {
+				writeSideBand(is, os, packetLength);
+			} else {
+				byte[] buffer = new byte[64*1024];
+				int n;
+				while ((n = is.read(buffer)) > -1) {
+					os.write(buffer, 0, n);
+				}
+			}
+			os.flush();
+		} finally {
+			is.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the content of a stream as side-band data packets on the pack
+	 * data channel, followed by a flush-pkt.
+	 *
+	 * @param is
+	 * @param os
+	 * @param packetLength
+	 *            the maximum length of a packet, including the packet header
+	 * @throws IOException
+	 */
+	public static void writeSideBand(InputStream is, OutputStream os, int packetLength)
+			throws IOException {
+		byte[] packet = new byte[packetLength];
+		// 4 bytes of length and the channel
+		packet[4] = 1;
+		int n;
+		while ((n = read(is, packet, 5, packetLength - 5)) > 0) {
+			byte[] len = String.format("%04x", n + 5).getBytes("US-ASCII");
+			System.arraycopy(len, 0, packet, 0, 4);
+			os.write(packet, 0, n + 5);
+		}
+		os.write(FLUSH);
+	}
+
+	private static int read(InputStream is, byte[] buffer, int offset, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int n = is.read(buffer, offset + total, length - total);
+			if (n == -1) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Tees a successful JGit response into the upload-pack cache.  A client
+	 * which disconnects does not stop the generation of the response because
+	 * other clients may be following it.
+	 */
+	private class CachingResponse extends HttpServletResponseWrapper {
+
+		final UploadPackCache.Entry entry;
+
+		int status = HttpServletResponse.SC_OK;
+
+		String contentEncoding;
+
+		OutputStream cache;
+
+		ServletOutputStream stream;
+
+		boolean clientFailed;
+
+		boolean packSent;
+
+		CachingResponse(HttpServletResponse response, UploadPackCache.Entry entry) {
+			super(response);
+			this.entry = entry;
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			status = sc;
+			super.setStatus(sc);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			status = sc;
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			status = sc;
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void reset() {
+			// JGit resets the response to report an error
+			status = -1;
+			super.reset();
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			if ("Content-Encoding".equalsIgnoreCase(name)) {
+				contentEncoding = value;
+			}
+			super.setHeader(name, value);
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			if ("Content-Encoding".equalsIgnoreCase(name)) {
+				contentEncoding = value;
+			}
+			super.addHeader(name, value);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (stream != null) {
+				return stream;
+			}
+			final ServletOutputStream client = super.getOutputStream();
+			if (status != HttpServletResponse.SC_OK) {
+				return client;
+			}
+			cache = entry.start(getContentType(), contentEncoding);
+			stream = new ServletOutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					cache.write(b, off, len);
+					if (!clientFailed) {
+						try {
+							client.write(b, off, len);
+						} catch (IOException e) {
+							clientDisconnected(e);
+						}
+					}
+				}
+
+				@Override
+				public void flush() throws IOException {
+					if (!clientFailed) {
+						try {
+							client.flush();
+						} catch (IOException e) {
+							clientDisconnected(e);
+						}
+					}
+				}
+			};
+			return stream;
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			if (!clientFailed) {
+				try {
+					super.flushBuffer();
+				} catch (IOException e) {
+					clientDisconnected(e);
+				}
+			}
+		}
+
+		private void clientDisconnected(IOException e) {
+			clientFailed = true;
+			logger.debug("Client disconnected from a shared upload-pack response", e);
+		}
+
+		/**
+		 * Closes the cached content.
+		 *
+		 * @return true if the response is complete
+		 * @throws IOException
+		 */
+		boolean finish() throws IOException {
+			if (cache == null) {
+				return false;
+			}
+			cache.close();
+			return status == HttpServletResponse.SC_OK;
+		}
+	}
+
+	/**
+	 * Replays the buffered body of a request followed by the unread body.
+	 */
+	private static class ReplayRequest extends HttpServletRequestWrapper {
+
+		final ServletInputStream is;
+
+		ReplayRequest(HttpServletRequest request, final InputStream body) {
+			super(request);
+			this.is = new ServletInputStream() {
+
+				@Override
+				public int read() throws IOException {
+					return body.read();
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return body.read(b, off, len);
+				}
+			};
+		}
+
+		@Override
+		public ServletInputStream getInputStream() {
+			return is;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * The parsed body of a smart http upload-pack request.
+ *
+ * The request of a stateless fetch is a sequence of pkt-lines.  The client
+ * lists the objects it wants, the capabilities it requests on the first want
+ * line, its shallow state, the objects it already has, and finally "done" if
+ * it does not need another negotiation round.
+ *
+ * @author James Moger
+ *
+ */
+public class UploadPackRequest {
+
+	public static final String CAPABILITY_OFS_DELTA = "ofs-delta";
+
+	public static final String CAPABILITY_SIDE_BAND = "side-band";
+
+	public static final String CAPABILITY_SIDE_BAND_64K = "side-band-64k";
+
+	public final Set<ObjectId> wants = new TreeSet<ObjectId>();
+
+	public final Set<ObjectId> haves = new TreeSet<ObjectId>();
+
+	public final Set<String> capabilities = new TreeSet<String>();
+
+	// shallow and deepen lines, in request order
+	public final List<String> options = new ArrayList<String>();
+
+	public boolean done;
+
+	/**
+	 * Parses the body of an upload-pack request.
+	 *
+	 * @param buffer
+	 * @param length
+	 * @return the request or null if the body is incomplete or malformed
+	 */
+	public static UploadPackRequest parse(byte[] buffer, int length) {
+		UploadPackRequest request = new UploadPackRequest();
+		int pos = 0;
+		try {
+			while (pos < length) {
+				if (pos + 4 > length) {
+					return null;
+				}
+				int len = Integer.parseInt(new String(buffer, pos, 4, "US-ASCII"), 16);
+				if (len == 0) {
+					// flush-pkt
+					pos += 4;
+					continue;
+				}
+				if (len < 4 || pos + len > length) {
+					return null;
+				}
+				String line = new String(buffer, pos + 4, len - 4, "UTF-8");
+				pos += len;
+				if (line.endsWith("\n")) {
+					line = line.substring(0, line.length() - 1);
+				}
+				if (!request.parseLine(line)) {
+					return null;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+		return request.wants.isEmpty() ? null : request;
+	}
+
+	private boolean parseLine(String line) {
+		if (done) {
+			// nothing may follow done
+			return false;
+		}
+		if (line.startsWith("want ")) {
+			String[] fields = line.substring(5).split(" ");
+			if (!ObjectId.isId(fields[0])) {
+				return false;
+			}
+			if (wants.isEmpty()) {
+				for (int i = 1; i < fields.length; i++) {
+					if (fields[i].length() > 0) {
+						capabilities.add(fields[i]);
+					}
+				}
+			}
+			wants.add(ObjectId.fromString(fields[0]));
+		} else if (line.startsWith("have ")) {
+			String id = line.substring(5).trim();
+			if (!ObjectId.isId(id)) {
+				return false;
+			}
+			haves.add(ObjectId.fromString(id));
+		} else if (line.startsWith("shallow ") || line.startsWith("deepen")) {
+			options.add(line);
+		} else if (line.equals("done")) {
+			done = true;
+		} else {
+			// unknown request line
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the normalized form of this request.  Requests which only differ
+	 * in the order of their lines or in the agent of the client have the same
+	 * normalized form.
+	 *
+	 * @return the normalized request
+	 */
+	public String getKey() {
+		StringBuilder sb = new StringBuilder();
+		for (String capability : capabilities) {
+			if (!capability.startsWith("agent=")) {
+				sb.append(capability).append(' ');
+			}
+		}
+		sb.append('\n');
+		for (ObjectId want : wants) {
+			sb.append("want ").append(want.getName()).append('\n');
+		}
+		for (String option : options) {
+			sb.append(option).append('\n');
+		}
+		for (ObjectId have : haves) {
+			sb.append("have ").append(have.getName()).append('\n');
+		}
+		if (done) {
+			sb.append("done\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the maximum length of a side-band packet.
+	 *
+	 * @return the packet length or 0 if the client did not request side-band
+	 */
+	public int getSideBandLength() {
+		if (capabilities.contains(CAPABILITY_SIDE_BAND_64K)) {
+			return 65520;
+		} else if (capabilities.contains(CAPABILITY_SIDE_BAND)) {
+			return 1000;
+		}
+		return 0;
+	}
+
+	/**
+	 * Determines if this request is the final request of a full clone of the
+	 * specified branches and tags.  A full clone wants at least every branch,
+	 * nothing outside of the branches and tags, has no objects, is not
+	 * shallow, and accepts offset deltas.
+	 *
+	 * @param heads
+	 *            the ids of the branches
+	 * @param tips
+	 *            the ids of the branches and tags
+	 * @return true if this is a full clone
+	 */
+	public boolean isFullClone(Collection<ObjectId> heads, Collection<ObjectId> tips) {
+		return done && haves.isEmpty() && options.isEmpty()
+				&& capabilities.contains(CAPABILITY_OFS_DELTA)
+				&& wants.containsAll(heads) && tips.containsAll(wants);
+	}
+}
@@ -24,6 +24,7 @@ import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.text.MessageFormat;
 
 import javax.swing.JButton;
 import javax.swing.JLabel;
@@ -51,6 +52,8 @@ public class StatusPanel extends JPanel {
 	private JLabel heapMaximum;
 	private JLabel heapAllocated;
 	private JLabel heapUsed;
+	private JLabel gitTransports;
+	private JLabel luceneIndexing;
 	private PropertiesTableModel tableModel;
 	private HeaderPanel header;
 	private JLabel version;
@@ -79,6 +82,8 @@ public class StatusPanel extends JPanel {
 		heapMaximum = new JLabel();
 		heapAllocated = new JLabel();
 		heapUsed = new JLabel();
+		gitTransports = new JLabel();
+		luceneIndexing = new JLabel();
 
 		JPanel fieldsPanel = new JPanel(new GridLayout(0, 1, 0, Utils.MARGIN)) {
 
@@ -97,6 +102,8 @@ public class StatusPanel extends JPanel {
 		fieldsPanel.add(createFieldPanel("gb.heapUsed", heapUsed));
 		fieldsPanel.add(createFieldPanel("gb.heapAllocated", heapAllocated));
 		fieldsPanel.add(createFieldPanel("gb.heapMaximum", heapMaximum));
+		fieldsPanel.add(createFieldPanel("gb.gitTransports", gitTransports));
+		fieldsPanel.add(createFieldPanel("gb.luceneIndexing", luceneIndexing));
 
 		tableModel = new PropertiesTableModel();
 		JTable propertiesTable = Utils.newTable(tableModel, Utils.DATE_FORMAT);
@@ -163,6 +170,11 @@ public class StatusPanel extends JPanel {
 		heapAllocated.setText(byteFormat.format(status.heapAllocated));
 		heapUsed.setText(byteFormat.format(status.heapAllocated - status.heapFree) + " ("
 				+ byteFormat.format(status.heapFree) + " " + Translation.get("gb.free") + ")");
+		gitTransports.setText(MessageFormat.format(Translation.get("gb.gitTransportsStatus"),
+				status.gitOperations, status.gitQueuedOperations, status.gitAverageWait,
+				status.gitMaximumWait, status.gitRejectedOperations));
+		luceneIndexing.setText(MessageFormat.format(Translation.get("gb.luceneIndexingStatus"),
+				status.luceneIndexedDocuments, status.luceneIndexingThroughput));
 		tableModel.setProperties(status.systemProperties);
 		tableModel.fireTableDataChanged();
 	}
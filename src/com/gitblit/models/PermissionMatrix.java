@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.gitblit.Constants.AccessPermission;
+import com.gitblit.Constants.PermissionType;
+
+/**
+ * The permission matrix holds the precomputed repository permissions of a user.
+ * The explicit and regex permissions of the user and of the user's teams are
+ * compiled once and the resolved permission of every repository is cached.
+ *
+ * Only the permissions which are granted by the user and team permission maps
+ * are cached.  Administrator, owner, and authorization control rules depend on
+ * the repository model and are evaluated by the user model for every request.
+ *
+ * A matrix is discarded when the permissions of its user or team models are
+ * changed through their setters or when the teams of the user change, and all
+ * matrices are discarded when Gitblit updates a user, team, or repository.
+ *
+ * @author James Moger
+ *
+ */
+public class PermissionMatrix {
+
+	private static final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * Discards all permission matrices.
+	 */
+	public static void invalidateAll() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * The compiled permission map of a user or a team.
+	 */
+	public static class Rules {
+
+		final long created;
+
+		final Map<String, AccessPermission> explicit;
+
+		final List<String> keys = new ArrayList<String>();
+
+		final List<Pattern> patterns = new ArrayList<Pattern>();
+
+		final List<AccessPermission> values = new ArrayList<AccessPermission>();
+
+		public Rules(Map<String, AccessPermission> permissions) {
+			created = generation.get();
+			explicit = new HashMap<String, AccessPermission>(permissions);
+			for (Map.Entry<String, AccessPermission> entry : permissions.entrySet()) {
+				if (entry.getValue() == null) {
+					continue;
+				}
+				try {
+					patterns.add(Pattern.compile(entry.getKey(), Pattern.CASE_INSENSITIVE));
+					keys.add(entry.getKey());
+					values.add(entry.getValue());
+				} catch (PatternSyntaxException e) {
+					// an explicit repository name which is not a valid regex
+				}
+			}
+		}
+
+		public boolean isCurrent() {
+			return created == generation.get();
+		}
+
+		/**
+		 * Returns the explicit or the first matching regex permission of a
+		 * repository.
+		 *
+		 * @param repositoryName
+		 * @param ap
+		 *            the permission to update
+		 * @return true if a permission was found
+		 */
+		public boolean resolve(String repositoryName, RegistrantAccessPermission ap) {
+			String key = repositoryName.toLowerCase();
+			if (explicit.containsKey(key)) {
+				// exact repository permission specified, use it
+				AccessPermission p = explicit.get(key);
+				if (p == null) {
+					return false;
+				}
+				ap.permissionType = PermissionType.EXPLICIT;
+				ap.permission = p;
+				ap.mutable = true;
+				return true;
+			}
+			// case-insensitive regex permission match, take first match
+			for (int i = 0; i < patterns.size(); i++) {
+				if (patterns.get(i).matcher(repositoryName).matches()) {
+					ap.permissionType = PermissionType.REGEX;
+					ap.permission = values.get(i);
+					ap.source = keys.get(i);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final long created;
+
+	private final Rules rules;
+
+	private final List<String> teamNames = new ArrayList<String>();
+
+	private final List<Boolean> teamAdmins = new ArrayList<Boolean>();
+
+	private final List<Rules> teamRules = new ArrayList<Rules>();
+
+	// lowercase repository name -> resolved permission
+	private final Map<String, RegistrantAccessPermission> resolved = new ConcurrentHashMap<String, RegistrantAccessPermission>();
+
+	public PermissionMatrix(Map<String, AccessPermission> permissions, Collection<TeamModel> teams) {
+		this.created = generation.get();
+		this.rules = new Rules(permissions);
+		for (TeamModel team : teams) {
+			teamNames.add(team.name);
+			teamAdmins.add(team.canAdmin);
+			teamRules.add(team.getPermissionRules());
+		}
+	}
+
+	/**
+	 * Returns true if no user, team, or repository has been updated since the
+	 * matrix was computed and the teams of the user are unchanged.
+	 *
+	 * @param teams
+	 *            the current teams of the user
+	 * @return true if the matrix is current
+	 */
+	public boolean isCurrent(Collection<TeamModel> teams) {
+		if (created != generation.get() || teams.size() != teamRules.size()) {
+			return false;
+		}
+		int i = 0;
+		for (TeamModel team : teams) {
+			if (!team.name.equals(teamNames.get(i)) || team.canAdmin != teamAdmins.get(i)
+					|| team.getPermissionRules() != teamRules.get(i)) {
+				return false;
+			}
+			i++;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the permission of a repository which is granted by the
+	 * permissions of the user or, if the user has no permission for the
+	 * repository, the highest permission granted by a team.
+	 *
+	 * @param repositoryName
+	 * @return a new permission instance
+	 */
+	public RegistrantAccessPermission resolve(String repositoryName) {
+		String key = repositoryName.toLowerCase();
+		RegistrantAccessPermission ap = resolved.get(key);
+		if (ap == null) {
+			ap = compute(repositoryName);
+			resolved.put(key, ap);
+		}
+		return new RegistrantAccessPermission(ap.registrant, ap.permission, ap.permissionType,
+				ap.registrantType, ap.source, ap.mutable);
+	}
+
+	private RegistrantAccessPermission compute(String repositoryName) {
+		RegistrantAccessPermission ap = new RegistrantAccessPermission();
+		ap.permission = AccessPermission.NONE;
+		if (rules.resolve(repositoryName, ap)) {
+			return ap;
+		}
+
+		// try to find a team match, use the highest team permission
+		for (int i = 0; i < teamRules.size(); i++) {
+			AccessPermission p;
+			if (teamAdmins.get(i)) {
+				p = AccessPermission.REWIND;
+			} else {
+				RegistrantAccessPermission tp = new RegistrantAccessPermission();
+				if (!teamRules.get(i).resolve(repositoryName, tp)) {
+					continue;
+				}
+				p = tp.permission;
+			}
+			if (p.exceeds(ap.permission)) {
+				ap.permission = p;
+				ap.source = teamNames.get(i);
+				ap.permissionType = PermissionType.TEAM;
+			}
+		}
+		return ap;
+	}
+}
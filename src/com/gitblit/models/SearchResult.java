@@ -48,6 +48,12 @@ public class SearchResult implements Serializable {
 
 	public SearchObjectType type;
 
+	/**
+	 * Position of this result which may be used to search for the next page
+	 * of results after this result.
+	 */
+	public String cursor;
+
 	public SearchResult() {
 	}
 	
@@ -51,6 +51,20 @@ public class ServerStatus implements Serializable {
 
 	public String servletContainer;
 
+	public volatile int gitOperations;
+
+	public volatile int gitQueuedOperations;
+
+	public volatile long gitRejectedOperations;
+
+	public volatile long gitAverageWait;
+
+	public volatile long gitMaximumWait;
+
+	public volatile long luceneIndexedDocuments;
+
+	public volatile long luceneIndexingThroughput;
+
 	public ServerStatus(boolean isGO) {
 		this.bootDate = new Date();
 		this.version = Constants.VERSION;
@@ -57,6 +57,9 @@ public class TeamModel implements Serializable, Comparable<TeamModel> {
 	public final List<String> preReceiveScripts = new ArrayList<String>();
 	public final List<String> postReceiveScripts = new ArrayList<String>();
 
+	// compiled permissions, not persisted
+	private transient volatile PermissionMatrix.Rules permissionRules;
+
 	public TeamModel(String name) {
 		this.name = name;
 	}
@@ -171,6 +174,7 @@ public class TeamModel implements Serializable, Comparable<TeamModel> {
 		String repository = AccessPermission.repositoryFromRole(role).toLowerCase();
 		repositories.add(repository);
 		permissions.put(repository, permission);
+		permissionRules = null;
 	}
 
 	public void addRepositoryPermissions(Collection<String> roles) {
@@ -182,12 +186,28 @@ public class TeamModel implements Serializable, Comparable<TeamModel> {
 	public AccessPermission removeRepositoryPermission(String name) {
 		String repository = AccessPermission.repositoryFromRole(name).toLowerCase();
 		repositories.remove(repository);
+		permissionRules = null;
 		return permissions.remove(repository);
 	}
 	
 	public void setRepositoryPermission(String repository, AccessPermission permission) {
 		permissions.put(repository.toLowerCase(), permission);
 		repositories.add(repository.toLowerCase());
+		permissionRules = null;
+	}
+
+	/**
+	 * Returns the compiled permissions of the team.
+	 * 
+	 * @return the permission rules
+	 */
+	public PermissionMatrix.Rules getPermissionRules() {
+		PermissionMatrix.Rules rules = permissionRules;
+		if (rules == null || !rules.isCurrent()) {
+			rules = new PermissionMatrix.Rules(permissions);
+			permissionRules = rules;
+		}
+		return rules;
 	}
 	
 	public RegistrantAccessPermission getRepositoryPermission(RepositoryModel repository) {
@@ -203,30 +223,8 @@ public class TeamModel implements Serializable, Comparable<TeamModel> {
 			return ap;
 		}
 		
-		if (permissions.containsKey(repository.name.toLowerCase())) {
-			// exact repository permission specified
-			AccessPermission p = permissions.get(repository.name.toLowerCase());
-			if (p != null) {
-				ap.permissionType = PermissionType.EXPLICIT;
-				ap.permission = p;
-				ap.mutable = true;
-				return ap;
-			}
-		} else {
-			// search for case-insensitive regex permission match
-			for (String key : permissions.keySet()) {
-				if (StringUtils.matchesIgnoreCase(repository.name, key)) {
-					AccessPermission p = permissions.get(key);
-					if (p != null) {
-						// take first match
-						ap.permissionType = PermissionType.REGEX;
-						ap.permission = p;
-						ap.source = key;
-						return ap;
-					}
-				}
-			}
-		}
+		// exact repository permission or first case-insensitive regex match
+		getPermissionRules().resolve(repository.name, ap);
 		return ap;
 	}
 	
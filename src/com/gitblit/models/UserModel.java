@@ -73,6 +73,7 @@ public class UserModel implements Principal, Serializable, Comparable<UserModel>
 
 	// non-persisted fields
 	public boolean isAuthenticated;
+	private transient volatile PermissionMatrix permissionMatrix;
 	
 	public UserModel(String username) {
 		this.username = username;
@@ -253,16 +254,34 @@ public class UserModel implements Principal, Serializable, Comparable<UserModel>
 		String repository = AccessPermission.repositoryFromRole(role).toLowerCase();
 		repositories.add(repository);
 		permissions.put(repository, permission);
+		permissionMatrix = null;
 	}
 	
 	public AccessPermission removeRepositoryPermission(String name) {
 		String repository = AccessPermission.repositoryFromRole(name).toLowerCase();
 		repositories.remove(repository);
+		permissionMatrix = null;
 		return permissions.remove(repository);
 	}
 		
 	public void setRepositoryPermission(String repository, AccessPermission permission) {
 		permissions.put(repository.toLowerCase(), permission);
+		permissionMatrix = null;
+	}
+
+	/**
+	 * Returns the precomputed repository permissions of the user and the
+	 * user's teams.
+	 * 
+	 * @return the permission matrix
+	 */
+	protected PermissionMatrix getPermissionMatrix() {
+		PermissionMatrix matrix = permissionMatrix;
+		if (matrix == null || !matrix.isCurrent(teams)) {
+			matrix = new PermissionMatrix(permissions, teams);
+			permissionMatrix = matrix;
+		}
+		return matrix;
 	}
 
 	public RegistrantAccessPermission getRepositoryPermission(RepositoryModel repository) {
@@ -310,42 +329,13 @@ public class UserModel implements Principal, Serializable, Comparable<UserModel>
 		
 		// explicit user permission OR user regex match is used
 		// if that fails, then the best team permission is used
-		if (permissions.containsKey(repository.name.toLowerCase())) {
-			// exact repository permission specified, use it
-			AccessPermission p = permissions.get(repository.name.toLowerCase());
-			if (p != null) {
-				ap.permissionType = PermissionType.EXPLICIT;
-				ap.permission = p;
-				ap.mutable = true;
-				return ap;
-			}
-		} else {
-			// search for case-insensitive regex permission match
-			for (String key : permissions.keySet()) {
-				if (StringUtils.matchesIgnoreCase(repository.name, key)) {
-					AccessPermission p = permissions.get(key);
-					if (p != null) {
-						// take first match
-						ap.permissionType = PermissionType.REGEX;
-						ap.permission = p;
-						ap.source = key;
-						return ap;
-					}
-				}
-			}
+		RegistrantAccessPermission p = getPermissionMatrix().resolve(repository.name);
+		if (p.permissionType != null) {
+			ap.permissionType = p.permissionType;
+			ap.permission = p.permission;
+			ap.source = p.source;
+			ap.mutable = p.mutable;
 		}
-		
-		// try to find a team match
-		for (TeamModel team : teams) {
-			RegistrantAccessPermission p = team.getRepositoryPermission(repository);
-			if (p.permission.exceeds(ap.permission)) {
-				// use highest team permission
-				ap.permission = p.permission;
-				ap.source = team.name;
-				ap.permissionType = PermissionType.TEAM;
-			}
-		}		
-		
 		return ap;
 	}
 	
@@ -27,6 +27,10 @@ import org.slf4j.LoggerFactory;
  * Class to log messages to the pushing Git client. Intended to be used by the
  * Groovy Hooks.
  * 
+ * Asynchronous post-receive hooks run after the client has disconnected.
+ * Their client logger has no receive pack and logs the messages to the
+ * Gitblit log instead.
+ * 
  * @author John Crygier
  * 
  */
@@ -45,6 +49,10 @@ public class ClientLogger {
 	 * @param message
 	 */
 	public void info(String message) {
+		if (rp == null) {
+			logger.info(message);
+			return;
+		}
 		rp.sendMessage(message);
 	}
 
@@ -54,6 +62,10 @@ public class ClientLogger {
 	 * @param message
 	 */
 	public void error(String message) {
+		if (rp == null) {
+			logger.error(message);
+			return;
+		}
 		rp.sendError(message);
 	}
 
@@ -65,6 +77,10 @@ public class ClientLogger {
 	 *            an exception
 	 */
 	public void error(String message, Throwable t) {
+		if (rp == null) {
+			logger.error(message, t);
+			return;
+		}
 		PrintWriter writer = new PrintWriter(new StringWriter());
 		if (!StringUtils.isEmpty(message)) {
 			writer.append(message);
@@ -20,6 +20,7 @@ import java.io.OutputStream;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
@@ -173,6 +174,30 @@ public class CompressionUtils {
 			OutputStream os) {
 		return tar(CompressorStreamFactory.GZIP, repository, basePath, objectId, os);
 	}
+
+	/**
+	 * tar.gz the contents of the tree at the (optionally) specified revision and
+	 * the (optionally) specified basepath to the supplied outputstream.  Blocks
+	 * of the tar stream are compressed in parallel as independent gzip members.
+	 * 
+	 * @param repository
+	 * @param basePath
+	 *            if unspecified, entire repository is assumed.
+	 * @param objectId
+	 *            if unspecified, HEAD is assumed.
+	 * @param os
+	 * @param executor
+	 *            the executor which compresses the blocks
+	 * @param threads
+	 *            the number of blocks to compress at once, 1 compresses the
+	 *            tar stream in the calling thread
+	 * @return true if repository was successfully zipped to supplied output
+	 *         stream
+	 */
+	public static boolean gz(Repository repository, String basePath, String objectId,
+			OutputStream os, ExecutorService executor, int threads) {
+		return tar(CompressorStreamFactory.GZIP, repository, basePath, objectId, os, executor, threads);
+	}
 	
 	/**
 	 * tar.xz the contents of the tree at the (optionally) specified revision and
@@ -191,6 +216,30 @@ public class CompressionUtils {
 			OutputStream os) {
 		return tar(CompressorStreamFactory.XZ, repository, basePath, objectId, os);
 	}
+
+	/**
+	 * tar.xz the contents of the tree at the (optionally) specified revision and
+	 * the (optionally) specified basepath to the supplied outputstream.  Blocks
+	 * of the tar stream are compressed in parallel as independent xz streams.
+	 * 
+	 * @param repository
+	 * @param basePath
+	 *            if unspecified, entire repository is assumed.
+	 * @param objectId
+	 *            if unspecified, HEAD is assumed.
+	 * @param os
+	 * @param executor
+	 *            the executor which compresses the blocks
+	 * @param threads
+	 *            the number of blocks to compress at once, 1 compresses the
+	 *            tar stream in the calling thread
+	 * @return true if repository was successfully zipped to supplied output
+	 *         stream
+	 */
+	public static boolean xz(Repository repository, String basePath, String objectId,
+			OutputStream os, ExecutorService executor, int threads) {
+		return tar(CompressorStreamFactory.XZ, repository, basePath, objectId, os, executor, threads);
+	}
 	
 	/**
 	 * tar.bzip2 the contents of the tree at the (optionally) specified revision and
@@ -229,13 +278,47 @@ public class CompressionUtils {
 	 */
 	private static boolean tar(String algorithm, Repository repository, String basePath, String objectId,
 			OutputStream os) {
+		return tar(algorithm, repository, basePath, objectId, os, null, 1);
+	}
+
+	/**
+	 * Compresses/archives the contents of the tree at the (optionally)
+	 * specified revision and the (optionally) specified basepath to the
+	 * supplied outputstream.
+	 * 
+	 * @param algorithm
+	 *            compression algorithm for tar (optional)
+	 * @param repository
+	 * @param basePath
+	 *            if unspecified, entire repository is assumed.
+	 * @param objectId
+	 *            if unspecified, HEAD is assumed.
+	 * @param os
+	 * @param executor
+	 *            executor for parallel gzip or xz compression (optional)
+	 * @param threads
+	 *            the number of blocks to compress at once
+	 * @return true if repository was successfully zipped to supplied output
+	 *         stream
+	 */
+	private static boolean tar(String algorithm, Repository repository, String basePath, String objectId,
+			OutputStream os, ExecutorService executor, int threads) {
 		RevCommit commit = JGitUtils.getCommit(repository, objectId);
 		if (commit == null) {
 			return false;
 		}
 		
 		OutputStream cos = os;
-		if (!StringUtils.isEmpty(algorithm)) {
+		if (executor != null && threads > 1 && CompressorStreamFactory.GZIP.equals(algorithm)) {
+			// keep a block queued for each thread while the others compress
+			cos = new ParallelGZIPOutputStream(os, executor, threads * 2);
+		} else if (executor != null && threads > 1 && CompressorStreamFactory.XZ.equals(algorithm)) {
+			try {
+				cos = new ParallelXZOutputStream(os, executor, threads * 2);
+			} catch (IOException e) {
+				error(e, repository, "{0} failed to open {1} stream", algorithm);
+			}
+		} else if (!StringUtils.isEmpty(algorithm)) {
 			try {
 				cos = new CompressorStreamFactory().createCompressorOutputStream(algorithm, os);
 			} catch (CompressorException e1) {
@@ -201,4 +201,30 @@ public class HttpUtils {
 		// TODO IPV6?
 		return false;
 	}
+	
+	/**
+	 * Returns true if the If-None-Match header of a request matches the
+	 * entity tag.
+	 * 
+	 * @param ifNoneMatch
+	 *            the If-None-Match header value
+	 * @param etag
+	 *            the quoted entity tag
+	 * @return true if the client copy is current
+	 */
+	public static boolean isCurrent(String ifNoneMatch, String etag) {
+		if (StringUtils.isEmpty(ifNoneMatch)) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
 }
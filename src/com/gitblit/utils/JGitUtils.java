@@ -19,6 +19,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -28,6 +29,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.eclipse.jgit.api.CloneCommand;
@@ -266,7 +271,7 @@ public class JGitUtils {
 
 	/**
 	 * Returns a list of repository names in the specified folder.
-	 * 
+	 *
 	 * @param repositoriesFolder
 	 * @param onlyBare
 	 *            if true, only bare repositories repositories are listed. If
@@ -281,6 +286,29 @@ public class JGitUtils {
 	 */
 	public static List<String> getRepositoryList(File repositoriesFolder, boolean onlyBare,
 			boolean searchSubfolders, int depth, List<String> exclusions) {
+		return getRepositoryList(repositoriesFolder, onlyBare, searchSubfolders, depth, exclusions, 1);
+	}
+
+	/**
+	 * Returns a list of repository names in the specified folder. If more than
+	 * one thread is specified, subfolders are searched in parallel.
+	 *
+	 * @param repositoriesFolder
+	 * @param onlyBare
+	 *            if true, only bare repositories repositories are listed. If
+	 *            false all repositories are included.
+	 * @param searchSubfolders
+	 *            recurse into subfolders to find grouped repositories
+	 * @param depth
+	 *            optional recursion depth, -1 = infinite recursion
+	 * @param exclusions
+	 *            list of regex exclusions for matching to folder names
+	 * @param threads
+	 *            number of search threads, 0 = one per available processor
+	 * @return list of repository names
+	 */
+	public static List<String> getRepositoryList(File repositoriesFolder, boolean onlyBare,
+			boolean searchSubfolders, int depth, List<String> exclusions, int threads) {
 		List<String> list = new ArrayList<String>();
 		if (repositoriesFolder == null || !repositoriesFolder.exists()) {
 			return list;
@@ -291,77 +319,165 @@ public class JGitUtils {
 				patterns.add(Pattern.compile(regex));
 			}
 		}
-		list.addAll(getRepositoryList(repositoriesFolder.getAbsolutePath(), repositoriesFolder,
-				onlyBare, searchSubfolders, depth, patterns));
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		RepositorySearch search = new RepositorySearch(onlyBare, searchSubfolders, patterns);
+		if (threads == 1 || !searchSubfolders) {
+			search.search(repositoriesFolder, null, depth);
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				search.search(repositoriesFolder, depth, executor);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		list.addAll(search.repositories);
 		StringUtils.sortRepositorynames(list);
 		return list;
 	}
 
 	/**
-	 * Recursive function to find git repositories.
-	 * 
-	 * @param basePath
-	 *            basePath is stripped from the repository name as repositories
-	 *            are relative to this path
-	 * @param searchFolder
-	 * @param onlyBare
-	 *            if true only bare repositories will be listed. if false all
-	 *            repositories are included.
-	 * @param searchSubfolders
-	 *            recurse into subfolders to find grouped repositories
-	 * @param depth
-	 *            recursion depth, -1 = infinite recursion
-	 * @param patterns
-	 *            list of regex patterns for matching to folder names
-	 * @return
+	 * Searches a folder hierarchy for git repositories. The relative path of
+	 * each folder is built from the path of its parent as the hierarchy is
+	 * descended so that the exclusion patterns are matched without resolving
+	 * every folder against the repositories folder.
 	 */
-	private static List<String> getRepositoryList(String basePath, File searchFolder,
-			boolean onlyBare, boolean searchSubfolders, int depth, List<Pattern> patterns) {
-		File baseFile = new File(basePath);
-		List<String> list = new ArrayList<String>();
-		if (depth == 0) {
-			return list;
+	private static class RepositorySearch {
+
+		final boolean onlyBare;
+
+		final boolean searchSubfolders;
+
+		final List<Pattern> patterns;
+
+		final List<String> repositories = Collections.synchronizedList(new ArrayList<String>());
+
+		final AtomicInteger pending = new AtomicInteger();
+
+		ExecutorService executor;
+
+		RepositorySearch(boolean onlyBare, boolean searchSubfolders, List<Pattern> patterns) {
+			this.onlyBare = onlyBare;
+			this.searchSubfolders = searchSubfolders;
+			this.patterns = patterns;
 		}
-		
-		int nextDepth = (depth == -1) ? -1 : depth - 1;
-		for (File file : searchFolder.listFiles()) {
-			if (file.isDirectory()) {
-				boolean exclude = false;
-				for (Pattern pattern : patterns) {
-					String path = FileUtils.getRelativePath(baseFile, file).replace('\\',  '/');
-					if (pattern.matcher(path).matches()) {
-						LOGGER.debug(MessageFormat.format("excluding {0} because of rule {1}", path, pattern.pattern()));
-						exclude = true;
-						break;
+
+		/**
+		 * Searches the folder hierarchy in parallel and blocks until all
+		 * subfolders have been searched.
+		 *
+		 * @param folder
+		 * @param depth
+		 *            recursion depth, -1 = infinite recursion
+		 * @param executor
+		 */
+		void search(File folder, int depth, ExecutorService executor) {
+			this.executor = executor;
+			descend(folder, null, depth);
+			synchronized (pending) {
+				while (pending.get() > 0) {
+					try {
+						pending.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
 					}
 				}
-				if (exclude) {
+			}
+		}
+
+		/**
+		 * Searches a folder for repositories.
+		 *
+		 * @param folder
+		 * @param path
+		 *            path of the folder relative to the repositories folder,
+		 *            null for the repositories folder itself
+		 * @param depth
+		 *            recursion depth, -1 = infinite recursion
+		 */
+		void search(File folder, String path, int depth) {
+			if (depth == 0) {
+				return;
+			}
+			File[] files = folder.listFiles();
+			if (files == null) {
+				return;
+			}
+			int nextDepth = (depth == -1) ? -1 : depth - 1;
+			for (File file : files) {
+				if (!file.isDirectory()) {
+					continue;
+				}
+				String relativePath = path == null ? file.getName() : (path + "/" + file.getName());
+				if (isExcluded(relativePath)) {
 					// skip to next file
 					continue;
 				}
 
-				File gitDir = FileKey.resolve(new File(searchFolder, file.getName()), FS.DETECTED);
+				File gitDir = FileKey.resolve(file, FS.DETECTED);
 				if (gitDir != null) {
 					if (onlyBare && gitDir.getName().equals(".git")) {
 						continue;
 					}
 					if (gitDir.equals(file) || gitDir.getParentFile().equals(file)) {
-						// determine repository name relative to base path
-						String repository = FileUtils.getRelativePath(baseFile, file);
-						list.add(repository);
-					} else if (searchSubfolders && file.canRead()) {
-						// look for repositories in subfolders
-						list.addAll(getRepositoryList(basePath, file, onlyBare, searchSubfolders,
-								nextDepth, patterns));
+						repositories.add(relativePath);
+						continue;
 					}
-				} else if (searchSubfolders && file.canRead()) {
+				}
+				if (searchSubfolders && file.canRead()) {
 					// look for repositories in subfolders
-					list.addAll(getRepositoryList(basePath, file, onlyBare, searchSubfolders,
-							nextDepth, patterns));
+					descend(file, relativePath, nextDepth);
+				}
+			}
+		}
+
+		private boolean isExcluded(String path) {
+			for (Pattern pattern : patterns) {
+				if (pattern.matcher(path).matches()) {
+					LOGGER.debug(MessageFormat.format("excluding {0} because of rule {1}", path, pattern.pattern()));
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void descend(final File folder, final String path, final int depth) {
+			if (executor == null) {
+				search(folder, path, depth);
+				return;
+			}
+			if (depth == 0) {
+				return;
+			}
+			pending.incrementAndGet();
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							search(folder, path, depth);
+						} catch (Throwable t) {
+							LOGGER.error(MessageFormat.format("failed to search {0} for repositories", folder), t);
+						} finally {
+							complete();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				complete();
+			}
+		}
+
+		private void complete() {
+			if (pending.decrementAndGet() == 0) {
+				synchronized (pending) {
+					pending.notifyAll();
 				}
 			}
 		}
-		return list;
 	}
 
 	/**
@@ -645,6 +761,35 @@ public class JGitUtils {
 		return StringUtils.decodeString(content, charsets);
 	}
 
+	/**
+	 * Determines the charset of a blob from its first 8KB without loading the
+	 * whole blob.  This allows text blobs to be streamed untranscoded.
+	 * 
+	 * @param repository
+	 * @param blobId
+	 * @param charsets optional
+	 * @return the charset of the blob, UTF-8 if the blob can not be read
+	 */
+	public static Charset getCharset(Repository repository, ObjectId blobId, String... charsets) {
+		byte[] probe = new byte[8192];
+		int length = 0;
+		try {
+			InputStream in = repository.open(blobId, Constants.OBJ_BLOB).openStream();
+			try {
+				int n;
+				while (length < probe.length && (n = in.read(probe, length, probe.length - length)) > -1) {
+					length += n;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (Throwable t) {
+			error(t, repository, "{0} can't read blob {1}", blobId.getName());
+			return Charset.forName("UTF-8");
+		}
+		return StringUtils.getCharset(probe, length, charsets);
+	}
+
 	/**
 	 * Returns the list of files in the specified folder at the specified
 	 * commit. If the repository does not exist or is empty, an empty list is
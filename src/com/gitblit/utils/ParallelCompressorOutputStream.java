@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Base class for block compressors which compress independent blocks of the
+ * input in parallel and write the compressed blocks to the underlying stream
+ * in order.
+ *
+ * Memory is bounded by the number of pending blocks.  When the maximum
+ * number of blocks are being compressed, the writer waits for the oldest
+ * block and writes it before buffering more input.
+ *
+ * @author James Moger
+ *
+ */
+public abstract class ParallelCompressorOutputStream extends OutputStream {
+
+	private final OutputStream out;
+
+	private final ExecutorService executor;
+
+	private final int blockSize;
+
+	private final int maxPendingBlocks;
+
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	private byte[] block;
+
+	private int count;
+
+	private long blocks;
+
+	private boolean closed;
+
+	/**
+	 * @param out
+	 *            the underlying stream
+	 * @param executor
+	 *            the executor which compresses the blocks
+	 * @param blockSize
+	 *            the number of input bytes per block
+	 * @param maxPendingBlocks
+	 *            the maximum number of blocks being compressed at once
+	 */
+	protected ParallelCompressorOutputStream(OutputStream out, ExecutorService executor,
+			int blockSize, int maxPendingBlocks) {
+		this.out = out;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+		this.block = new byte[blockSize];
+	}
+
+	/**
+	 * Compresses a block of input into an independently decompressable unit of
+	 * the compressed format.  This method is called concurrently.
+	 *
+	 * @param block
+	 * @param length
+	 * @return the compressed block
+	 * @throws IOException
+	 */
+	protected abstract byte[] compress(byte[] block, int length) throws IOException;
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		block[count++] = (byte) b;
+		if (count == blockSize) {
+			submit();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			int n = Math.min(len, blockSize - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == blockSize) {
+				submit();
+			}
+		}
+	}
+
+	/**
+	 * Compresses the buffered input and waits for all pending blocks to be
+	 * written to the underlying stream.  Each flush ends a block so frequent
+	 * flushes reduce the compression ratio.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		if (count > 0) {
+			submit();
+		}
+		while (!pending.isEmpty()) {
+			writeNext();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes all pending blocks, without closing the underlying stream.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			if (blocks == 0) {
+				// empty input is compressed as an empty block
+				submit();
+			}
+			flush();
+		} finally {
+			closed = true;
+			cancel();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void submit() throws IOException {
+		if (pending.size() >= maxPendingBlocks) {
+			writeNext();
+		}
+		final byte[] data = block;
+		final int length = count;
+		try {
+			pending.add(executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return compress(data, length);
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			// executor is shutting down, compress in this thread
+			pending.add(new CompletedBlock(compress(data, length)));
+		}
+		block = new byte[blockSize];
+		count = 0;
+		blocks++;
+	}
+
+	private void writeNext() throws IOException {
+		Future<byte[]> next = pending.removeFirst();
+		try {
+			out.write(next.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel();
+			throw new IOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			cancel();
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			IOException x = new IOException("Failed to compress block");
+			x.initCause(e.getCause());
+			throw x;
+		}
+	}
+
+	private void cancel() {
+		for (Future<byte[]> future : pending) {
+			future.cancel(true);
+		}
+		pending.clear();
+		block = null;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed || block == null) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	/**
+	 * A block which was compressed by the writing thread.
+	 */
+	private static class CompletedBlock implements Future<byte[]> {
+
+		final byte[] data;
+
+		CompletedBlock(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+
+		@Override
+		public byte[] get() {
+			return data;
+		}
+
+		@Override
+		public byte[] get(long timeout, java.util.concurrent.TimeUnit unit) {
+			return data;
+		}
+	}
+}
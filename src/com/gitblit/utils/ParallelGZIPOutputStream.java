@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses blocks of the input in parallel as independent gzip members.
+ *
+ * A gzip file may be composed of several members whose decompressed content
+ * is concatenated (RFC 1952) so the output is a valid gzip file for gunzip,
+ * tar, and browsers.
+ *
+ * @author James Moger
+ *
+ */
+public class ParallelGZIPOutputStream extends ParallelCompressorOutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final int level;
+
+	public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks) {
+		this(out, executor, DEFAULT_BLOCK_SIZE, maxPendingBlocks, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int blockSize,
+			int maxPendingBlocks, int level) {
+		super(out, executor, blockSize, maxPendingBlocks);
+		this.level = level;
+	}
+
+	@Override
+	protected byte[] compress(byte[] block, int length) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(length / 2 + HEADER.length + 8);
+		os.write(HEADER);
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(block, 0, length);
+			deflater.finish();
+			byte[] buffer = new byte[64 * 1024];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				os.write(buffer, 0, n);
+			}
+		} finally {
+			deflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(block, 0, length);
+		writeInt(os, (int) crc.getValue());
+		writeInt(os, length);
+		return os.toByteArray();
+	}
+
+	private void writeInt(OutputStream os, int value) throws IOException {
+		os.write(value & 0xff);
+		os.write((value >> 8) & 0xff);
+		os.write((value >> 16) & 0xff);
+		os.write((value >> 24) & 0xff);
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Compresses blocks of the input in parallel as independent xz streams.
+ *
+ * Concatenated xz streams are a valid xz file for xz, tar, and the xz
+ * decoders of Java.  The dictionary of each block is limited to the block size
+ * which bounds the memory of each concurrent encoder.
+ *
+ * @author James Moger
+ *
+ */
+public class ParallelXZOutputStream extends ParallelCompressorOutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 2 * 1024 * 1024;
+
+	private final LZMA2Options options;
+
+	public ParallelXZOutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks)
+			throws IOException {
+		this(out, executor, DEFAULT_BLOCK_SIZE, maxPendingBlocks, LZMA2Options.PRESET_DEFAULT);
+	}
+
+	public ParallelXZOutputStream(OutputStream out, ExecutorService executor, int blockSize,
+			int maxPendingBlocks, int preset) throws IOException {
+		super(out, executor, blockSize, maxPendingBlocks);
+		try {
+			options = new LZMA2Options(preset);
+			options.setDictSize(Math.max(LZMA2Options.DICT_SIZE_MIN,
+					Math.min(options.getDictSize(), blockSize)));
+		} catch (UnsupportedOptionsException e) {
+			IOException x = new IOException("Unsupported xz options");
+			x.initCause(e);
+			throw x;
+		}
+	}
+
+	@Override
+	protected byte[] compress(byte[] block, int length) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(length / 4);
+		XZOutputStream xz = new XZOutputStream(os, options);
+		xz.write(block, 0, length);
+		xz.close();
+		return os.toByteArray();
+	}
+}
@@ -31,6 +31,7 @@ import com.gitblit.models.FederationProposal;
 import com.gitblit.models.FederationSet;
 import com.gitblit.models.FeedModel;
 import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.SearchResult;
 import com.gitblit.models.ServerSettings;
 import com.gitblit.models.ServerStatus;
 import com.gitblit.models.TeamModel;
@@ -69,6 +70,9 @@ public class RpcUtils {
 	private static final Type SETS_TYPE = new TypeToken<Collection<FederationSet>>() {
 	}.getType();
 
+	private static final Type SEARCH_RESULTS_TYPE = new TypeToken<Collection<SearchResult>>() {
+	}.getType();
+
 	private static final Type BRANCHES_TYPE = new TypeToken<Map<String, Collection<String>>>() {
 	}.getType();
 
@@ -590,6 +594,69 @@ public class RpcUtils {
 		return branches;
 	}
 
+	/**
+	 * Searches the indexed repositories of the Gitblit server.
+	 * 
+	 * @param query
+	 *            the Lucene query
+	 * @param repositories
+	 *            the repositories to search, if empty all indexed repositories
+	 *            accessible to the account are searched
+	 * @param page
+	 *            the page number to retrieve, 1-indexed
+	 * @param pageSize
+	 *            the number of results per page
+	 * @param after
+	 *            the cursor of the last result of the previous page, may be
+	 *            null
+	 * @param serverUrl
+	 * @param account
+	 * @param password
+	 * @return a list of search results
+	 * @throws IOException
+	 */
+	public static List<SearchResult> search(String query, Collection<String> repositories, int page,
+			int pageSize, String after, String serverUrl, String account, char[] password)
+			throws IOException {
+		StringBuilder sb = new StringBuilder(asLink(serverUrl, RpcRequest.SEARCH, query));
+		if (!ArrayUtils.isEmpty(repositories)) {
+			sb.append("&r=").append(StringUtils.encodeURL(StringUtils.flattenStrings(repositories)));
+		}
+		sb.append("&pg=").append(page).append("&l=").append(pageSize);
+		if (!StringUtils.isEmpty(after)) {
+			sb.append("&after=").append(StringUtils.encodeURL(after));
+		}
+		Collection<SearchResult> results = JsonUtils.retrieveJson(sb.toString(), SEARCH_RESULTS_TYPE,
+				account, password);
+		return new ArrayList<SearchResult>(results);
+	}
+
+	/**
+	 * Counts the hits of a query in the indexed repositories of the Gitblit
+	 * server.
+	 * 
+	 * @param query
+	 *            the Lucene query
+	 * @param repositories
+	 *            the repositories to search, if empty all indexed repositories
+	 *            accessible to the account are searched
+	 * @param serverUrl
+	 * @param account
+	 * @param password
+	 * @return the number of hits
+	 * @throws IOException
+	 */
+	public static int countSearchHits(String query, Collection<String> repositories, String serverUrl,
+			String account, char[] password) throws IOException {
+		StringBuilder sb = new StringBuilder(asLink(serverUrl, RpcRequest.SEARCH, query));
+		if (!ArrayUtils.isEmpty(repositories)) {
+			sb.append("&r=").append(StringUtils.encodeURL(StringUtils.flattenStrings(repositories)));
+		}
+		sb.append("&count=true");
+		Integer count = JsonUtils.retrieveJson(sb.toString(), Integer.class, account, password);
+		return count == null ? 0 : count;
+	}
+
 	/**
 	 * Retrieves a list of available branch feeds in the Gitblit server.
 	 * 
@@ -620,6 +620,41 @@ public class StringUtils {
         }
 		return value;
 	}
+
+	/**
+	 * Determines the charset of partial content by trying several charsets
+	 * until one can decode the content.  This is the streaming equivalent of
+	 * decodeString; an incomplete character sequence at the end of the content
+	 * is not considered to be a coding error.
+	 * 
+	 * @param content
+	 * @param length
+	 *            number of bytes of content to inspect
+	 * @param charsets optional
+	 * @return a charset
+	 */
+	public static Charset getCharset(byte [] content, int length, String... charsets) {
+		Set<String> sets = new LinkedHashSet<String>();
+		if (!ArrayUtils.isEmpty(charsets)) {
+			sets.addAll(Arrays.asList(charsets));
+		}
+		sets.addAll(Arrays.asList("UTF-8", "ISO-8859-1", Charset.defaultCharset().name()));
+		for (String charset : sets) {
+			try {
+				Charset cs = Charset.forName(charset);
+				CharsetDecoder decoder = cs.newDecoder();
+				CharBuffer buffer = CharBuffer.allocate(length);
+				if (!decoder.decode(ByteBuffer.wrap(content, 0, length), buffer, false).isError()) {
+					return cs;
+				}
+			} catch (IllegalCharsetNameException e) {
+				// ignore illegal charset names
+			} catch (UnsupportedCharsetException e) {
+				// ignore unsupported charsets
+			}
+		}
+		return Charset.forName("UTF-8");
+	}
 	
 	/**
 	 * Attempt to extract a repository name from a given url using regular
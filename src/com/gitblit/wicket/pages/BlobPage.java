@@ -24,12 +24,14 @@ import org.apache.wicket.PageParameters;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.image.Image;
 import org.apache.wicket.markup.html.link.BookmarkablePageLink;
+import org.apache.wicket.markup.html.link.ExternalLink;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 
 import com.gitblit.GitBlit;
 import com.gitblit.Keys;
+import com.gitblit.RawServlet;
 import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.StringUtils;
 import com.gitblit.wicket.ExternalImage;
@@ -45,6 +47,7 @@ public class BlobPage extends RepositoryPage {
 		Repository r = getRepository();
 		final String blobPath = WicketUtils.getPath(params);
 		String [] encodings = GitBlit.getEncodings();
+		String baseUrl = WicketUtils.getGitblitURL(getRequest());
 		
 		if (StringUtils.isEmpty(blobPath)) {
 			// blob by objectid
@@ -53,8 +56,7 @@ public class BlobPage extends RepositoryPage {
 					WicketUtils.newPathParameter(repositoryName, objectId, blobPath))
 					.setEnabled(false));
 			add(new BookmarkablePageLink<Void>("historyLink", HistoryPage.class).setEnabled(false));
-			add(new BookmarkablePageLink<Void>("rawLink", RawPage.class,
-					WicketUtils.newPathParameter(repositoryName, objectId, blobPath)));
+			add(new ExternalLink("rawLink", RawServlet.asLink(baseUrl, repositoryName, objectId, blobPath)));
 			add(new BookmarkablePageLink<Void>("headLink", BlobPage.class).setEnabled(false));
 			add(new CommitHeaderPanel("commitHeader", objectId));
 			add(new PathBreadcrumbsPanel("breadcrumbs", repositoryName, blobPath, objectId));
@@ -84,8 +86,7 @@ public class BlobPage extends RepositoryPage {
 					WicketUtils.newPathParameter(repositoryName, objectId, blobPath)));
 			add(new BookmarkablePageLink<Void>("historyLink", HistoryPage.class,
 					WicketUtils.newPathParameter(repositoryName, objectId, blobPath)));
-			add(new BookmarkablePageLink<Void>("rawLink", RawPage.class,
-					WicketUtils.newPathParameter(repositoryName, objectId, blobPath)));
+			add(new ExternalLink("rawLink", RawServlet.asLink(baseUrl, repositoryName, objectId, blobPath)));
 			add(new BookmarkablePageLink<Void>("headLink", BlobPage.class,
 					WicketUtils.newPathParameter(repositoryName, Constants.HEAD, blobPath)));
 
@@ -114,7 +115,7 @@ public class BlobPage extends RepositoryPage {
 				case 2:
 					// image blobs
 					add(new Label("blobText").setVisible(false));
-					add(new ExternalImage("blobImage", urlFor(RawPage.class, WicketUtils.newPathParameter(repositoryName, objectId, blobPath)).toString()));
+					add(new ExternalImage("blobImage", RawServlet.asLink(baseUrl, repositoryName, objectId, blobPath)));
 					break;
 				case 3:
 					// binary blobs
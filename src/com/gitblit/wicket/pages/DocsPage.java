@@ -20,6 +20,7 @@ import java.util.List;
 import org.apache.wicket.PageParameters;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.link.BookmarkablePageLink;
+import org.apache.wicket.markup.html.link.ExternalLink;
 import org.apache.wicket.markup.repeater.Item;
 import org.apache.wicket.markup.repeater.data.DataView;
 import org.apache.wicket.markup.repeater.data.ListDataProvider;
@@ -27,6 +28,7 @@ import org.eclipse.jgit.lib.Repository;
 
 import com.gitblit.GitBlit;
 import com.gitblit.Keys;
+import com.gitblit.RawServlet;
 import com.gitblit.models.PathModel;
 import com.gitblit.utils.ByteFormat;
 import com.gitblit.utils.JGitUtils;
@@ -43,6 +45,7 @@ public class DocsPage extends RepositoryPage {
 		List<PathModel> paths = JGitUtils.getDocuments(r, extensions);
 
 		final ByteFormat byteFormat = new ByteFormat();
+		final String baseUrl = WicketUtils.getGitblitURL(getRequest());
 
 		add(new Label("header", getString("gb.docs")));
 
@@ -62,8 +65,8 @@ public class DocsPage extends RepositoryPage {
 				// links
 				item.add(new BookmarkablePageLink<Void>("view", BlobPage.class, WicketUtils
 						.newPathParameter(repositoryName, entry.commitId, entry.path)));
-				item.add(new BookmarkablePageLink<Void>("raw", RawPage.class, WicketUtils
-						.newPathParameter(repositoryName, entry.commitId, entry.path)));
+				item.add(new ExternalLink("raw", RawServlet.asLink(baseUrl, repositoryName,
+						entry.commitId, entry.path)));
 				item.add(new BookmarkablePageLink<Void>("blame", BlamePage.class, WicketUtils
 						.newPathParameter(repositoryName, entry.commitId, entry.path)));
 				item.add(new BookmarkablePageLink<Void>("history", HistoryPage.class, WicketUtils
@@ -64,6 +64,7 @@ public class LuceneSearchPage extends RootPage {
 		// default values
 		ArrayList<String> repositories = new ArrayList<String>();				
 		String query = "";
+		String after = null;
 		int page = 1;
 		int pageSize = GitBlit.getInteger(Keys.web.itemsPerPage, 50);
 
@@ -74,6 +75,7 @@ public class LuceneSearchPage extends RootPage {
 			}
 
 			page = WicketUtils.getPage(params);
+			after = params.getString("after", null);
 			
 			if (params.containsKey("repositories")) {
 				String value = params.getString("repositories", "");
@@ -158,7 +160,7 @@ public class LuceneSearchPage extends RootPage {
 		// execute search
 		final List<SearchResult> results = new ArrayList<SearchResult>();
 		if (!ArrayUtils.isEmpty(searchRepositories) && !StringUtils.isEmpty(query)) {
-			results.addAll(GitBlit.self().search(query, page, pageSize, searchRepositories));
+			results.addAll(GitBlit.self().search(query, page, pageSize, after, searchRepositories));
 		}
 		
 		// results header
@@ -246,12 +248,17 @@ public class LuceneSearchPage extends RootPage {
 		
 		boolean showPager = false;
 		int totalPages = 0;
+		PageParameters nextPageParams = null;
 		if (results.size() > 0) {
 			totalPages = (results.get(0).totalHits / pageSize) + (results.get(0).totalHits % pageSize > 0 ? 1 : 0);
 			showPager = results.get(0).totalHits > pageSize;
+
+			// the next page continues after the last result of this page
+			nextPageParams = new PageParameters(pagerParams);
+			nextPageParams.put("after", results.get(results.size() - 1).cursor);
 		}
 		
-		add(new PagerPanel("topPager", page, totalPages, LuceneSearchPage.class, pagerParams).setVisible(showPager));
-		add(new PagerPanel("bottomPager", page, totalPages, LuceneSearchPage.class, pagerParams).setVisible(showPager));
+		add(new PagerPanel("topPager", page, totalPages, LuceneSearchPage.class, pagerParams, nextPageParams).setVisible(showPager));
+		add(new PagerPanel("bottomPager", page, totalPages, LuceneSearchPage.class, pagerParams, nextPageParams).setVisible(showPager));
 	}
 }
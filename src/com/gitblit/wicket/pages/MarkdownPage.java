@@ -21,11 +21,13 @@ import java.text.ParseException;
 import org.apache.wicket.PageParameters;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.link.BookmarkablePageLink;
+import org.apache.wicket.markup.html.link.ExternalLink;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 
 import com.gitblit.GitBlit;
+import com.gitblit.RawServlet;
 import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.MarkdownUtils;
 import com.gitblit.utils.StringUtils;
@@ -47,7 +49,7 @@ public class MarkdownPage extends RepositoryPage {
 				WicketUtils.newPathParameter(repositoryName, objectId, markdownPath)));
 		add(new BookmarkablePageLink<Void>("historyLink", HistoryPage.class,
 				WicketUtils.newPathParameter(repositoryName, objectId, markdownPath)));
-		add(new BookmarkablePageLink<Void>("rawLink", RawPage.class, WicketUtils.newPathParameter(
+		add(new ExternalLink("rawLink", RawServlet.asLink(WicketUtils.getGitblitURL(getRequest()),
 				repositoryName, objectId, markdownPath)));
 		add(new BookmarkablePageLink<Void>("headLink", MarkdownPage.class,
 				WicketUtils.newPathParameter(repositoryName, Constants.HEAD, markdownPath)));
@@ -34,6 +34,24 @@ public class PagerPanel extends Panel {
 
 	public PagerPanel(String wicketId, final int currentPage, final int totalPages,
 			final Class<? extends BasePage> pageClass, final PageParameters baseParams) {
+		this(wicketId, currentPage, totalPages, pageClass, baseParams, null);
+	}
+
+	/**
+	 * Creates a pager with distinct parameters for the link to the next page,
+	 * e.g. a cursor to continue the current results.
+	 * 
+	 * @param wicketId
+	 * @param currentPage
+	 * @param totalPages
+	 * @param pageClass
+	 * @param baseParams
+	 * @param nextParams
+	 *            parameters for the next page, null to use the base parameters
+	 */
+	public PagerPanel(String wicketId, final int currentPage, final int totalPages,
+			final Class<? extends BasePage> pageClass, final PageParameters baseParams,
+			final PageParameters nextParams) {
 		super(wicketId);
 		List<PageObject> pages = new ArrayList<PageObject>();
 		int[] deltas;
@@ -67,7 +85,12 @@ public class PagerPanel extends Panel {
 
 			public void populateItem(final Item<PageObject> item) {
 				PageObject pageItem = item.getModelObject();
-				PageParameters pageParams = new PageParameters(baseParams);
+				PageParameters pageParams;
+				if (nextParams != null && pageItem.page == currentPage + 1) {
+					pageParams = new PageParameters(nextParams);
+				} else {
+					pageParams = new PageParameters(baseParams);
+				}
 				pageParams.put("pg", pageItem.page);
 				LinkPanel link = new LinkPanel("pageLink", null, pageItem.text, pageClass, pageParams);
 				link.setRenderBodyOnly(true);
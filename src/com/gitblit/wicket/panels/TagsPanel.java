@@ -19,6 +19,7 @@ import java.util.List;
 
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.link.BookmarkablePageLink;
+import org.apache.wicket.markup.html.link.ExternalLink;
 import org.apache.wicket.markup.html.panel.Fragment;
 import org.apache.wicket.markup.repeater.Item;
 import org.apache.wicket.markup.repeater.data.DataView;
@@ -27,6 +28,7 @@ import org.apache.wicket.model.StringResourceModel;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.Repository;
 
+import com.gitblit.RawServlet;
 import com.gitblit.models.RefModel;
 import com.gitblit.utils.JGitUtils;
 import com.gitblit.utils.StringUtils;
@@ -34,7 +36,6 @@ import com.gitblit.wicket.WicketUtils;
 import com.gitblit.wicket.pages.BlobPage;
 import com.gitblit.wicket.pages.CommitPage;
 import com.gitblit.wicket.pages.LogPage;
-import com.gitblit.wicket.pages.RawPage;
 import com.gitblit.wicket.pages.RepositoryPage;
 import com.gitblit.wicket.pages.TagPage;
 import com.gitblit.wicket.pages.TagsPage;
@@ -108,9 +109,9 @@ public class TagsPanel extends BasePanel {
 							.newObjectParameter(repositoryName, entry.getReferencedObjectId()
 									.getName())));
 
-					fragment.add(new BookmarkablePageLink<Void>("raw", RawPage.class, WicketUtils
-							.newObjectParameter(repositoryName, entry.getReferencedObjectId()
-									.getName())));
+					fragment.add(new ExternalLink("raw", RawServlet.asLink(
+							WicketUtils.getGitblitURL(getRequest()), repositoryName,
+							entry.getReferencedObjectId().getName(), null)));
 					item.add(fragment);
 				} else {
 					// TODO Tree Tag Object
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.util.FileUtils;
+import org.junit.Test;
+
+import com.gitblit.ArchiveCache;
+
+public class ArchiveCacheTest {
+
+	@Test
+	public void testKeys() throws Exception {
+		String key = ArchiveCache.getKey("test.git", "abc", null, "zip");
+		assertEquals(key, ArchiveCache.getKey("test.git", "abc", "", "zip"));
+		assertFalse(key.equals(ArchiveCache.getKey("test.git", "abc", "src", "zip")));
+		assertFalse(key.equals(ArchiveCache.getKey("test.git", "abc", null, "gz")));
+		assertFalse(key.equals(ArchiveCache.getKey("test.git", "abd", null, "zip")));
+		assertFalse(key.equals(ArchiveCache.getKey("other.git", "abc", null, "zip")));
+		// repository names are case-insensitive
+		assertEquals(key, ArchiveCache.getKey("Test.git", "abc", null, "zip"));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		File folder = new File("archivecache");
+		if (folder.exists()) {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+		try {
+			ArchiveCache cache = new ArchiveCache(folder, 250);
+			AtomicInteger writes = new AtomicInteger();
+			File a = cache.getArchive(key("a"), ".zip", writer(100, writes));
+			File b = cache.getArchive(key("b"), ".zip", writer(100, writes));
+			assertEquals(2, writes.get());
+			assertEquals(200, cache.getSize());
+
+			// cached
+			assertEquals(a, cache.getArchive(key("a"), ".zip", writer(100, writes)));
+			assertEquals(2, writes.get());
+
+			// b is the least recently used archive
+			File c = cache.getArchive(key("c"), ".zip", writer(100, writes));
+			assertEquals(3, writes.get());
+			assertEquals(2, cache.getCount());
+			assertTrue(a.exists());
+			assertFalse(b.exists());
+			assertTrue(c.exists());
+
+			// cached archives are loaded after a restart
+			cache = new ArchiveCache(folder, 250);
+			assertEquals(200, cache.getSize());
+			cache.getArchive(key("c"), ".zip", writer(100, writes));
+			assertEquals(3, writes.get());
+
+			// foreign files in the cache folder are neither counted nor evicted
+			File foreign = new File(folder, "README.txt");
+			FileOutputStream os = new FileOutputStream(foreign);
+			os.write(new byte[500]);
+			os.close();
+			cache = new ArchiveCache(folder, 250);
+			assertEquals(200, cache.getSize());
+			assertEquals(2, cache.getCount());
+
+			// an archive larger than the cache is kept until the next addition
+			File d = cache.getArchive(key("d"), ".zip", writer(300, writes));
+			assertTrue(d.exists());
+			assertEquals(1, cache.getCount());
+		} finally {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		File folder = new File("archivecache");
+		if (folder.exists()) {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+		try {
+			final ArchiveCache cache = new ArchiveCache(folder, 1000);
+			final AtomicInteger writes = new AtomicInteger();
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<File> files = new ArrayList<File>();
+			final List<Exception> failures = new ArrayList<Exception>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < 8; i++) {
+				Thread t = new Thread() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							File file = cache.getArchive("a", ".zip", slowWriter(100, writes));
+							synchronized (files) {
+								files.add(file);
+							}
+						} catch (Exception e) {
+							synchronized (failures) {
+								failures.add(e);
+							}
+						}
+					}
+				};
+				t.start();
+				threads.add(t);
+			}
+			start.countDown();
+			for (Thread t : threads) {
+				t.join();
+			}
+			assertTrue("Archive build failed: " + failures, failures.isEmpty());
+			assertEquals(1, writes.get());
+			assertEquals(8, files.size());
+
+			// failed builds are not cached
+			try {
+				cache.getArchive("b", ".zip", new ArchiveCache.ArchiveWriter() {
+					@Override
+					public void write(OutputStream os) throws IOException {
+						throw new IOException("failed");
+					}
+				});
+			} catch (IOException e) {
+			}
+			assertEquals(1, cache.getCount());
+			assertEquals(1, folder.list().length);
+		} finally {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+	}
+
+	private String key(String commitId) {
+		return ArchiveCache.getKey("test.git", commitId, null, "zip");
+	}
+
+	private ArchiveCache.ArchiveWriter writer(final int length, final AtomicInteger writes) {
+		return new ArchiveCache.ArchiveWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				writes.incrementAndGet();
+				os.write(new byte[length]);
+			}
+		};
+	}
+
+	private ArchiveCache.ArchiveWriter slowWriter(final int length, final AtomicInteger writes) {
+		return new ArchiveCache.ArchiveWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				writes.incrementAndGet();
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				os.write(new byte[length]);
+			}
+		};
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.util.FileUtils;
+import org.junit.Test;
+
+import com.gitblit.ClonePackCache;
+import com.gitblit.ClonePackCache.Tips;
+import com.gitblit.UploadPackFilter;
+import com.gitblit.UploadPackRequest;
+
+public class ClonePackTest {
+
+	private static final String A = "1111111111111111111111111111111111111111";
+
+	private static final String B = "2222222222222222222222222222222222222222";
+
+	@Test
+	public void testParseRequest() throws Exception {
+		UploadPackRequest request = parse(pkt("want " + A + " multi_ack_detailed side-band-64k ofs-delta\n")
+				+ pkt("want " + B + "\n") + "0000" + pkt("done\n"));
+		assertNotNull(request);
+		assertEquals(2, request.wants.size());
+		assertTrue(request.wants.contains(ObjectId.fromString(A)));
+		assertTrue(request.capabilities.contains("ofs-delta"));
+		assertEquals(3, request.capabilities.size());
+		assertEquals(65520, request.getSideBandLength());
+		assertTrue(request.done);
+		assertTrue(request.haves.isEmpty());
+
+		// incomplete and malformed requests
+		assertNull(parse(pkt("want " + A + "\n").substring(0, 20)));
+		assertNull(parse(pkt("want 1234\n")));
+		assertNull(parse(pkt("done\n") + pkt("want " + A + "\n")));
+		assertNull(parse("0000"));
+
+		request = parse(pkt("want " + A + " side-band\n") + pkt("deepen 1\n") + "0000"
+				+ pkt("have " + B + "\n"));
+		assertEquals(1000, request.getSideBandLength());
+		assertEquals(1, request.options.size());
+		assertEquals(1, request.haves.size());
+		assertFalse(request.done);
+	}
+
+	@Test
+	public void testFullClone() throws Exception {
+		ObjectId a = ObjectId.fromString(A);
+		ObjectId b = ObjectId.fromString(B);
+		ObjectId c = ObjectId.zeroId();
+		List<ObjectId> heads = Arrays.asList(a);
+		List<ObjectId> tips = Arrays.asList(a, b);
+
+		assertTrue(parse(pkt("want " + A + " ofs-delta\n") + "0000" + pkt("done\n")).isFullClone(heads, tips));
+		assertTrue(parse(pkt("want " + A + " ofs-delta\n") + pkt("want " + B + "\n") + "0000"
+				+ pkt("done\n")).isFullClone(heads, tips));
+
+		// without offset deltas
+		assertFalse(parse(pkt("want " + A + "\n") + "0000" + pkt("done\n")).isFullClone(heads, tips));
+		// not the final request
+		assertFalse(parse(pkt("want " + A + " ofs-delta\n") + "0000").isFullClone(heads, tips));
+		// a fetch
+		assertFalse(parse(pkt("want " + A + " ofs-delta\n") + "0000" + pkt("have " + B + "\n")
+				+ pkt("done\n")).isFullClone(heads, tips));
+		// a shallow clone
+		assertFalse(parse(pkt("want " + A + " ofs-delta\n") + pkt("deepen 1\n") + "0000"
+				+ pkt("done\n")).isFullClone(heads, tips));
+		// a single tag
+		assertFalse(parse(pkt("want " + B + " ofs-delta\n") + "0000" + pkt("done\n")).isFullClone(heads, tips));
+		// an object which is not a tip
+		assertFalse(parse(pkt("want " + A + " ofs-delta\n") + pkt("want " + c.getName() + "\n") + "0000"
+				+ pkt("done\n")).isFullClone(heads, tips));
+	}
+
+	@Test
+	public void testSideBand() throws Exception {
+		byte[] data = new byte[2500];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		UploadPackFilter.writeSideBand(new ByteArrayInputStream(data), os, 1000);
+		byte[] framed = os.toByteArray();
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		int pos = 0;
+		int packets = 0;
+		while (true) {
+			int len = Integer.parseInt(new String(framed, pos, 4, "US-ASCII"), 16);
+			if (len == 0) {
+				pos += 4;
+				break;
+			}
+			assertTrue(len <= 1000);
+			assertEquals(1, framed[pos + 4]);
+			content.write(framed, pos + 5, len - 5);
+			pos += len;
+			packets++;
+		}
+		assertEquals(framed.length, pos);
+		assertEquals(3, packets);
+		assertTrue(Arrays.equals(data, content.toByteArray()));
+	}
+
+	@Test
+	public void testWritePack() throws Exception {
+		File folder = new File("clonepack");
+		File packs = new File("clonepacks");
+		File clone = new File("clonepack-clone");
+		for (File f : new File[] { folder, packs, clone }) {
+			if (f.exists()) {
+				FileUtils.delete(f, FileUtils.RECURSIVE);
+			}
+		}
+		Git git = Git.init().setDirectory(folder).call();
+		Repository target = Git.init().setBare(true).setDirectory(clone).call().getRepository();
+		try {
+			write(new File(folder, "README"), "readme");
+			git.add().addFilepattern(".").call();
+			RevCommit first = git.commit().setMessage("first").call();
+			git.tag().setName("v1").setMessage("v1").call();
+			write(new File(folder, "README"), "readme 2");
+			git.add().addFilepattern(".").call();
+			RevCommit second = git.commit().setMessage("second").call();
+
+			Repository r = git.getRepository();
+			ClonePackCache cache = new ClonePackCache(packs, 2);
+			Tips tips = ClonePackCache.getTips(r);
+			assertEquals(1, tips.heads.size());
+			assertEquals(2, tips.tips.size());
+			assertNull(cache.getPack("clonepack.git", tips.state));
+
+			// a single clone does not qualify for a pack
+			cache.recordClone("clonepack.git");
+			assertTrue(cache.needsMaintenance("clonepack.git"));
+			assertFalse(cache.update("clonepack.git", r));
+			assertFalse(cache.needsMaintenance("clonepack.git"));
+
+			cache.recordClone("clonepack.git");
+			cache.recordClone("CLONEPACK.git");
+			assertTrue(cache.update("clonepack.git", r));
+			File pack = cache.getPack("clonepack.git", tips.state);
+			assertNotNull(pack);
+
+			// the pack contains all branches and tags
+			InputStream is = new FileInputStream(pack);
+			ObjectInserter inserter = target.newObjectInserter();
+			try {
+				PackParser parser = inserter.newPackParser(is);
+				parser.parse(NullProgressMonitor.INSTANCE);
+				inserter.flush();
+			} finally {
+				inserter.release();
+				is.close();
+			}
+			assertTrue(target.hasObject(first));
+			assertTrue(target.hasObject(second));
+			assertTrue(target.hasObject(r.getRef("refs/tags/v1").getObjectId()));
+
+			// a changed branch invalidates the pack
+			write(new File(folder, "README"), "readme 3");
+			git.add().addFilepattern(".").call();
+			git.commit().setMessage("third").call();
+			Tips changed = ClonePackCache.getTips(r);
+			assertFalse(tips.state.equals(changed.state));
+			assertNull(cache.getPack("clonepack.git", changed.state));
+
+			// a cloned repository keeps its pack
+			cache.recordClone("clonepack.git");
+			assertTrue(cache.update("clonepack.git", r));
+			assertNotNull(cache.getPack("clonepack.git", changed.state));
+			assertNull(cache.getPack("clonepack.git", tips.state));
+
+			// a repository which is no longer cloned loses its pack
+			assertTrue(cache.needsMaintenance("clonepack.git"));
+			assertFalse(cache.update("clonepack.git", r));
+			assertNull(cache.getPack("clonepack.git", changed.state));
+		} finally {
+			git.getRepository().close();
+			target.close();
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+			FileUtils.delete(clone, FileUtils.RECURSIVE);
+			FileUtils.delete(packs, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+		}
+	}
+
+	private UploadPackRequest parse(String body) throws Exception {
+		byte[] bytes = body.getBytes("UTF-8");
+		return UploadPackRequest.parse(bytes, bytes.length);
+	}
+
+	private String pkt(String line) {
+		return String.format("%04x", line.length() + 4) + line;
+	}
+
+	private void write(File file, String content) throws Exception {
+		file.getParentFile().mkdirs();
+		FileOutputStream os = new FileOutputStream(file);
+		os.write(content.getBytes("UTF-8"));
+		os.close();
+	}
+}
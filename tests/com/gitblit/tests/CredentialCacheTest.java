@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.gitblit.CredentialCache;
+
+public class CredentialCacheTest {
+
+	@Test
+	public void testVerification() throws Exception {
+		CredentialCache cache = new CredentialCache(60000, 10);
+		assertNull(cache.get("admin", "admin".toCharArray()));
+		cache.put("Admin", "admin".toCharArray(), "admin");
+		assertEquals("admin", cache.get("admin", "admin".toCharArray()));
+		assertEquals("admin", cache.get("ADMIN", "admin".toCharArray()));
+		// passwords are case-sensitive
+		assertNull(cache.get("admin", "Admin".toCharArray()));
+		assertNull(cache.get("admin", "admin2".toCharArray()));
+		assertNull(cache.get("admi", "nadmin".toCharArray()));
+
+		// non-ascii and malformed passwords
+		cache.put("user", "p\u00e4ss\u20ac".toCharArray(), "user");
+		assertEquals("user", cache.get("user", "p\u00e4ss\u20ac".toCharArray()));
+		assertNull(cache.get("user", "pass\u20ac".toCharArray()));
+		cache.put("user", new char[] { 'a', '\ud800' }, "user");
+		assertEquals("user", cache.get("user", new char[] { 'a', '\ud800' }));
+	}
+
+	@Test
+	public void testExpiration() throws Exception {
+		CredentialCache cache = new CredentialCache(50, 10);
+		cache.put("admin", "admin".toCharArray(), "admin");
+		assertEquals("admin", cache.get("admin", "admin".toCharArray()));
+		Thread.sleep(100);
+		assertNull(cache.get("admin", "admin".toCharArray()));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		CredentialCache cache = new CredentialCache(60000, 3);
+		cache.put("user1", "pw".toCharArray(), "user1");
+		cache.put("user2", "pw".toCharArray(), "user2");
+		cache.put("user3", "pw".toCharArray(), "user3");
+		// touch user1 so that user2 is the least recently used verification
+		assertEquals("user1", cache.get("user1", "pw".toCharArray()));
+		cache.put("user4", "pw".toCharArray(), "user4");
+		assertEquals(3, cache.size());
+		assertNull(cache.get("user2", "pw".toCharArray()));
+		assertEquals("user1", cache.get("user1", "pw".toCharArray()));
+		assertEquals("user4", cache.get("user4", "pw".toCharArray()));
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+		CredentialCache cache = new CredentialCache(60000, 10);
+		cache.put("user1", "pw1".toCharArray(), "user1");
+		cache.put("user1", "pw2".toCharArray(), "user1");
+		cache.put("user2", "pw".toCharArray(), "user2");
+		cache.invalidate("USER1");
+		assertEquals(1, cache.size());
+		assertNull(cache.get("user1", "pw1".toCharArray()));
+		assertEquals("user2", cache.get("user2", "pw".toCharArray()));
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+	}
+}
@@ -59,7 +59,13 @@ import com.gitblit.utils.JGitUtils;
 		MarkdownUtilsTest.class, JGitUtilsTest.class, SyndicationUtilsTest.class,
 		DiffUtilsTest.class, MetricUtilsTest.class, TicgitUtilsTest.class, X509UtilsTest.class,
 		GitBlitTest.class, FederationTests.class, RpcTests.class, GitServletTest.class,
-		GroovyScriptTest.class, LuceneExecutorTest.class, IssuesTest.class, RepositoryModelTest.class })
+		GroovyScriptTest.class, LuceneExecutorTest.class, IssuesTest.class, RepositoryModelTest.class,
+		RepositorySizeTrackerTest.class, LuceneIndexQueueTest.class,
+		ArchiveCacheTest.class, ParallelCompressionTest.class,
+		RawServletTest.class, ResponseCacheTest.class, PagesCacheTest.class,
+		ClonePackTest.class, UploadPackCacheTest.class, TransportLimiterTest.class,
+		HookExecutorTest.class, ScriptRegistryTest.class, CredentialCacheTest.class,
+		RepositoryRegistryTest.class })
 public class GitBlitSuite {
 
 	public static final File REPOSITORIES = new File("git");
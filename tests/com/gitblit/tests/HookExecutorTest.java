@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.ReceiveCommand.Result;
+import org.eclipse.jgit.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gitblit.HookExecutor;
+import com.gitblit.HookExecutor.PostReceiveEvent;
+import com.gitblit.ScriptRegistry;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.UserModel;
+
+public class HookExecutorTest {
+
+	public static final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+	public static final AtomicInteger attempts = new AtomicInteger();
+
+	private File folder = new File("hookscripts");
+
+	private HookExecutor executor;
+
+	@Before
+	public void setUp() throws Exception {
+		if (folder.exists()) {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+		folder.mkdirs();
+		events.clear();
+		attempts.set(0);
+		String recorder = HookExecutorTest.class.getName();
+		write("record.groovy", recorder + ".events.add(repository.name + ':' + commands[0].refName)");
+		write("slow.groovy", "Thread.sleep(50)\n" + recorder
+				+ ".events.add(repository.name + ':slow:' + commands[0].refName)");
+		write("hang.groovy", "Thread.sleep(60000)");
+		write("flaky.groovy", "if (" + recorder + ".attempts.incrementAndGet() < 3) throw new Exception('flaky')\n"
+				+ recorder + ".events.add('flaky')");
+		write("abort.groovy", "return false");
+		executor = new HookExecutor(new ScriptRegistry(folder, 0), 2, 10, 5000, 2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.close();
+		FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+	}
+
+	@Test
+	public void testEvent() throws Exception {
+		ReceiveCommand cmd = new ReceiveCommand(ObjectId.zeroId(), ObjectId.zeroId(), "refs/heads/master");
+		cmd.setResult(Result.OK);
+		PostReceiveEvent event = event("a.git", "refs/heads/master", "record");
+		// the event holds copies of the commands
+		assertFalse(event.commands.contains(cmd));
+		assertEquals(Result.OK, event.commands.get(0).getResult());
+		try {
+			event.commands.clear();
+			assertTrue(false);
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	@Test
+	public void testOrdering() throws Exception {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 3; i++) {
+			assertTrue(executor.queue(event("a.git", "refs/heads/a" + i, "slow")));
+			assertTrue(executor.queue(event("b.git", "refs/heads/b" + i, "record")));
+		}
+		// the push does not wait for the scripts
+		assertTrue(System.currentTimeMillis() - start < 50);
+		await(6);
+
+		// the events of a repository are processed in push order
+		List<String> a = new ArrayList<String>();
+		List<String> b = new ArrayList<String>();
+		for (String event : events) {
+			(event.startsWith("a.git") ? a : b).add(event);
+		}
+		assertEquals(Arrays.asList("a.git:slow:refs/heads/a0", "a.git:slow:refs/heads/a1",
+				"a.git:slow:refs/heads/a2"), a);
+		assertEquals(Arrays.asList("b.git:refs/heads/b0", "b.git:refs/heads/b1",
+				"b.git:refs/heads/b2"), b);
+		// a slow repository does not hold up other repositories
+		assertTrue(events.indexOf("b.git:refs/heads/b2") < events.indexOf("a.git:slow:refs/heads/a2"));
+		assertEquals(0, executor.getQueued());
+	}
+
+	@Test
+	public void testTimeoutAndRetry() throws Exception {
+		// a hanging script is interrupted, a failing script is retried
+		assertTrue(executor.queue(event("a.git", "refs/heads/master", "hang", "flaky", "record")));
+		await(2);
+		assertEquals(Arrays.asList("flaky", "a.git:refs/heads/master"), events);
+		assertEquals(3, attempts.get());
+
+		// a script which returns false aborts the remaining scripts
+		events.clear();
+		assertTrue(executor.queue(event("a.git", "refs/heads/master", "abort", "record")));
+		assertTrue(executor.queue(event("a.git", "refs/heads/next", "record")));
+		await(1);
+		assertEquals(Arrays.asList("a.git:refs/heads/next"), events);
+	}
+
+	@Test
+	public void testQueueSize() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			assertTrue(executor.queue(event("a.git", "refs/heads/a" + i, "slow")));
+		}
+		// the queue is full, the caller runs the scripts
+		assertFalse(executor.queue(event("a.git", "refs/heads/full", "slow")));
+		await(10);
+		assertTrue(executor.queue(event("a.git", "refs/heads/a10", "slow")));
+		await(11);
+
+		HookExecutor synchronous = new HookExecutor(new ScriptRegistry(folder, 0), 0, 10, 0, 0);
+		assertFalse(synchronous.isAsynchronous());
+		assertFalse(synchronous.queue(event("a.git", "refs/heads/master", "record")));
+		synchronous.close();
+	}
+
+	private PostReceiveEvent event(String repository, String ref, String... scripts) {
+		ReceiveCommand cmd = new ReceiveCommand(ObjectId.zeroId(), ObjectId.zeroId(), ref);
+		cmd.setResult(Result.OK);
+		RepositoryModel model = new RepositoryModel(repository, "", "admin", new Date());
+		return new PostReceiveEvent(model, new UserModel("admin"), Arrays.asList(cmd),
+				Arrays.asList(scripts), "http://localhost");
+	}
+
+	private void await(int count) throws Exception {
+		long deadline = System.currentTimeMillis() + 30000;
+		while (events.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		while (executor.getQueued() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, events.size());
+	}
+
+	private void write(String name, String content) throws Exception {
+		FileOutputStream os = new FileOutputStream(new File(folder, name));
+		os.write(content.getBytes("UTF-8"));
+		os.close();
+	}
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -95,6 +96,87 @@ public class JGitUtilsTest {
 
 	}
 
+	@Test
+	public void testParallelFindRepositories() throws Exception {
+		File folder = createRepositoryTree(new File("searchtest"), 10, 20);
+		try {
+			List<String> exclusions = Arrays.asList("group3/.*", "group5/repo1.*\\.git");
+			for (int depth : new int[] { -1, 1, 2 }) {
+				List<String> serial = JGitUtils.getRepositoryList(folder, false, true, depth, exclusions, 1);
+				List<String> parallel = JGitUtils.getRepositoryList(folder, false, true, depth, exclusions, 4);
+				assertEquals(serial, parallel);
+			}
+			List<String> list = JGitUtils.getRepositoryList(folder, false, true, -1, exclusions, 0);
+			assertTrue(list.contains("group0/repo0.git"));
+			assertTrue(list.contains("group0/nested/repo0.git"));
+			assertTrue(list.contains("group5/repo2.git"));
+			assertFalse("Repository exclusion failed!", list.contains("group3/repo0.git"));
+			assertFalse("Repository exclusion failed!", list.contains("group5/repo10.git"));
+			assertEquals(10 * 20 * 2 - 2 * 20 - 11, list.size());
+		} finally {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+	}
+
+	/**
+	 * Benchmarks the repository search with 1..N threads.  The benchmark is
+	 * not part of the unit suite, it runs only if the number of repositories
+	 * is specified, e.g. -Dgitblit.benchmark.repositories=10000
+	 */
+	@Test
+	public void benchmarkFindRepositories() throws Exception {
+		int count = Integer.getInteger("gitblit.benchmark.repositories", 0);
+		assumeTrue(count > 0);
+		int groups = Math.max(1, count / 100);
+		File folder = createRepositoryTree(new File("searchbenchmark"), groups, 50);
+		try {
+			int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+			List<String> expected = null;
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				long start = System.nanoTime();
+				List<String> list = JGitUtils.getRepositoryList(folder, false, true, -1, null, threads);
+				long duration = (System.nanoTime() - start) / 1000000L;
+				System.out.println(String.format("found %d repositories with %d thread(s) in %d msecs",
+						list.size(), threads, duration));
+				if (expected == null) {
+					expected = list;
+				}
+				assertEquals(expected, list);
+			}
+			assertEquals(groups * 50 * 2, expected.size());
+		} finally {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+	}
+
+	/**
+	 * Creates a synthetic repositories folder with the specified number of
+	 * groups. Each group contains bare repositories, a nested subgroup of bare
+	 * repositories, and a folder which is not a repository.
+	 */
+	private File createRepositoryTree(File folder, int groups, int repositories) throws Exception {
+		if (folder.exists()) {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+		for (int i = 0; i < groups; i++) {
+			File group = new File(folder, "group" + i);
+			new File(group, "notes").mkdirs();
+			for (int j = 0; j < repositories; j++) {
+				createBareRepository(new File(group, "repo" + j + ".git"));
+				createBareRepository(new File(group, "nested/repo" + j + ".git"));
+			}
+		}
+		return folder;
+	}
+
+	private void createBareRepository(File folder) throws Exception {
+		new File(folder, "objects").mkdirs();
+		new File(folder, "refs").mkdirs();
+		FileOutputStream os = new FileOutputStream(new File(folder, "HEAD"));
+		os.write("ref: refs/heads/master\n".getBytes(Constants.CHARACTER_ENCODING));
+		os.close();
+	}
+
 	@Test
 	public void testOpenRepository() throws Exception {
 		Repository repository = GitBlitSuite.getHelloworldRepository();
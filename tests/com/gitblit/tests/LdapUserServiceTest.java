@@ -17,6 +17,7 @@
 package com.gitblit.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -24,16 +25,20 @@ import static org.junit.Assert.assertTrue;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.gitblit.LdapUserService;
+import com.gitblit.models.TeamModel;
 import com.gitblit.models.UserModel;
 import com.gitblit.tests.mock.MemorySettings;
 import com.unboundid.ldap.listener.InMemoryDirectoryServer;
 import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
 import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
 import com.unboundid.ldif.LDIFReader;
 
 /**
@@ -49,6 +54,8 @@ public class LdapUserServiceTest {
 	
 	static int ldapPort = 1389;
 	
+	static InMemoryDirectoryServer ds;
+	
 	@BeforeClass
 	public static void createInMemoryLdapServer() throws Exception {
 		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=MyDomain");
@@ -56,7 +63,7 @@ public class LdapUserServiceTest {
 		config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", ldapPort));
 		config.setSchema(null);
 		
-		InMemoryDirectoryServer ds = new InMemoryDirectoryServer(config);
+		ds = new InMemoryDirectoryServer(config);
 		ds.importFromLDIF(true, new LDIFReader(LdapUserServiceTest.class.getResourceAsStream("resources/ldapUserServiceSampleData.ldif")));
 		ds.startListening();
 	}
@@ -67,6 +74,11 @@ public class LdapUserServiceTest {
 		ldapUserService.setup(getSettings());
 	}
 	
+	@After
+	public void closeLdapUserService() {
+		ldapUserService.close();
+	}
+	
 	private MemorySettings getSettings() {
 		Map<String, Object> backingMap = new HashMap<String, Object>();
 		backingMap.put("realm.ldap.server", "ldap://localhost:" + ldapPort);
@@ -121,6 +133,7 @@ public class LdapUserServiceTest {
 		// Test more complicated scenarios - concat
 		MemorySettings ms = getSettings();
 		ms.put("realm.ldap.displayName", "${personalTitle}. ${givenName} ${surname}");
+		ldapUserService.close();
 		ldapUserService = new LdapUserService();
 		ldapUserService.setup(ms);
 		
@@ -138,6 +151,7 @@ public class LdapUserServiceTest {
 		// Test more complicated scenarios - concat
 		MemorySettings ms = getSettings();
 		ms.put("realm.ldap.email", "${givenName}.${surname}@gitblit.com");
+		ldapUserService.close();
 		ldapUserService = new LdapUserService();
 		ldapUserService.setup(ms);
 		
@@ -154,5 +168,82 @@ public class LdapUserServiceTest {
 		UserModel userOneModel = ldapUserService.authenticate("*)(userPassword=userOnePassword", "userOnePassword".toCharArray());
 		assertNull(userOneModel);
 	}
+	
+	@Test
+	public void testTeamCache() throws Exception {
+		String group = "CN=Git_Users,OU=Groups,OU=UserControl,OU=MyOrganization,DC=MyDomain";
+		String userFour = "CN=UserFour,OU=Canada,OU=Users,OU=UserControl,OU=MyOrganization,DC=MyDomain";
+		UserModel userFourModel = ldapUserService.authenticate("UserFour", "userFourPassword".toCharArray());
+		assertNotNull(userFourModel);
+		assertNotNull(userFourModel.getTeam("git_users"));
+		
+		ds.modify(group, new Modification(ModificationType.DELETE, "member", userFour));
+		try {
+			// the cached teams are used
+			userFourModel = ldapUserService.authenticate("UserFour", "userFourPassword".toCharArray());
+			assertNotNull(userFourModel);
+			assertNotNull(userFourModel.getTeam("git_users"));
+			
+			// without the cache and the pool the teams are searched for every login
+			MemorySettings ms = getSettings();
+			ms.put("realm.ldap.teamCacheTtl", "0");
+			ms.put("realm.ldap.poolSize", "0");
+			ldapUserService.close();
+			ldapUserService = new LdapUserService();
+			ldapUserService.setup(ms);
+			userFourModel = ldapUserService.authenticate("UserFour", "userFourPassword".toCharArray());
+			assertNotNull(userFourModel);
+			assertNull(userFourModel.getTeam("git_users"));
+		} finally {
+			ds.modify(group, new Modification(ModificationType.ADD, "member", userFour));
+		}
+	}
+	
+	@Test
+	public void testSynchronizeUsers() throws Exception {
+		assertEquals(4, ldapUserService.synchronizeUsers());
+		UserModel userFourModel = ldapUserService.getUserModel("UserFour");
+		assertNotNull(userFourModel);
+		assertNotNull(userFourModel.getTeam("git_users"));
+		assertEquals("User Four", userFourModel.displayName);
+		UserModel userTwoModel = ldapUserService.getUserModel("UserTwo");
+		assertNotNull(userTwoModel);
+		assertTrue(userTwoModel.canAdmin);
+		// the teams of all synchronized users are written together
+		TeamModel gitUsers = ldapUserService.getTeamModel("git_users");
+		assertTrue(gitUsers.hasUser("UserOne"));
+		assertTrue(gitUsers.hasUser("UserFour"));
+	}
+	
+	@Test
+	public void testSynchronizeGroupRemoval() throws Exception {
+		String group = "CN=Git_Users,OU=Groups,OU=UserControl,OU=MyOrganization,DC=MyDomain";
+		String userFour = "CN=UserFour,OU=Canada,OU=Users,OU=UserControl,OU=MyOrganization,DC=MyDomain";
+		assertEquals(4, ldapUserService.synchronizeUsers());
+		assertTrue(ldapUserService.getTeamModel("git_users").hasUser("UserFour"));
+		
+		ds.modify(group, new Modification(ModificationType.DELETE, "member", userFour));
+		try {
+			assertEquals(4, ldapUserService.synchronizeUsers());
+			assertFalse(ldapUserService.getTeamModel("git_users").hasUser("UserFour"));
+			assertTrue(ldapUserService.getTeamModel("git_users").hasUser("UserOne"));
+			assertNull(ldapUserService.getUserModel("UserFour").getTeam("git_users"));
+		} finally {
+			ds.modify(group, new Modification(ModificationType.ADD, "member", userFour));
+		}
+		assertEquals(4, ldapUserService.synchronizeUsers());
+		assertTrue(ldapUserService.getTeamModel("git_users").hasUser("UserFour"));
+	}
+	
+	@Test
+	public void testSynchronizeUsersPaged() throws Exception {
+		MemorySettings ms = getSettings();
+		ms.put("realm.ldap.synchronizePageSize", "3");
+		ldapUserService.close();
+		ldapUserService = new LdapUserService();
+		ldapUserService.setup(ms);
+		assertEquals(4, ldapUserService.synchronizeUsers());
+		assertNotNull(ldapUserService.getUserModel("UserFour"));
+	}
 
 }
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -166,6 +167,34 @@ public class LuceneExecutorTest {
 		assertEquals(10, results.size());
 	}
 	
+	@Test
+	public void testSearchAfter() throws Exception {
+		LuceneExecutor lucene = newLuceneExecutor();
+		Repository repository = GitBlitSuite.getJGitRepository();
+		String name = newRepositoryModel(repository).name;
+		repository.close();
+
+		List<SearchResult> page1 = lucene.search("test", 1, 5, name);
+		List<SearchResult> page2 = lucene.search("test", 2, 5, name);
+		assertEquals(5, page2.size());
+		String cursor = page1.get(page1.size() - 1).cursor;
+		List<SearchResult> after = lucene.searchAfter("test", 2, 5, cursor, Arrays.asList(name));
+		assertSamePage(page2, after);
+
+		// the cursor of another query is ignored and the page is searched afresh
+		String stale = lucene.search("commit", 1, 5, name).get(4).cursor;
+		assertSamePage(page2, lucene.searchAfter("test", 2, 5, stale, Arrays.asList(name)));
+		lucene.close();
+	}
+
+	private void assertSamePage(List<SearchResult> expected, List<SearchResult> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).hitId, actual.get(i).hitId);
+			assertEquals(expected.get(i).cursor, actual.get(i).cursor);
+		}
+	}
+
 	@Test
 	public void testDeleteBlobFromIndex() throws Exception {
 		// start with a fresh reindex of entire repository
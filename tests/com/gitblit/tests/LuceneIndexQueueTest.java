@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.gitblit.LuceneIndexQueue;
+
+public class LuceneIndexQueueTest {
+
+	@Test
+	public void testQueue() throws Exception {
+		File file = new File("lucenequeue.test");
+		file.delete();
+		try {
+			LuceneIndexQueue queue = new LuceneIndexQueue(file);
+			assertTrue(queue.isEmpty());
+			queue.add("a.git", Arrays.asList("refs/heads/master"));
+			queue.add("a.git", Arrays.asList("refs/heads/master", "refs/heads/dev"));
+			queue.add("b.git", Arrays.asList("refs/heads/master"));
+			queue.add("b.git", null);
+			queue.add("b.git", Arrays.asList("refs/heads/dev"));
+			assertFalse(queue.isEmpty());
+
+			// queued updates survive a restart
+			queue = new LuceneIndexQueue(file);
+			Map<String, Set<String>> batch = queue.drain();
+			assertTrue(queue.isEmpty());
+			assertEquals(2, batch.size());
+			assertEquals(2, batch.get("a.git").size());
+			assertTrue(batch.get("a.git").contains("refs/heads/dev"));
+			assertTrue(batch.get("b.git").isEmpty());
+
+			// drained updates remain queued until committed
+			queue.add("c.git", Arrays.asList("refs/heads/master"));
+			assertEquals(3, new LuceneIndexQueue(file).drain().size());
+			queue.commit();
+			batch = new LuceneIndexQueue(file).drain();
+			assertEquals(1, batch.size());
+			assertTrue(batch.get("c.git").contains("refs/heads/master"));
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.FileUtils;
+import org.junit.Test;
+
+import com.gitblit.PagesCache;
+
+public class PagesCacheTest {
+
+	@Test
+	public void testLookups() throws Exception {
+		File folder = new File("pagescache");
+		if (folder.exists()) {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+		Git git = Git.init().setDirectory(folder).call();
+		try {
+			write(new File(folder, "index.html"), "<html>1</html>");
+			write(new File(folder, "css/site.css"), "body {}");
+			git.add().addFilepattern(".").call();
+			RevCommit tip1 = git.commit().setMessage("first").call();
+
+			PagesCache cache = new PagesCache(10, 2);
+			ObjectId index1 = cache.getBlobId("pages.git", git.getRepository(), tip1, "index.html");
+			assertNotNull(index1);
+			assertNotNull(cache.getBlobId("pages.git", git.getRepository(), tip1, "css/site.css"));
+			assertEquals(index1, cache.getBlobId("pages.git", git.getRepository(), tip1, "index.html"));
+
+			// folders and missing files are not resources
+			assertNull(cache.getBlobId("pages.git", git.getRepository(), tip1, "css"));
+			assertNull(cache.getBlobId("pages.git", git.getRepository(), tip1, "missing.html"));
+
+			// the lookups are discarded when the branch moves
+			write(new File(folder, "index.html"), "<html>2</html>");
+			write(new File(folder, "missing.html"), "found");
+			git.add().addFilepattern(".").call();
+			RevCommit tip2 = git.commit().setMessage("second").call();
+			ObjectId index2 = cache.getBlobId("pages.git", git.getRepository(), tip2, "index.html");
+			assertNotNull(index2);
+			assertNotNull(cache.getBlobId("pages.git", git.getRepository(), tip2, "missing.html"));
+			assertEquals(false, index1.equals(index2));
+
+			// markdown documents are cached by blob id
+			cache.putDocument(index1, "1");
+			cache.putDocument(index2, "2");
+			assertEquals("1", cache.getDocument(index1));
+			cache.putDocument(ObjectId.zeroId(), "0");
+			assertNull(cache.getDocument(index2));
+			assertEquals("1", cache.getDocument(index1));
+		} finally {
+			git.getRepository().close();
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+	}
+
+	private void write(File file, String content) throws Exception {
+		file.getParentFile().mkdirs();
+		FileOutputStream os = new FileOutputStream(file);
+		os.write(content.getBytes("UTF-8"));
+		os.close();
+	}
+}
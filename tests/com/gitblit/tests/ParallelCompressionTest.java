@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.junit.Test;
+import org.tukaani.xz.XZInputStream;
+
+import com.gitblit.utils.ParallelGZIPOutputStream;
+import com.gitblit.utils.ParallelXZOutputStream;
+
+public class ParallelCompressionTest {
+
+	@Test
+	public void testGzip() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int length : new int[] { 0, 1, 1000, 100000, 350000 }) {
+				byte[] data = createData(length);
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
+				OutputStream gz = new ParallelGZIPOutputStream(os, executor, 64 * 1024, 3, 6);
+				write(gz, data);
+				gz.close();
+				InputStream is = new GzipCompressorInputStream(new ByteArrayInputStream(os.toByteArray()), true);
+				assertArrayEquals(data, read(is));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testXz() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int length : new int[] { 0, 1, 1000, 300000 }) {
+				byte[] data = createData(length);
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
+				OutputStream xz = new ParallelXZOutputStream(os, executor, 64 * 1024, 3, 1);
+				write(xz, data);
+				xz.close();
+				InputStream is = new XZInputStream(new ByteArrayInputStream(os.toByteArray()));
+				assertArrayEquals(data, read(is));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Benchmarks the serial and parallel compressors.  The benchmark is not
+	 * part of the unit suite, it runs only if the amount of data is specified
+	 * in megabytes, e.g. -Dgitblit.benchmark.compression=256
+	 */
+	@Test
+	public void benchmarkCompressionThroughput() throws Exception {
+		int megabytes = Integer.getInteger("gitblit.benchmark.compression", 0);
+		assumeTrue(megabytes > 0);
+		byte[] data = createData(megabytes * 1024 * 1024);
+		int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+		long start = System.nanoTime();
+		OutputStream gz = new GzipCompressorOutputStream(new CountingOutputStream());
+		write(gz, data);
+		gz.close();
+		report("gz", 1, data.length, start);
+		for (int threads = 2; threads <= maxThreads; threads *= 2) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				start = System.nanoTime();
+				gz = new ParallelGZIPOutputStream(new CountingOutputStream(), executor, threads * 2);
+				write(gz, data);
+				gz.close();
+				report("gz", threads, data.length, start);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		// xz is much slower, benchmark a quarter of the data
+		byte[] xzData = new byte[data.length / 4];
+		System.arraycopy(data, 0, xzData, 0, xzData.length);
+		start = System.nanoTime();
+		OutputStream xz = new XZCompressorOutputStream(new CountingOutputStream());
+		write(xz, xzData);
+		xz.close();
+		report("xz", 1, xzData.length, start);
+		for (int threads = 2; threads <= maxThreads; threads *= 2) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				start = System.nanoTime();
+				xz = new ParallelXZOutputStream(new CountingOutputStream(), executor, threads * 2);
+				write(xz, xzData);
+				xz.close();
+				report("xz", threads, xzData.length, start);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private void report(String format, int threads, long length, long start) {
+		long duration = Math.max(1, (System.nanoTime() - start) / 1000000L);
+		System.out.println(String.format("%s compressed %d MB with %d thread(s) in %d msecs (%.1f MB/sec)",
+				format, length / (1024 * 1024), threads, duration, (length / (1024 * 1024.0)) * 1000 / duration));
+	}
+
+	/**
+	 * Creates compressible data which resembles source code.
+	 */
+	private byte[] createData(int length) {
+		String[] words = { "public", "static", "void", "return", "if", "else", "for", "while", "int",
+				"String", "new", "null", "true", "false", "class", "import", "{", "}", "(", ")", ";",
+				"\n\t", "\n\t\t", "repository", "commit", "branch", "model", "settings" };
+		Random random = new Random(length);
+		ByteArrayOutputStream os = new ByteArrayOutputStream(length + 16);
+		while (os.size() < length) {
+			byte[] word = words[random.nextInt(words.length)].getBytes();
+			os.write(word, 0, word.length);
+			os.write(' ');
+			if (random.nextInt(50) == 0) {
+				// occasional incompressible identifiers
+				os.write('a' + random.nextInt(26));
+				os.write('0' + random.nextInt(10));
+			}
+		}
+		byte[] data = new byte[length];
+		System.arraycopy(os.toByteArray(), 0, data, 0, length);
+		return data;
+	}
+
+	private void write(OutputStream os, byte[] data) throws IOException {
+		// write in chunks which do not align with the blocks
+		int chunk = 8191;
+		for (int i = 0; i < data.length; i += chunk) {
+			os.write(data, i, Math.min(chunk, data.length - i));
+		}
+	}
+
+	private byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int len;
+		while ((len = is.read(buffer)) > -1) {
+			os.write(buffer, 0, len);
+		}
+		is.close();
+		return os.toByteArray();
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -24,6 +24,7 @@ import org.junit.Test;
 import com.gitblit.Constants.AccessPermission;
 import com.gitblit.Constants.AccessRestrictionType;
 import com.gitblit.Constants.AuthorizationControl;
+import com.gitblit.models.PermissionMatrix;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.TeamModel;
 import com.gitblit.models.UserModel;
@@ -2587,4 +2588,41 @@ public class PermissionsTest extends Assert {
 		assertTrue("User did not inherit create privileges", user.canCreate());
 	}
 
+	@Test
+	public void testPermissionMatrixInvalidation() throws Exception {
+		RepositoryModel repository = new RepositoryModel("ubercool/myrepo.git", null, null, new Date());
+		repository.authorizationControl = AuthorizationControl.NAMED;
+		repository.accessRestriction = AccessRestrictionType.VIEW;
+
+		UserModel user = new UserModel("test");
+		user.setRepositoryPermission("ubercool/[A-Z0-9-~_\\./]+", AccessPermission.CLONE);
+		assertTrue("user CAN NOT clone!", user.canClone(repository));
+		assertFalse("user CAN push!", user.canPush(repository));
+		assertEquals(AccessPermission.CLONE, user.getRepositoryPermission(repository).permission);
+
+		// an explicit permission replaces the regex permission
+		user.setRepositoryPermission(repository.name, AccessPermission.PUSH);
+		assertTrue("user CAN NOT push!", user.canPush(repository));
+		user.removeRepositoryPermission(repository.name);
+		assertFalse("user CAN push!", user.canPush(repository));
+		user.removeRepositoryPermission("ubercool/[A-Z0-9-~_\\./]+");
+		assertFalse("user CAN clone!", user.canClone(repository));
+
+		// a new team and a changed team permission are honored
+		TeamModel team = new TeamModel("team");
+		user.teams.add(team);
+		assertFalse("user CAN push!", user.canPush(repository));
+		team.setRepositoryPermission(repository.name, AccessPermission.REWIND);
+		assertTrue("user CAN NOT push!", user.canPush(repository));
+		assertEquals("team", user.getRepositoryPermission(repository).source);
+		user.setRepositoryPermission("ubercool/[A-Z0-9-~_\\./]+", AccessPermission.VIEW);
+		assertFalse("user CAN push!", user.canPush(repository));
+
+		// direct changes are picked up after Gitblit invalidates the matrices
+		user.permissions.clear();
+		assertFalse("user CAN push!", user.canPush(repository));
+		PermissionMatrix.invalidateAll();
+		assertTrue("user CAN NOT push!", user.canPush(repository));
+	}
+
 }
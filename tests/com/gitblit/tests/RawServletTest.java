@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jgit.lib.Repository;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.gitblit.Constants.AccessRestrictionType;
+import com.gitblit.GitBlit;
+import com.gitblit.RawServlet;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.utils.Base64;
+import com.gitblit.utils.JGitUtils;
+
+public class RawServletTest {
+
+	private static final AtomicBoolean started = new AtomicBoolean(false);
+
+	// the blob of an orphan branch created by JGitUtils.createOrphanBranch
+	private static final String CONTENT = "Created branch master";
+
+	@BeforeClass
+	public static void startGitblit() throws Exception {
+		started.set(GitBlitSuite.startGitblit());
+		RepositoryModel model = new RepositoryModel("rawtest.git", null, null, null);
+		if (GitBlit.self().getRepositoryModel(model.name) == null) {
+			GitBlit.self().updateRepositoryModel(model.name, model, true);
+			Repository r = GitBlit.self().getRepository(model.name);
+			JGitUtils.createOrphanBranch(r, "master", null);
+			r.close();
+		}
+	}
+
+	@AfterClass
+	public static void stopGitblit() throws Exception {
+		GitBlit.self().deleteRepository("rawtest.git");
+		if (started.get()) {
+			GitBlitSuite.stopGitblit();
+		}
+	}
+
+	@Test
+	public void testLinks() throws Exception {
+		assertEquals("http://localhost/rawblob/?r=group%2Fmy+repo.git&h=refs%2Fheads%2Fmaster&f=docs%2Fa+b.txt",
+				RawServlet.asLink("http://localhost/", "group/my repo.git", "refs/heads/master", "docs/a b.txt"));
+		assertEquals("http://localhost/rawblob/?r=test.git&h=abc",
+				RawServlet.asLink("http://localhost", "test.git", "abc", null));
+	}
+
+	@Test
+	public void testRangeRequests() throws Exception {
+		HttpURLConnection conn = open("master", null);
+		assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+		assertEquals(CONTENT, read(conn));
+
+		conn = open("master", null);
+		conn.setRequestProperty("Range", "bytes=8-13");
+		assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+		assertEquals("bytes 8-13/" + CONTENT.length(), conn.getHeaderField("Content-Range"));
+		assertEquals("branch", read(conn));
+
+		conn = open("master", null);
+		conn.setRequestProperty("Range", "bytes=" + CONTENT.length() + "-");
+		assertEquals(416, conn.getResponseCode());
+		assertEquals("bytes */" + CONTENT.length(), conn.getHeaderField("Content-Range"));
+
+		// a stale If-Range sends the whole blob
+		conn = open("master", null);
+		conn.setRequestProperty("Range", "bytes=8-13");
+		conn.setRequestProperty("If-Range", "\"0000000000000000000000000000000000000000\"");
+		assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+		assertEquals(CONTENT, read(conn));
+	}
+
+	@Test
+	public void testAccessRestriction() throws Exception {
+		RepositoryModel model = GitBlit.self().getRepositoryModel("rawtest.git");
+		model.accessRestriction = AccessRestrictionType.VIEW;
+		GitBlit.self().updateRepositoryModel(model.name, model, false);
+		try {
+			assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED, open("master", null).getResponseCode());
+			assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED, open("master", "bogus:bogus").getResponseCode());
+
+			HttpURLConnection conn = open("master", GitBlitSuite.account + ":" + GitBlitSuite.password);
+			assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+			assertTrue(conn.getHeaderField("Cache-Control").startsWith("private"));
+			assertEquals(CONTENT, read(conn));
+		} finally {
+			model.accessRestriction = AccessRestrictionType.NONE;
+			GitBlit.self().updateRepositoryModel(model.name, model, false);
+		}
+	}
+
+	private HttpURLConnection open(String objectId, String credentials) throws Exception {
+		String link = RawServlet.asLink(GitBlitSuite.url, "rawtest.git", objectId, ".branch");
+		HttpURLConnection conn = (HttpURLConnection) new URL(link).openConnection();
+		if (credentials != null) {
+			conn.setRequestProperty("Authorization", "Basic " + Base64.encodeBytes(credentials.getBytes("UTF-8")));
+		}
+		return conn;
+	}
+
+	private String read(HttpURLConnection conn) throws Exception {
+		InputStream is = conn.getInputStream();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int len;
+		while ((len = is.read(buffer)) > -1) {
+			os.write(buffer, 0, len);
+		}
+		is.close();
+		return new String(os.toByteArray(), "UTF-8");
+	}
+
+	@Test
+	public void testRanges() throws Exception {
+		// no range or unsupported ranges send the whole content
+		assertNull(RawServlet.getRange(null, 100));
+		assertNull(RawServlet.getRange("", 100));
+		assertNull(RawServlet.getRange("items=0-10", 100));
+		assertNull(RawServlet.getRange("bytes=0-10,20-30", 100));
+		assertNull(RawServlet.getRange("bytes=abc-", 100));
+		assertNull(RawServlet.getRange("bytes=10-5", 100));
+
+		assertArrayEquals(new long[] { 0, 9 }, RawServlet.getRange("bytes=0-9", 100));
+		assertArrayEquals(new long[] { 50, 99 }, RawServlet.getRange("bytes=50-", 100));
+		assertArrayEquals(new long[] { 90, 99 }, RawServlet.getRange("bytes=90-200", 100));
+		assertArrayEquals(new long[] { 80, 99 }, RawServlet.getRange("bytes=-20", 100));
+		assertArrayEquals(new long[] { 0, 99 }, RawServlet.getRange("bytes=-200", 100));
+
+		// unsatisfiable ranges
+		assertEquals(0, RawServlet.getRange("bytes=100-", 100).length);
+		assertEquals(0, RawServlet.getRange("bytes=-0", 100).length);
+		assertTrue(RawServlet.getRange("bytes=0-", 0).length == 0);
+	}
+}
@@ -17,6 +17,16 @@
 package com.gitblit.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
@@ -27,6 +37,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.gitblit.Constants;
+import com.gitblit.Constants.AccessRestrictionType;
 import com.gitblit.GitBlit;
 import com.gitblit.models.RepositoryModel;
 
@@ -93,4 +104,42 @@ public class RepositoryModelTest {
 		assertEquals("GoodBye", model.customFields.get("anotherProperty"));
 	}
 
+	@Test
+	public void testCopy() throws Exception {
+		RepositoryModel model = new RepositoryModel("test/copy.git", "description", "owner", new Date());
+		model.accessRestriction = AccessRestrictionType.CLONE;
+		model.federationSets.add("set");
+		model.availableRefs = Arrays.asList("refs/heads/master");
+		model.indexedBranches = Arrays.asList("refs/heads/master");
+		model.preReceiveScripts = Arrays.asList("pre");
+		model.postReceiveScripts = Arrays.asList("post");
+		model.mailingLists = Arrays.asList("list@example.com");
+		model.customFields = new LinkedHashMap<String, String>();
+		model.customFields.put("field", "value");
+		model.addFork("~user/copy.git");
+		model.originRepository = "origin.git";
+		model.lastGC = new Date();
+		model.gcPeriod = 3;
+		model.hasCommits = true;
+
+		RepositoryModel copy = model.copy();
+		for (Field field : RepositoryModel.class.getDeclaredFields()) {
+			if (Modifier.isStatic(field.getModifiers())) {
+				continue;
+			}
+			field.setAccessible(true);
+			Object original = field.get(model);
+			Object copied = field.get(copy);
+			assertEquals(field.getName(), original, copied);
+			if (original instanceof Collection || original instanceof Map || original instanceof Date) {
+				assertNotSame(field.getName(), original, copied);
+			}
+		}
+
+		// modifying the copy must not affect the original
+		copy.addFork("~other/copy.git");
+		copy.customFields.put("field", "changed");
+		assertFalse(model.forks.contains("~other/copy.git"));
+		assertEquals("value", model.customFields.get("field"));
+	}
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.gitblit.RepositoryRegistry;
+import com.gitblit.models.RepositoryModel;
+
+public class RepositoryRegistryTest {
+
+	@Test
+	public void testReadWrite() throws Exception {
+		File file = new File("registrytest.json");
+		file.delete();
+		try {
+			RepositoryRegistry registry = new RepositoryRegistry(file);
+			assertNull(registry.read("abc"));
+
+			RepositoryModel model = new RepositoryModel();
+			model.name = "test.git";
+			model.description = "registry test";
+			List<RepositoryRegistry.Entry> entries = new ArrayList<RepositoryRegistry.Entry>();
+			entries.add(new RepositoryRegistry.Entry(model, 100L));
+			assertTrue(registry.write("abc", entries));
+
+			List<RepositoryRegistry.Entry> read = new RepositoryRegistry(file).read("abc");
+			assertEquals(1, read.size());
+			assertEquals("test.git", read.get(0).model.name);
+			assertEquals("registry test", read.get(0).model.description);
+			assertEquals(100L, read.get(0).size.longValue());
+
+			// settings changed
+			assertNull(new RepositoryRegistry(file).read("def"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testMissing() throws Exception {
+		Set<String> registered = new HashSet<String>(Arrays.asList("a.git", "b.git"));
+		// c.git was created while the repositories folder was being scanned
+		Set<String> found = new HashSet<String>(Arrays.asList("a.git", "c.git"));
+		List<String> missing = RepositoryRegistry.getMissing(registered, found);
+		assertEquals(Arrays.asList("b.git"), missing);
+		assertTrue(RepositoryRegistry.getMissing(new HashSet<String>(), found).isEmpty());
+	}
+}
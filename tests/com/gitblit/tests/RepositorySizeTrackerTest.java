@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Date;
+
+import org.eclipse.jgit.util.FileUtils;
+import org.junit.Test;
+
+import com.gitblit.RepositorySizeTracker;
+
+public class RepositorySizeTrackerTest {
+
+	@Test
+	public void testTracking() throws Exception {
+		File gitDir = new File("sizetracker.git");
+		if (gitDir.exists()) {
+			FileUtils.delete(gitDir, FileUtils.RECURSIVE);
+		}
+		try {
+			write(new File(gitDir, "config"), 10);
+			write(new File(gitDir, "objects/pack/pack-1.pack"), 100);
+			write(new File(gitDir, "objects/ab/cdef"), 20);
+
+			RepositorySizeTracker tracker = new RepositorySizeTracker();
+			assertNull(tracker.getSize("test.git"));
+
+			Date date1 = new Date(1000);
+			assertEquals(130, tracker.measure("test.git", gitDir, date1));
+			assertTrue(tracker.hasCurrent("test.git", date1));
+
+			// received pack
+			write(new File(gitDir, "objects/pack/pack-2.pack"), 50);
+			Date date2 = new Date(2000);
+			assertFalse(tracker.hasCurrent("test.git", date2));
+			assertEquals(130, tracker.getSize("test.git").longValue());
+			assertEquals(180, tracker.refresh("test.git", gitDir, date2));
+			assertTrue(tracker.hasCurrent("test.git", date2));
+
+			// loose objects are only counted from gc statistics
+			write(new File(gitDir, "objects/12/3456"), 40);
+			assertEquals(180, tracker.refresh("test.git", gitDir, date2));
+			tracker.updateLooseObjects("test.git", 60);
+			assertEquals(220, tracker.getSize("test.git").longValue());
+
+			// seeded sizes are measured on refresh
+			tracker.seed("test.git", date1, 500);
+			assertEquals(500, tracker.getSize("test.git").longValue());
+			tracker.updateLooseObjects("test.git", 0);
+			assertEquals(500, tracker.getSize("test.git").longValue());
+			assertEquals(220, tracker.refresh("test.git", gitDir, date2));
+
+			tracker.remove("test.git");
+			assertNull(tracker.getSize("test.git"));
+		} finally {
+			FileUtils.delete(gitDir, FileUtils.RECURSIVE);
+		}
+	}
+
+	private void write(File file, int length) throws Exception {
+		file.getParentFile().mkdirs();
+		FileOutputStream os = new FileOutputStream(file);
+		os.write(new byte[length]);
+		os.close();
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.gitblit.ResponseCache;
+import com.gitblit.ResponseCache.CachedResponse;
+import com.gitblit.utils.HttpUtils;
+
+public class ResponseCacheTest {
+
+	@Test
+	public void testKeys() throws Exception {
+		ResponseCache cache = new ResponseCache(1600);
+		String key = cache.getKey("", "commit", "helloworld.git", "a", null);
+		assertEquals(key, cache.getKey("", "commit", "helloworld.git", "a", null));
+		assertFalse(key.equals(cache.getKey("user:admin", "commit", "helloworld.git", "a", null)));
+		assertFalse(key.equals(cache.getKey("", "commit", "helloworld.git", "b", null)));
+
+		// invalidation changes all keys
+		cache.invalidate();
+		assertFalse(key.equals(cache.getKey("", "commit", "helloworld.git", "a", null)));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		ResponseCache cache = new ResponseCache(1600);
+		assertEquals(100, cache.getMaxResponseSize());
+
+		for (int i = 0; i < 16; i++) {
+			cache.put("key" + i, new CachedResponse("text/html", new byte[100]));
+		}
+		assertEquals(16, cache.getCount());
+		assertEquals(1600, cache.getSize());
+
+		// touch the oldest response, the second response is evicted
+		assertNotNull(cache.get("key0"));
+		cache.put("key16", new CachedResponse("text/html", new byte[100]));
+		assertEquals(16, cache.getCount());
+		assertNotNull(cache.get("key0"));
+		assertNull(cache.get("key1"));
+
+		// responses larger than the maximum response size are not cached
+		cache.put("large", new CachedResponse("text/html", new byte[101]));
+		assertNull(cache.get("large"));
+
+		cache.invalidate();
+		assertEquals(0, cache.getCount());
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testIfNoneMatch() throws Exception {
+		assertFalse(HttpUtils.isCurrent(null, "\"a\""));
+		assertTrue(HttpUtils.isCurrent("\"a\"", "\"a\""));
+		assertTrue(HttpUtils.isCurrent("\"b\", W/\"a\"", "\"a\""));
+		assertTrue(HttpUtils.isCurrent("*", "\"a\""));
+		assertFalse(HttpUtils.isCurrent("\"b\"", "\"a\""));
+	}
+}
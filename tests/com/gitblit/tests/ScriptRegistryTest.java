@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import groovy.lang.Binding;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.Map;
+
+import org.eclipse.jgit.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gitblit.ScriptRegistry;
+import com.gitblit.ScriptRegistry.ScriptStatistics;
+
+public class ScriptRegistryTest {
+
+	private File folder = new File("registryscripts");
+
+	private ScriptRegistry registry;
+
+	@Before
+	public void setUp() throws Exception {
+		if (folder.exists()) {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+		folder.mkdirs();
+		registry = new ScriptRegistry(folder, 0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+	}
+
+	@Test
+	public void testRun() throws Exception {
+		write("hello.groovy", "return 'hello ' + user", 0);
+		Binding binding = new Binding();
+		binding.setVariable("user", "admin");
+		// scripts may be specified without the .groovy extension
+		assertEquals("hello admin", registry.run("hello", binding));
+		assertEquals("hello admin", registry.run("hello.groovy", binding));
+		binding.setVariable("user", "james");
+		assertEquals("hello james", registry.run("hello", binding));
+
+		Map<String, ScriptStatistics> stats = registry.getStatistics();
+		assertEquals(1, stats.size());
+		assertEquals(3, stats.get("hello.groovy").runs);
+		assertEquals(0, stats.get("hello.groovy").failures);
+	}
+
+	@Test
+	public void testRecompile() throws Exception {
+		File file = write("counter.groovy", "tally.count++; return 1", 0);
+		long lastModified = file.lastModified();
+		Binding binding = new Binding();
+		Counter counter = new Counter();
+		binding.setVariable("tally", counter);
+		assertEquals(1, registry.run("counter", binding));
+
+		// an unchanged script is not recompiled
+		write("counter.groovy", "tally.count++; return 2", 0);
+		file.setLastModified(lastModified);
+		assertEquals(1, registry.run("counter", binding));
+
+		// a changed script is recompiled
+		write("counter.groovy", "tally.count++; return 3", 10000);
+		assertEquals(3, registry.run("counter", binding));
+		assertEquals(3, counter.count);
+	}
+
+	@Test
+	public void testRecompileDependency() throws Exception {
+		write("Helper.groovy", "class Helper { static String greet() { 'v1' } }", 0);
+		write("greet.groovy", "return Helper.greet()", 0);
+		assertEquals("v1", registry.run("greet", new Binding()));
+
+		// a changed dependency recompiles the script
+		write("Helper.groovy", "class Helper { static String greet() { 'v2' } }", 10000);
+		assertEquals("v2", registry.run("greet", new Binding()));
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		try {
+			registry.run("missing", new Binding());
+			assertTrue(false);
+		} catch (FileNotFoundException e) {
+		}
+
+		write("broken.groovy", "return (", 0);
+		for (int i = 0; i < 2; i++) {
+			try {
+				registry.run("broken", new Binding());
+				assertTrue(false);
+			} catch (Exception e) {
+				assertTrue(e.getMessage().contains("broken.groovy"));
+			}
+		}
+		// the script compiles after it has been fixed
+		write("broken.groovy", "return 'fixed'", 10000);
+		assertEquals("fixed", registry.run("broken", new Binding()));
+
+		write("fail.groovy", "throw new IllegalStateException('fail')", 0);
+		try {
+			registry.run("fail", new Binding());
+			assertTrue(false);
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(1, registry.getStatistics().get("fail.groovy").failures);
+	}
+
+	public static class Counter {
+		public int count;
+	}
+
+	/**
+	 * Writes a script.  A non-zero offset moves the modification time of an
+	 * existing script so that the test does not depend on the resolution of
+	 * the file system timestamps.
+	 */
+	private File write(String name, String content, long offset) throws Exception {
+		File file = new File(folder, name);
+		long lastModified = file.exists() ? file.lastModified() : 0;
+		FileOutputStream os = new FileOutputStream(file);
+		os.write(content.getBytes("UTF-8"));
+		os.close();
+		if (offset > 0) {
+			file.setLastModified(lastModified + offset);
+		}
+		return file;
+	}
+}
@@ -157,4 +157,16 @@ public class StringUtilsTest {
 		assertEquals("gitblit.git", StringUtils.extractRepositoryPath("git://github.com/gitblit/gitblit.git", new String [] { ".*?://github.com/[^/].*?/(.*)" }));
 		assertEquals("gitblit.git", StringUtils.extractRepositoryPath("git://github.com/gitblit/gitblit.git"));
 	}
+
+	@Test
+	public void testGetCharset() throws Exception {
+		byte [] utf8 = "gr\u00FC\u00DFe".getBytes("UTF-8");
+		assertEquals("UTF-8", StringUtils.getCharset(utf8, utf8.length).name());
+		// truncated multi-byte sequence is not a coding error
+		assertEquals("UTF-8", StringUtils.getCharset(utf8, utf8.length - 1).name());
+
+		byte [] latin1 = "gr\u00FC\u00DFe".getBytes("ISO-8859-1");
+		assertEquals("ISO-8859-1", StringUtils.getCharset(latin1, latin1.length).name());
+		assertEquals("windows-1252", StringUtils.getCharset(latin1, latin1.length, "windows-1252").name());
+	}
 }
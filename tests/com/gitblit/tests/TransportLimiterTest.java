@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.gitblit.TransportLimiter;
+import com.gitblit.TransportLimiter.Ticket;
+import com.gitblit.TransportLimiter.Transport;
+
+public class TransportLimiterTest {
+
+	@Test
+	public void testLimits() throws Exception {
+		TransportLimiter limiter = new TransportLimiter(3, 2, 1, 0, 0, 0);
+		Ticket a1 = limiter.acquire(Transport.UPLOAD_PACK, "a.git");
+		Ticket a2 = limiter.acquire(Transport.UPLOAD_PACK, "A.git");
+		assertNotNull(a1);
+		assertNotNull(a2);
+		// repository limit
+		assertNull(limiter.acquire(Transport.UPLOAD_PACK, "a.git"));
+		Ticket b1 = limiter.acquire(Transport.UPLOAD_PACK, "b.git");
+		assertNotNull(b1);
+		// server limit
+		assertNull(limiter.acquire(Transport.UPLOAD_PACK, "c.git"));
+		// the transports are limited separately
+		Ticket push = limiter.acquire(Transport.RECEIVE_PACK, "a.git");
+		assertNotNull(push);
+		assertNull(limiter.acquire(Transport.RECEIVE_PACK, "b.git"));
+		assertEquals(4, limiter.getActive());
+		assertEquals(3, limiter.getRejected());
+
+		a1.release();
+		assertNotNull(limiter.acquire(Transport.UPLOAD_PACK, "c.git"));
+		push.release();
+		assertNotNull(limiter.acquire(Transport.RECEIVE_PACK, "b.git"));
+		a2.release();
+		b1.release();
+		assertEquals(2, limiter.getActive());
+		assertEquals(0, limiter.getQueued());
+	}
+
+	@Test
+	public void testQueue() throws Exception {
+		final TransportLimiter limiter = new TransportLimiter(0, 1, 0, 0, 3, 5000);
+		Ticket busy = limiter.acquire(Transport.UPLOAD_PACK, "busy.git");
+
+		// waiting operations are admitted in arrival order
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Boolean>> waiters = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 3; i++) {
+			final int n = i;
+			waiters.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					Ticket ticket = limiter.acquire(Transport.UPLOAD_PACK, "busy.git");
+					if (ticket == null) {
+						return false;
+					}
+					order.add(n);
+					Thread.sleep(20);
+					ticket.release();
+					return true;
+				}
+			}));
+			while (limiter.getQueued() < i + 1) {
+				Thread.sleep(5);
+			}
+		}
+		// the queue is full
+		assertNull(limiter.acquire(Transport.UPLOAD_PACK, "busy.git"));
+		// a busy repository does not hold up other repositories
+		Ticket other = limiter.acquire(Transport.UPLOAD_PACK, "other.git");
+		assertNotNull(other);
+		other.release();
+
+		Thread.sleep(50);
+		busy.release();
+		for (Future<Boolean> waiter : waiters) {
+			assertTrue(waiter.get());
+		}
+		executor.shutdown();
+		assertEquals(3, order.size());
+		assertEquals(0, (int) order.get(0));
+		assertEquals(1, (int) order.get(1));
+		assertEquals(2, (int) order.get(2));
+		assertEquals(0, limiter.getQueued());
+		assertEquals(0, limiter.getActive());
+		assertEquals(1, limiter.getRejected());
+		assertTrue(limiter.getMaximumWait() >= 50);
+		assertTrue(limiter.getAverageWait() > 0);
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		TransportLimiter limiter = new TransportLimiter(1, 0, 0, 0, 10, 100);
+		Ticket ticket = limiter.acquire(Transport.UPLOAD_PACK, "a.git");
+		long start = System.currentTimeMillis();
+		assertNull(limiter.acquire(Transport.UPLOAD_PACK, "b.git"));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertEquals(0, limiter.getQueued());
+		assertEquals(1, limiter.getRejected());
+		ticket.release();
+		assertEquals(1, limiter.getRetryAfter());
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gitblit.UploadPackCache;
+import com.gitblit.UploadPackRequest;
+import com.gitblit.utils.StringUtils;
+
+public class UploadPackCacheTest {
+
+	private static final String A = "1111111111111111111111111111111111111111";
+
+	private static final String B = "2222222222222222222222222222222222222222";
+
+	private File folder = new File("uploadpacks");
+
+	@Before
+	public void setUp() throws Exception {
+		if (folder.exists()) {
+			FileUtils.delete(folder, FileUtils.RECURSIVE);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+	}
+
+	@Test
+	public void testRequestKey() throws Exception {
+		String a = parse(pkt("want " + A + " ofs-delta side-band-64k agent=git/1.8.1\n")
+				+ pkt("want " + B + "\n") + "0000" + pkt("have " + B + "\n") + pkt("done\n")).getKey();
+		String b = parse(pkt("want " + B + " side-band-64k ofs-delta agent=git/1.7.9\n")
+				+ pkt("want " + A + "\n") + "0000" + pkt("have " + B + "\n") + pkt("done\n")).getKey();
+		String c = parse(pkt("want " + B + " side-band-64k ofs-delta\n") + pkt("want " + A + "\n")
+				+ "0000" + pkt("have " + A + "\n") + pkt("done\n")).getKey();
+		assertEquals(a, b);
+		assertFalse(a.equals(c));
+		assertFalse(UploadPackCache.getKey("a.git", "1", a, true).equals(
+				UploadPackCache.getKey("a.git", "2", a, true)));
+		assertFalse(UploadPackCache.getKey("a.git", "1", a, true).equals(
+				UploadPackCache.getKey("a.git", "1", a, false)));
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		final UploadPackCache cache = new UploadPackCache(folder, 1024*1024);
+		String key = StringUtils.getSHA1("request");
+		UploadPackCache.Entry leader = cache.open(key);
+		assertTrue(leader.isLeader());
+
+		// followers wait for the pending response
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<byte[]>> followers = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < 4; i++) {
+			final UploadPackCache.Entry follower = cache.open(key);
+			assertFalse(follower.isLeader());
+			followers.add(executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					try {
+						ByteArrayOutputStream os = new ByteArrayOutputStream();
+						follower.copyTo(os);
+						return os.toByteArray();
+					} finally {
+						follower.release();
+					}
+				}
+			}));
+		}
+
+		byte[] content = new byte[100*1024];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i % 251);
+		}
+		OutputStream os = leader.start("application/x-git-upload-pack-result", null);
+		for (int i = 0; i < content.length; i += 10*1024) {
+			os.write(content, i, 10*1024);
+			Thread.sleep(5);
+		}
+		os.close();
+		leader.complete(true);
+		leader.release();
+
+		for (Future<byte[]> follower : followers) {
+			assertTrue(Arrays.equals(content, follower.get()));
+		}
+		executor.shutdown();
+
+		// the response is cached
+		UploadPackCache.Entry cached = cache.open(key);
+		assertFalse(cached.isLeader());
+		assertEquals("application/x-git-upload-pack-result", cached.getContentType());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		cached.copyTo(bos);
+		cached.release();
+		assertTrue(Arrays.equals(content, bos.toByteArray()));
+		assertEquals(1, cache.getCount());
+		assertEquals(content.length, cache.getSize());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		UploadPackCache cache = new UploadPackCache(folder, 1024);
+		String key = StringUtils.getSHA1("failure");
+		UploadPackCache.Entry leader = cache.open(key);
+		UploadPackCache.Entry follower = cache.open(key);
+		leader.fail();
+		leader.release();
+		// the follower generates the response itself
+		assertFalse(follower.awaitStart());
+		follower.release();
+		assertEquals(0, cache.getCount());
+
+		// a response without a pack is only served to its followers
+		leader = cache.open(key);
+		assertTrue(leader.isLeader());
+		follower = cache.open(key);
+		OutputStream os = leader.start("text/plain", null);
+		os.write("NAK".getBytes());
+		os.close();
+		leader.complete(false);
+		leader.release();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		follower.copyTo(bos);
+		follower.release();
+		assertEquals("NAK", bos.toString());
+		assertEquals(0, cache.getCount());
+		assertEquals(0, folder.list().length);
+		leader = cache.open(key);
+		assertTrue(leader.isLeader());
+		leader.fail();
+		leader.release();
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		// responses up to 10 bytes are kept
+		UploadPackCache cache = new UploadPackCache(folder, 40);
+		for (int i = 0; i < 5; i++) {
+			write(cache, StringUtils.getSHA1("r" + i), 10);
+		}
+		assertEquals(4, cache.getCount());
+		assertEquals(40, cache.getSize());
+		assertEquals(4, folder.list().length);
+
+		// the least recently used response was evicted
+		UploadPackCache.Entry entry = cache.open(StringUtils.getSHA1("r0"));
+		assertTrue(entry.isLeader());
+		entry.fail();
+		entry.release();
+		entry = cache.open(StringUtils.getSHA1("r1"));
+		assertFalse(entry.isLeader());
+
+		// an evicted response remains readable until it is released
+		write(cache, StringUtils.getSHA1("r5"), 10);
+		write(cache, StringUtils.getSHA1("r6"), 10);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		entry.copyTo(bos);
+		assertEquals(10, bos.size());
+		entry.release();
+		assertEquals(4, folder.list().length);
+
+		// large responses are not kept
+		write(cache, StringUtils.getSHA1("large"), 11);
+		assertEquals(4, cache.getCount());
+		assertEquals(40, cache.getSize());
+	}
+
+	private void write(UploadPackCache cache, String key, int length) throws Exception {
+		UploadPackCache.Entry entry = cache.open(key);
+		assertTrue(entry.isLeader());
+		OutputStream os = entry.start("application/x-git-upload-pack-result", null);
+		os.write(new byte[length]);
+		os.close();
+		entry.complete(true);
+		entry.release();
+	}
+
+	private UploadPackRequest parse(String body) throws Exception {
+		byte[] bytes = body.getBytes("UTF-8");
+		return UploadPackRequest.parse(bytes, bytes.length);
+	}
+
+	private String pkt(String line) {
+		return String.format("%04x", line.length() + 4) + line;
+	}
+}
@@ -20,14 +20,20 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.eclipse.jgit.util.FileUtils;
 import org.junit.Test;
 
 import com.gitblit.ConfigUserService;
 import com.gitblit.Constants.AccessRestrictionType;
 import com.gitblit.FileUserService;
 import com.gitblit.IUserService;
+import com.gitblit.JournalUserService;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.TeamModel;
 import com.gitblit.models.UserModel;
@@ -54,6 +60,270 @@ public class UserServiceTest {
 		file.delete();
 	}
 
+	@Test
+	public void testJournalUserService() throws IOException {
+		File folder = new File("journaltest");
+		FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+		folder.mkdirs();
+		File file = new File(folder, "users.journal");
+		IUserService service = new JournalUserService(file);
+		testUsers(service);
+		testTeams(service);
+
+		// replay the journal
+		service = new JournalUserService(file);
+		assertEquals(1, service.getAllUsernames().size());
+		UserModel admin = service.getUserModel("admin");
+		assertTrue(admin.canAdmin);
+		assertTrue(admin.isTeamMember("admins"));
+		assertTrue(service.authenticate("admin", "password".toCharArray()) != null);
+		assertEquals("admin", service.authenticate(admin.cookie.toCharArray()).username);
+		FileUtils.delete(folder, FileUtils.RECURSIVE);
+	}
+
+	@Test
+	public void testJournalUserServiceCompaction() throws Exception {
+		File folder = new File("journaltest");
+		FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+		folder.mkdirs();
+		File file = new File(folder, "users.journal");
+		JournalUserService service = new JournalUserService(file);
+		List<UserModel> models = new ArrayList<UserModel>();
+		for (int i = 0; i < 300; i++) {
+			UserModel user = new UserModel("user" + i);
+			user.password = "password";
+			models.add(user);
+		}
+		assertTrue(service.updateUserModels(models));
+		// the records of a change are written as one batch record
+		assertEquals(1, countLines(file));
+		for (int i = 0; i < 3; i++) {
+			for (UserModel user : models) {
+				user.displayName = "User " + i;
+				assertTrue(service.updateUserModel(user));
+			}
+		}
+		// the journal is compacted when it exceeds 1000 records
+		assertEquals(300 + 199, countLines(file));
+
+		service = new JournalUserService(file);
+		assertEquals(300, service.getAllUsernames().size());
+		assertEquals("User 2", service.getUserModel("user299").displayName);
+		FileUtils.delete(folder, FileUtils.RECURSIVE);
+	}
+
+	@Test
+	public void testJournalUserServiceMigration() throws Exception {
+		File folder = new File("journaltest");
+		FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+		folder.mkdirs();
+		IUserService config = new ConfigUserService(new File(folder, "users.conf"));
+		TeamModel team = new TeamModel("team");
+		team.addRepositoryPermission("repo.git");
+		UserModel user = new UserModel("migrated");
+		user.password = "password";
+		user.teams.add(team);
+		assertTrue(config.updateUserModel(user));
+
+		IUserService service = new JournalUserService(new File(folder, "users.journal"));
+		user = service.getUserModel("migrated");
+		assertEquals("password", user.password);
+		assertTrue(user.isTeamMember("team"));
+		assertTrue(service.getTeamModel("team").hasRepositoryPermission("repo.git"));
+		assertTrue(new File(folder, "users.conf").exists());
+		FileUtils.delete(folder, FileUtils.RECURSIVE);
+	}
+
+	@Test
+	public void testJournalUserServiceRecovery() throws Exception {
+		File folder = new File("journaltest");
+		FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+		folder.mkdirs();
+		File file = new File(folder, "users.journal");
+		IUserService service = new JournalUserService(file);
+		assertTrue(service.updateUserModel(new UserModel("user1")));
+		assertTrue(service.updateUserModel(new UserModel("user2")));
+
+		// an incomplete last record is discarded and the next record is kept
+		append(file, "{\"type\":\"user\",\"name\":\"user3\",\"user\":{\"user");
+		service = new JournalUserService(file);
+		assertEquals(2, service.getAllUsernames().size());
+		assertTrue(service.updateUserModel(new UserModel("user4")));
+		service = new JournalUserService(file);
+		assertEquals(3, service.getAllUsernames().size());
+		assertTrue(service.getUserModel("user4") != null);
+
+		// a complete last record without a line terminator is kept
+		append(file, "{\"type\":\"deleteUser\",\"name\":\"user1\"}");
+		service = new JournalUserService(file);
+		assertTrue(service.updateUserModel(new UserModel("user5")));
+		service = new JournalUserService(file);
+		assertEquals(null, service.getUserModel("user1"));
+		assertTrue(service.getUserModel("user5") != null);
+
+		// an invalid record before the last record fails the load
+		append(file, "{\"type\":\"user\",\"na\n{\"type\":\"deleteUser\",\"name\":\"user2\"}\n");
+		long length = file.length();
+		try {
+			new JournalUserService(file);
+			assertTrue(false);
+		} catch (RuntimeException e) {
+		}
+		assertEquals(length, file.length());
+		FileUtils.delete(folder, FileUtils.RECURSIVE);
+	}
+
+	@Test
+	public void testJournalUserServiceAtomicChanges() throws Exception {
+		File folder = new File("journaltest");
+		FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+		folder.mkdirs();
+		File file = new File(folder, "users.journal");
+		IUserService service = new JournalUserService(file);
+		TeamModel team = new TeamModel("team");
+		team.addRepositoryPermission("repo.git");
+		UserModel user1 = new UserModel("user1");
+		user1.addRepositoryPermission("repo.git");
+		user1.teams.add(team);
+		UserModel user2 = new UserModel("user2");
+		user2.teams.add(team);
+		List<UserModel> models = new ArrayList<UserModel>();
+		models.add(user1);
+		models.add(user2);
+		assertTrue(service.updateUserModels(models));
+		// the second user is added to the team of the same change
+		assertTrue(service.getTeamModel("team").hasUser("user1"));
+		assertTrue(service.getTeamModel("team").hasUser("user2"));
+
+		// a change of a user and a team is a single line
+		long length = file.length();
+		assertTrue(service.renameRepositoryRole("repo.git", "renamed.git"));
+		assertEquals(2, countLines(file));
+		assertTrue(service.getUserModel("user1").hasRepositoryPermission("renamed.git"));
+		assertTrue(service.getTeamModel("team").hasRepositoryPermission("renamed.git"));
+
+		// an interrupted change is not replayed at all
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(length + (file.length() - length) / 2);
+		raf.close();
+		service = new JournalUserService(file);
+		assertTrue(service.getUserModel("user1").hasRepositoryPermission("repo.git"));
+		assertFalse(service.getUserModel("user1").hasRepositoryPermission("renamed.git"));
+		assertTrue(service.getTeamModel("team").hasRepositoryPermission("repo.git"));
+		assertFalse(service.getTeamModel("team").hasRepositoryPermission("renamed.git"));
+		assertTrue(service.getUserModel("user2").isTeamMember("team"));
+		FileUtils.delete(folder, FileUtils.RECURSIVE);
+	}
+
+	@Test
+	public void testJournalUserServiceInterruptedCompaction() throws Exception {
+		File folder = new File("journaltest");
+		FileUtils.delete(folder, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+		folder.mkdirs();
+		File file = new File(folder, "users.journal");
+		File copy = new File(folder, "users.journal.tmp");
+		IUserService service = new JournalUserService(file);
+		assertTrue(service.updateUserModel(new UserModel("journaled")));
+		ConfigUserService config = new ConfigUserService(new File(folder, "users.conf"));
+		assertTrue(config.updateUserModel(new UserModel("configured")));
+		config.close();
+
+		// the journal was deleted but its compacted copy was not renamed
+		assertTrue(file.renameTo(copy));
+		service = new JournalUserService(file);
+		assertTrue(service.getUserModel("journaled") != null);
+		assertEquals(null, service.getUserModel("configured"));
+		assertTrue(file.exists());
+		assertFalse(copy.exists());
+
+		// an incomplete copy is discarded
+		append(copy, "{\"type\":\"user\",\"name\":\"copied\",\"user\":{\"user");
+		service = new JournalUserService(file);
+		assertTrue(service.getUserModel("journaled") != null);
+		assertFalse(copy.exists());
+		FileUtils.delete(folder, FileUtils.RECURSIVE);
+	}
+
+	private void append(File file, String content) throws IOException {
+		FileOutputStream os = new FileOutputStream(file, true);
+		os.write(content.getBytes("UTF-8"));
+		os.close();
+	}
+
+	private int countLines(File file) throws IOException {
+		return com.gitblit.utils.FileUtils.readContent(file, "\n").split("\n").length;
+	}
+
+	@Test
+	public void testConfigUserServiceSnapshots() throws Exception {
+		File file = new File("us-snapshot.conf");
+		file.delete();
+		ConfigUserService service = new ConfigUserService(file, 50);
+		UserModel user = new UserModel("snapshot");
+		user.password = "password";
+		assertTrue(service.updateUserModel(user));
+
+		// returned models are copies of the snapshot
+		UserModel model = service.getUserModel("snapshot");
+		model.displayName = "changed";
+		assertEquals(null, service.getUserModel("snapshot").displayName);
+
+		// a second service modifies the realm file, the watcher reloads it
+		ConfigUserService other = new ConfigUserService(file, 50);
+		UserModel external = other.getUserModel("snapshot");
+		external.displayName = "external";
+		assertTrue(other.updateUserModel(external));
+		long timeout = System.currentTimeMillis() + 5000;
+		while (service.getUserModel("snapshot").displayName == null
+				&& System.currentTimeMillis() < timeout) {
+			Thread.sleep(20);
+		}
+		assertEquals("external", service.getUserModel("snapshot").displayName);
+
+		// changes are applied to the current file, not to a stale snapshot
+		UserModel second = new UserModel("second");
+		second.password = "password";
+		assertTrue(other.updateUserModel(second));
+		UserModel third = new UserModel("third");
+		third.password = "password";
+		assertTrue(service.updateUserModel(third));
+		assertEquals(3, service.getAllUsernames().size());
+		service.close();
+		other.close();
+		file.delete();
+	}
+
+	@Test
+	public void testConfigUserServiceClose() throws Exception {
+		File file = new File("us-close.conf");
+		file.delete();
+		ConfigUserService service = new ConfigUserService(file, 50);
+		UserModel user = new UserModel("close");
+		user.password = "password";
+		assertTrue(service.updateUserModel(user));
+		service.close();
+		service.close();
+
+		// a closed service is still usable
+		assertTrue(service.getUserModel("close") != null);
+
+		// the watcher is restarted for a new service
+		ConfigUserService watched = new ConfigUserService(file, 50);
+		ConfigUserService other = new ConfigUserService(file, 50);
+		UserModel external = other.getUserModel("close");
+		external.displayName = "external";
+		assertTrue(other.updateUserModel(external));
+		long timeout = System.currentTimeMillis() + 5000;
+		while (watched.getUserModel("close").displayName == null
+				&& System.currentTimeMillis() < timeout) {
+			Thread.sleep(20);
+		}
+		assertEquals("external", watched.getUserModel("close").displayName);
+		watched.close();
+		other.close();
+		file.delete();
+	}
+
 	protected void testUsers(IUserService service) {
 
 		UserModel admin = service.getUserModel("admin");